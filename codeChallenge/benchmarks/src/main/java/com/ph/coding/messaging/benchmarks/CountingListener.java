@@ -0,0 +1,43 @@
+package com.ph.coding.messaging.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ph.coding.messaging.Message;
+import com.ph.coding.messaging.MessageReceiveListener;
+
+/**
+ * Counts the messages delivered to any number of receivers, disposing of them straight away, and lets benchmark
+ * threads wait for a count to be reached.
+ */
+final class CountingListener implements MessageReceiveListener {
+
+	private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+	private final AtomicLong received = new AtomicLong();
+
+	@Override
+	public void onMessage(Message message, String topic) {
+		message.dispose();
+		received.incrementAndGet();
+	}
+
+	long getReceived() {
+		return received.get();
+	}
+
+	/**
+	 * Spins until at least the given number of messages has been delivered.
+	 *
+	 * @throws IllegalStateException If that takes so long that messages must have gone missing.
+	 */
+	void awaitReceived(long count) {
+		long deadline = System.nanoTime() + TIMEOUT_NANOS;
+		while (received.get() < count) {
+			if (System.nanoTime() - deadline > 0) {
+				throw new IllegalStateException("Only " + received.get() + " of " + count + " messages arrived");
+			}
+			Thread.onSpinWait();
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package com.ph.coding.messaging.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ph.coding.messaging.MessageReceiver;
+import com.ph.coding.messaging.MessageSender;
+import com.ph.coding.messaging.MessagingException;
+
+/**
+ * Messages per second sent by one producer to 1, 10 or 100 receivers on the same topic, each of which gets every
+ * message. As in {@link ThroughputBenchmark} the producer waits for delivery to catch up every so often, counting
+ * every copy of a message against its window.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanOutBenchmark {
+
+	@Param({ "MEMORY", "FILE", "SHARED_MEMORY", "TCP", "MULTICAST" })
+	Provider provider;
+
+	@Param({ "1", "10", "100" })
+	int receivers;
+
+	@Param({ "256" })
+	int payloadSize;
+
+	private Provider.Fixture fixture;
+	private final CountingListener listener = new CountingListener();
+	private MessageSender sender;
+	private byte[] payload;
+	private int window;
+	private int unconfirmed;
+	private long expected;
+
+	@Setup(Level.Iteration)
+	public void start() throws Exception {
+		fixture = provider.start();
+		for (int i = 0; i < receivers; i++) {
+			MessageReceiver receiver = fixture.factory().createReceiver(ThroughputBenchmark.TOPIC);
+			receiver.setListener(listener);
+			receiver.start();
+		}
+		sender = fixture.factory().createSender(ThroughputBenchmark.TOPIC);
+		sender.start();
+		payload = new byte[payloadSize];
+		window = Math.max(1, ThroughputBenchmark.WINDOW_BYTES / (payloadSize * receivers));
+		unconfirmed = 0;
+		expected = listener.getReceived();
+	}
+
+	@TearDown(Level.Iteration)
+	public void stop() throws Exception {
+		fixture.close();
+	}
+
+	@Benchmark
+	public void send() throws MessagingException {
+		sender.sendMessage(payload);
+		if (++unconfirmed == window) {
+			unconfirmed = 0;
+			expected += (long) window * receivers;
+			listener.awaitReceived(expected);
+		}
+	}
+}
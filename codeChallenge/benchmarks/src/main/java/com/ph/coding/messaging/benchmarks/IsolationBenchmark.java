@@ -0,0 +1,105 @@
+package com.ph.coding.messaging.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ph.coding.messaging.Message;
+import com.ph.coding.messaging.MessageReceiveListener;
+import com.ph.coding.messaging.MessageReceiver;
+import com.ph.coding.messaging.MessageSender;
+import com.ph.coding.messaging.MessagingException;
+import com.ph.coding.messaging.memory.MemoryMessagingFactory;
+import com.ph.coding.messaging.memory.MemoryTopicConfig;
+import com.ph.coding.messaging.memory.MessageIsolation;
+
+/**
+ * What each {@link MessageIsolation} mode costs the memory provider, as messages per second fanned out to 10
+ * receivers, whose listeners either only count the messages or also read the payload as an array, which is what makes
+ * {@link MessageIsolation#COPY_ON_ACCESS} copy. Paced like {@link FanOutBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IsolationBenchmark {
+
+	@Param({ "SHARED", "COPY", "COPY_ON_ACCESS" })
+	MessageIsolation isolation;
+
+	@Param({ "false", "true" })
+	boolean readPayload;
+
+	@Param({ "10" })
+	int receivers;
+
+	@Param({ "256", "16384" })
+	int payloadSize;
+
+	private MemoryMessagingFactory factory;
+	private final CountingListener counter = new CountingListener();
+	private MessageSender sender;
+	private byte[] payload;
+	private int window;
+	private int unconfirmed;
+	private long expected;
+	// keeps the reads of the payload from being optimised away
+	private volatile int lastByte;
+
+	@Setup(Level.Iteration)
+	public void start() throws Exception {
+		factory = new MemoryMessagingFactory();
+		factory.configureTopic(ThroughputBenchmark.TOPIC, new MemoryTopicConfig().setIsolation(isolation));
+		factory.start();
+		MessageReceiveListener listener = readPayload ? new ReadingListener() : counter;
+		for (int i = 0; i < receivers; i++) {
+			MessageReceiver receiver = factory.createReceiver(ThroughputBenchmark.TOPIC);
+			receiver.setListener(listener);
+			receiver.start();
+		}
+		sender = factory.createSender(ThroughputBenchmark.TOPIC);
+		sender.start();
+		payload = new byte[payloadSize];
+		window = Math.max(1, ThroughputBenchmark.WINDOW_BYTES / (payloadSize * receivers));
+		unconfirmed = 0;
+		expected = counter.getReceived();
+	}
+
+	@TearDown(Level.Iteration)
+	public void stop() throws Exception {
+		factory.shutdown();
+	}
+
+	@Benchmark
+	public void send() throws MessagingException {
+		sender.sendMessage(payload);
+		if (++unconfirmed == window) {
+			unconfirmed = 0;
+			expected += (long) window * receivers;
+			counter.awaitReceived(expected);
+		}
+	}
+
+	private final class ReadingListener implements MessageReceiveListener {
+		@Override
+		public void onMessage(Message message, String topic) {
+			byte[] msg = message.getMsg();
+			lastByte = msg[msg.length - 1];
+			counter.onMessage(message, topic);
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package com.ph.coding.messaging.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ph.coding.messaging.MessageReceiver;
+import com.ph.coding.messaging.MessageSender;
+import com.ph.coding.messaging.MessagingException;
+import com.ph.coding.messaging.memory.DeliveryMode;
+import com.ph.coding.messaging.memory.MemoryMessagingFactory;
+import com.ph.coding.messaging.memory.MemoryTopicConfig;
+
+/**
+ * Time from sending a message on a {@link com.ph.coding.messaging.memory.MemoryChannel} to its
+ * {@link com.ph.coding.messaging.memory.MemoryMessageReceiver} handing it to the listener, one message at a time, in
+ * each delivery mode. Sampled, so JMH reports percentiles of the distribution as well as its mean.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LatencyBenchmark {
+
+	@Param({ "QUEUED", "DIRECT", "SYNCHRONOUS" })
+	DeliveryMode deliveryMode;
+
+	@Param({ "16", "1024" })
+	int payloadSize;
+
+	private MemoryMessagingFactory factory;
+	private final CountingListener listener = new CountingListener();
+	private MessageSender sender;
+	private byte[] payload;
+	private long sent;
+
+	@Setup(Level.Trial)
+	public void start() throws Exception {
+		factory = new MemoryMessagingFactory();
+		factory.configureTopic(ThroughputBenchmark.TOPIC, new MemoryTopicConfig().setDeliveryMode(deliveryMode));
+		factory.start();
+		MessageReceiver receiver = factory.createReceiver(ThroughputBenchmark.TOPIC);
+		receiver.setListener(listener);
+		receiver.start();
+		sender = factory.createSender(ThroughputBenchmark.TOPIC);
+		sender.start();
+		payload = new byte[payloadSize];
+	}
+
+	@TearDown(Level.Trial)
+	public void stop() throws Exception {
+		factory.shutdown();
+	}
+
+	@Benchmark
+	public void sendToListener() throws MessagingException {
+		sender.sendMessage(payload);
+		listener.awaitReceived(++sent);
+	}
+}
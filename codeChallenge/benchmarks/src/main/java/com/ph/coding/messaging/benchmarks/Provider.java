@@ -0,0 +1,135 @@
+package com.ph.coding.messaging.benchmarks;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import com.ph.coding.messaging.MessagingFactory;
+import com.ph.coding.messaging.file.FileMessagingFactory;
+import com.ph.coding.messaging.file.FileTopicConfig;
+import com.ph.coding.messaging.file.FsyncPolicy;
+import com.ph.coding.messaging.memory.MemoryMessagingFactory;
+import com.ph.coding.messaging.multicast.MulticastMessagingFactory;
+import com.ph.coding.messaging.shm.SharedMemoryMessagingFactory;
+import com.ph.coding.messaging.tcp.TcpBroker;
+import com.ph.coding.messaging.tcp.TcpMessagingFactory;
+
+/**
+ * The messaging providers under benchmark, each set up to run on this host alone: network providers on the loopback
+ * interface, file and shared memory providers in a scratch directory of their own.
+ */
+public enum Provider {
+
+	MEMORY {
+		@Override
+		Fixture start() throws Exception {
+			MemoryMessagingFactory factory = new MemoryMessagingFactory();
+			factory.start();
+			return new Fixture(factory, null, null);
+		}
+	},
+	FILE {
+		@Override
+		Fixture start() throws Exception {
+			Path directory = Files.createTempDirectory("messaging-benchmark");
+			FileMessagingFactory factory = new FileMessagingFactory(directory);
+			// measures the provider rather than the disk
+			factory.setDefaultTopicConfig(new FileTopicConfig().setFsyncPolicy(FsyncPolicy.OS_MANAGED));
+			factory.start();
+			return new Fixture(factory, directory, null);
+		}
+	},
+	SHARED_MEMORY {
+		@Override
+		Fixture start() throws Exception {
+			Path shm = Paths.get("/dev/shm");
+			Path directory = Files.isDirectory(shm) ? Files.createTempDirectory(shm, "messaging-benchmark")
+					: Files.createTempDirectory("messaging-benchmark");
+			SharedMemoryMessagingFactory factory = new SharedMemoryMessagingFactory(directory);
+			factory.setDefaultRingCapacity(RING_CAPACITY);
+			factory.start();
+			return new Fixture(factory, directory, null);
+		}
+	},
+	TCP {
+		@Override
+		Fixture start() throws Exception {
+			TcpBroker broker = new TcpBroker(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			broker.start();
+			TcpMessagingFactory factory = new TcpMessagingFactory(broker.getAddress());
+			factory.start();
+			return new Fixture(factory, null, broker::stop);
+		}
+	},
+	MULTICAST {
+		@Override
+		Fixture start() throws Exception {
+			NetworkInterface loopback = NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+			int port;
+			try (DatagramSocket socket = new DatagramSocket(0)) {
+				port = socket.getLocalPort();
+			}
+			MulticastMessagingFactory factory = new MulticastMessagingFactory(loopback, port);
+			factory.start();
+			return new Fixture(factory, null, null);
+		}
+	};
+
+	/**
+	 * Ring size for the shared memory provider, which takes messages of up to an eighth of it, so 4 MB for the largest
+	 * payloads benchmarked. Benchmarks keep fewer bytes than this in flight, so receivers are never lapped.
+	 */
+	static final int RING_CAPACITY = 32 * 1024 * 1024;
+
+	/**
+	 * @return A started factory of the provider, with whatever it needs to run.
+	 */
+	abstract Fixture start() throws Exception;
+
+	/**
+	 * Something to undo once the factory has shut down.
+	 */
+	interface Cleanup {
+		void run() throws Exception;
+	}
+
+	static final class Fixture implements AutoCloseable {
+		private final MessagingFactory factory;
+		private final Path directory;
+		private final Cleanup cleanup;
+
+		private Fixture(MessagingFactory factory, Path directory, Cleanup cleanup) {
+			this.factory = factory;
+			this.directory = directory;
+			this.cleanup = cleanup;
+		}
+
+		MessagingFactory factory() {
+			return factory;
+		}
+
+		@Override
+		public void close() throws Exception {
+			factory.shutdown();
+			if (cleanup != null) {
+				cleanup.run();
+			}
+			if (directory != null) {
+				delete(directory);
+			}
+		}
+
+		private static void delete(Path directory) throws IOException {
+			try (Stream<Path> paths = Files.walk(directory)) {
+				paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+			}
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package com.ph.coding.messaging.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ph.coding.messaging.MessageReceiver;
+import com.ph.coding.messaging.MessageSender;
+import com.ph.coding.messaging.MessagingException;
+import com.ph.coding.messaging.memory.MemoryMessagingFactory;
+import com.ph.coding.messaging.memory.MemoryTopicConfig;
+import com.ph.coding.messaging.memory.OverflowPolicy;
+
+/**
+ * Receivers starting and stopping on a topic of the memory provider that already has 10 or 1000 long-lived receivers,
+ * as operations per second, whilst another thread keeps sending to the topic. The bounded, blocking queues of the
+ * topic keep the sender from running away from the receivers.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SubscriptionChurnBenchmark {
+
+	private static final int QUEUE_CAPACITY = 1024;
+
+	@Param({ "10", "1000" })
+	int receivers;
+
+	private MemoryMessagingFactory factory;
+	private final CountingListener listener = new CountingListener();
+	private MessageSender sender;
+	private final byte[] payload = new byte[64];
+
+	@Setup(Level.Iteration)
+	public void start() throws Exception {
+		factory = new MemoryMessagingFactory();
+		factory.configureTopic(ThroughputBenchmark.TOPIC, new MemoryTopicConfig()
+				.setChannelCapacity(QUEUE_CAPACITY).setChannelOverflowPolicy(OverflowPolicy.BLOCK)
+				.setReceiverCapacity(QUEUE_CAPACITY).setReceiverOverflowPolicy(OverflowPolicy.BLOCK));
+		factory.start();
+		for (int i = 0; i < receivers; i++) {
+			subscribe();
+		}
+		sender = factory.createSender(ThroughputBenchmark.TOPIC);
+		sender.start();
+	}
+
+	@TearDown(Level.Iteration)
+	public void stop() throws Exception {
+		factory.shutdown();
+	}
+
+	@Benchmark
+	@Group("churn")
+	@GroupThreads(1)
+	public void subscribeAndUnsubscribe() throws MessagingException {
+		subscribe().stop();
+	}
+
+	@Benchmark
+	@Group("churn")
+	@GroupThreads(1)
+	public void send() throws MessagingException {
+		sender.sendMessage(payload);
+	}
+
+	private MessageReceiver subscribe() throws MessagingException {
+		MessageReceiver receiver = factory.createReceiver(ThroughputBenchmark.TOPIC);
+		receiver.setListener(listener);
+		receiver.start();
+		return receiver;
+	}
+}
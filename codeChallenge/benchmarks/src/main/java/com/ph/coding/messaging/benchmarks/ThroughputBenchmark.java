@@ -0,0 +1,107 @@
+package com.ph.coding.messaging.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import com.ph.coding.messaging.MessageReceiver;
+import com.ph.coding.messaging.MessageSender;
+import com.ph.coding.messaging.MessagingException;
+
+/**
+ * Messages per second from one or from four producer threads to a single receiver, for payloads from 16 bytes to
+ * 1 MB. Each producer lets a bounded number of bytes get ahead of delivery before it waits for the receiver to catch
+ * up, so the score is the rate at which messages are delivered rather than the rate at which queues fill up.
+ * <p/>
+ * The multicast provider is left out as its datagrams cannot carry the larger payloads; {@link FanOutBenchmark} covers
+ * it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ThroughputBenchmark {
+
+	static final String TOPIC = "benchmark";
+	// bytes all producers together get ahead of delivery at most, well within the shared memory ring
+	static final int WINDOW_BYTES = 4 * 1024 * 1024;
+
+	@Param({ "MEMORY", "FILE", "SHARED_MEMORY", "TCP" })
+	Provider provider;
+
+	@Param({ "16", "1024", "65536", "1048576" })
+	int payloadSize;
+
+	private Provider.Fixture fixture;
+	private final CountingListener listener = new CountingListener();
+	private final AtomicLong sent = new AtomicLong();
+
+	@Setup(Level.Iteration)
+	public void start() throws Exception {
+		fixture = provider.start();
+		MessageReceiver receiver = fixture.factory().createReceiver(TOPIC);
+		receiver.setListener(listener);
+		receiver.start();
+		sent.set(listener.getReceived());
+	}
+
+	@TearDown(Level.Iteration)
+	public void stop() throws Exception {
+		fixture.close();
+	}
+
+	@State(Scope.Thread)
+	public static class Producer {
+		MessageSender sender;
+		byte[] payload;
+		int window;
+		int unconfirmed;
+
+		@Setup(Level.Iteration)
+		public void start(ThroughputBenchmark benchmark, BenchmarkParams params) throws MessagingException {
+			sender = benchmark.fixture.factory().createSender(TOPIC);
+			sender.start();
+			payload = new byte[benchmark.payloadSize];
+			window = Math.max(1, WINDOW_BYTES / (benchmark.payloadSize * params.getThreads()));
+			unconfirmed = 0;
+		}
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void singleProducer(Producer producer) throws MessagingException {
+		send(producer);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void multiProducer(Producer producer) throws MessagingException {
+		send(producer);
+	}
+
+	private void send(Producer producer) throws MessagingException {
+		producer.sender.sendMessage(producer.payload);
+		if (++producer.unconfirmed == producer.window) {
+			producer.unconfirmed = 0;
+			// everything any producer had sent before this one's window was full
+			listener.awaitReceived(sent.addAndGet(producer.window));
+		}
+	}
+}
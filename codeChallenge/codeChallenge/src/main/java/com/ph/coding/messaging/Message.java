@@ -1,5 +1,7 @@
 package com.ph.coding.messaging;
 
+import java.nio.ByteBuffer;
+
 public interface Message
 {
   /**
@@ -7,6 +9,20 @@ public interface Message
    */
   byte[] getMsg();
 
+  /**
+   * The payload as a read-only buffer, positioned on its first byte and limited to its last. Each call returns a new
+   * view, so the caller is free to move its position. Providers that hold the payload off the heap, in a direct buffer
+   * or a mapped file, return a view straight onto it, so that nothing is copied.
+   * <p/>
+   * The view is only valid until the message is disposed of. The default implementation wraps {@link #getMsg()}.
+   *
+   * @return The underlying message.
+   */
+  default ByteBuffer getBuffer()
+  {
+    return ByteBuffer.wrap(getMsg()).asReadOnlyBuffer();
+  }
+
   /**
    * Dispose of any resources held by this message. This should be called by tha application once it has finished
    * processing the message.
@@ -0,0 +1,17 @@
+package com.ph.coding.messaging;
+
+import java.util.List;
+
+public interface MessageBatchReceiveListener
+{
+  /**
+   * Handle the given messages, in the order they were received.
+   * <p/>
+   * The list itself is only valid for the duration of the call and must not be kept, but the messages in it may be.
+   * Implementations should call each message's {@link Message#dispose()} method once they are done with it.
+   *
+   * @param messages Received messages, never empty.
+   * @param topic Topic on which received, or the receiver's pattern if it has a wildcard subscription.
+   */
+  void onMessages(List<Message> messages, String topic);
+}
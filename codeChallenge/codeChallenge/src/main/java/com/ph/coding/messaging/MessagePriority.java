@@ -0,0 +1,24 @@
+package com.ph.coding.messaging;
+
+/**
+ * How urgently a message sent with {@link MessageSender#sendMessage(byte[], MessagePriority)} should be delivered
+ * relative to the other messages on its topic.
+ */
+public enum MessagePriority
+{
+  /**
+   * Goes ahead of any normal or low priority message still waiting, for control messages and other traffic that
+   * cannot wait for a backlog to clear.
+   */
+  HIGH,
+
+  /**
+   * What every message sent without a priority gets.
+   */
+  NORMAL,
+
+  /**
+   * Waits for the high and normal priority messages, for bulk traffic.
+   */
+  LOW
+}
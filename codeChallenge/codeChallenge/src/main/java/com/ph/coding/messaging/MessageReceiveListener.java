@@ -11,4 +11,17 @@ public interface MessageReceiveListener
    * @param topic Topic on which received.
    */
   void onMessage(Message message, String topic);
+
+  /**
+   * Handle the given message, for listeners that would rather look the topic up by number than by name. Providers that
+   * support {@link MessagingFactory#resolveTopic(String) topic handles} call this instead of
+   * {@link #onMessage(Message, String)}, which the default implementation calls with the name of the topic.
+   *
+   * @param message Received message.
+   * @param topic Topic on which received.
+   */
+  default void onMessage(final Message message, final TopicHandle topic)
+  {
+    onMessage(message, topic.getName());
+  }
 }
@@ -1,7 +1,12 @@
 package com.ph.coding.messaging;
 
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
 /**
- * Note that wildcard subscriptions are not supported!
+ * Note that wildcard subscriptions are only supported by providers that say so. Where they are, topics are split into
+ * segments at {@code '.'}, a {@code *} segment matches exactly one segment and a {@code #} segment matches zero or
+ * more, and a listener is told the actual topic each message was sent on.
  */
 public interface MessageReceiver
 {
@@ -36,4 +41,23 @@ public interface MessageReceiver
    * @param listener Listener for messages.
    */
   void setListener(MessageReceiveListener listener);
+
+  /**
+   * Set a listener to be called with batches of messages rather than one message at a time, replacing any listener
+   * set with {@link #setListener(MessageReceiveListener)}. Receivers collect whatever messages are available, up to
+   * {@code maxBatchSize}, and wait at most {@code maxLinger} after the first of them for a batch to fill up before
+   * handing it over.
+   * <p/>
+   * The default implementation delivers every message as a batch of one.
+   *
+   * @param listener Listener for batches of messages.
+   * @param maxBatchSize Largest number of messages passed in one call, at least 1.
+   * @param maxLinger Longest time to hold on to received messages waiting for a batch to fill up, 0 to never wait.
+   * @param unit Unit of {@code maxLinger}.
+   */
+  default void setBatchListener(final MessageBatchReceiveListener listener, final int maxBatchSize, final long maxLinger,
+                                final TimeUnit unit)
+  {
+    setListener((message, topic) -> listener.onMessages(Collections.singletonList(message), topic));
+  }
 }
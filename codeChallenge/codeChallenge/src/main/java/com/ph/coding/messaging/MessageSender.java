@@ -1,5 +1,10 @@
 package com.ph.coding.messaging;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Note that wildcard publications are not supported!
  */
@@ -36,4 +41,118 @@ public interface MessageSender
    * @throws MessagingException If there is a message transport problem.
    */
   void sendMessage(byte[] message) throws MessagingException;
+
+  /**
+   * Sends the bytes between the buffer's position and its limit, leaving both where they were. Providers that can
+   * carry the buffer itself do so, in which case its contents must not change until the message has been received.
+   * <p/>
+   * The default implementation copies the bytes into an array and sends that.
+   *
+   * @param message The message to send.
+   * @throws MessagingException If there is a message transport problem.
+   */
+  default void sendMessage(final ByteBuffer message) throws MessagingException
+  {
+    final byte[] copy = new byte[message.remaining()];
+    message.get(message.position(), copy);
+    sendMessage(copy);
+  }
+
+  /**
+   * Sends a message with a routing key. Providers that split a topic into partitions send every message with the same
+   * key to the same partition, so messages with the same key are received in the order they were sent whilst those
+   * with different keys may be delivered in parallel.
+   * <p/>
+   * The default implementation ignores the key, which keeps every message in order.
+   *
+   * @param key The routing key.
+   * @param message The message to send.
+   * @throws MessagingException If there is a message transport problem.
+   */
+  default void sendMessage(final String key, final byte[] message) throws MessagingException
+  {
+    sendMessage(message);
+  }
+
+  /**
+   * Sends a message with a priority. Providers that keep a lane per priority deliver messages of a higher priority
+   * ahead of those of a lower priority that are still waiting, so messages of different priorities may be received in
+   * a different order than they were sent; messages of the same priority stay in order.
+   * <p/>
+   * The default implementation ignores the priority, which keeps every message in order.
+   *
+   * @param message The message to send.
+   * @param priority The priority of the message.
+   * @throws MessagingException If there is a message transport problem.
+   */
+  default void sendMessage(final byte[] message, final MessagePriority priority) throws MessagingException
+  {
+    sendMessage(message);
+  }
+
+  /**
+   * Sends a message without waiting for more than it takes to hand it over, see
+   * {@link #sendMessageAsync(byte[], SendCompletion)}.
+   *
+   * @param message The message to send.
+   * @return A future that completes once the message is {@link SendCompletion#ENQUEUED enqueued}.
+   */
+  default CompletableFuture<Void> sendMessageAsync(final byte[] message)
+  {
+    return sendMessageAsync(message, SendCompletion.ENQUEUED);
+  }
+
+  /**
+   * Sends a message and tells the caller through the returned future when it got as far as asked for, or that it never
+   * will. Failures that {@link #sendMessage(byte[])} would throw fail the future instead, as does a message that
+   * is dropped on the way or that no receiver was there for.
+   * <p/>
+   * The default implementation sends the message with {@link #sendMessage(byte[])} and completes once that returns,
+   * whatever the completion asked for.
+   *
+   * @param message The message to send.
+   * @param completion How far the message has to get.
+   * @return A future that completes when the message got that far, or completes exceptionally with a
+   *         {@link MessagingException} if it does not.
+   */
+  default CompletableFuture<Void> sendMessageAsync(final byte[] message, final SendCompletion completion)
+  {
+    try
+    {
+      sendMessage(message);
+      return CompletableFuture.completedFuture(null);
+    }
+    catch(final MessagingException e)
+    {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  /**
+   * Sends a batch of messages, in order.
+   * <p/>
+   * Providers may hand the whole batch to the transport as a single unit, amortising the per-message synchronisation
+   * and wakeup costs over the batch. The default implementation sends the messages one at a time.
+   *
+   * @param messages The messages to send.
+   * @throws MessagingException If there is a message transport problem, in which case some of the messages may
+   *         already have been sent.
+   */
+  default void sendMessages(List<byte[]> messages) throws MessagingException
+  {
+    for(final byte[] message : messages)
+      sendMessage(message);
+  }
+
+  /**
+   * Sends a batch of messages, in order.
+   *
+   * @param messages The messages to send.
+   * @throws MessagingException If there is a message transport problem.
+   * @see #sendMessages(List)
+   */
+  default void sendMessages(byte[]... messages) throws MessagingException
+  {
+    sendMessages(Arrays.asList(messages));
+  }
 }
@@ -39,6 +39,33 @@ public interface MessagingFactory
    */
   MessageSender createSender(String topic) throws MessagingException;
 
+  /**
+   * Resolves a topic once, for senders, receivers and listeners to refer to by number from then on. Resolving the same
+   * topic again returns the same handle.
+   * <p/>
+   * Only supported by providers that say so; the default implementation always fails.
+   *
+   * @param topic The topic, which cannot be a wildcard pattern.
+   * @return The topic's handle.
+   * @throws MessagingException If the provider does not support topic handles, or the topic is a pattern.
+   */
+  default TopicHandle resolveTopic(final String topic) throws MessagingException
+  {
+    throw new MessagingException(getProviderName() + " does not support topic handles");
+  }
+
+  /**
+   * Creates a message sender on a resolved topic.
+   *
+   * @param topic The topic, as resolved by this factory.
+   * @return A new message sender.
+   * @throws MessagingException If the factory is not correctly configured such that this cannot be achieved.
+   */
+  default MessageSender createSender(final TopicHandle topic) throws MessagingException
+  {
+    return createSender(topic.getName());
+  }
+
   /**
    * Create a message receiver on the given topic.
    *
@@ -47,4 +74,33 @@ public interface MessagingFactory
    * @throws MessagingException If the factory is not correctly configured such that this cannot be achieved.
    */
   MessageReceiver createReceiver(String topic) throws MessagingException;
+
+  /**
+   * Create a message receiver on a resolved topic.
+   *
+   * @param topic The topic, as resolved by this factory.
+   * @return A new message receiver.
+   * @throws MessagingException If the factory is not correctly configured such that this cannot be achieved.
+   */
+  default MessageReceiver createReceiver(final TopicHandle topic) throws MessagingException
+  {
+    return createReceiver(topic.getName());
+  }
+
+  /**
+   * Create a message receiver that joins a consumer group on the given topic. The members of a group share the
+   * topic's messages, each message going to only one of them, whilst receivers outside the group are unaffected.
+   * <p/>
+   * Only supported by providers that say so; the default implementation always fails.
+   *
+   * @param topic The topic.
+   * @param group The name of the group.
+   * @return A new message receiver.
+   * @throws MessagingException If the provider does not support consumer groups, or is not correctly configured such
+   *         that this can be achieved.
+   */
+  default MessageReceiver createReceiver(final String topic, final String group) throws MessagingException
+  {
+    throw new MessagingException(getProviderName() + " does not support consumer groups");
+  }
 }
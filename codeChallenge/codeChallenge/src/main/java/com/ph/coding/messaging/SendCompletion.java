@@ -0,0 +1,23 @@
+package com.ph.coding.messaging;
+
+/**
+ * How far a message sent with {@link MessageSender#sendMessageAsync(byte[], SendCompletion)} has to get before the
+ * send completes.
+ */
+public enum SendCompletion
+{
+  /**
+   * The provider has taken the message and will deliver it to the receivers subscribed at the time.
+   */
+  ENQUEUED,
+
+  /**
+   * The listener of every receiver subscribed at the time has returned from handling the message.
+   */
+  DELIVERED,
+
+  /**
+   * The message is on durable storage, only supported by providers that persist messages.
+   */
+  PERSISTED
+}
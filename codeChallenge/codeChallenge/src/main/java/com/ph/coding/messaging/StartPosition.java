@@ -0,0 +1,123 @@
+package com.ph.coding.messaging;
+
+/**
+ * Where in the messages a provider keeps for a topic a {@link MessageReceiver} starts receiving, for providers that
+ * keep messages to replay. Positions before the oldest kept message start from the oldest one, positions after the
+ * newest start with the next message sent.
+ */
+public final class StartPosition
+{
+  private enum Kind
+  {
+    EARLIEST, LATEST, OFFSET, TIMESTAMP
+  }
+
+  private static final StartPosition EARLIEST = new StartPosition(Kind.EARLIEST, 0);
+  private static final StartPosition LATEST = new StartPosition(Kind.LATEST, 0);
+
+  private final Kind kind;
+  private final long value;
+
+  private StartPosition(final Kind kind, final long value)
+  {
+    this.kind = kind;
+    this.value = value;
+  }
+
+  /**
+   * @return The position of the oldest kept message.
+   */
+  public static StartPosition earliest()
+  {
+    return EARLIEST;
+  }
+
+  /**
+   * @return The position of the next message sent, the default.
+   */
+  public static StartPosition latest()
+  {
+    return LATEST;
+  }
+
+  /**
+   * @param offset The offset of a message, counted from the first message sent on the topic.
+   * @return The position of that message.
+   */
+  public static StartPosition offset(final long offset)
+  {
+    if (offset < 0)
+    {
+      throw new IllegalArgumentException("Offset must not be negative: " + offset);
+    }
+    return new StartPosition(Kind.OFFSET, offset);
+  }
+
+  /**
+   * @param epochMillis A time, in milliseconds since the epoch.
+   * @return The position of the first message sent at or after that time.
+   */
+  public static StartPosition timestamp(final long epochMillis)
+  {
+    return new StartPosition(Kind.TIMESTAMP, epochMillis);
+  }
+
+  /**
+   * @return Whether this is the position of the next message sent, which needs no replay.
+   */
+  public boolean isLatest()
+  {
+    return kind == Kind.LATEST;
+  }
+
+  /**
+   * @return Whether this is a time, which only providers that know when their messages were sent can resolve.
+   */
+  public boolean isTimestamp()
+  {
+    return kind == Kind.TIMESTAMP;
+  }
+
+  /**
+   * @return The time given to {@link #timestamp(long)}.
+   * @throws IllegalStateException If the position is not a timestamp.
+   */
+  public long getTimestamp()
+  {
+    if (kind != Kind.TIMESTAMP)
+    {
+      throw new IllegalStateException("Not a timestamp: " + this);
+    }
+    return value;
+  }
+
+  /**
+   * Resolves the position in a log of messages that are not looked up by time.
+   *
+   * @param startOffset The offset of the oldest message in the log.
+   * @param endOffset The offset the next message sent will get.
+   * @return The offset of the first message to read, between the two.
+   * @throws IllegalArgumentException If the position is a timestamp.
+   */
+  public long resolve(final long startOffset, final long endOffset)
+  {
+    switch (kind)
+    {
+      case EARLIEST:
+        return startOffset;
+      case OFFSET:
+        return Math.max(startOffset, Math.min(value, endOffset));
+      case TIMESTAMP:
+        throw new IllegalArgumentException("Messages have no timestamps to start from");
+      case LATEST:
+      default:
+        return endOffset;
+    }
+  }
+
+  @Override
+  public String toString()
+  {
+    return kind == Kind.EARLIEST || kind == Kind.LATEST ? kind.name() : kind.name() + " " + value;
+  }
+}
@@ -0,0 +1,46 @@
+package com.ph.coding.messaging;
+
+/**
+ * A topic resolved by a {@link MessagingFactory}, which numbers the topics it resolves from 0 upwards, so that
+ * listeners can look up whatever they keep per topic in an array rather than hashing and comparing the name of the
+ * topic of every message.
+ * <p/>
+ * A factory hands out one handle per topic, so handles can be compared by identity. Ids only mean something to the
+ * factory that resolved them.
+ */
+public final class TopicHandle
+{
+  private final String name;
+  private final int id;
+
+  /**
+   * Only for providers, applications get handles from {@link MessagingFactory#resolveTopic(String)}.
+   */
+  public TopicHandle(final String name, final int id)
+  {
+    this.name = name;
+    this.id = id;
+  }
+
+  /**
+   * @return The topic.
+   */
+  public String getName()
+  {
+    return name;
+  }
+
+  /**
+   * @return The topic's number, small enough to index an array by.
+   */
+  public int getId()
+  {
+    return id;
+  }
+
+  @Override
+  public String toString()
+  {
+    return name + "#" + id;
+  }
+}
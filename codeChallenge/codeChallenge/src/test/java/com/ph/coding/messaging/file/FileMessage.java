@@ -0,0 +1,51 @@
+package com.ph.coding.messaging.file;
+
+import java.nio.ByteBuffer;
+
+import com.ph.coding.messaging.Message;
+
+/**
+ * A message read from a {@link Journal}. The payload is a view straight onto the mapped journal file and is only
+ * copied out if {@link #getMsg()} is called; {@link #getBuffer()} hands out views of it instead.
+ */
+public final class FileMessage implements Message {
+
+	private final ByteBuffer payload;
+	private final long offset;
+	private byte[] msg;
+
+	FileMessage(ByteBuffer payload, long offset) {
+		this.payload = payload;
+		this.offset = offset;
+	}
+
+	/**
+	 * @return The position of the message in its topic's journal, counted in messages from the start of the journal.
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	@Override
+	public byte[] getMsg() {
+		if (msg == null) {
+			byte[] copy = new byte[payload.remaining()];
+			payload.get(payload.position(), copy);
+			msg = copy;
+		}
+		return msg;
+	}
+
+	/**
+	 * @return A view straight onto the mapped journal file.
+	 */
+	@Override
+	public ByteBuffer getBuffer() {
+		return payload.duplicate();
+	}
+
+	@Override
+	public void dispose() {
+		// the mapping outlives the message, there is nothing to release
+	}
+}
@@ -0,0 +1,153 @@
+package com.ph.coding.messaging.file;
+
+import com.ph.coding.messaging.MessageReceiveListener;
+import com.ph.coding.messaging.MessageReceiver;
+import com.ph.coding.messaging.MessagingException;
+import com.ph.coding.messaging.StartPosition;
+
+/**
+ * Receives the messages of a topic by tailing its {@link Journal} on a thread of its own, starting from the messages
+ * appended after it was started unless given an earlier {@link StartPosition}.
+ */
+public final class FileMessageReceiver implements MessageReceiver {
+
+	private final Journal journal;
+	private volatile boolean isStarted = false;
+	private volatile MessageReceiveListener listener;
+	private volatile StartPosition startPosition = StartPosition.latest();
+	private Thread tailer;
+	// offset of the next message to be delivered
+	private volatile long deliveredOffset;
+	private final Object idleLock = new Object();
+
+	FileMessageReceiver(Journal journal)
+	{
+		this.journal = journal;
+	}
+
+	@Override
+	public String getTopic() {
+		return journal.getTopic();
+	}
+
+	@Override
+	public boolean isStarted() {
+		return isStarted;
+	}
+
+	@Override
+	public synchronized void start() throws MessagingException {
+		if(listener == null)
+		{
+			throw new MessagingException("No listener");
+		}
+		if(isStarted)
+		{
+			return;
+		}
+		Journal.Reader reader;
+		try
+		{
+			reader = startPosition.isLatest() ? journal.readFromEnd()
+					: journal.readFrom(startPosition.resolve(journal.getStartOffset(), journal.getEndOffset()));
+		}
+		catch(IllegalArgumentException e)
+		{
+			throw new MessagingException("File topics cannot start from " + startPosition, e);
+		}
+		deliveredOffset = reader.getOffset();
+		isStarted = true;
+		tailer = new Thread(() -> tail(reader), "file-receiver-" + journal.getTopic());
+		tailer.setDaemon(true);
+		tailer.start();
+	}
+
+	@Override
+	public synchronized void stop() throws MessagingException {
+		if(!isStarted)
+		{
+			return;
+		}
+		isStarted = false;
+		tailer.interrupt();
+		tailer = null;
+		synchronized(idleLock)
+		{
+			idleLock.notifyAll();
+		}
+	}
+
+	@Override
+	public void setListener(MessageReceiveListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Sets where in the journal the receiver starts when it is next started, which can be any message recovered when
+	 * the journal was opened again. Journals do not record when messages were sent, so a receiver cannot start from a
+	 * timestamp.
+	 *
+	 * @param startPosition The start position.
+	 */
+	public void setStartPosition(StartPosition startPosition) {
+		if(startPosition == null)
+		{
+			throw new IllegalArgumentException("Start position must not be null");
+		}
+		this.startPosition = startPosition;
+	}
+
+	/**
+	 * @return The offset of the next message to be delivered, which a consumer can store and later start again from
+	 *         with {@link StartPosition#offset(long)}.
+	 */
+	public long getDeliveredOffset() {
+		return deliveredOffset;
+	}
+
+	/**
+	 * Blocks until every message appended to the journal so far has been delivered, or the receiver is stopped.
+	 */
+	public void awaitCaughtUp() throws InterruptedException {
+		synchronized(idleLock)
+		{
+			while(isStarted && deliveredOffset < journal.getEndOffset())
+			{
+				idleLock.wait();
+			}
+		}
+	}
+
+	private void tail(Journal.Reader reader) {
+		try {
+			while (isStarted) {
+				FileMessage msg = reader.next();
+				if (msg == null) {
+					synchronized (idleLock) {
+						idleLock.notifyAll();
+					}
+					if (!journal.awaitAppend(reader)) {
+						return;
+					}
+					continue;
+				}
+				deliver(msg);
+				deliveredOffset = reader.getOffset();
+			}
+		} catch (InterruptedException e) {
+			// stopped
+		}
+	}
+
+	private void deliver(FileMessage msg) {
+		MessageReceiveListener current = listener;
+		if (!isStarted || current == null) {
+			return;
+		}
+		try {
+			current.onMessage(msg, journal.getTopic());
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package com.ph.coding.messaging.file;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.ph.coding.messaging.MessageSender;
+import com.ph.coding.messaging.MessagingException;
+import com.ph.coding.messaging.SendCompletion;
+
+public final class FileMessageSender implements MessageSender {
+
+	private volatile boolean isStarted = false;
+	private final Journal journal;
+
+	FileMessageSender(Journal journal)
+	{
+		this.journal = journal;
+	}
+
+	@Override
+	public String getTopic() {
+		return journal.getTopic();
+	}
+
+	@Override
+	public boolean isStarted() {
+		return isStarted;
+	}
+
+	@Override
+	public void start() throws MessagingException {
+		isStarted = true;
+	}
+
+	@Override
+	public void stop() throws MessagingException {
+		isStarted = false;
+	}
+
+	@Override
+	public void sendMessage(byte[] message) throws MessagingException {
+		if(!isStarted)
+		{
+			throw new MessagingException("Not started");
+		}
+		journal.append(message);
+	}
+
+	/**
+	 * Copies the message straight from the buffer into the journal.
+	 */
+	@Override
+	public void sendMessage(ByteBuffer message) throws MessagingException {
+		if(!isStarted)
+		{
+			throw new MessagingException("Not started");
+		}
+		journal.append(message);
+	}
+
+	/**
+	 * Appends the message and completes once it is in the journal for {@link SendCompletion#ENQUEUED}, or once it is on
+	 * disk for {@link SendCompletion#PERSISTED}, which forces the journal if the fsync policy does not. Persisted sends
+	 * return as soon as the message is appended and are completed by the journal's syncing thread, so several can be in
+	 * flight and share one force. Receivers read the journal in their own time, so {@link SendCompletion#DELIVERED} is
+	 * not supported.
+	 */
+	@Override
+	public CompletableFuture<Void> sendMessageAsync(byte[] message, SendCompletion completion) {
+		if(completion == SendCompletion.DELIVERED)
+		{
+			return CompletableFuture.failedFuture(new MessagingException("Cannot tell when messages on topic "
+					+ journal.getTopic() + " are delivered"));
+		}
+		if(!isStarted)
+		{
+			return CompletableFuture.failedFuture(new MessagingException("Not started"));
+		}
+		try
+		{
+			if(completion == SendCompletion.PERSISTED)
+			{
+				return journal.appendPersisted(ByteBuffer.wrap(message));
+			}
+			journal.append(message);
+			return CompletableFuture.completedFuture(null);
+		}
+		catch(MessagingException e)
+		{
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+
+	@Override
+	public void sendMessages(List<byte[]> messages) throws MessagingException {
+		if(!isStarted)
+		{
+			throw new MessagingException("Not started");
+		}
+		journal.appendAll(messages);
+	}
+}
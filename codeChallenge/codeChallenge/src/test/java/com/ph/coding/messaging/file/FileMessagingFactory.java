@@ -0,0 +1,173 @@
+package com.ph.coding.messaging.file;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.ph.coding.messaging.MessageReceiver;
+import com.ph.coding.messaging.MessageSender;
+import com.ph.coding.messaging.MessagingException;
+import com.ph.coding.messaging.MessagingFactory;
+
+/**
+ * Messaging provider that appends every message to a journal of memory mapped files per topic, so that sent messages
+ * survive a restart. Each topic has a directory of its own under the factory's directory.
+ */
+public class FileMessagingFactory implements MessagingFactory
+{
+	private final Path directory;
+	private final Map<String, Journal> journals = new ConcurrentHashMap<>();
+	private final List<FileMessageSender> senders = Collections.synchronizedList(new ArrayList<>());
+	private final List<FileMessageReceiver> receivers = Collections.synchronizedList(new ArrayList<>());
+	private final Map<String, FileTopicConfig> topicConfigs = new ConcurrentHashMap<>();
+	private volatile FileTopicConfig defaultTopicConfig = new FileTopicConfig();
+	private volatile boolean isStarted;
+
+  public FileMessagingFactory(final Path directory)
+  {
+    this.directory = directory;
+  }
+
+  @Override
+  public String getProviderName()
+  {
+    return "File";
+  }
+
+  @Override
+  public void start() throws Exception
+  {
+    Files.createDirectories(directory);
+    isStarted = true;
+  }
+
+  @Override
+  public void shutdown() throws Exception
+  {
+    isStarted = false;
+    synchronized(senders)
+    {
+      Iterator<FileMessageSender> itSend = senders.iterator();
+      while(itSend.hasNext())
+      {
+        itSend.next().stop();
+        itSend.remove();
+      }
+    }
+    synchronized(receivers)
+    {
+      Iterator<FileMessageReceiver> itRec = receivers.iterator();
+      while(itRec.hasNext())
+      {
+        itRec.next().stop();
+        itRec.remove();
+      }
+    }
+    for(Journal journal : journals.values())
+    {
+      journal.close();
+    }
+    journals.clear();
+  }
+
+  @Override
+  public MessageSender createSender(final String topic) throws MessagingException
+  {
+    if(!isStarted) throw new MessagingException("Not started factory");
+    FileMessageSender sender = new FileMessageSender(journal(topic));
+    senders.add(sender);
+    return sender;
+  }
+
+  @Override
+  public MessageReceiver createReceiver(final String topic) throws MessagingException
+  {
+    if(!isStarted) throw new MessagingException("Not started factory");
+    FileMessageReceiver receiver = new FileMessageReceiver(journal(topic));
+    receivers.add(receiver);
+    return receiver;
+  }
+
+  /**
+   * Sets the configuration used for topics without a configuration of their own. Only affects journals opened after
+   * this call.
+   *
+   * @param config The default topic configuration.
+   */
+  public void setDefaultTopicConfig(final FileTopicConfig config)
+  {
+    defaultTopicConfig = new FileTopicConfig(config);
+  }
+
+  /**
+   * Sets the configuration for a single topic. Only takes effect if the topic's journal has not been opened yet, i.e.
+   * before the first sender or receiver on the topic is created.
+   *
+   * @param topic The topic.
+   * @param config The configuration for the topic.
+   */
+  public void configureTopic(final String topic, final FileTopicConfig config)
+  {
+    topicConfigs.put(topic, new FileTopicConfig(config));
+  }
+
+  /**
+   * @return The directory holding the journal of the given topic.
+   */
+  public Path getTopicDirectory(final String topic)
+  {
+    return directory.resolve(URLEncoder.encode(topic, StandardCharsets.UTF_8));
+  }
+
+  private Journal journal(final String topic) throws MessagingException
+  {
+    try
+    {
+      return journals.computeIfAbsent(topic, this::openJournal);
+    }
+    catch(final UncheckedIOException e)
+    {
+      throw new MessagingException("Cannot open journal of topic " + topic, e.getCause());
+    }
+  }
+
+  private Journal openJournal(final String topic)
+  {
+    try
+    {
+      return Journal.open(getTopicDirectory(topic), topic, topicConfigs.getOrDefault(topic, defaultTopicConfig));
+    }
+    catch(final IOException e)
+    {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Blocks until every receiver has delivered all of the messages sent on its topic so far.
+   */
+  public void waitForMessages() throws InterruptedException
+  {
+    synchronized(receivers)
+    {
+      for(FileMessageReceiver receiver : receivers)
+      {
+        receiver.awaitCaughtUp();
+      }
+    }
+  }
+
+  public boolean isStarted()
+  {
+    return isStarted;
+  }
+}
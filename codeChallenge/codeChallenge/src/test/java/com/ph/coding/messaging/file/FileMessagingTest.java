@@ -0,0 +1,413 @@
+package com.ph.coding.messaging.file;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import com.ph.coding.messaging.Message;
+import com.ph.coding.messaging.MessageReceiveListener;
+import com.ph.coding.messaging.MessageReceiver;
+import com.ph.coding.messaging.MessageSender;
+import com.ph.coding.messaging.MessagingException;
+import com.ph.coding.messaging.SendCompletion;
+import com.ph.coding.messaging.StartPosition;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FileMessagingTest
+{
+  private Path directory;
+  private FileMessagingFactory messagingFactory;
+
+  @Before
+  public void before() throws Exception
+  {
+    directory = Files.createTempDirectory("file-messaging-test");
+    messagingFactory = new FileMessagingFactory(directory);
+    messagingFactory.start();
+  }
+
+  @After
+  public void after() throws Exception
+  {
+    messagingFactory.shutdown();
+    try(Stream<Path> paths = Files.walk(directory))
+    {
+      paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  // -------------------------------------------------------------------------------- //
+
+  @Test
+  public void simpleSendReceive() throws Exception
+  {
+    final MessageSender sender = startedSender("a");
+    final StoringListener listener = startedReceiver("a");
+
+    sender.sendMessage(encode("The"));
+    sender.sendMessage(encode("cat"));
+    sender.sendMessage(encode("sat"));
+    waitForMessages();
+
+    checkMessages(listener, "The", "cat", "sat");
+    assertEquals(Collections.nCopies(3, "a"), listener.topics);
+  }
+
+  @Test
+  public void receiversOnlyGetTheirTopic() throws Exception
+  {
+    final MessageSender senderA = startedSender("a");
+    final MessageSender senderB = startedSender("b");
+    final StoringListener listenerA = startedReceiver("a");
+    final StoringListener listenerB1 = startedReceiver("b");
+    final StoringListener listenerB2 = startedReceiver("b");
+
+    senderA.sendMessage(encode("The"));
+    senderB.sendMessages(encode("cat"), encode("sat"));
+    waitForMessages();
+
+    checkMessages(listenerA, "The");
+    checkMessages(listenerB1, "cat", "sat");
+    checkMessages(listenerB2, "cat", "sat");
+  }
+
+  @Test
+  public void everyFsyncPolicyDelivers() throws Exception
+  {
+    for(final FsyncPolicy policy : FsyncPolicy.values())
+    {
+      final String topic = policy.name();
+      messagingFactory.configureTopic(topic, new FileTopicConfig().setFsyncPolicy(policy));
+      final MessageSender sender = startedSender(topic);
+      final StoringListener listener = startedReceiver(topic);
+
+      sender.sendMessage(encode("The"));
+      sender.sendMessages(encode("cat"), encode("sat"));
+      waitForMessages();
+
+      checkMessages(listener, "The", "cat", "sat");
+    }
+  }
+
+  @Test
+  public void messagesSpanSegments() throws Exception
+  {
+    messagingFactory.configureTopic("a", new FileTopicConfig().setSegmentSize(64));
+    final MessageSender sender = startedSender("a");
+    final StoringListener listener = startedReceiver("a");
+
+    final List<String> sent = new ArrayList<>();
+    for(int i=0; i<100; ++i)
+    {
+      sent.add("message " + i);
+      sender.sendMessage(encode("message " + i));
+    }
+    waitForMessages();
+
+    checkMessages(listener, sent.toArray(new String[0]));
+    try(Stream<Path> segments = Files.list(messagingFactory.getTopicDirectory("a")))
+    {
+      assertTrue(segments.count() > 1);
+    }
+  }
+
+  @Test(expected = MessagingException.class)
+  public void messageLargerThanSegmentIsRejected() throws Exception
+  {
+    messagingFactory.configureTopic("a", new FileTopicConfig().setSegmentSize(64));
+    startedSender("a").sendMessage(new byte[100]);
+  }
+
+  @Test
+  public void concurrentSendsAreAllCommitted() throws Exception
+  {
+    final MessageSender sender = startedSender("a");
+    final StoringListener listener = startedReceiver("a");
+
+    final List<Thread> threads = new ArrayList<>();
+    for(int t=0; t<4; ++t)
+    {
+      final Thread thread = new Thread(() -> {
+        try
+        {
+          for(int i=0; i<250; ++i)
+            sender.sendMessage(encode("x"));
+        }
+        catch(final MessagingException e)
+        {
+          throw new RuntimeException(e);
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    for(final Thread thread : threads)
+      thread.join();
+    waitForMessages();
+
+    assertEquals(1000, listener.messages.size());
+  }
+
+  @Test
+  public void journalSurvivesRestart() throws Exception
+  {
+    messagingFactory.configureTopic("a", new FileTopicConfig().setSegmentSize(64));
+    final MessageSender sender = startedSender("a");
+    for(int i=0; i<10; ++i)
+      sender.sendMessage(encode("before " + i));
+    messagingFactory.shutdown();
+
+    messagingFactory = new FileMessagingFactory(directory);
+    messagingFactory.start();
+    messagingFactory.configureTopic("a", new FileTopicConfig().setSegmentSize(64));
+    startedSender("a").sendMessage(encode("after"));
+    messagingFactory.shutdown();
+
+    // appends carry on after the recovered messages, at the next offset
+    final List<String> read = new ArrayList<>();
+    try(Journal journal = Journal.open(messagingFactory.getTopicDirectory("a"), "a", new FileTopicConfig()))
+    {
+      final Journal.Reader reader = journal.readFromStart();
+      FileMessage message;
+      while((message = reader.next()) != null)
+      {
+        assertEquals(read.size(), message.getOffset());
+        read.add(decode(message));
+      }
+      assertEquals(11, journal.getEndOffset());
+    }
+    assertEquals("before 0", read.get(0));
+    assertEquals("before 9", read.get(9));
+    assertEquals("after", read.get(10));
+  }
+
+  @Test
+  public void receiverReadsRecoveredMessagesAfterRestart() throws Exception
+  {
+    messagingFactory.configureTopic("a", new FileTopicConfig().setSegmentSize(64));
+    final MessageSender sender = startedSender("a");
+    final FileMessageReceiver stopped = (FileMessageReceiver) messagingFactory.createReceiver("a");
+    final StoringListener before = new StoringListener();
+    stopped.setListener(before);
+    stopped.start();
+    for(int i=0; i<10; ++i)
+      sender.sendMessage(encode("before " + i));
+    waitForMessages();
+    // a consumer that only got part of the way stores the offset it got to
+    final long stoppedAt = before.messages.size() - 3;
+    messagingFactory.shutdown();
+
+    messagingFactory = new FileMessagingFactory(directory);
+    messagingFactory.start();
+    messagingFactory.configureTopic("a", new FileTopicConfig().setSegmentSize(64));
+    final StoringListener earliest = startedReceiver("a", StartPosition.earliest());
+    final StoringListener resumed = startedReceiver("a", StartPosition.offset(stoppedAt));
+    final StoringListener latest = startedReceiver("a", StartPosition.latest());
+    startedSender("a").sendMessage(encode("after"));
+    waitForMessages();
+
+    assertEquals(11, earliest.messages.size());
+    for(int i=0; i<10; ++i)
+      assertEquals("before " + i, decode(earliest.messages.get(i)));
+    assertEquals("after", decode(earliest.messages.get(10)));
+    checkMessages(resumed, "before 7", "before 8", "before 9", "after");
+    checkMessages(latest, "after");
+    assertEquals(10, before.messages.size());
+    assertEquals(10, stopped.getDeliveredOffset());
+  }
+
+  @Test
+  public void recoveryStopsAtARecordThatWasNotFullyWritten() throws Exception
+  {
+    // four records of "before n" fit a segment
+    messagingFactory.configureTopic("a", new FileTopicConfig().setSegmentSize(64));
+    final MessageSender sender = startedSender("a");
+    for(int i=0; i<10; ++i)
+      sender.sendMessage(encode("before " + i));
+    final Path topicDirectory = messagingFactory.getTopicDirectory("a");
+    messagingFactory.shutdown();
+
+    // as if the header of the second record of the second segment reached the disk but its payload did not
+    try(RandomAccessFile segment = new RandomAccessFile(topicDirectory.resolve(String.format("%020d", 4) + ".segment").toFile(), "rw"))
+    {
+      segment.seek(16 + Journal.RECORD_HEADER);
+      segment.write(0);
+    }
+
+    messagingFactory = new FileMessagingFactory(directory);
+    messagingFactory.start();
+    messagingFactory.configureTopic("a", new FileTopicConfig().setSegmentSize(64));
+    final StoringListener listener = startedReceiver("a", StartPosition.earliest());
+    startedSender("a").sendMessage(encode("after"));
+    waitForMessages();
+
+    checkMessages(listener, "before 0", "before 1", "before 2", "before 3", "before 4", "after");
+    assertEquals(5, ((FileMessage) listener.messages.get(5)).getOffset());
+  }
+
+  @Test(expected = MessagingException.class)
+  public void receiverCannotStartFromATimestamp() throws Exception
+  {
+    startedReceiver("a", StartPosition.timestamp(System.currentTimeMillis()));
+  }
+
+  @Test
+  public void emptyMessagesAreKept() throws Exception
+  {
+    final MessageSender sender = startedSender("a");
+    final StoringListener listener = startedReceiver("a");
+
+    sender.sendMessages(encode(""), encode("cat"), encode(""));
+    waitForMessages();
+
+    checkMessages(listener, "", "cat", "");
+  }
+
+  @Test
+  public void asyncSendCompletesOncePersisted() throws Exception
+  {
+    messagingFactory.configureTopic("a", new FileTopicConfig().setFsyncPolicy(FsyncPolicy.OS_MANAGED));
+    final MessageSender sender = startedSender("a");
+    final StoringListener listener = startedReceiver("a");
+
+    sender.sendMessageAsync(encode("The"), SendCompletion.PERSISTED).get(10, TimeUnit.SECONDS);
+    sender.sendMessageAsync(encode("cat")).get(10, TimeUnit.SECONDS);
+    waitForMessages();
+
+    checkMessages(listener, "The", "cat");
+  }
+
+  @Test
+  public void persistedSendsAreInFlightTogether() throws Exception
+  {
+    messagingFactory.configureTopic("a", new FileTopicConfig().setFsyncPolicy(FsyncPolicy.GROUP_COMMIT));
+    final MessageSender sender = startedSender("a");
+    final StoringListener listener = startedReceiver("a");
+
+    final List<CompletableFuture<Void>> sends = new ArrayList<>();
+    int inFlight = 0;
+    for(int i=0; i<100; ++i)
+    {
+      final CompletableFuture<Void> send = sender.sendMessageAsync(encode(Integer.toString(i)), SendCompletion.PERSISTED);
+      if(!send.isDone())
+        ++inFlight;
+      sends.add(send);
+    }
+    CompletableFuture.allOf(sends.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+    waitForMessages();
+
+    assertTrue("Only " + inFlight + " sends were in flight", inFlight > 1);
+    assertEquals(100, listener.messages.size());
+  }
+
+  @Test(expected = MessagingException.class)
+  public void asyncSendCannotWaitForDelivery() throws Throwable
+  {
+    try
+    {
+      startedSender("a").sendMessageAsync(encode("The"), SendCompletion.DELIVERED).get(10, TimeUnit.SECONDS);
+    }
+    catch(final ExecutionException e)
+    {
+      throw e.getCause();
+    }
+  }
+
+  @Test
+  public void buffersAreReadStraightFromTheJournal() throws Exception
+  {
+    final MessageSender sender = startedSender("a");
+    final StoringListener listener = startedReceiver("a");
+
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(16);
+    buffer.put(encode("--The cat")).flip().position(2);
+    sender.sendMessage(buffer);
+    sender.sendMessage(encode("sat"));
+    waitForMessages();
+
+    assertEquals(2, buffer.position());
+    final ByteBuffer received = listener.messages.get(0).getBuffer();
+    assertTrue(received.isDirect());
+    assertTrue(received.isReadOnly());
+    assertEquals(buffer, received);
+    checkMessages(listener, "The cat", "sat");
+  }
+
+  // -------------------------------------------------------------------------------- //
+
+  private MessageSender startedSender(final String topic) throws MessagingException
+  {
+    final MessageSender sender = messagingFactory.createSender(topic);
+    sender.start();
+    return sender;
+  }
+
+  private StoringListener startedReceiver(final String topic) throws MessagingException
+  {
+    final StoringListener listener = new StoringListener();
+    final MessageReceiver receiver = messagingFactory.createReceiver(topic);
+    receiver.setListener(listener);
+    receiver.start();
+    return listener;
+  }
+
+  private StoringListener startedReceiver(final String topic, final StartPosition position) throws MessagingException
+  {
+    final StoringListener listener = new StoringListener();
+    final FileMessageReceiver receiver = (FileMessageReceiver) messagingFactory.createReceiver(topic);
+    receiver.setListener(listener);
+    receiver.setStartPosition(position);
+    receiver.start();
+    return listener;
+  }
+
+  private void waitForMessages() throws Exception
+  {
+    messagingFactory.waitForMessages();
+  }
+
+  private static void checkMessages(final StoringListener listener, final String... messages)
+  {
+    assertEquals(messages.length, listener.messages.size());
+    for(int i=0; i<messages.length; ++i)
+      assertEquals("Message " + i + " different", messages[i], decode(listener.messages.get(i)));
+  }
+
+  private static byte[] encode(final String string)
+  {
+    return string.getBytes();
+  }
+
+  private static String decode(final Message message)
+  {
+    return new String(message.getMsg());
+  }
+
+  private static class StoringListener implements MessageReceiveListener
+  {
+    public final List<Message> messages = Collections.synchronizedList(new ArrayList<>());
+    public final List<String> topics = Collections.synchronizedList(new ArrayList<>());
+
+    @Override
+    public void onMessage(final Message message, final String topic)
+    {
+      messages.add(message);
+      topics.add(topic);
+    }
+  }
+}
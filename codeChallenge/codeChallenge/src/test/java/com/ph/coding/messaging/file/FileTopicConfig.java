@@ -0,0 +1,49 @@
+package com.ph.coding.messaging.file;
+
+/**
+ * Settings for the {@link Journal} of a topic. The configuration in force when a topic's journal is first opened (by
+ * the first sender or receiver on it) is used until the factory is shut down.
+ */
+public class FileTopicConfig {
+
+	public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	private int segmentSize = DEFAULT_SEGMENT_SIZE;
+	private FsyncPolicy fsyncPolicy = FsyncPolicy.GROUP_COMMIT;
+
+	public FileTopicConfig() {
+	}
+
+	public FileTopicConfig(FileTopicConfig other) {
+		this.segmentSize = other.segmentSize;
+		this.fsyncPolicy = other.fsyncPolicy;
+	}
+
+	public int getSegmentSize() {
+		return segmentSize;
+	}
+
+	/**
+	 * @param segmentSize Size in bytes of each journal file, which is mapped into memory in full. Bounds the size of
+	 *        a single message.
+	 */
+	public FileTopicConfig setSegmentSize(int segmentSize) {
+		if (segmentSize <= Journal.RECORD_HEADER) {
+			throw new IllegalArgumentException("Segment size must be larger than a record header: " + segmentSize);
+		}
+		this.segmentSize = segmentSize;
+		return this;
+	}
+
+	public FsyncPolicy getFsyncPolicy() {
+		return fsyncPolicy;
+	}
+
+	public FileTopicConfig setFsyncPolicy(FsyncPolicy fsyncPolicy) {
+		if (fsyncPolicy == null) {
+			throw new IllegalArgumentException("Fsync policy must not be null");
+		}
+		this.fsyncPolicy = fsyncPolicy;
+		return this;
+	}
+}
@@ -0,0 +1,25 @@
+package com.ph.coding.messaging.file;
+
+/**
+ * When a {@link Journal} forces appended messages out to disk.
+ */
+public enum FsyncPolicy {
+
+	/**
+	 * Every send forces its messages to disk before returning. Nothing that was sent is lost in a crash, but every send
+	 * pays for a sync of its own.
+	 */
+	PER_MESSAGE,
+
+	/**
+	 * Every send waits until its messages are on disk, but one sync covers everything appended by all the senders that
+	 * were waiting at the time, so concurrent senders share the cost of each sync.
+	 */
+	GROUP_COMMIT,
+
+	/**
+	 * Sends return as soon as their messages are in the mapped journal and the operating system writes them out in its
+	 * own time. Survives the process crashing but not the machine; the journal is still forced when it is closed.
+	 */
+	OS_MANAGED
+}
@@ -0,0 +1,629 @@
+package com.ph.coding.messaging.file;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
+import java.util.stream.Stream;
+
+import com.ph.coding.messaging.MessagingException;
+
+/**
+ * The append-only log of the messages sent on one topic, kept in a directory of fixed size segment files that are
+ * each mapped into memory in full.
+ * <p/>
+ * Each record is a header holding the payload length plus one and the CRC32C of the payload, followed by the payload.
+ * The length is written last, so the zeros of the unwritten rest of a segment mark where the journal ends when it is
+ * opened again. Forcing a mapping does not write its pages to disk in any particular order, so after a crash a length
+ * may have made it without the payload it describes; recovery therefore stops at the first record whose checksum does
+ * not match, and drops every later segment, so that the journal holds no message that was not fully written and no
+ * gap. Segment files are named after the offset of their first message, offsets counting messages from the start of
+ * the journal.
+ * <p/>
+ * Appends are serialised by a lock and published to readers in the same process through the volatile limit of the
+ * segment written to, so readers never lock. They read records as views onto the mapping without copying them.
+ * <p/>
+ * Senders that wait for their messages to be on disk share the forcing of the journal: whichever of them finds nobody
+ * forcing it forces everything appended so far on behalf of all. Senders that do not want to wait leave that to a
+ * syncing thread, started the first time one is needed, which completes their futures as the journal is forced.
+ */
+final class Journal implements Closeable {
+
+	static final int RECORD_HEADER = 8;
+	private static final int CHECKSUM_POSITION = 4;
+	private static final String SEGMENT_SUFFIX = ".segment";
+
+	private final Path directory;
+	private final String topic;
+	private final int segmentSize;
+	private final FsyncPolicy fsyncPolicy;
+	private final Segment head;
+	private volatile Segment tail;
+	private volatile long endOffset;
+	private volatile boolean closed;
+	private final Object writeLock = new Object();
+	// guarded by writeLock
+	private final CRC32C checksum = new CRC32C();
+
+	// readers waiting for appends, only notified when there are any
+	private final Object appendMonitor = new Object();
+	private final AtomicInteger waitingReaders = new AtomicInteger();
+
+	// group commit state, guarded by syncLock; the syncing thread has syncHead to itself
+	private final Object syncLock = new Object();
+	private boolean syncing;
+	private long syncedOffset;
+	private Segment syncHead;
+	// sends to complete once the journal has been forced past them
+	private final List<PendingSync> pendingSyncs = new ArrayList<>();
+	private Thread syncer;
+
+	private Journal(Path directory, String topic, FileTopicConfig config, List<Segment> segments) {
+		this.directory = directory;
+		this.topic = topic;
+		this.segmentSize = config.getSegmentSize();
+		this.fsyncPolicy = config.getFsyncPolicy();
+		for (int i = 1; i < segments.size(); i++) {
+			segments.get(i - 1).next = segments.get(i);
+		}
+		this.head = segments.get(0);
+		this.tail = segments.get(segments.size() - 1);
+		this.endOffset = tail.baseOffset + tail.count;
+		this.syncedOffset = endOffset;
+		this.syncHead = tail;
+	}
+
+	/**
+	 * Opens the journal in the given directory, recovering the messages of any segments already there.
+	 */
+	static Journal open(Path directory, String topic, FileTopicConfig config) throws IOException {
+		Files.createDirectories(directory);
+		List<Path> files = new ArrayList<>();
+		try (Stream<Path> listing = Files.list(directory)) {
+			listing.filter(path -> path.getFileName().toString().endsWith(SEGMENT_SUFFIX)).sorted().forEach(files::add);
+		}
+		List<Segment> segments = new ArrayList<>();
+		for (Path file : files) {
+			Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+			if (last != null && (last.torn || last.baseOffset + last.count != baseOffsetOf(file))) {
+				// what follows a lost record cannot be read in order
+				Files.delete(file);
+				continue;
+			}
+			segments.add(Segment.recover(file));
+		}
+		if (segments.isEmpty()) {
+			segments.add(Segment.create(directory, 0, config.getSegmentSize()));
+		}
+		return new Journal(directory, topic, config, segments);
+	}
+
+	String getTopic() {
+		return topic;
+	}
+
+	/**
+	 * @return The offset of the first message in the journal.
+	 */
+	long getStartOffset() {
+		return head.baseOffset;
+	}
+
+	/**
+	 * @return The offset the next appended message will get.
+	 */
+	long getEndOffset() {
+		return endOffset;
+	}
+
+	/**
+	 * Appends a message, returning once it is as durable as the fsync policy requires.
+	 *
+	 * @return The offset of the message.
+	 */
+	long append(byte[] payload) throws MessagingException {
+		return append(ByteBuffer.wrap(payload));
+	}
+
+	/**
+	 * Appends the bytes between the buffer's position and its limit, copying them straight into the mapped segment.
+	 *
+	 * @return The offset of the message.
+	 */
+	long append(ByteBuffer payload) throws MessagingException {
+		long offset = appendUnsynced(payload);
+		if (fsyncPolicy == FsyncPolicy.GROUP_COMMIT) {
+			groupCommit(offset + 1);
+		}
+		return offset;
+	}
+
+	/**
+	 * Appends a message without waiting for it to be forced, whatever the fsync policy.
+	 *
+	 * @return Completes once the message is on disk.
+	 */
+	CompletableFuture<Void> appendPersisted(ByteBuffer payload) throws MessagingException {
+		return persistAsync(appendUnsynced(payload) + 1);
+	}
+
+	private long appendUnsynced(ByteBuffer payload) throws MessagingException {
+		long offset;
+		synchronized (writeLock) {
+			checkOpen();
+			offset = write(payload);
+			if (fsyncPolicy == FsyncPolicy.PER_MESSAGE) {
+				forceAppended();
+			}
+		}
+		wakeReaders();
+		return offset;
+	}
+
+	/**
+	 * Appends a batch of messages in order and with no other appends in between, syncing at most once for all of them.
+	 */
+	void appendAll(List<byte[]> payloads) throws MessagingException {
+		long end;
+		synchronized (writeLock) {
+			checkOpen();
+			for (byte[] payload : payloads) {
+				write(ByteBuffer.wrap(payload));
+			}
+			end = endOffset;
+			if (fsyncPolicy == FsyncPolicy.PER_MESSAGE) {
+				forceAppended();
+			}
+		}
+		wakeReaders();
+		if (fsyncPolicy == FsyncPolicy.GROUP_COMMIT) {
+			groupCommit(end);
+		}
+	}
+
+	/**
+	 * @return Completes once every message before the given offset is on disk, which the syncing thread sees to.
+	 */
+	private CompletableFuture<Void> persistAsync(long upTo) {
+		synchronized (syncLock) {
+			if (syncedOffset >= upTo) {
+				return CompletableFuture.completedFuture(null);
+			}
+			PendingSync pending = new PendingSync(upTo);
+			pendingSyncs.add(pending);
+			if (syncer == null) {
+				syncer = new Thread(this::runSyncer, "file-sync-" + topic);
+				syncer.setDaemon(true);
+				syncer.start();
+			} else {
+				syncLock.notifyAll();
+			}
+			return pending.future;
+		}
+	}
+
+	/**
+	 * Forces the journal for as long as there are sends waiting for it, until the journal is closed.
+	 */
+	private void runSyncer() {
+		for (;;) {
+			long upTo = 0;
+			List<PendingSync> synced;
+			synchronized (syncLock) {
+				synced = takeSynced();
+				while (synced.isEmpty() && pendingSyncs.isEmpty() && !closed) {
+					try {
+						syncLock.wait();
+					} catch (InterruptedException e) {
+						syncer = null;
+						return;
+					}
+					synced = takeSynced();
+				}
+				if (synced.isEmpty() && pendingSyncs.isEmpty()) {
+					syncer = null;
+					return;
+				}
+				for (PendingSync pending : pendingSyncs) {
+					upTo = Math.max(upTo, pending.upTo);
+				}
+			}
+			complete(synced);
+			if (upTo > 0) {
+				try {
+					groupCommit(upTo);
+				} catch (RuntimeException e) {
+					failPending(e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes the sends the journal has been forced past, called with the sync lock held.
+	 */
+	private List<PendingSync> takeSynced() {
+		List<PendingSync> synced = new ArrayList<>();
+		pendingSyncs.removeIf(pending -> pending.upTo <= syncedOffset && synced.add(pending));
+		return synced;
+	}
+
+	// outside the sync lock, as completing runs whatever the sender chained on
+	private static void complete(List<PendingSync> synced) {
+		for (PendingSync pending : synced) {
+			pending.future.complete(null);
+		}
+	}
+
+	private void failPending(RuntimeException e) {
+		List<PendingSync> failed;
+		synchronized (syncLock) {
+			failed = new ArrayList<>(pendingSyncs);
+			pendingSyncs.clear();
+		}
+		MessagingException failure = new MessagingException("Cannot force journal of topic " + topic, e);
+		for (PendingSync pending : failed) {
+			pending.future.completeExceptionally(failure);
+		}
+	}
+
+	private void checkOpen() throws MessagingException {
+		if (closed) {
+			throw new MessagingException("Journal of topic " + topic + " is closed");
+		}
+	}
+
+	private long write(ByteBuffer payload) throws MessagingException {
+		int length = payload.remaining();
+		int size = RECORD_HEADER + length;
+		if (size > segmentSize) {
+			throw new MessagingException("Message of " + length + " bytes does not fit a journal segment of topic "
+					+ topic);
+		}
+		Segment segment = tail;
+		// a recovered segment may have been created with a different size
+		if (segment.limit + size > segment.buffer.capacity()) {
+			segment = roll(segment);
+		}
+		int position = segment.limit;
+		segment.buffer.put(position + RECORD_HEADER, payload, payload.position(), length);
+		segment.buffer.putInt(position + CHECKSUM_POSITION, checksumOf(payload));
+		segment.buffer.putInt(position, length + 1);
+		segment.count++;
+		// publishes the record to readers
+		segment.limit = position + size;
+		return endOffset++;
+	}
+
+	/**
+	 * @return The CRC32C of the bytes between the buffer's position and its limit, leaving the position where it was.
+	 */
+	private int checksumOf(ByteBuffer payload) {
+		int start = payload.position();
+		checksum.reset();
+		checksum.update(payload);
+		payload.position(start);
+		return (int) checksum.getValue();
+	}
+
+	private static long baseOffsetOf(Path file) {
+		String name = file.getFileName().toString();
+		return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+	private Segment roll(Segment full) throws MessagingException {
+		Segment next;
+		try {
+			next = Segment.create(directory, full.baseOffset + full.count, segmentSize);
+		} catch (IOException e) {
+			throw new MessagingException("Cannot create journal segment of topic " + topic, e);
+		}
+		full.next = next;
+		tail = next;
+		return next;
+	}
+
+	/**
+	 * Forces everything appended so far, called with the write lock held.
+	 */
+	private void forceAppended() {
+		forceUpTo(tail, tail.limit);
+		syncedOffset = endOffset;
+	}
+
+	/**
+	 * Waits until the journal has been forced up to the given offset, forcing it on behalf of all waiting senders if no
+	 * other sender is already doing so.
+	 */
+	private void groupCommit(long upTo) {
+		boolean interrupted = false;
+		try {
+			for (;;) {
+				synchronized (syncLock) {
+					while (syncing && syncedOffset < upTo) {
+						try {
+							syncLock.wait();
+						} catch (InterruptedException e) {
+							interrupted = true;
+						}
+					}
+					if (syncedOffset >= upTo) {
+						return;
+					}
+					syncing = true;
+				}
+				long forced = 0;
+				try {
+					Segment last;
+					int limit;
+					long target;
+					synchronized (writeLock) {
+						last = tail;
+						limit = last.limit;
+						target = endOffset;
+					}
+					forceUpTo(last, limit);
+					forced = target;
+				} finally {
+					List<PendingSync> synced;
+					synchronized (syncLock) {
+						syncing = false;
+						syncedOffset = Math.max(syncedOffset, forced);
+						synced = takeSynced();
+						syncLock.notifyAll();
+					}
+					complete(synced);
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Forces the written but not yet forced part of every segment from the sync head up to the given limit of the last
+	 * one. Only ever called by one thread at a time.
+	 */
+	private void forceUpTo(Segment last, int lastLimit) {
+		Segment segment = syncHead;
+		for (;;) {
+			int limit = segment == last ? lastLimit : segment.limit;
+			if (limit > segment.synced) {
+				segment.buffer.force(segment.synced, limit - segment.synced);
+				segment.synced = limit;
+			}
+			if (segment == last) {
+				break;
+			}
+			segment = segment.next;
+		}
+		syncHead = last;
+	}
+
+	private void wakeReaders() {
+		if (waitingReaders.get() > 0) {
+			synchronized (appendMonitor) {
+				appendMonitor.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * @return A reader positioned after the last message appended so far.
+	 */
+	Reader readFromEnd() {
+		synchronized (writeLock) {
+			Segment segment = tail;
+			return new Reader(segment, segment.limit, endOffset);
+		}
+	}
+
+	/**
+	 * @return A reader positioned at the first message in the journal.
+	 */
+	Reader readFromStart() {
+		return new Reader(head, 0, head.baseOffset);
+	}
+
+	/**
+	 * @return A reader positioned at the message with the given offset, or after the last message appended so far if
+	 *         the offset is past it.
+	 */
+	Reader readFrom(long offset) {
+		Segment segment = head;
+		Segment next;
+		while ((next = segment.next) != null && next.baseOffset <= offset) {
+			segment = next;
+		}
+		Reader reader = new Reader(segment, 0, segment.baseOffset);
+		reader.skipTo(offset);
+		return reader;
+	}
+
+	/**
+	 * Blocks until there is something for the reader to read.
+	 *
+	 * @return {@code false} if the journal has been closed instead.
+	 */
+	boolean awaitAppend(Reader reader) throws InterruptedException {
+		waitingReaders.incrementAndGet();
+		try {
+			synchronized (appendMonitor) {
+				while (!closed && !reader.hasNext()) {
+					appendMonitor.wait();
+				}
+			}
+			return !closed;
+		} finally {
+			waitingReaders.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Forces what is left to disk and wakes up any waiting readers. The mappings themselves are released once nothing
+	 * refers to them any more, so messages already read remain valid.
+	 */
+	@Override
+	public void close() {
+		synchronized (writeLock) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
+		groupCommit(endOffset);
+		synchronized (appendMonitor) {
+			appendMonitor.notifyAll();
+		}
+	}
+
+	/**
+	 * A position in the journal, for use by a single thread.
+	 */
+	final class Reader {
+		private Segment segment;
+		private int position;
+		private long offset;
+
+		private Reader(Segment segment, int position, long offset) {
+			this.segment = segment;
+			this.position = position;
+			this.offset = offset;
+		}
+
+		/**
+		 * @return The offset of the next message to be read.
+		 */
+		long getOffset() {
+			return offset;
+		}
+
+		boolean hasNext() {
+			return position < segment.limit || segment.next != null;
+		}
+
+		/**
+		 * Moves past the messages before the given offset within the segment, reading only their headers.
+		 */
+		private void skipTo(long target) {
+			while (offset < target && position < segment.limit) {
+				position += RECORD_HEADER + segment.buffer.getInt(position) - 1;
+				offset++;
+			}
+		}
+
+		/**
+		 * @return The next message, or {@code null} if the reader has caught up with the appends.
+		 */
+		FileMessage next() {
+			for (;;) {
+				if (position < segment.limit) {
+					int length = segment.buffer.getInt(position) - 1;
+					ByteBuffer payload = segment.buffer.slice(position + RECORD_HEADER, length).asReadOnlyBuffer();
+					position += RECORD_HEADER + length;
+					return new FileMessage(payload, offset++);
+				}
+				Segment next = segment.next;
+				if (next == null) {
+					return null;
+				}
+				// the limit is final once the next segment exists, but may have moved since we last looked
+				if (position >= segment.limit) {
+					segment = next;
+					position = 0;
+				}
+			}
+		}
+	}
+
+	private static final class PendingSync {
+		final long upTo;
+		final CompletableFuture<Void> future = new CompletableFuture<>();
+
+		PendingSync(long upTo) {
+			this.upTo = upTo;
+		}
+	}
+
+	private static final class Segment {
+		final long baseOffset;
+		final MappedByteBuffer buffer;
+		volatile int limit;
+		volatile Segment next;
+		// only touched by the writer
+		int count;
+		// only touched by the thread forcing the journal
+		int synced;
+		// whether recovery stopped at a record that was not fully written
+		boolean torn;
+
+		private Segment(long baseOffset, MappedByteBuffer buffer) {
+			this.baseOffset = baseOffset;
+			this.buffer = buffer;
+		}
+
+		static Segment create(Path directory, long baseOffset, int size) throws IOException {
+			Path file = directory.resolve(String.format("%020d", baseOffset) + SEGMENT_SUFFIX);
+			return new Segment(baseOffset, map(file, size));
+		}
+
+		static Segment recover(Path file) throws IOException {
+			Segment segment = new Segment(baseOffsetOf(file), map(file, -1));
+			MappedByteBuffer buffer = segment.buffer;
+			CRC32C checksum = new CRC32C();
+			int position = 0;
+			while (position + RECORD_HEADER <= buffer.capacity()) {
+				int header = buffer.getInt(position);
+				if (header == 0) {
+					break;
+				}
+				int length = header - 1;
+				if (header < 0 || position + RECORD_HEADER + length > buffer.capacity()) {
+					segment.torn = true;
+					break;
+				}
+				checksum.reset();
+				checksum.update(buffer.slice(position + RECORD_HEADER, length));
+				if ((int) checksum.getValue() != buffer.getInt(position + CHECKSUM_POSITION)) {
+					segment.torn = true;
+					break;
+				}
+				position += RECORD_HEADER + length;
+				segment.count++;
+			}
+			if (segment.torn) {
+				// appends carry on from here, so nothing of the torn record may be mistaken for one of theirs later
+				for (int i = position; i < buffer.capacity(); i++) {
+					buffer.put(i, (byte) 0);
+				}
+			}
+			segment.limit = position;
+			segment.synced = position;
+			return segment;
+		}
+
+		/**
+		 * Maps a segment file, creating it with the given size if it is larger than the file; the channel can be closed
+		 * straight away as the mapping stays valid without it.
+		 */
+		private static MappedByteBuffer map(Path file, int size) throws IOException {
+			try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+				if (raf.length() < size) {
+					raf.setLength(size);
+				}
+				return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+			}
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package com.ph.coding.messaging.memory;
+
+import com.ph.coding.messaging.Message;
+import com.ph.coding.messaging.MessagePriority;
+import com.ph.coding.messaging.TopicHandle;
+
+/**
+ * Base class of the in-memory message implementations, carrying the routing details a receiver needs alongside the
+ * payload.
+ */
+public abstract class AbstractMemoryMessage implements Message {
+
+	private TopicHandle topic;
+	private long enqueuedNanos;
+	private MessagePriority priority = MessagePriority.NORMAL;
+	private String key;
+	private long offset = -1;
+	private DeliveryTracker tracker;
+
+	/**
+	 * @return The topic the message was sent on, or {@code null} if it has not been through a channel yet.
+	 */
+	TopicHandle getTopic() {
+		return topic;
+	}
+
+	void setTopic(TopicHandle topic) {
+		this.topic = topic;
+	}
+
+	/**
+	 * @return {@link System#nanoTime()} when the message was sent to its channel, or 0 if it has not been yet.
+	 */
+	long getEnqueuedNanos() {
+		return enqueuedNanos;
+	}
+
+	void setEnqueuedNanos(long enqueuedNanos) {
+		this.enqueuedNanos = enqueuedNanos;
+	}
+
+	/**
+	 * @return The priority the message was sent with, which picks its lane in queues that have a lane per priority.
+	 */
+	MessagePriority getPriority() {
+		return priority;
+	}
+
+	void setPriority(MessagePriority priority) {
+		this.priority = priority;
+	}
+
+	/**
+	 * @return The key the message was sent with, by which conflating receivers replace it with a newer message, or
+	 *         {@code null} if it was sent without one.
+	 */
+	String getKey() {
+		return key;
+	}
+
+	void setKey(String key) {
+		this.key = key;
+	}
+
+	/**
+	 * @return The offset of the message among the messages sent on its topic, or -1 if the topic does not retain
+	 *         messages and so does not count them.
+	 */
+	long getOffset() {
+		return offset;
+	}
+
+	void setOffset(long offset) {
+		this.offset = offset;
+	}
+
+	/**
+	 * @return The length of the payload, without copying it anywhere.
+	 */
+	abstract int getLength();
+
+	/**
+	 * @return The tracker of a message sent for delivery completion, held until the message is delivered or dropped.
+	 */
+	DeliveryTracker getTracker() {
+		return tracker;
+	}
+
+	void setTracker(DeliveryTracker tracker) {
+		this.tracker = tracker;
+	}
+
+	/**
+	 * Lets go of the tracker once the message has got where it was going.
+	 */
+	void releaseTracker() {
+		DeliveryTracker t = tracker;
+		if (t != null) {
+			tracker = null;
+			t.delivered();
+		}
+	}
+
+	/**
+	 * Called on disposal: a message that still holds its tracker never got where it was going.
+	 */
+	final void dropTracker() {
+		DeliveryTracker t = tracker;
+		if (t != null) {
+			tracker = null;
+			t.dropped();
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package com.ph.coding.messaging.memory;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A message whose payload is a buffer the sender handed over, which may be direct or a mapped file. Receivers share
+ * the sender's buffer through read-only views of their own, and the payload is only copied onto the heap if
+ * {@link #getMsg()} is called.
+ * <p/>
+ * As with an array sent on a channel without a pool, the sender must leave the buffer's contents alone until every
+ * receiver has disposed of the message.
+ */
+public final class BufferMessage extends AbstractMemoryMessage {
+
+	private final ByteBuffer payload;
+	private byte[] msg;
+
+	/**
+	 * @param payload Read-only, and positioned on the start of the payload, which ends at its limit.
+	 */
+	BufferMessage(ByteBuffer payload) {
+		this.payload = payload;
+	}
+
+	@Override
+	public byte[] getMsg() {
+		if (msg == null) {
+			byte[] copy = new byte[payload.remaining()];
+			payload.get(payload.position(), copy);
+			msg = copy;
+		}
+		return msg;
+	}
+
+	@Override
+	public ByteBuffer getBuffer() {
+		return payload.duplicate();
+	}
+
+	@Override
+	int getLength() {
+		return payload.remaining();
+	}
+
+	/**
+	 * @return Another message on the same payload, for another receiver.
+	 */
+	BufferMessage share() {
+		return new BufferMessage(payload);
+	}
+
+	@Override
+	public void dispose() {
+		// the buffer belongs to the sender
+		dropTracker();
+	}
+}
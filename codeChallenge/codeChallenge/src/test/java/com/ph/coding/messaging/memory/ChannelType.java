@@ -0,0 +1,18 @@
+package com.ph.coding.messaging.memory;
+
+/**
+ * The queue implementation used by a {@link MemoryChannel} to hold messages between the senders and the fan-out to
+ * the subscribed receivers.
+ */
+public enum ChannelType {
+
+	/**
+	 * Unbounded {@link java.util.concurrent.LinkedBlockingQueue}, allocating a node per message.
+	 */
+	LINKED_QUEUE,
+
+	/**
+	 * Preallocated multi-producer ring buffer with sequence based publication, see {@link RingBufferQueue}.
+	 */
+	RING_BUFFER
+}
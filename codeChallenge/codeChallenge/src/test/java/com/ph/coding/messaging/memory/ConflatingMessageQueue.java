@@ -0,0 +1,181 @@
+package com.ph.coding.messaging.memory;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.ph.coding.messaging.Message;
+
+/**
+ * Receiver queue that keeps only the newest waiting message of each key: {@link #replace(Message)} swaps a message
+ * for the one of the same key that is still waiting, in its place in the queue, so a slow consumer holds at most one
+ * message per key however fast they are sent. Messages without a key queue up as usual.
+ * <p/>
+ * A replaced message is neither published nor settled again, its slot stands for both, which keeps the slots in the
+ * order they were first taken as {@link DeliveryCounter} needs. {@link #offer(Message)} and {@link #put(Message)}
+ * always take a new slot, so a message that races another of its key past {@link #replace(Message)} may briefly have
+ * a slot of its own.
+ * <p/>
+ * Everything happens under one lock, which is no worse than the two of a {@link LinkedMessageQueue} for the slow
+ * consumers that conflate.
+ */
+final class ConflatingMessageQueue implements MessageQueue {
+
+	private final int capacity;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notFull = lock.newCondition();
+	private final ArrayDeque<Slot> slots = new ArrayDeque<>();
+	// the newest slot of every key that has one waiting
+	private final Map<String, Slot> waiting = new HashMap<>();
+	private volatile int size;
+	// whether a batch is being put, which no other producer may interleave with
+	private boolean batching;
+
+	/**
+	 * @param capacity Most messages held, 0 for unbounded.
+	 */
+	ConflatingMessageQueue(int capacity) {
+		this.capacity = capacity == 0 ? Integer.MAX_VALUE : capacity;
+	}
+
+	/**
+	 * Puts the message in place of the waiting message with the same key, if there is one.
+	 *
+	 * @return The message replaced, for the caller to dispose of, or {@code null} if there was none.
+	 */
+	@Override
+	public Message replace(Message msg) {
+		String key = keyOf(msg);
+		if (key == null) {
+			return null;
+		}
+		lock.lock();
+		try {
+			Slot slot = waiting.get(key);
+			if (slot == null) {
+				return null;
+			}
+			Message replaced = slot.msg;
+			slot.msg = msg;
+			return replaced;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean conflates() {
+		return true;
+	}
+
+	@Override
+	public void put(Message msg) throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (batching || slots.size() >= capacity) {
+				notFull.await();
+			}
+			add(msg);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void putAll(Message[] msgs, int count, Runnable wakeConsumer) throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (batching) {
+				notFull.await();
+			}
+			batching = true;
+			try {
+				for (int i = 0; i < count; i++) {
+					while (slots.size() >= capacity) {
+						wakeConsumer.run();
+						notFull.await();
+					}
+					add(msgs[i]);
+				}
+			} finally {
+				batching = false;
+				notFull.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean offer(Message msg) {
+		lock.lock();
+		try {
+			if (batching || slots.size() >= capacity) {
+				return false;
+			}
+			add(msg);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void add(Message msg) {
+		Slot slot = new Slot(msg);
+		slots.add(slot);
+		String key = keyOf(msg);
+		if (key != null) {
+			waiting.put(key, slot);
+		}
+		size = slots.size();
+	}
+
+	@Override
+	public Message poll() {
+		if (size == 0) {
+			return null;
+		}
+		lock.lock();
+		try {
+			Slot slot = slots.poll();
+			if (slot == null) {
+				return null;
+			}
+			String key = keyOf(slot.msg);
+			if (key != null) {
+				waiting.remove(key, slot);
+			}
+			size = slots.size();
+			// producers waiting for room and for a batch to be done share the condition
+			notFull.signalAll();
+			return slot.msg;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	private static String keyOf(Message msg) {
+		return msg instanceof AbstractMemoryMessage ? ((AbstractMemoryMessage) msg).getKey() : null;
+	}
+
+	private static final class Slot {
+
+		Message msg;
+
+		Slot(Message msg) {
+			this.msg = msg;
+		}
+	}
+}
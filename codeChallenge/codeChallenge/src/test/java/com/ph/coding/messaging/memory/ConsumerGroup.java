@@ -0,0 +1,116 @@
+package com.ph.coding.messaging.memory;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Receivers on a topic that share its messages between them: the channel hands every message to one started member of
+ * each group, picked according to the topic's {@link GroupAssignment}, rather than to all of them. A group with no
+ * started members misses the messages sent meanwhile, like a topic without receivers.
+ * <p/>
+ * Members each keep their own queue and deliver in order from it, so messages handed to the same member reach its
+ * listener in the order they were sent, but there is no order across members.
+ * <p/>
+ * On a topic with several partitions the assignment is ignored: each partition is assigned to one member instead, so
+ * messages with the same key go to the same member as long as the members stay the same.
+ */
+final class ConsumerGroup {
+
+	private static final MemoryMessageReceiver[] NO_MEMBERS = new MemoryMessageReceiver[0];
+
+	private final String name;
+	private final GroupAssignment assignment;
+	private final int partitions;
+	private volatile MemoryMessageReceiver[] members = NO_MEMBERS;
+	private final AtomicInteger next = new AtomicInteger();
+
+	ConsumerGroup(String name, GroupAssignment assignment, int partitions) {
+		this.name = name;
+		this.assignment = partitions > 1 ? GroupAssignment.ROUND_ROBIN : assignment;
+		this.partitions = partitions;
+	}
+
+	String getName() {
+		return name;
+	}
+
+	boolean isStealing() {
+		return assignment == GroupAssignment.WORK_STEALING;
+	}
+
+	MemoryMessageReceiver[] getMembers() {
+		return members;
+	}
+
+	boolean hasMembers() {
+		return members.length > 0;
+	}
+
+	synchronized void add(MemoryMessageReceiver receiver) {
+		MemoryMessageReceiver[] current = members;
+		MemoryMessageReceiver[] updated = Arrays.copyOf(current, current.length + 1);
+		updated[current.length] = receiver;
+		members = updated;
+	}
+
+	synchronized void remove(MemoryMessageReceiver receiver) {
+		MemoryMessageReceiver[] current = members;
+		for (int i = 0; i < current.length; i++) {
+			if (current[i] == receiver) {
+				MemoryMessageReceiver[] updated = new MemoryMessageReceiver[current.length - 1];
+				System.arraycopy(current, 0, updated, 0, i);
+				System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+				members = updated;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @param partition The partition of the topic the message was sent on.
+	 * @return The member to hand the next message to, or {@code null} if there are none.
+	 */
+	MemoryMessageReceiver pick(int partition) {
+		MemoryMessageReceiver[] current = members;
+		if (current.length == 0) {
+			return null;
+		}
+		if (partitions > 1) {
+			return current[partition % current.length];
+		}
+		int start = Math.floorMod(next.getAndIncrement(), current.length);
+		if (assignment != GroupAssignment.LEAST_LOADED) {
+			return current[start];
+		}
+		// scanning from where the turn is spreads messages across members with equally short queues
+		MemoryMessageReceiver best = current[start];
+		int bestSize = best.queueSize();
+		for (int i = 1; i < current.length && bestSize > 0; i++) {
+			MemoryMessageReceiver member = current[(start + i) % current.length];
+			int size = member.queueSize();
+			if (size < bestSize) {
+				best = member;
+				bestSize = size;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @return The member other than the given one with the longest queue, or {@code null} if all the others are idle.
+	 */
+	MemoryMessageReceiver victimFor(MemoryMessageReceiver thief) {
+		MemoryMessageReceiver victim = null;
+		int longest = 0;
+		for (MemoryMessageReceiver member : members) {
+			if (member != thief) {
+				int size = member.queueSize();
+				if (size > longest) {
+					victim = member;
+					longest = size;
+				}
+			}
+		}
+		return victim;
+	}
+}
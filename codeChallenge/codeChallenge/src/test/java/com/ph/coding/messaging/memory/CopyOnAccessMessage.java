@@ -0,0 +1,45 @@
+package com.ph.coding.messaging.memory;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A receiver's handle on a shared payload that copies it the first time it is asked for as an array, so that the
+ * receiver is free to change that array. See {@link MessageIsolation#COPY_ON_ACCESS}.
+ */
+public final class CopyOnAccessMessage extends AbstractMemoryMessage {
+
+	private final AbstractMemoryMessage shared;
+	private byte[] msg;
+
+	/**
+	 * @param shared A handle on the shared payload of the receiver's own, disposed of along with this message.
+	 */
+	CopyOnAccessMessage(AbstractMemoryMessage shared) {
+		this.shared = shared;
+	}
+
+	@Override
+	public byte[] getMsg() {
+		if (msg == null) {
+			msg = shared.getMsg().clone();
+		}
+		return msg;
+	}
+
+	@Override
+	public ByteBuffer getBuffer() {
+		// once copied, the receiver's own array is the payload as far as it is concerned
+		return msg == null ? shared.getBuffer() : ByteBuffer.wrap(msg).asReadOnlyBuffer();
+	}
+
+	@Override
+	int getLength() {
+		return msg == null ? shared.getLength() : msg.length;
+	}
+
+	@Override
+	public void dispose() {
+		dropTracker();
+		shared.dispose();
+	}
+}
@@ -0,0 +1,75 @@
+package com.ph.coding.messaging.memory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the messages published to a first-in first-out stage of delivery and those the stage is done with, whether
+ * it passed them on, dropped them or disposed of them, so that a caller can wait for the stage to finish with
+ * everything published before a given point.
+ * <p/>
+ * Messages are counted as published before they are queued. Since the stage settles them in the order they were
+ * queued, once it has settled as many messages as had been published at some point, it has settled every message that
+ * was queued by then, whatever was published concurrently. Settling only wakes waiters when there are any.
+ * <p/>
+ * The queue of a {@link GroupAssignment#WORK_STEALING} group member has more than one consumer and may be settled out
+ * of order, so there a message published after the mark can stand in for an earlier one still being delivered.
+ */
+final class DeliveryCounter {
+
+	private final LongAdder published = new LongAdder();
+	private final LongAdder settled = new LongAdder();
+	private final AtomicInteger waiters = new AtomicInteger();
+
+	void published(int count) {
+		published.add(count);
+	}
+
+	void settled(int count) {
+		settled.add(count);
+		if (waiters.get() > 0) {
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * @return A mark to {@link #awaitSettled(long, long)} for, covering every message published so far.
+	 */
+	long mark() {
+		return published.sum();
+	}
+
+	boolean isSettled(long mark) {
+		return settled.sum() >= mark;
+	}
+
+	/**
+	 * Blocks until the stage has settled every message published before the mark was taken.
+	 *
+	 * @param deadlineNanos {@link System#nanoTime()} to give up at.
+	 * @return Whether it did so before the deadline.
+	 */
+	boolean awaitSettled(long mark, long deadlineNanos) throws InterruptedException {
+		if (isSettled(mark)) {
+			return true;
+		}
+		waiters.incrementAndGet();
+		try {
+			synchronized (this) {
+				while (!isSettled(mark)) {
+					long remaining = deadlineNanos - System.nanoTime();
+					if (remaining <= 0) {
+						return false;
+					}
+					TimeUnit.NANOSECONDS.timedWait(this, remaining);
+				}
+				return true;
+			}
+		} finally {
+			waiters.decrementAndGet();
+		}
+	}
+}
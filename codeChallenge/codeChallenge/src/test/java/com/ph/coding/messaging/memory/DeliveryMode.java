@@ -0,0 +1,27 @@
+package com.ph.coding.messaging.memory;
+
+/**
+ * How a {@link MemoryChannel} gets a sent message to its subscribed receivers.
+ */
+public enum DeliveryMode {
+
+	/**
+	 * The message is put on the channel's queue and fanned out to the receivers' queues on a dispatcher thread, from
+	 * where each receiver delivers it to its listener. Senders never wait for receivers, but every message takes two
+	 * queue hops and two thread handoffs.
+	 */
+	QUEUED,
+
+	/**
+	 * The sending thread fans the message out straight into each receiver's queue, skipping the channel queue and
+	 * one thread handoff. A full receiver queue blocks the sender.
+	 */
+	DIRECT,
+
+	/**
+	 * The sending thread calls each receiver's listener itself, so the message has been handled by every listener by
+	 * the time {@code sendMessage} returns. Calls to any one listener are still serialised, but a slow listener holds
+	 * up the sender.
+	 */
+	SYNCHRONOUS
+}
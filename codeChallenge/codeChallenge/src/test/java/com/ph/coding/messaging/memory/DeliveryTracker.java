@@ -0,0 +1,55 @@
+package com.ph.coding.messaging.memory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.ph.coding.messaging.MessagingException;
+import com.ph.coding.messaging.SendCompletion;
+
+/**
+ * Completes the future of a message sent for {@link SendCompletion#DELIVERED} once the listener of every copy of it
+ * has returned, or fails it as soon as a copy is disposed of without doing so.
+ * <p/>
+ * The sent message holds the tracker until the channel has made a copy for every receiver; each copy then holds it
+ * until the copy is {@link #delivered() delivered} or {@link #dropped() dropped}, so the count cannot reach zero
+ * whilst copies are still being made.
+ */
+final class DeliveryTracker {
+
+	private final String topic;
+	private final CompletableFuture<Void> future;
+	private final AtomicInteger holders = new AtomicInteger(1);
+
+	DeliveryTracker(String topic, CompletableFuture<Void> future) {
+		this.topic = topic;
+		this.future = future;
+	}
+
+	/**
+	 * Adds a holder, for a copy of the message.
+	 */
+	void retain() {
+		holders.incrementAndGet();
+	}
+
+	/**
+	 * A holder is done with the tracker without the message being lost: the listener of the copy has returned, or
+	 * the channel has finished making copies.
+	 */
+	void delivered() {
+		if (holders.decrementAndGet() == 0) {
+			future.complete(null);
+		}
+	}
+
+	/**
+	 * A holder is disposed of before the message reached the listener it was meant for.
+	 */
+	void dropped() {
+		fail(new MessagingException("Message on topic " + topic + " was dropped before reaching every receiver"));
+	}
+
+	void fail(MessagingException e) {
+		future.completeExceptionally(e);
+	}
+}
@@ -0,0 +1,39 @@
+package com.ph.coding.messaging.memory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the work of the channels and receivers of a {@link MemoryMessagingFactory}. All channels and receivers of a
+ * factory share one dispatcher, so the number of threads no longer grows with the number of topics and subscribers.
+ * <p/>
+ * The dispatcher itself gives no ordering guarantees; each channel and receiver makes sure that at most one of its
+ * drain tasks is submitted at a time, which keeps delivery to any single receiver in order.
+ *
+ * @see Dispatchers
+ */
+public interface Dispatcher {
+
+	/**
+	 * Runs the given task asynchronously at some point in the future.
+	 *
+	 * @param task The task.
+	 */
+	void execute(Runnable task);
+
+	/**
+	 * Runs the given task once, no earlier than the given delay from now. The default implementation waits on a timer
+	 * thread shared by all dispatchers and then hands the task to {@link #execute(Runnable)}.
+	 *
+	 * @param task The task.
+	 * @param delay The delay.
+	 * @param unit The unit of the delay.
+	 */
+	default void schedule(Runnable task, long delay, TimeUnit unit) {
+		Dispatchers.timer().schedule(() -> execute(task), delay, unit);
+	}
+
+	/**
+	 * Stops accepting new tasks and relinquishes the worker threads.
+	 */
+	void shutdown();
+}
@@ -0,0 +1,87 @@
+package com.ph.coding.messaging.memory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factory methods for the standard {@link Dispatcher} implementations.
+ */
+public final class Dispatchers {
+
+	private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+	private static volatile ScheduledExecutorService timer;
+
+	private Dispatchers() {
+	}
+
+	/**
+	 * @return A dispatcher with one worker thread per available processor.
+	 */
+	public static Dispatcher pooled() {
+		return pooled(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param threads The number of worker threads.
+	 * @return A dispatcher multiplexing all work onto a fixed size pool of daemon threads.
+	 */
+	public static Dispatcher pooled(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Dispatcher needs at least one thread: " + threads);
+		}
+		return new PooledDispatcher(threads, "memory-dispatcher-" + POOL_NUMBER.incrementAndGet() + "-");
+	}
+
+	/**
+	 * @return A dispatcher that runs every task on a new virtual thread.
+	 * @throws UnsupportedOperationException If the running JVM does not support virtual threads.
+	 */
+	public static Dispatcher virtualThreads() {
+		try {
+			return fromExecutor((ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null));
+		} catch (ReflectiveOperationException e) {
+			throw new UnsupportedOperationException("Virtual threads are not supported by this JVM", e);
+		}
+	}
+
+	/**
+	 * @param executor The executor to run tasks on, shut down along with the dispatcher.
+	 * @return A dispatcher backed by the given executor.
+	 */
+	public static Dispatcher fromExecutor(ExecutorService executor) {
+		return new Dispatcher() {
+			@Override
+			public void execute(Runnable task) {
+				executor.execute(task);
+			}
+
+			@Override
+			public void shutdown() {
+				executor.shutdownNow();
+			}
+		};
+	}
+
+	/**
+	 * @return The timer shared by all dispatchers for delayed tasks, started on first use.
+	 */
+	static ScheduledExecutorService timer() {
+		ScheduledExecutorService current = timer;
+		if (current == null) {
+			synchronized (Dispatchers.class) {
+				current = timer;
+				if (current == null) {
+					current = Executors.newSingleThreadScheduledExecutor(runnable -> {
+						Thread thread = new Thread(runnable, "memory-dispatcher-timer");
+						thread.setDaemon(true);
+						return thread;
+					});
+					timer = current;
+				}
+			}
+		}
+		return current;
+	}
+}
@@ -0,0 +1,21 @@
+package com.ph.coding.messaging.memory;
+
+/**
+ * How a {@link ConsumerGroup} picks the member that gets a message.
+ */
+public enum GroupAssignment {
+	/**
+	 * Members take turns.
+	 */
+	ROUND_ROBIN,
+	/**
+	 * The member with the fewest messages queued gets it, members with equally short queues take turns.
+	 */
+	LEAST_LOADED,
+	/**
+	 * Members take turns, and a member whose queue runs dry takes the next message from the longest queue in the
+	 * group until it has some of its own again, so no member sits idle whilst another has a backlog. Only members with
+	 * a single message listener steal; needs {@link ChannelType#LINKED_QUEUE} queues, which others may take from.
+	 */
+	WORK_STEALING
+}
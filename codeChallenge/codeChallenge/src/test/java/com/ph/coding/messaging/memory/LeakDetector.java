@@ -0,0 +1,78 @@
+package com.ph.coding.messaging.memory;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Finds pooled messages that are garbage collected without having been disposed. Every {@code samplingInterval}th
+ * message handed out by the pool is tracked with a phantom reference, which is cleared again when the message is
+ * disposed. A tracked message that is collected whilst still tracked was leaked; it is counted and its acquisition
+ * site printed to {@code System.err}.
+ */
+final class LeakDetector {
+
+	private final int samplingInterval;
+	private final ReferenceQueue<PooledMessage> collected = new ReferenceQueue<>();
+	private final Set<Tracker> trackers = ConcurrentHashMap.newKeySet();
+	private final AtomicLong leaks = new AtomicLong();
+	private int counter;
+
+	/**
+	 * @param samplingInterval Track one in this many messages, 0 disables leak detection.
+	 */
+	LeakDetector(int samplingInterval) {
+		if (samplingInterval < 0) {
+			throw new IllegalArgumentException("Sampling interval must not be negative: " + samplingInterval);
+		}
+		this.samplingInterval = samplingInterval;
+	}
+
+	boolean isEnabled() {
+		return samplingInterval > 0;
+	}
+
+	/**
+	 * @return The tracker for the message, or {@code null} if it is not sampled.
+	 */
+	Tracker track(PooledMessage message) {
+		if (samplingInterval == 0) {
+			return null;
+		}
+		reportLeaks();
+		// racy increment is fine, this only decides what gets sampled
+		if (++counter % samplingInterval != 0) {
+			return null;
+		}
+		Tracker tracker = new Tracker(message, collected);
+		trackers.add(tracker);
+		return tracker;
+	}
+
+	void close(Tracker tracker) {
+		trackers.remove(tracker);
+		tracker.clear();
+	}
+
+	long reportLeaks() {
+		Tracker tracker;
+		while ((tracker = (Tracker) collected.poll()) != null) {
+			if (trackers.remove(tracker)) {
+				leaks.incrementAndGet();
+				System.err.println("LEAK: a message was garbage collected without dispose() being called");
+				tracker.acquiredAt.printStackTrace();
+			}
+		}
+		return leaks.get();
+	}
+
+	static final class Tracker extends PhantomReference<PooledMessage> {
+		private final Throwable acquiredAt = new Throwable("Message acquired here");
+
+		Tracker(PooledMessage referent, ReferenceQueue<PooledMessage> queue) {
+			super(referent, queue);
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package com.ph.coding.messaging.memory;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.ph.coding.messaging.Message;
+
+/**
+ * Linked queue with a lock for producers and another for consumers, as in
+ * {@link java.util.concurrent.LinkedBlockingQueue}, so that producers and the consumer do not contend with each other.
+ * Consumers see the messages linked by producers through the count, which producers raise only once the messages are
+ * linked.
+ * <p/>
+ * A batch put with {@link #putAll(Message[], int, Runnable)} is linked as one unit that no other producer's messages
+ * interleave with: as much of it as fits is linked under one acquisition of the producer lock, and should the queue
+ * fill up part way through, other producers wait until the batch is done.
+ * <p/>
+ * Producers waiting for room wait on a single condition for the whole batch or a single message, so they are all
+ * woken when there is room and the ones that still cannot go on wait again.
+ */
+final class LinkedMessageQueue implements MessageQueue {
+
+	private final int capacity;
+	private final AtomicInteger count = new AtomicInteger();
+	private final ReentrantLock putLock = new ReentrantLock();
+	private final Condition notFull = putLock.newCondition();
+	private final ReentrantLock takeLock = new ReentrantLock();
+	// a node whose message has been taken, followed by the next message; guarded by takeLock
+	private Node head = new Node(null);
+	// guarded by putLock
+	private Node last = head;
+	// whether a batch is being linked, guarded by putLock
+	private boolean batching;
+
+	/**
+	 * @param capacity Most messages held, 0 for unbounded.
+	 */
+	LinkedMessageQueue(int capacity) {
+		this.capacity = capacity == 0 ? Integer.MAX_VALUE : capacity;
+	}
+
+	@Override
+	public void put(Message msg) throws InterruptedException {
+		Node node = new Node(msg);
+		int c;
+		putLock.lockInterruptibly();
+		try {
+			while (batching || count.get() == capacity) {
+				notFull.await();
+			}
+			last = last.next = node;
+			c = count.getAndIncrement();
+			if (c + 1 < capacity) {
+				notFull.signalAll();
+			}
+		} finally {
+			putLock.unlock();
+		}
+	}
+
+	@Override
+	public void putAll(Message[] msgs, int count, Runnable wakeConsumer) throws InterruptedException {
+		putLock.lockInterruptibly();
+		try {
+			while (batching) {
+				notFull.await();
+			}
+			batching = true;
+			try {
+				int offset = 0;
+				while (offset < count) {
+					int n = Math.min(count - offset, capacity - this.count.get());
+					if (n == 0) {
+						wakeConsumer.run();
+						notFull.await();
+						continue;
+					}
+					for (int i = 0; i < n; i++) {
+						last = last.next = new Node(msgs[offset + i]);
+					}
+					this.count.getAndAdd(n);
+					offset += n;
+				}
+			} finally {
+				batching = false;
+				notFull.signalAll();
+			}
+		} finally {
+			putLock.unlock();
+		}
+	}
+
+	@Override
+	public boolean offer(Message msg) {
+		if (count.get() == capacity) {
+			return false;
+		}
+		Node node = new Node(msg);
+		int c = -1;
+		putLock.lock();
+		try {
+			// the room may be what a batch is waiting for
+			if (!batching && count.get() < capacity) {
+				last = last.next = node;
+				c = count.getAndIncrement();
+				if (c + 1 < capacity) {
+					notFull.signalAll();
+				}
+			}
+		} finally {
+			putLock.unlock();
+		}
+		return c >= 0;
+	}
+
+	@Override
+	public Message poll() {
+		if (count.get() == 0) {
+			return null;
+		}
+		Message msg = null;
+		int c = -1;
+		takeLock.lock();
+		try {
+			if (count.get() > 0) {
+				Node first = head.next;
+				// unlinks the old head for the garbage collector
+				head.next = head;
+				head = first;
+				msg = first.msg;
+				first.msg = null;
+				c = count.getAndDecrement();
+			}
+		} finally {
+			takeLock.unlock();
+		}
+		if (c == capacity) {
+			signalNotFull();
+		}
+		return msg;
+	}
+
+	private void signalNotFull() {
+		putLock.lock();
+		try {
+			notFull.signalAll();
+		} finally {
+			putLock.unlock();
+		}
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return count.get() == 0;
+	}
+
+	@Override
+	public int size() {
+		return count.get();
+	}
+
+	private static final class Node {
+		Message msg;
+		Node next;
+
+		Node(Message msg) {
+			this.msg = msg;
+		}
+	}
+}
@@ -0,0 +1,253 @@
+package com.ph.coding.messaging.memory;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import com.ph.coding.messaging.MessageReceiver;
+import com.ph.coding.messaging.MessageSender;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Allocation regression tests for the pooled message path. These measure the bytes allocated by the sending thread and
+ * the dispatcher threads, so they fail as soon as something on the publish/deliver path allocates more per message
+ * than the message handles, which are not pooled.
+ */
+public class MemoryAllocationTest
+{
+  private static final int WARMUP_MESSAGES = 200_000;
+  private static final int MEASURED_MESSAGES = 100_000;
+  // slack for the measurement itself, far below one byte per message
+  private static final long ALLOCATION_TOLERANCE_BYTES = 16 * 1024;
+  // generous bound on the size of a message handle, well below the payloads measured
+  private static final long HANDLE_BYTES = 96;
+  // not a power of two, so that nothing relies on payloads filling a buffer
+  private static final int PAYLOAD_LENGTH = 1000;
+
+  private com.sun.management.ThreadMXBean threadBean;
+  private MemoryMessagingFactory messagingFactory;
+
+  @Before
+  public void before() throws Exception
+  {
+    Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+    threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+    threadBean.setThreadAllocatedMemoryEnabled(true);
+
+    messagingFactory = new MemoryMessagingFactory();
+    messagingFactory.setDispatcher(Dispatchers.pooled(2));
+    messagingFactory.setDefaultTopicConfig(new MemoryTopicConfig().setChannelType(ChannelType.RING_BUFFER));
+    messagingFactory.start();
+  }
+
+  @After
+  public void after() throws Exception
+  {
+    if(messagingFactory != null)
+      messagingFactory.shutdown();
+  }
+
+  // -------------------------------------------------------------------------------- //
+
+  @Test
+  public void bufferReturnedToPoolAfterLastDispose()
+  {
+    final MessagePool pool = new MessagePool();
+    final PooledMessage message = pool.acquire(new byte[] {1, 2, 3, 4});
+    final PooledMessage copy = pool.duplicate(message);
+    final byte[] buffer = message.getMsg();
+    assertSame(buffer, copy.getMsg());
+
+    message.dispose();
+    final PooledMessage whilstShared = pool.acquire(new byte[] {4, 5, 6, 7});
+    assertNotSame(buffer, whilstShared.getMsg());
+    assertEquals(1, copy.getMsg()[0]);
+
+    copy.dispose();
+    final PooledMessage reused = pool.acquire(new byte[] {7, 8, 9, 10});
+    assertSame(buffer, reused.getMsg());
+    assertEquals(7, reused.getMsg()[0]);
+  }
+
+  @Test
+  public void freeBuffersAreKeptWithinTheByteBudget()
+  {
+    final MessagePool pool = new MessagePool(MessagePool.DEFAULT_MAX_POOLED_LENGTH, 64, 0);
+    final PooledMessage[] messages = new PooledMessage[3];
+    final Set<byte[]> buffers = Collections.newSetFromMap(new IdentityHashMap<>());
+    for(int i=0; i<messages.length; ++i)
+    {
+      messages[i] = pool.acquire(new byte[32]);
+      buffers.add(messages[i].getMsg());
+    }
+    for(final PooledMessage message : messages)
+      message.dispose();
+
+    int reused = 0;
+    for(int i=0; i<messages.length; ++i)
+      if(buffers.contains(pool.acquire(new byte[32]).getMsg()))
+        ++reused;
+    assertEquals(2, reused);
+  }
+
+  @Test
+  public void disposedHandleIsNotReused()
+  {
+    final MessagePool pool = new MessagePool();
+    final PooledMessage message = pool.acquire(new byte[] {1, 2, 3, 4});
+    message.dispose();
+    final PooledMessage next = pool.acquire(new byte[] {5, 6, 7, 8});
+    assertNotSame(message, next);
+
+    try
+    {
+      message.getMsg();
+      fail("A disposed message must not give access to a payload");
+    }
+    catch(final IllegalStateException e)
+    {
+      // expected
+    }
+    message.dispose();
+    assertEquals(5, next.getMsg()[0]);
+    assertEquals(5, pool.duplicate(next).getMsg()[0]);
+  }
+
+  @Test
+  public void pooledMessageCycleAllocatesOnlyHandles()
+  {
+    final MessagePool pool = new MessagePool();
+    final byte[] payload = new byte[PAYLOAD_LENGTH];
+    for(int i=0; i<WARMUP_MESSAGES; ++i)
+      fanOutAndDispose(pool, payload);
+
+    final long before = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    for(int i=0; i<MEASURED_MESSAGES; ++i)
+      fanOutAndDispose(pool, payload);
+    final long allocated = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+
+    // a message and the two duplicates of it
+    assertAllocatedOnlyHandles(allocated, 3);
+  }
+
+  @Test
+  public void steadyStatePublishAndDeliverAllocatesOnlyHandles() throws Exception
+  {
+    checkSteadyStateAllocatesOnlyHandles();
+  }
+
+  @Test
+  public void steadyStatePooledPublishAndDeliverAllocatesOnlyHandles() throws Exception
+  {
+    messagingFactory.setMessagePool(new MessagePool());
+    checkSteadyStateAllocatesOnlyHandles();
+  }
+
+  @Test
+  public void leakDetectorReportsUndisposedMessages() throws Exception
+  {
+    final MessagePool pool = new MessagePool(MessagePool.DEFAULT_MAX_POOLED_LENGTH, MessagePool.DEFAULT_MAX_POOLED_BYTES, 1);
+    pool.acquire(new byte[] {1}).dispose();
+    pool.acquire(new byte[] {2});
+
+    long leaks = 0;
+    for(int i=0; i<50 && leaks == 0; ++i)
+    {
+      System.gc();
+      Thread.sleep(20);
+      leaks = pool.checkForLeaks();
+    }
+    assertEquals(1, leaks);
+  }
+
+  // -------------------------------------------------------------------------------- //
+
+  private void checkSteadyStateAllocatesOnlyHandles() throws Exception
+  {
+    final AtomicLong received = new AtomicLong();
+    final AtomicLong readBytes = new AtomicLong();
+    final MessageSender sender = messagingFactory.createSender("a");
+    sender.start();
+    for(int r=0; r<3; ++r)
+    {
+      final MessageReceiver receiver = messagingFactory.createReceiver("a");
+      receiver.setListener((message, topic) -> {
+        readBytes.addAndGet(message.getMsg().length);
+        received.incrementAndGet();
+        message.dispose();
+      });
+      receiver.start();
+    }
+    final byte[] payload = new byte[PAYLOAD_LENGTH];
+
+    sendAndAwait(sender, payload, WARMUP_MESSAGES, received);
+
+    final long[] threadIds = pathThreadIds();
+    final long before = totalAllocatedBytes(threadIds);
+    sendAndAwait(sender, payload, MEASURED_MESSAGES, received);
+    final long allocated = totalAllocatedBytes(threadIds) - before;
+
+    // the sent message and a duplicate for each of the three receivers
+    assertAllocatedOnlyHandles(allocated, 4);
+    assertEquals(3L * PAYLOAD_LENGTH * (WARMUP_MESSAGES + MEASURED_MESSAGES), readBytes.get());
+  }
+
+  private static void assertAllocatedOnlyHandles(final long allocated, final int handlesPerMessage)
+  {
+    final long limit = MEASURED_MESSAGES * handlesPerMessage * HANDLE_BYTES + ALLOCATION_TOLERANCE_BYTES;
+    assertTrue("Allocated " + allocated + " bytes for " + MEASURED_MESSAGES + " messages", allocated < limit);
+  }
+
+  private static void fanOutAndDispose(final MessagePool pool, final byte[] payload)
+  {
+    final PooledMessage message = pool.acquire(payload);
+    final PooledMessage copy1 = pool.duplicate(message);
+    final PooledMessage copy2 = pool.duplicate(message);
+    message.dispose();
+    copy1.dispose();
+    copy2.dispose();
+  }
+
+  private void sendAndAwait(final MessageSender sender, final byte[] payload, final int count, final AtomicLong received) throws Exception
+  {
+    final long target = received.get() + 3L * count;
+    for(int i=0; i<count; ++i)
+      sender.sendMessage(payload);
+    while(received.get() < target)
+      Thread.onSpinWait();
+  }
+
+  private static long[] pathThreadIds()
+  {
+    final List<Long> ids = new ArrayList<>();
+    ids.add(Thread.currentThread().getId());
+    for(final Thread thread : Thread.getAllStackTraces().keySet())
+      if(thread.getName().startsWith("memory-dispatcher-"))
+        ids.add(thread.getId());
+    return ids.stream().mapToLong(Long::longValue).toArray();
+  }
+
+  private long totalAllocatedBytes(final long[] threadIds)
+  {
+    long total = 0;
+    for(final long id : threadIds)
+      total += threadBean.getThreadAllocatedBytes(id);
+    return total;
+  }
+
+}
@@ -1,30 +1,56 @@
 package com.ph.coding.messaging.memory;
 
-import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.Callable;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
 
 import com.ph.coding.messaging.Message;
 import com.ph.coding.messaging.MessagingException;
+import com.ph.coding.messaging.StartPosition;
+import com.ph.coding.messaging.TopicHandle;
 
 public class MemoryChannel {
 
+	private static final MemoryMessageReceiver[] NO_SUBSCRIBERS = new MemoryMessageReceiver[0];
+	private static final ConsumerGroup[] NO_GROUPS = new ConsumerGroup[0];
+
+	private final TopicHandle handle;
 	private final String topic;
-	private final List<MemoryMessageReceiver> subscribedList = new CopyOnWriteArrayList<>();
-	private volatile boolean isStarted = false;
-	private final BlockingQueue<Message> queuedMessages= new LinkedBlockingQueue<>();
-	private final Sender sender = new Sender();
-	private Future<?> sendingFuture;
-	private final ExecutorService executor = Executors.newSingleThreadExecutor();
+	private final MemoryTopicConfig config;
+	private final SubscriberRegistry subscribers = new SubscriberRegistry();
+	private final TopicIndex wildcards;
+	private volatile Targets targets = new Targets(-1, NO_SUBSCRIBERS, NO_SUBSCRIBERS);
+	private volatile ConsumerGroup[] groups = NO_GROUPS;
+	private final DeliveryMode deliveryMode;
+	private final Dispatcher dispatcher;
+	private final MessagePool pool;
+	private final MessageIsolation isolation;
+	// one sender per partition, each with its own queue, fanning out in parallel with the others
+	private final Sender[] partitions;
+	// null unless the topic retains messages, guarded by retainLock
+	private final RetainedLog retained;
+	private final Object retainLock = new Object();
+	private final LongAdder sent = new LongAdder();
+	private final RateMeter sendRate = new RateMeter();
 	
-	public MemoryChannel(String topic)
+	public MemoryChannel(TopicHandle handle, MemoryTopicConfig config, Dispatcher dispatcher, MessagePool pool, TopicIndex wildcards)
 	{
-		this.topic = topic;
+		this.handle = handle;
+		this.topic = handle.getName();
+		this.wildcards = wildcards;
+		this.config = config;
+		this.deliveryMode = config.getDeliveryMode();
+		this.dispatcher = dispatcher;
+		this.pool = pool;
+		this.isolation = config.getIsolation();
+		this.partitions = new Sender[config.getPartitions()];
+		for (int i = 0; i < partitions.length; i++) {
+			// direct and synchronous delivery bypass the channel queue altogether
+			PolicyQueue queue = new PolicyQueue(deliveryMode == DeliveryMode.QUEUED ? config.newChannelQueue() : new LinkedMessageQueue(0),
+					config.getChannelOverflowPolicy(), "channel for topic " + topic);
+			partitions[i] = new Sender(dispatcher, queue, i);
+		}
+		this.retained = config.isRetaining() ? new RetainedLog(config) : null;
 	}
 	
 	public String getTopic()
@@ -32,80 +58,674 @@ public class MemoryChannel {
 		return topic;
 	}
 	
-	public void putMsg(Message msg) {
-		if (isStarted) {
+	TopicHandle getHandle()
+	{
+		return handle;
+	}
+	
+	Dispatcher getDispatcher()
+	{
+		return dispatcher;
+	}
+	
+	MemoryTopicConfig getConfig()
+	{
+		return config;
+	}
+	
+	/**
+	 * @return How many times a sender found the channel queue full.
+	 */
+	public long getOverflowCount()
+	{
+		long overflows = 0;
+		for (Sender partition : partitions) {
+			overflows += partition.queue.getOverflowCount();
+		}
+		return overflows;
+	}
+	
+	/**
+	 * @return How many messages the channel dropped because its queue was full.
+	 */
+	public long getDroppedCount()
+	{
+		long drops = 0;
+		for (Sender partition : partitions) {
+			drops += partition.queue.getDroppedCount();
+		}
+		return drops;
+	}
+	
+	/**
+	 * @return What the channel has done so far.
+	 */
+	TopicMetrics getMetrics(long nowNanos)
+	{
+		long sentCount = sent.sum();
+		int receiverCount = targets().length;
+		for (ConsumerGroup group : groups) {
+			receiverCount += group.getMembers().length;
+		}
+		int queueDepth = 0;
+		for (Sender partition : partitions) {
+			queueDepth += partition.queue.size();
+		}
+		return new TopicMetrics(topic, sentCount, sendRate.ratePerSecond(sentCount, nowNanos), queueDepth,
+				getOverflowCount(), getDroppedCount(), receiverCount);
+	}
+	
+	/**
+	 * @return A new message for the given payload, from the pool if this channel has one.
+	 */
+	Message newMessage(byte[] payload)
+	{
+		return pool == null ? new MemoryMessage(payload) : pool.acquire(payload);
+	}
+	
+	/**
+	 * @return A new message sharing the given payload, which is never copied into the pool as its owner may well have
+	 *         put it off the heap on purpose.
+	 */
+	Message newMessage(ByteBuffer payload)
+	{
+		return new BufferMessage(payload.slice().asReadOnlyBuffer());
+	}
+	
+	/**
+	 * @return The receivers subscribed to this topic, either directly or through a wildcard pattern.
+	 */
+	MemoryMessageReceiver[] targets()
+	{
+		Targets current = targets;
+		long version = wildcards.getVersion();
+		MemoryMessageReceiver[] exact = subscribers.snapshot();
+		if (current.version == version && current.exact == exact) {
+			return current.all;
+		}
+		// only matched again after a subscription changed, any change made whilst matching bumps the version again
+		MemoryMessageReceiver[] matched = wildcards.match(topic);
+		MemoryMessageReceiver[] all = exact;
+		if (matched.length > 0) {
+			all = Arrays.copyOf(exact, exact.length + matched.length);
+			System.arraycopy(matched, 0, all, exact.length, matched.length);
+		}
+		targets = new Targets(version, exact, all);
+		return all;
+	}
+
+	/**
+	 * @return The consumer group of the given name on this topic, created if there is none yet.
+	 */
+	synchronized ConsumerGroup group(String name)
+	{
+		ConsumerGroup[] current = groups;
+		for (ConsumerGroup group : current) {
+			if (group.getName().equals(name)) {
+				return group;
+			}
+		}
+		ConsumerGroup group = new ConsumerGroup(name, config.getGroupAssignment(), partitions.length);
+		ConsumerGroup[] updated = Arrays.copyOf(current, current.length + 1);
+		updated[current.length] = group;
+		groups = updated;
+		return group;
+	}
+
+	private boolean isStarted()
+	{
+		if (targets().length > 0) {
+			return true;
+		}
+		for (ConsumerGroup group : groups) {
+			if (group.hasMembers()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public void putMsg(Message msg) throws MessagingException {
+		putMsg(msg, null);
+	}
+
+	/**
+	 * Puts a message on the partition its key hashes to, which keeps it in order with every other message of that key.
+	 *
+	 * @param key The routing key, or {@code null} to keep the message in order with the others sent by this thread.
+	 * @return Whether the channel took the message, {@code false} if there was nobody to take it for and it has been
+	 *         disposed of.
+	 */
+	public boolean putMsg(Message msg, String key) throws MessagingException {
+		int partition = partitionFor(key);
+		sent.increment();
+		stamp(msg, System.nanoTime());
+		if (!isStarted() && retained == null) {
+			DeliveryTracker tracker = msg instanceof AbstractMemoryMessage ? ((AbstractMemoryMessage) msg).getTracker() : null;
+			if (tracker != null) {
+				tracker.fail(new MessagingException("No receivers on topic " + topic));
+			}
+			msg.dispose();
+			return false;
+		}
+		switch (deliveryMode) {
+		case DIRECT:
+			deliverDirect(msg, partition);
+			break;
+		case SYNCHRONOUS:
+			deliverSynchronously(msg, partition);
+			break;
+		case QUEUED:
+		default:
+			Sender sender = partitions[partition];
+			try {
+				sender.queue.put(msg);
+			} catch (InterruptedException e) {
+				msg.dispose();
+				Thread.currentThread().interrupt();
+				throw new MessagingException("Interrupted whilst queueing message on topic " + topic, e);
+			}
+			sender.signal();
+		}
+		return true;
+	}
+
+	/**
+	 * Puts a batch of messages on the channel as one unit, fanning them out in a single pass.
+	 */
+	public void putMsgs(Message[] msgs) throws MessagingException {
+		int partition = partitionFor(null);
+		sent.add(msgs.length);
+		long now = System.nanoTime();
+		for (Message msg : msgs) {
+			stamp(msg, now);
+		}
+		if (!isStarted() && retained == null) {
+			disposeAll(msgs);
+			return;
+		}
+		switch (deliveryMode) {
+		case DIRECT:
+			deliverDirect(msgs, partition);
+			break;
+		case SYNCHRONOUS:
+			for (Message msg : msgs) {
+				deliverSynchronously(msg, partition);
+			}
+			break;
+		case QUEUED:
+		default:
+			Sender sender = partitions[partition];
 			try {
-				queuedMessages.put(msg);
+				sender.queue.putAll(msgs, sender::signal);
 			} catch (InterruptedException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+				Thread.currentThread().interrupt();
+				throw new MessagingException("Interrupted whilst queueing messages on topic " + topic, e);
+			}
+			sender.signal();
+		}
+	}
+
+	/**
+	 * @return The partition for a key, which for no key at all is that of the sending thread.
+	 */
+	private int partitionFor(String key) {
+		if (partitions.length == 1) {
+			return 0;
+		}
+		return partitionOf(key == null ? Long.hashCode(Thread.currentThread().getId()) : key.hashCode(), partitions.length);
+	}
+
+	static int partitionOf(int hash, int partitions) {
+		// spread the high bits down, as HashMap does, since the partition count is usually small
+		return Math.floorMod(hash ^ (hash >>> 16), partitions);
+	}
+
+	private void deliverDirect(Message[] msgs, int partition) throws MessagingException {
+		try {
+			for (MemoryMessageReceiver receiver : retain(msgs)) {
+				Message[] copies = new Message[msgs.length];
+				for (int i = 0; i < msgs.length; i++) {
+					copies[i] = copyOf(msgs[i]);
+				}
+				receiver.putMessages(copies);
+			}
+			for (ConsumerGroup group : groups) {
+				for (Message msg : msgs) {
+					MemoryMessageReceiver member = group.pick(partition);
+					if (member != null) {
+						member.putMessage(copyOf(msg));
+					}
+				}
+			}
+			for (Message msg : msgs) {
+				release(msg);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MessagingException("Interrupted whilst delivering messages on topic " + topic, e);
+		} finally {
+			disposeAll(msgs);
+		}
+	}
+
+	/**
+	 * Notes when a message was sent, for receivers to measure how long it took to reach their listener.
+	 */
+	private static void stamp(Message msg, long nowNanos) {
+		if (msg instanceof AbstractMemoryMessage) {
+			((AbstractMemoryMessage) msg).setEnqueuedNanos(nowNanos);
+		}
+	}
+
+	/**
+	 * Lets go of the tracker of a message that has been handed to all its receivers, so that disposing of the message
+	 * does not count as dropping it.
+	 */
+	private static void release(Message msg) {
+		if (msg instanceof AbstractMemoryMessage) {
+			((AbstractMemoryMessage) msg).releaseTracker();
+		}
+	}
+
+	private static void disposeAll(Message[] msgs) {
+		for (Message msg : msgs) {
+			msg.dispose();
+		}
+	}
+
+	private void deliverDirect(Message msg, int partition) throws MessagingException {
+		try {
+			for (MemoryMessageReceiver receiver : retain(msg)) {
+				receiver.putMessage(copyOf(msg));
+			}
+			for (ConsumerGroup group : groups) {
+				MemoryMessageReceiver member = group.pick(partition);
+				if (member != null) {
+					member.putMessage(copyOf(msg));
+				}
+			}
+			release(msg);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MessagingException("Interrupted whilst delivering message on topic " + topic, e);
+		} finally {
+			msg.dispose();
+		}
+	}
+
+	private void deliverSynchronously(Message msg, int partition) {
+		try {
+			for (MemoryMessageReceiver receiver : retain(msg)) {
+				receiver.deliverNow(copyOf(msg));
 			}
+			for (ConsumerGroup group : groups) {
+				MemoryMessageReceiver member = group.pick(partition);
+				if (member != null) {
+					member.deliverNow(copyOf(msg));
+				}
+			}
+			release(msg);
+		} finally {
+			msg.dispose();
+		}
+	}
+
+	/**
+	 * Keeps a copy of the message if the topic retains messages.
+	 *
+	 * @return The receivers to deliver the message to, which in a retaining topic are exactly the receivers that did
+	 *         not get the message when they started.
+	 */
+	private MemoryMessageReceiver[] retain(Message msg) {
+		if (retained == null) {
+			return targets();
+		}
+		synchronized (retainLock) {
+			retainWithOffset(msg, System.currentTimeMillis());
+			return targets();
 		}
 	}
 
+	private MemoryMessageReceiver[] retain(Message[] msgs) {
+		if (retained == null) {
+			return targets();
+		}
+		synchronized (retainLock) {
+			long now = System.currentTimeMillis();
+			for (Message msg : msgs) {
+				retainWithOffset(msg, now);
+			}
+			return targets();
+		}
+	}
+
+	/**
+	 * Gives the message the next offset, which its copies for receivers carry too, and keeps a copy of it. Called with
+	 * the retain lock held.
+	 */
+	private void retainWithOffset(Message msg, long nowMillis) {
+		if (msg instanceof AbstractMemoryMessage) {
+			((AbstractMemoryMessage) msg).setOffset(retained.getEndOffset());
+		}
+		retained.append(untrackedCopyOf(msg), nowMillis);
+	}
+
+	/**
+	 * @return A receiver's own message for the payload of the given one, which holds the original's tracker if it has
+	 *         one until the receiver is done with it.
+	 */
+	private AbstractMemoryMessage copyOf(Message msg) {
+		AbstractMemoryMessage copy = copyOf(msg, msg instanceof AbstractMemoryMessage ? ((AbstractMemoryMessage) msg).getEnqueuedNanos() : 0);
+		DeliveryTracker tracker = msg instanceof AbstractMemoryMessage ? ((AbstractMemoryMessage) msg).getTracker() : null;
+		if (tracker != null) {
+			tracker.retain();
+			copy.setTracker(tracker);
+		}
+		return copy;
+	}
+
+	/**
+	 * @return A copy to retain, which does not hold up the completion of a tracked send.
+	 */
+	private AbstractMemoryMessage untrackedCopyOf(Message msg) {
+		// nobody gets to see the retained copy itself, replaying it makes a copy for each receiver
+		return stamp(sharedCopyOf(msg), msg, msg instanceof AbstractMemoryMessage ? ((AbstractMemoryMessage) msg).getEnqueuedNanos() : 0);
+	}
+
+	/**
+	 * @param enqueuedNanos When the copy counts as sent.
+	 * @return A receiver's own message for the payload of the given one, isolated from the other receivers' as the
+	 *         topic is configured to.
+	 */
+	private AbstractMemoryMessage copyOf(Message msg, long enqueuedNanos) {
+		AbstractMemoryMessage copy;
+		switch (isolation) {
+		case COPY:
+			copy = ownCopyOf(msg);
+			break;
+		case COPY_ON_ACCESS:
+			// a buffer message already copies its payload for each handle that asks for an array
+			copy = msg instanceof BufferMessage ? sharedCopyOf(msg) : new CopyOnAccessMessage(sharedCopyOf(msg));
+			break;
+		case SHARED:
+		default:
+			copy = sharedCopyOf(msg);
+		}
+		return stamp(copy, msg, enqueuedNanos);
+	}
+
+	private AbstractMemoryMessage stamp(AbstractMemoryMessage copy, Message original, long enqueuedNanos) {
+		// wildcard receivers tell their listener which of the matching topics a message came from
+		copy.setTopic(handle);
+		copy.setEnqueuedNanos(enqueuedNanos);
+		if (original instanceof AbstractMemoryMessage) {
+			copy.setPriority(((AbstractMemoryMessage) original).getPriority());
+			copy.setKey(((AbstractMemoryMessage) original).getKey());
+			copy.setOffset(((AbstractMemoryMessage) original).getOffset());
+		}
+		return copy;
+	}
+
+	/**
+	 * @return Another handle on the same payload.
+	 */
+	private static AbstractMemoryMessage sharedCopyOf(Message msg) {
+		if (msg instanceof PooledMessage) {
+			PooledMessage pooled = (PooledMessage) msg;
+			return pooled.getPool().duplicate(pooled);
+		} else if (msg instanceof BufferMessage) {
+			return ((BufferMessage) msg).share();
+		} else {
+			return new MemoryMessage(msg.getMsg());
+		}
+	}
+
+	/**
+	 * @return A message with a payload of its own, from the pool if this channel has one.
+	 */
+	private AbstractMemoryMessage ownCopyOf(Message msg) {
+		if (msg instanceof BufferMessage) {
+			ByteBuffer payload = msg.getBuffer();
+			byte[] copy = new byte[payload.remaining()];
+			payload.get(copy);
+			return new MemoryMessage(copy);
+		}
+		return pool == null ? new MemoryMessage(msg.getMsg().clone()) : pool.acquire(msg.getMsg());
+	}
+
 	public void subscribe(MemoryMessageReceiver receiver)
 	{
-		subscribedList.add(receiver);
-		if(!isStarted)
-		{
-			isStarted = true;
-			sendingFuture = executor.submit(sender);
+		subscribers.add(receiver);
+	}
+	
+	/**
+	 * Subscribes a receiver, first handing it copies of the retained messages from the given position on. Replaying
+	 * and subscribing happen under the same lock as retaining and picking the receivers of a message, so the receiver
+	 * gets every message from its position exactly once. The copies are handed over without waiting for room in the
+	 * receiver's queue, which its poller only gets to drain once the lock is released.
+	 * <p/>
+	 * A {@link DeliveryMode#SYNCHRONOUS} topic delivers live messages on the sending thread, so it delivers the replay
+	 * on the starting thread before subscribing, rather than have the poller deliver it alongside live messages.
+	 * <p/>
+	 * In a retaining topic the receiver learns the offset it starts from, which every message it then gets moves on.
+	 */
+	void subscribe(MemoryMessageReceiver receiver, StartPosition position)
+	{
+		ConsumerGroup group = receiver.getGroup();
+		if (group != null) {
+			// members share live messages only, a replay would hand one member messages the group already had
+			group.add(receiver);
+			return;
+		}
+		if (retained == null) {
+			subscribe(receiver);
+			return;
 		}
+		synchronized (retainLock) {
+			retained.evict(System.currentTimeMillis());
+			long from = position.isTimestamp() ? retained.offsetAt(position.getTimestamp())
+					: position.resolve(retained.getStartOffset(), retained.getEndOffset());
+			receiver.startingAt(from);
+			Message[] replay = new Message[(int) (retained.getEndOffset() - from)];
+			// a replayed message is only late by the time it takes to replay, not by how long it was retained for
+			long now = System.nanoTime();
+			for (int i = 0; i < replay.length; i++) {
+				replay[i] = copyOf(retained.get(from + i), now);
+			}
+			if (deliveryMode == DeliveryMode.SYNCHRONOUS) {
+				for (Message msg : replay) {
+					receiver.deliverNow(msg);
+				}
+			} else {
+				receiver.replay(replay);
+			}
+			subscribe(receiver);
+		}
+		receiver.signal();
 	}
 	
+	/**
+	 * Unsubscribes a receiver. The channel carries on for whoever subscribes next, even once it has nobody left.
+	 */
 	public void unsubscribe(MemoryMessageReceiver receiver)
 	{
-		subscribedList.remove(receiver);
-		if(subscribedList.isEmpty())
+		if (receiver.getGroup() != null) {
+			receiver.getGroup().remove(receiver);
+		} else {
+			subscribers.remove(receiver);
+		}
+		if(!isStarted())
 		{
-			isStarted = false;
-			sendingFuture.cancel(true);
-			executor.shutdown();
+			// let the senders discard whatever is still queued
+			for (Sender partition : partitions) {
+				partition.signal();
+			}
 		}
 	}
 	
-	//check if all messages have been sent
-		public void checkAllMessagesSent()
-		{
-			synchronized(queuedMessages)
-			{
-				if(isStarted && !queuedMessages.isEmpty())
-				{
-					try {
-						queuedMessages.wait();
-					} catch (InterruptedException e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
-					}
-				}
+	/**
+	 * Disposes of the retained messages.
+	 */
+	void close()
+	{
+		if (retained != null) {
+			synchronized (retainLock) {
+				retained.clear();
 			}
-			
 		}
+	}
+	
+	/**
+	 * Blocks until every message queued on the channel so far has been fanned out to the receivers, or dropped.
+	 *
+	 * @param deadlineNanos {@link System#nanoTime()} to give up at.
+	 * @return Whether that happened before the deadline.
+	 */
+	boolean awaitFannedOut(long deadlineNanos) throws InterruptedException
+	{
+		for (Sender partition : partitions) {
+			if (!partition.queue.awaitSettled(deadlineNanos)) {
+				return false;
+			}
+		}
+		return true;
+	}
 		
-	private final class Sender implements Callable<Boolean>{
+	private final class Sender extends SerialTask {
+
+		private final PolicyQueue queue;
+		private final int index;
+
+		// fan-out that is waiting for a full receiver queue, only touched by this task
+		private volatile Message pending;
+		private MemoryMessageReceiver[] pendingTargets;
+		private ConsumerGroup[] pendingGroups;
+		private int pendingIndex;
+
+		Sender(Dispatcher dispatcher, PolicyQueue queue, int index) {
+			super(dispatcher);
+			this.queue = queue;
+			this.index = index;
+		}
+
 		@Override
-		public Boolean call() throws MessagingException {
-			while (isStarted) {
-				try {
-						Message msg = queuedMessages.take();						
-						for(MemoryMessageReceiver r: subscribedList)
-						{
-							Message cloneMessage = new MemoryMessage(msg.getMsg());
-							r.addMessage(cloneMessage);
-						}
-						synchronized(queuedMessages)
-						{
-							if(queuedMessages.isEmpty())
-							{
-								queuedMessages.notify();
-							}
+		protected boolean drain(int batch) {
+			// receivers are woken once per drain rather than once per message
+			MemoryMessageReceiver[] toSignal = null;
+			ConsumerGroup[] groupsToSignal = null;
+			try {
+				for (int i = 0; i < batch; i++) {
+					Message msg = pending;
+					MemoryMessageReceiver[] targets;
+					ConsumerGroup[] groupTargets;
+					int from;
+					if (msg != null) {
+						pending = null;
+						targets = pendingTargets;
+						groupTargets = pendingGroups;
+						from = pendingIndex;
+						pendingTargets = null;
+						pendingGroups = null;
+					} else {
+						msg = queue.poll();
+						if (msg == null) {
+							return false;
 						}
-				} catch (InterruptedException e) {
-					Thread.currentThread().interrupt();
+						targets = retain(msg);
+						groupTargets = groups;
+						from = 0;
+					}
+					if (targets != toSignal) {
+						signalAll(toSignal);
+						toSignal = targets;
+					}
+					if (groupTargets != groupsToSignal) {
+						signalMembers(groupsToSignal);
+						groupsToSignal = groupTargets;
+					}
+					// fanning out disposes of the message
+					int lane = queue.laneOf(msg);
+					if (!fanOut(msg, targets, groupTargets, from)) {
+						// resumed by the receiver once it has room again
+						return false;
+					}
+					queue.settled(lane, 1);
+				}
+				return hasWork();
+			} finally {
+				signalAll(toSignal);
+				signalMembers(groupsToSignal);
+			}
+		}
+
+		/**
+		 * Wakes every member of the groups, so that idle members of a work stealing group look for work too.
+		 */
+		private void signalMembers(ConsumerGroup[] groups) {
+			if (groups != null) {
+				for (ConsumerGroup group : groups) {
+					signalAll(group.getMembers());
 				}
+			}
 		}
-			return isStarted;
+
+		private void signalAll(MemoryMessageReceiver[] receivers) {
+			if (receivers != null) {
+				for (MemoryMessageReceiver receiver : receivers) {
+					receiver.signal();
+				}
+			}
+		}
+
+		/**
+		 * Hands the message to each receiver and to one member of each group, from the given index on across both.
+		 */
+		private boolean fanOut(Message msg, MemoryMessageReceiver[] targets, ConsumerGroup[] groupTargets, int from) {
+			boolean started = isStarted();
+			if (started) {
+				for (int r = from; r < targets.length + groupTargets.length; r++) {
+					// a group member that was full is picked again on resuming, which may well pick another one
+					MemoryMessageReceiver target = r < targets.length ? targets[r] : groupTargets[r - targets.length].pick(index);
+					if (target == null) {
+						continue;
+					}
+					AbstractMemoryMessage copy = copyOf(msg);
+					if (!target.offerMessage(copy, this)) {
+						// another copy is made once there is room, this one was never the receiver's to drop
+						copy.releaseTracker();
+						copy.dispose();
+						pending = msg;
+						pendingTargets = targets;
+						pendingGroups = groupTargets;
+						pendingIndex = r;
+						return false;
+					}
+				}
+			}
+			// a message that nobody is left to receive is only lost if the topic does not retain it either
+			if (started || retained != null) {
+				release(msg);
+			}
+			msg.dispose();
+			return true;
+		}
+
+		@Override
+		protected boolean hasWork() {
+			return pending != null || !queue.isEmpty();
+		}
+	}
+
+	private static final class Targets {
+		final long version;
+		final MemoryMessageReceiver[] exact;
+		final MemoryMessageReceiver[] all;
+
+		Targets(long version, MemoryMessageReceiver[] exact, MemoryMessageReceiver[] all) {
+			this.version = version;
+			this.exact = exact;
+			this.all = all;
 		}
-		
 	}
 }
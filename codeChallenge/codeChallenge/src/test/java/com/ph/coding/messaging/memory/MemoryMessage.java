@@ -1,8 +1,6 @@
 package com.ph.coding.messaging.memory;
 
-import com.ph.coding.messaging.Message;
-
-public class MemoryMessage implements Message {
+public class MemoryMessage extends AbstractMemoryMessage {
 
 	private final byte[] msg;
 	
@@ -16,9 +14,14 @@ public class MemoryMessage implements Message {
 	}
 
 	@Override
-	public void dispose() {
-		// dispose of message
+	int getLength() {
+		return msg.length;
+	}
 
+	@Override
+	public void dispose() {
+		// nothing to give back, the payload is the sender's own array
+		dropTracker();
 	}
 
 }
@@ -1,33 +1,91 @@
 package com.ph.coding.messaging.memory;
 
-
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
 
 import com.ph.coding.messaging.Message;
+import com.ph.coding.messaging.MessageBatchReceiveListener;
 import com.ph.coding.messaging.MessageReceiveListener;
 import com.ph.coding.messaging.MessageReceiver;
 import com.ph.coding.messaging.MessagingException;
+import com.ph.coding.messaging.StartPosition;
+import com.ph.coding.messaging.TopicHandle;
 
 public final class MemoryMessageReceiver implements MessageReceiver {
 
+	private static final AtomicReferenceFieldUpdater<MemoryMessageReceiver, SerialTask> BLOCKED_CHANNEL =
+			AtomicReferenceFieldUpdater.newUpdater(MemoryMessageReceiver.class, SerialTask.class, "blockedChannel");
+	private static final AtomicInteger IDS = new AtomicInteger();
+
+	private final int id = IDS.incrementAndGet();
 	private final String topic;
 	private volatile boolean isStarted = false;
-	private final BlockingQueue<Message> queue = new LinkedBlockingQueue<>();
+	private final PolicyQueue queue;
 	private volatile MessageReceiveListener listener;
+	private volatile BatchSettings batchSettings;
+	private volatile StartPosition startPosition = StartPosition.latest();
 	private final MemoryChannel channel;
-	private final ExecutorService executor = Executors.newSingleThreadExecutor();
-	private final Poller poller = new Poller();
-	private Future<?> pollingFuture;
+	// null unless the receiver shares the topic's messages with the rest of a group
+	private final ConsumerGroup group;
+	// set instead of the channel when the topic is a wildcard pattern
+	private final TopicIndex wildcards;
+	private final Dispatcher dispatcher;
+	private final Poller poller;
+	// channel sender waiting for room in the queue
+	private volatile SerialTask blockedChannel;
+	private final Object deliveryLock = new Object();
+	private final LongAdder delivered = new LongAdder();
+	private final RateMeter deliverRate = new RateMeter();
+	private final LatencyHistogram latency = new LatencyHistogram();
+	// retained messages to deliver before anything in the queue, handed over by the channel on start
+	private final Queue<Replay> replays = new ConcurrentLinkedQueue<>();
+	private final DeliveryCounter replayed = new DeliveryCounter();
+	// offset of the next message to be delivered, -1 unless the topic retains messages
+	private volatile long deliveredOffset = -1;
+	// the factory's receivers, which the receiver leaves whilst stopped so that short-lived receivers are not kept
+	private volatile Set<MemoryMessageReceiver> live;
 	
 	public MemoryMessageReceiver(String topic, MemoryChannel channel)
+	{
+		this(topic, channel, null);
+	}
+	
+	/**
+	 * Creates a member of a consumer group on the channel's topic.
+	 */
+	MemoryMessageReceiver(String topic, MemoryChannel channel, ConsumerGroup group)
+	{
+		this(topic, channel, group, null, channel == null ? null : channel.getConfig(), channel == null ? null : channel.getDispatcher());
+	}
+	
+	/**
+	 * Creates a receiver for a wildcard pattern, which subscribes to every channel whose topic matches the pattern.
+	 */
+	MemoryMessageReceiver(String pattern, MemoryTopicConfig config, Dispatcher dispatcher, TopicIndex wildcards)
+	{
+		this(pattern, null, null, wildcards, config, dispatcher);
+	}
+	
+	private MemoryMessageReceiver(String topic, MemoryChannel channel, ConsumerGroup group, TopicIndex wildcards,
+			MemoryTopicConfig config, Dispatcher dispatcher)
 	{
 		this.topic = topic;
 		this.channel = channel;
+		this.group = group;
+		this.wildcards = wildcards;
+		this.dispatcher = dispatcher;
+		this.queue = config == null ? null : new PolicyQueue(config.newReceiverQueue(),
+				config.getReceiverOverflowPolicy(), "receiver on topic " + topic);
+		this.poller = dispatcher == null ? null : new Poller(dispatcher);
 	}
 	
 	
@@ -43,82 +101,549 @@ public final class MemoryMessageReceiver implements MessageReceiver {
 
 	@Override
 	public void start() throws MessagingException {
-		if(channel == null)
+		if(channel == null && wildcards == null)
 		{
 			throw new MessagingException("No channel");
 		}
-		if(listener == null)
+		if(listener == null && batchSettings == null)
 		{
 			throw new MessagingException("No listener");
 		}
-		channel.subscribe(this);	
+		if(channel == null && !startPosition.isLatest())
+		{
+			throw new MessagingException("Wildcard receivers can only start from the latest message");
+		}
+		if(group != null && !startPosition.isLatest())
+		{
+			throw new MessagingException("Consumer group members can only start from the latest message");
+		}
 		isStarted = true;
-		pollingFuture = executor.submit(poller);
+		if(live != null)
+		{
+			live.add(this);
+		}
+		if(channel != null)
+		{
+			channel.subscribe(this, startPosition);
+		}
+		else
+		{
+			wildcards.add(topic, this);
+		}
 	}
 
 	@Override
 	public void stop() throws MessagingException {
+		if(!isStarted)
+		{
+			return;
+		}
 		isStarted = false;
-		pollingFuture.cancel(true);
-		executor.shutdown();
-		channel.unsubscribe(this);
+		if(channel != null)
+		{
+			channel.unsubscribe(this);
+		}
+		else
+		{
+			wildcards.remove(topic, this);
+		}
+		if(live != null)
+		{
+			live.remove(this);
+		}
+		// the poller discards anything still queued, and a channel waiting on us must not wait any longer
+		poller.signal();
+		wakeBlockedChannel();
+	}
+
+	void trackIn(Set<MemoryMessageReceiver> live) {
+		this.live = live;
 	}
 
 	@Override
 	public void setListener(MessageReceiveListener listener) {
 			this.listener = listener;
+			this.batchSettings = null;
+	}
+
+	@Override
+	public void setBatchListener(MessageBatchReceiveListener listener, int maxBatchSize, long maxLinger, TimeUnit unit) {
+		if(maxBatchSize < 1)
+		{
+			throw new IllegalArgumentException("Batch size must be at least 1: " + maxBatchSize);
+		}
+		if(maxLinger < 0)
+		{
+			throw new IllegalArgumentException("Linger must not be negative: " + maxLinger);
+		}
+		this.batchSettings = listener == null ? null : new BatchSettings(listener, maxBatchSize, unit.toNanos(maxLinger));
+		this.listener = null;
 	}
 	
-	//Attempting to see if all messages have been processed
-	public void checkQueueIsEmpty()
+	/**
+	 * Sets where in the topic's retained messages the receiver starts when it is next started. Only topics configured
+	 * to retain messages can start anywhere but the latest position, for others every position is the latest.
+	 *
+	 * @param startPosition The start position.
+	 */
+	public void setStartPosition(StartPosition startPosition) {
+		if(startPosition == null)
+		{
+			throw new IllegalArgumentException("Start position must not be null");
+		}
+		this.startPosition = startPosition;
+	}
+	
+	/**
+	 * @return The consumer group the receiver belongs to, or {@code null} if it gets every message on its own.
+	 */
+	ConsumerGroup getGroup() {
+		return group;
+	}
+	
+	/**
+	 * @return How many messages are waiting for delivery.
+	 */
+	int queueSize() {
+		return queue == null ? 0 : queue.size();
+	}
+	
+	/**
+	 * @return How many times a message arrived at a full queue.
+	 */
+	public long getOverflowCount() {
+		return queue.getOverflowCount();
+	}
+	
+	/**
+	 * @return How many messages were dropped because the queue was full.
+	 */
+	public long getDroppedCount() {
+		return queue.getDroppedCount();
+	}
+	
+	/**
+	 * @return How many waiting messages were replaced by a newer one of the same key, on a topic whose receivers
+	 *         {@link MemoryTopicConfig#setConflating(boolean) conflate}.
+	 */
+	public long getConflatedCount() {
+		return queue.getConflatedCount();
+	}
+	
+	/**
+	 * @return What the receiver has done so far.
+	 */
+	ReceiverMetrics getMetrics(long nowNanos) {
+		long deliveredCount = delivered.sum();
+		return new ReceiverMetrics(id, topic, deliveredCount, deliverRate.ratePerSecond(deliveredCount, nowNanos),
+				queue == null ? 0 : queue.size(), queue == null ? 0 : queue.getOverflowCount(),
+				queue == null ? 0 : queue.getDroppedCount(), queue == null ? 0 : queue.getConflatedCount(),
+				latency.snapshot());
+	}
+	
+	/**
+	 * Blocks until every message queued for the receiver so far has been handed to its listener, or dropped.
+	 *
+	 * @param deadlineNanos {@link System#nanoTime()} to give up at.
+	 * @return Whether that happened before the deadline.
+	 */
+	boolean awaitDelivered(long deadlineNanos) throws InterruptedException
 	{
-		synchronized(queue)
+		if(queue == null)
 		{
-			if(!queue.isEmpty())
-			{
-				try {
-					queue.wait();
-				} catch (InterruptedException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
+			return true;
+		}
+		return replayed.awaitSettled(replayed.mark(), deadlineNanos) && queue.awaitSettled(deadlineNanos);
+	}
+	
+	/**
+	 * Hands over retained messages to deliver ahead of everything queued, without waiting, so that a replay longer
+	 * than the queue does not hold up the channel; the caller must {@link #signal()} the receiver afterwards.
+	 */
+	/**
+	 * Notes the offset of the first message the receiver gets, called by a retaining channel on subscribing.
+	 */
+	void startingAt(long offset) {
+		deliveredOffset = offset;
+	}
+
+	/**
+	 * @return The offset of the next message to be delivered, which a consumer can store and later start again from
+	 *         with {@link StartPosition#offset(long)}, or -1 if the topic does not retain messages.
+	 */
+	public long getDeliveredOffset() {
+		return deliveredOffset;
+	}
+
+	void replay(Message[] msgs) {
+		if(msgs.length > 0)
+		{
+			replayed.published(msgs.length);
+			replays.add(new Replay(msgs));
+		}
+	}
+	
+	/**
+	 * Queues a message for delivery without waking the receiver, the caller must {@link #signal()} it afterwards. If
+	 * the queue is full and the overflow policy is to block, the channel's sender is remembered and signalled again as
+	 * soon as there is room; any other policy drops a message rather than fail, as there is no sender to report to.
+	 *
+	 * @return Whether the message was dealt with, {@code false} if the channel has to wait for room.
+	 */
+	boolean offerMessage(Message msg, SerialTask channelSender) {
+		if(!isStarted)
+		{
+			msg.dispose();
+			return true;
+		}
+		if(!queue.offerOrDrop(msg))
+		{
+			blockedChannel = channelSender;
+			return queue.retry(msg);
+		}
+		return true;
+	}
+	
+	/**
+	 * Wakes the receiver up to deliver whatever has been queued.
+	 */
+	void signal() {
+		poller.signal();
+	}
+	
+	/**
+	 * Queues a message for delivery, dealing with a full queue according to the overflow policy.
+	 *
+	 * @throws MessagingException If the queue is full and the policy is {@link OverflowPolicy#FAIL}.
+	 */
+	void putMessage(Message msg) throws InterruptedException, MessagingException {
+		if(!isStarted)
+		{
+			msg.dispose();
+			return;
+		}
+		queue.put(msg);
+		poller.signal();
+	}
+	
+	/**
+	 * Queues a batch of messages for delivery, dealing with a full queue according to the overflow policy.
+	 *
+	 * @throws MessagingException If the queue is full and the policy is {@link OverflowPolicy#FAIL}.
+	 */
+	void putMessages(Message[] msgs) throws InterruptedException, MessagingException {
+		if(!isStarted)
+		{
+			for (Message msg : msgs) {
+				msg.dispose();
 			}
+			return;
+		}
+		queue.putAll(msgs, poller::signal);
+		poller.signal();
+	}
+	
+	/**
+	 * Delivers a message to the listener on the calling thread, serialised with any other delivery to this receiver.
+	 */
+	void deliverNow(Message msg) {
+		synchronized(deliveryLock)
+		{
+			deliver(msg);
 		}
-		
 	}
 	
-	public void addMessage(Message msg) {
+	private void deliver(Message msg) {
+		MessageReceiveListener current = listener;
+		BatchSettings batch = batchSettings;
+		if (!isStarted || (current == null && batch == null)) {
+			msg.dispose();
+			return;
+		}
+		long offset = offsetOf(msg);
+		DeliveryTracker tracker = recordDelivery(msg, System.nanoTime());
 		try {
-			queue.put(msg);
-		} catch (InterruptedException e) {
-			System.out.println("Interrupted! " + e.getMessage());
+			if (current != null) {
+				TopicHandle sentOn = topicOf(msg);
+				if (sentOn != null) {
+					current.onMessage(msg, sentOn);
+				} else {
+					current.onMessage(msg, topic);
+				}
+			} else {
+				batch.listener.onMessages(Collections.singletonList(msg), topic);
+			}
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		} finally {
+			deliveredUpTo(offset);
+			if (tracker != null) {
+				tracker.delivered();
+			}
+		}
+	}
+
+	/**
+	 * @return The offset of a message, or -1 if it has none.
+	 */
+	private static long offsetOf(Message msg) {
+		return msg instanceof AbstractMemoryMessage ? ((AbstractMemoryMessage) msg).getOffset() : -1;
+	}
+
+	private void deliveredUpTo(long offset) {
+		if (offset >= 0) {
+			deliveredOffset = offset + 1;
+		}
+	}
+	
+	/**
+	 * Counts a message as delivered, measuring how long it took to get here from being sent, and takes its tracker off
+	 * it so that the listener disposing of it does not count as dropping it.
+	 *
+	 * @return The tracker to tell once the listener has returned, or {@code null} if the message has none.
+	 */
+	private DeliveryTracker recordDelivery(Message msg, long nowNanos) {
+		delivered.increment();
+		if (!(msg instanceof AbstractMemoryMessage)) {
+			return null;
+		}
+		AbstractMemoryMessage memoryMessage = (AbstractMemoryMessage) msg;
+		long enqueued = memoryMessage.getEnqueuedNanos();
+		if (enqueued != 0) {
+			latency.record(nowNanos - enqueued);
+		}
+		DeliveryTracker tracker = memoryMessage.getTracker();
+		memoryMessage.setTracker(null);
+		return tracker;
+	}
+	
+	/**
+	 * @return The topic a message was sent on, which for a wildcard receiver is one of the topics matching its pattern,
+	 *         or {@code null} if the message does not say.
+	 */
+	private static TopicHandle topicOf(Message msg) {
+		return msg instanceof AbstractMemoryMessage ? ((AbstractMemoryMessage) msg).getTopic() : null;
+	}
+	
+	private void wakeBlockedChannel() {
+		if(blockedChannel != null)
+		{
+			SerialTask blocked = BLOCKED_CHANNEL.getAndSet(this, null);
+			if(blocked != null)
+			{
+				blocked.signal();
+			}
+		}
+	}
+	
+	private static final class BatchSettings {
+		final MessageBatchReceiveListener listener;
+		final int maxBatchSize;
+		final long maxLingerNanos;
+
+		BatchSettings(MessageBatchReceiveListener listener, int maxBatchSize, long maxLingerNanos) {
+			this.listener = listener;
+			this.maxBatchSize = maxBatchSize;
+			this.maxLingerNanos = maxLingerNanos;
+		}
+	}
+	
+	private static final class Replay {
+		final Message[] msgs;
+		int next;
+
+		Replay(Message[] msgs) {
+			this.msgs = msgs;
 		}
 	}
 	
-	private class Poller implements Callable<Boolean> {
+	private final class Poller extends SerialTask {
 
+		// messages collected for the batch listener, only touched by this task
+		private final List<Message> batch = new ArrayList<>();
+		private final List<Message> batchView = Collections.unmodifiableList(batch);
+		private final List<DeliveryTracker> batchTrackers = new ArrayList<>();
+		// how many of the batched messages came from each lane of the queue
+		private final int[] batchLanes = new int[queue.lanes()];
+		private long batchStartNanos;
+		private volatile int batched;
+		private volatile boolean lingerTimerArmed;
+		private final Runnable lingerExpired = () -> {
+			lingerTimerArmed = false;
+			signal();
+		};
+
+		Poller(Dispatcher dispatcher) {
+			super(dispatcher);
+		}
 
 		@Override
-		public Boolean call() throws MessagingException {
-			while (isStarted) {
-				try {
-						Message msg = queue.take();
-
-							if(listener == null) throw new MessagingException("No listener whilst trying to process message");
-							listener.onMessage(msg, topic);
-						synchronized(queue)
-						{
-							if(queue.isEmpty())
-							{
-								queue.notify();
-							}
+		protected boolean drain(int limit) {
+			try {
+				if (!drainReplays(limit)) {
+					return true;
+				}
+				BatchSettings settings = batchSettings;
+				if (settings != null) {
+					return drainBatches(settings, limit);
+				}
+				flushIndividually();
+				for (int i = 0; i < limit; i++) {
+					Message msg = queue.poll();
+					if (msg != null) {
+						int lane = queue.laneOf(msg);
+						deliver(msg);
+						queue.settled(lane, 1);
+					} else if (!steal()) {
+						return false;
+					}
+				}
+				return !queue.isEmpty() || (canSteal() && group.victimFor(MemoryMessageReceiver.this) != null);
+			} finally {
+				// pairs with the volatile write of blockedChannel: the channel sees our room or we see it waiting
+				VarHandle.fullFence();
+				wakeBlockedChannel();
+			}
+		}
+
+		/**
+		 * Delivers replayed messages one at a time, even to a batch listener, as they are not in the queue.
+		 *
+		 * @return Whether every replay has been delivered.
+		 */
+		private boolean drainReplays(int limit) {
+			Replay replay;
+			int delivered = 0;
+			while ((replay = replays.peek()) != null) {
+				while (replay.next < replay.msgs.length) {
+					if (delivered++ == limit) {
+						return false;
+					}
+					Message msg = replay.msgs[replay.next];
+					replay.msgs[replay.next++] = null;
+					deliver(msg);
+					replayed.settled(1);
+				}
+				replays.poll();
+			}
+			return true;
+		}
+
+		private boolean canSteal() {
+			return group != null && group.isStealing() && isStarted;
+		}
+
+		/**
+		 * Delivers the next message of the group member with the longest queue, settling it on that member's queue.
+		 *
+		 * @return Whether there was one to take.
+		 */
+		private boolean steal() {
+			if (!canSteal()) {
+				return false;
+			}
+			MemoryMessageReceiver victim = group.victimFor(MemoryMessageReceiver.this);
+			Message msg = victim == null ? null : victim.queue.poll();
+			if (msg == null) {
+				return false;
+			}
+			int lane = victim.queue.laneOf(msg);
+			deliver(msg);
+			victim.queue.settled(lane, 1);
+			// the room made may be what the channel is waiting for, see drain
+			VarHandle.fullFence();
+			victim.wakeBlockedChannel();
+			return true;
+		}
+
+		private boolean drainBatches(BatchSettings settings, int limit) {
+			int delivered = 0;
+			while (delivered < limit) {
+				Message msg;
+				while (batch.size() < settings.maxBatchSize && (msg = queue.poll()) != null) {
+					if (batch.isEmpty()) {
+						batchStartNanos = System.nanoTime();
+					}
+					batch.add(msg);
+					batchLanes[queue.laneOf(msg)]++;
+				}
+				batched = batch.size();
+				if (batch.isEmpty()) {
+					return false;
+				}
+				if (batch.size() < settings.maxBatchSize && settings.maxLingerNanos > 0 && isStarted) {
+					long remaining = batchStartNanos + settings.maxLingerNanos - System.nanoTime();
+					if (remaining > 0) {
+						// wait for more messages or for the linger time to run out, whichever comes first
+						if (!lingerTimerArmed) {
+							lingerTimerArmed = true;
+							dispatcher.schedule(lingerExpired, remaining, TimeUnit.NANOSECONDS);
 						}
-				} catch (InterruptedException e) {
-					Thread.currentThread().interrupt();
+						return false;
+					}
+				}
+				delivered += batch.size();
+				deliverBatch(settings);
+			}
+			return !queue.isEmpty();
+		}
+
+		private void deliverBatch(BatchSettings settings) {
+			long lastOffset = -1;
+			try {
+				if (!isStarted) {
+					for (Message msg : batch) {
+						msg.dispose();
+					}
+				} else {
+					long now = System.nanoTime();
+					for (Message msg : batch) {
+						lastOffset = Math.max(lastOffset, offsetOf(msg));
+						DeliveryTracker tracker = recordDelivery(msg, now);
+						if (tracker != null) {
+							batchTrackers.add(tracker);
+						}
+					}
+					settings.listener.onMessages(batchView, topic);
+				}
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			} finally {
+				deliveredUpTo(lastOffset);
+				for (DeliveryTracker tracker : batchTrackers) {
+					tracker.delivered();
+				}
+				batchTrackers.clear();
+				settleBatch();
+			}
+		}
+
+		/**
+		 * Hands over anything left from a batch listener that has since been replaced by a single message listener.
+		 */
+		private void flushIndividually() {
+			if (!batch.isEmpty()) {
+				for (Message msg : batch) {
+					deliver(msg);
 				}
+				settleBatch();
+			}
 		}
-			return isStarted;
+
+		private void settleBatch() {
+			for (int lane = 0; lane < batchLanes.length; lane++) {
+				if (batchLanes[lane] > 0) {
+					queue.settled(lane, batchLanes[lane]);
+					batchLanes[lane] = 0;
+				}
+			}
+			batch.clear();
+			batched = 0;
+		}
+
+		@Override
+		protected boolean hasWork() {
+			return batched > 0 || !queue.isEmpty() || !replays.isEmpty();
 		}
-		
 	}
 }
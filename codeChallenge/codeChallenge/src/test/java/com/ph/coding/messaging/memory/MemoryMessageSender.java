@@ -1,8 +1,14 @@
 package com.ph.coding.messaging.memory;
 
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 import com.ph.coding.messaging.Message;
+import com.ph.coding.messaging.MessagePriority;
 import com.ph.coding.messaging.MessageSender;
 import com.ph.coding.messaging.MessagingException;
+import com.ph.coding.messaging.SendCompletion;
 
 public final class MemoryMessageSender implements MessageSender {
 
@@ -49,8 +55,107 @@ public final class MemoryMessageSender implements MessageSender {
 		{
 			throw new MessagingException("Not started");
 		}
-		Message msg = new MemoryMessage(message);
+		Message msg = channel.newMessage(message);
 		channel.putMsg(msg);
 	}
 
+	/**
+	 * Receivers get read-only views of the given buffer rather than a copy, whether or not the channel pools payloads.
+	 */
+	@Override
+	public void sendMessage(ByteBuffer message) throws MessagingException {
+		if(!isStarted)
+		{
+			throw new MessagingException("Not started");
+		}
+		Message msg = channel.newMessage(message);
+		channel.putMsg(msg);
+	}
+
+	/**
+	 * Only topics configured with {@link MemoryTopicConfig#setPriorityLanes(boolean) priority lanes} deliver by
+	 * priority, others ignore it.
+	 */
+	@Override
+	public void sendMessage(byte[] message, MessagePriority priority) throws MessagingException {
+		if(!isStarted)
+		{
+			throw new MessagingException("Not started");
+		}
+		Message msg = channel.newMessage(message);
+		if(msg instanceof AbstractMemoryMessage)
+		{
+			((AbstractMemoryMessage) msg).setPriority(priority);
+		}
+		channel.putMsg(msg);
+	}
+
+	@Override
+	public void sendMessage(String key, byte[] message) throws MessagingException {
+		if(!isStarted)
+		{
+			throw new MessagingException("Not started");
+		}
+		Message msg = channel.newMessage(message);
+		if(msg instanceof AbstractMemoryMessage)
+		{
+			((AbstractMemoryMessage) msg).setKey(key);
+		}
+		channel.putMsg(msg, key);
+	}
+
+	/**
+	 * Completes once the message is on the channel for {@link SendCompletion#ENQUEUED}, and once the listeners of every
+	 * receiver subscribed at the time, and of one member of every consumer group, have returned from handling it for
+	 * {@link SendCompletion#DELIVERED}; the latter completes on the thread of the last listener to do so. Fails if
+	 * nobody is subscribed to a topic that does not retain messages, or if a receiver drops the message because its
+	 * queue is full or it stops. In-memory topics cannot complete {@link SendCompletion#PERSISTED}.
+	 * <p/>
+	 * A full channel that blocks still blocks, so that senders cannot run away from slow receivers.
+	 */
+	@Override
+	public CompletableFuture<Void> sendMessageAsync(byte[] message, SendCompletion completion) {
+		if(!isStarted)
+		{
+			return CompletableFuture.failedFuture(new MessagingException("Not started"));
+		}
+		if(completion == SendCompletion.PERSISTED)
+		{
+			return CompletableFuture.failedFuture(new MessagingException("Messages on topic " + topic + " are not persisted"));
+		}
+		Message msg = channel.newMessage(message);
+		CompletableFuture<Void> delivery = null;
+		if(completion == SendCompletion.DELIVERED && msg instanceof AbstractMemoryMessage)
+		{
+			delivery = new CompletableFuture<>();
+			((AbstractMemoryMessage) msg).setTracker(new DeliveryTracker(topic, delivery));
+		}
+		try
+		{
+			if(!channel.putMsg(msg, null))
+			{
+				return CompletableFuture.failedFuture(new MessagingException("No receivers on topic " + topic));
+			}
+		}
+		catch(MessagingException e)
+		{
+			// rather than the drop the tracker saw when the rejected message was disposed of
+			return CompletableFuture.failedFuture(e);
+		}
+		return delivery == null ? CompletableFuture.completedFuture(null) : delivery;
+	}
+
+	@Override
+	public void sendMessages(List<byte[]> messages) throws MessagingException {
+		if(!isStarted)
+		{
+			throw new MessagingException("Not started");
+		}
+		Message[] msgs = new Message[messages.size()];
+		for (int i = 0; i < msgs.length; i++) {
+			msgs[i] = channel.newMessage(messages.get(i));
+		}
+		channel.putMsgs(msgs);
+	}
+
 }
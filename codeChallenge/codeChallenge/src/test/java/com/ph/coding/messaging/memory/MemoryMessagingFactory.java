@@ -1,23 +1,45 @@
 package com.ph.coding.messaging.memory;
 
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import com.ph.coding.messaging.MessageReceiver;
 import com.ph.coding.messaging.MessageSender;
 import com.ph.coding.messaging.MessagingException;
 import com.ph.coding.messaging.MessagingFactory;
+import com.ph.coding.messaging.TopicHandle;
 
 public class MemoryMessagingFactory implements MessagingFactory
 {
+	private static final AtomicInteger INSTANCES = new AtomicInteger();
+
 	private final Map<String, MemoryChannel> channels = new ConcurrentHashMap<>();
+	private final Map<String, TopicHandle> topicHandles = new ConcurrentHashMap<>();
+	private final AtomicInteger topicIds = new AtomicInteger();
 	private final List<MemoryMessageSender> senders = Collections.synchronizedList(new ArrayList<>());
-	private final List<MemoryMessageReceiver> receivers = Collections.synchronizedList(new ArrayList<>()); 
+	// the receivers that have not been stopped, in the order they were created
+	private final Set<MemoryMessageReceiver> receivers = Collections.synchronizedSet(new LinkedHashSet<>());
+	private final Map<String, MemoryTopicConfig> topicConfigs = new ConcurrentHashMap<>();
+	private volatile MemoryTopicConfig defaultTopicConfig = new MemoryTopicConfig();
+	private volatile Dispatcher dispatcher;
+	private boolean ownsDispatcher;
+	private volatile MessagePool messagePool;
+	private final TopicIndex wildcards = new TopicIndex();
 	private volatile boolean isStarted;
+	private volatile String name = "InMemory-" + INSTANCES.incrementAndGet();
+	private ObjectName mbeanName;
   @Override
   public String getProviderName()
   {
@@ -27,6 +49,12 @@ public class MemoryMessagingFactory implements MessagingFactory
   @Override
   public void start() throws Exception
   {
+    registerMBean();
+    if(dispatcher == null)
+    {
+      dispatcher = Dispatchers.pooled();
+      ownsDispatcher = true;
+    }
     isStarted = true;
   }
 
@@ -41,24 +69,37 @@ public class MemoryMessagingFactory implements MessagingFactory
 				itSend.remove();
 			}
 		}
+		// stopping a receiver takes it out of the set
+		final MemoryMessageReceiver[] live;
 		synchronized(receivers)
 		{
-			Iterator<MemoryMessageReceiver> itRec = receivers.iterator();
-			while(itRec.hasNext())
-			{
-				MessageReceiver receiver = itRec.next();
-				receiver.stop();
-				itRec.remove();
-			}
+			live = receivers.toArray(new MemoryMessageReceiver[0]);
+		}
+		for(MessageReceiver receiver : live)
+		{
+			receiver.stop();
+		}
+		receivers.clear();
+		for(MemoryChannel channel : channels.values())
+		{
+			channel.close();
 		}
 		channels.clear();
+		unregisterMBean();
+		if(ownsDispatcher)
+		{
+			dispatcher.shutdown();
+			dispatcher = null;
+			ownsDispatcher = false;
+		}
 	}
 
   @Override
   public MessageSender createSender(final String topic) throws MessagingException
   {
 	  if(!isStarted) throw new MessagingException("Not started factory");
-	MemoryChannel mc = channels.computeIfAbsent(topic, chan -> new MemoryChannel(topic));
+	  if(TopicIndex.isPattern(topic)) throw new MessagingException("Cannot send to a wildcard topic: " + topic);
+	MemoryChannel mc = channels.computeIfAbsent(topic, this::newChannel);
 	 if(mc == null)
 	 {
 		 mc = channels.get(topic);
@@ -68,47 +109,288 @@ public class MemoryMessagingFactory implements MessagingFactory
     return sender;
   }
 
+  /**
+   * Resolves a topic to a handle numbered in the order topics were first resolved or used by this factory, counting
+   * from 0. Resolving a topic does not create its channel, so it can still be configured afterwards.
+   */
+  @Override
+  public TopicHandle resolveTopic(final String topic) throws MessagingException
+  {
+    if(TopicIndex.isPattern(topic)) throw new MessagingException("Cannot resolve a wildcard topic: " + topic);
+    return handleOf(topic);
+  }
+
+  @Override
+  public MessageSender createSender(final TopicHandle topic) throws MessagingException
+  {
+    return createSender(checkResolved(topic));
+  }
+
+  @Override
+  public MessageReceiver createReceiver(final TopicHandle topic) throws MessagingException
+  {
+    return createReceiver(checkResolved(topic));
+  }
+
   @Override
   public MessageReceiver createReceiver(final String topic) throws MessagingException
   {
 	  if(!isStarted) throw new MessagingException("Not started factory");
-	 MemoryChannel mc = channels.computeIfAbsent(topic, chan -> new MemoryChannel(topic));
+	  if(TopicIndex.isPattern(topic))
+	  {
+	    MemoryMessageReceiver receiver = new MemoryMessageReceiver(topic, topicConfigs.getOrDefault(topic, defaultTopicConfig),
+	        dispatcher, wildcards);
+	    track(receiver);
+	    return receiver;
+	  }
+	 MemoryChannel mc = channels.computeIfAbsent(topic, this::newChannel);
 	 if(mc == null)
 	 {
 		 mc = channels.get(topic);
 	 }
     MemoryMessageReceiver receiver = new MemoryMessageReceiver(topic, mc);
-    receivers.add(receiver);
+    track(receiver);
     return receiver;
   }
   
+  /**
+   * Creates a member of a consumer group on the given topic. Each message on the topic goes to one started member of
+   * the group, picked according to the topic's {@link MemoryTopicConfig#setGroupAssignment(GroupAssignment) group
+   * assignment}, whilst receivers outside the group still get every message.
+   *
+   * @param topic The topic, which cannot be a wildcard pattern.
+   * @param group The name of the group, which is local to the topic.
+   * @return A new message receiver.
+   * @throws MessagingException If the factory is not started or the topic is a wildcard pattern.
+   */
+  @Override
+  public MessageReceiver createReceiver(final String topic, final String group) throws MessagingException
+  {
+    if(!isStarted) throw new MessagingException("Not started factory");
+    if(TopicIndex.isPattern(topic)) throw new MessagingException("Consumer groups cannot receive from a wildcard topic: " + topic);
+    final MemoryChannel mc = channels.computeIfAbsent(topic, this::newChannel);
+    final MemoryMessageReceiver receiver = new MemoryMessageReceiver(topic, mc, mc.group(group));
+    track(receiver);
+    return receiver;
+  }
+
+  /**
+   * Sets the configuration used for topics without a configuration of their own. Only affects channels created after
+   * this call.
+   *
+   * @param config The default topic configuration.
+   * @throws IllegalArgumentException If the configuration is inconsistent.
+   */
+  public void setDefaultTopicConfig(final MemoryTopicConfig config)
+  {
+    config.validate();
+    defaultTopicConfig = new MemoryTopicConfig(config);
+  }
+
+  /**
+   * Sets the configuration for a single topic. Only takes effect if the topic's channel has not been created yet, i.e.
+   * before the first sender or receiver on the topic is created.
+   *
+   * @param topic The topic.
+   * @param config The configuration for the topic.
+   * @throws IllegalArgumentException If the configuration is inconsistent.
+   */
+  public void configureTopic(final String topic, final MemoryTopicConfig config)
+  {
+    config.validate();
+    topicConfigs.put(topic, new MemoryTopicConfig(config));
+  }
+
+  /**
+   * Sets the dispatcher that runs the work of all channels and receivers created by this factory. Must be called
+   * before {@link #start()}; if it is not, the factory starts a {@link Dispatchers#pooled() pooled} dispatcher of its
+   * own and shuts it down along with the factory. A dispatcher set here is left running on {@link #shutdown()}.
+   *
+   * @param dispatcher The dispatcher.
+   */
+  public void setDispatcher(final Dispatcher dispatcher)
+  {
+    if(isStarted) throw new IllegalStateException("Dispatcher must be set before the factory is started");
+    this.dispatcher = dispatcher;
+    this.ownsDispatcher = false;
+  }
+
+  /**
+   * Sets the pool that message payloads are copied into on send and that disposed messages are returned to. Pooling is off
+   * by default, or after setting {@code null}, in which case messages wrap the sent array and
+   * {@link com.ph.coding.messaging.Message#dispose()} does nothing. Only affects channels created after this call.
+   *
+   * @param messagePool The pool, or {@code null}.
+   */
+  public void setMessagePool(final MessagePool messagePool)
+  {
+    this.messagePool = messagePool;
+  }
+
+  /**
+   * Sets the name the factory's metrics are registered under with the platform MBean server, as
+   * {@code com.ph.coding.messaging:type=MemoryMessagingFactory,name=<name>}. Must be called before {@link #start()};
+   * by default every factory is named after the provider and a sequence number.
+   *
+   * @param name The name, unique amongst the started factories.
+   */
+  public void setName(final String name)
+  {
+    if(isStarted) throw new IllegalStateException("Name must be set before the factory is started");
+    this.name = name;
+  }
+
+  /**
+   * Takes a snapshot of the metrics of every topic and receiver of the factory. Counting and timing messages is
+   * always on; the rates are sampled by the snapshot itself, at most once a second.
+   *
+   * @return The metrics as they stand.
+   */
+  public MessagingMetrics getMetrics()
+  {
+    final long now = System.nanoTime();
+    final List<TopicMetrics> topics = new ArrayList<>();
+    for(MemoryChannel channel : channels.values())
+    {
+      topics.add(channel.getMetrics(now));
+    }
+    final List<ReceiverMetrics> receiverMetrics = new ArrayList<>();
+    synchronized(receivers)
+    {
+      for(MemoryMessageReceiver receiver : receivers)
+      {
+        receiverMetrics.add(receiver.getMetrics(now));
+      }
+    }
+    return new MessagingMetrics(Collections.unmodifiableList(topics), Collections.unmodifiableList(receiverMetrics));
+  }
+
+  private void registerMBean() throws MessagingException
+  {
+    try
+    {
+      final ObjectName objectName = new ObjectName("com.ph.coding.messaging:type=MemoryMessagingFactory,name="
+          + ObjectName.quote(name));
+      ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsBean(), objectName);
+      mbeanName = objectName;
+    }
+    catch(JMException e)
+    {
+      throw new MessagingException("Cannot register the metrics of factory " + name, e);
+    }
+  }
+
+  private void unregisterMBean()
+  {
+    if(mbeanName != null)
+    {
+      try
+      {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+      }
+      catch(JMException e)
+      {
+        e.printStackTrace();
+      }
+      mbeanName = null;
+    }
+  }
+
+  private void track(final MemoryMessageReceiver receiver)
+  {
+    receiver.trackIn(receivers);
+    receivers.add(receiver);
+  }
+
+  private TopicHandle handleOf(final String topic)
+  {
+    return topicHandles.computeIfAbsent(topic, t -> new TopicHandle(t, topicIds.getAndIncrement()));
+  }
 
-  public void waitForMessages(final long timeoutMillis) throws Exception
+  /**
+   * @return The name of the topic, as long as this factory resolved it.
+   */
+  private String checkResolved(final TopicHandle topic) throws MessagingException
   {
-    //TODO - a proper wait/notify mechanism is needed really, but this will probably work for now...
-    Thread.sleep(Math.min(500, timeoutMillis));
+    if(topicHandles.get(topic.getName()) != topic) throw new MessagingException("Topic " + topic + " was not resolved by " + name);
+    return topic.getName();
+  }
+
+  private MemoryChannel newChannel(final String topic)
+  {
+    return new MemoryChannel(handleOf(topic), topicConfigs.getOrDefault(topic, defaultTopicConfig), dispatcher, messagePool, wildcards);
+  }
+
+  /**
+   * Blocks until every message sent through this factory before the call has been handed to the listeners of all
+   * the receivers it was due to reach, or dropped by an overflow policy. Messages held back by a batch listener's
+   * linger time count as handed over once the batch is. Messages sent during the call may or may not be waited for.
+   *
+   * @param timeout How long to wait at most.
+   * @param unit Unit of the timeout.
+   * @return Whether all those messages were dealt with in time.
+   */
+  public boolean waitForMessages(final long timeout, final TimeUnit unit) throws InterruptedException
+  {
+    final long deadline = System.nanoTime() + unit.toNanos(timeout);
+    // channels first, so that what they fan out is already queued on the receivers when those are waited for
+    for(MemoryChannel channel : channels.values())
+    {
+      if(!channel.awaitFannedOut(deadline))
+        return false;
+    }
+    final MemoryMessageReceiver[] current;
+    synchronized(receivers)
+    {
+      current = receivers.toArray(new MemoryMessageReceiver[0]);
+    }
+    for(MemoryMessageReceiver receiver : current)
+    {
+      if(!receiver.awaitDelivered(deadline))
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return Whether every message sent so far was dealt with in time, see {@link #waitForMessages(long, TimeUnit)}.
+   */
+  public boolean waitForMessages(final long timeoutMillis) throws InterruptedException
+  {
+    return waitForMessages(timeoutMillis, TimeUnit.MILLISECONDS);
   }
   
+  /**
+   * Blocks for as long as it takes until every message sent so far has been dealt with, see
+   * {@link #waitForMessages(long, TimeUnit)}.
+   */
   public void waitForMessages()
   {
-	  synchronized(channels)
-	  {
-		  for(MemoryChannel channel : channels.values())
-		  {
-			  channel.checkAllMessagesSent();
-		  }
-	  }
-	  synchronized(receivers)
-	  {
-		  for(MemoryMessageReceiver receiver : receivers)
-		  {
-			  receiver.checkQueueIsEmpty();
-		  }
-	  }
+    try
+    {
+      waitForMessages(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+    catch(InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
   }
 
 public boolean isStarted() {
 	return isStarted;
 }
+
+	private final class MetricsBean implements MemoryMessagingMXBean {
+
+		@Override
+		public List<TopicMetrics> getTopics() {
+			return getMetrics().getTopics();
+		}
+
+		@Override
+		public List<ReceiverMetrics> getReceivers() {
+			return getMetrics().getReceivers();
+		}
+	}
   
 }
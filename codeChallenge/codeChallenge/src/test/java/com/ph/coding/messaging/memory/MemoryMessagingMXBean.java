@@ -0,0 +1,14 @@
+package com.ph.coding.messaging.memory;
+
+import java.util.List;
+
+/**
+ * The metrics of a {@link MemoryMessagingFactory} as registered with the platform MBean server, see
+ * {@link MemoryMessagingFactory#getMetrics()}.
+ */
+public interface MemoryMessagingMXBean {
+
+	List<TopicMetrics> getTopics();
+
+	List<ReceiverMetrics> getReceivers();
+}
@@ -1,28 +1,49 @@
 package com.ph.coding.messaging.memory;
 
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import com.ph.coding.messaging.Message;
+import com.ph.coding.messaging.MessageBatchReceiveListener;
+import com.ph.coding.messaging.MessagePriority;
 import com.ph.coding.messaging.MessageReceiveListener;
 import com.ph.coding.messaging.MessageReceiver;
 import com.ph.coding.messaging.MessageSender;
 import com.ph.coding.messaging.MessagingException;
+import com.ph.coding.messaging.SendCompletion;
+import com.ph.coding.messaging.StartPosition;
+import com.ph.coding.messaging.TopicHandle;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 public class MemoryMessagingTest
 {
   private MemoryMessagingFactory messagingFactory;
+  // set by tests that need more worker threads than there may be processors
+  private Dispatcher dispatcher;
 
   @Before
   public void before() throws Exception
@@ -35,6 +56,8 @@ public class MemoryMessagingTest
   public void after() throws Exception
   {
     messagingFactory.shutdown();
+    if(dispatcher != null)
+      dispatcher.shutdown();
   }
 
   // -------------------------------------------------------------------------------- //
@@ -523,73 +546,1777 @@ public class MemoryMessagingTest
     assertNotSame(listener1.messages.get(0), listener2.messages.get(0));
   }
 
-  // -------------------------------------------------------------------------------- //
+  @Test
+  public void sharedIsolationDoesNotCopyThePayload() throws Exception
+  {
+    final MessageSender sender = startedSender("a");
+    final StoringListener listener1 = startedReceiver("a");
+    final StoringListener listener2 = startedReceiver("a");
 
-  private MessageSender startedSender(final String topic) throws MessagingException
+    sender.sendMessage(encode("Hello"));
+    waitForMessages();
+
+    assertSame(listener1.messages.get(0).getMsg(), listener2.messages.get(0).getMsg());
+  }
+
+  @Test
+  public void copyIsolationGivesEveryReceiverItsOwnPayload() throws Exception
   {
-    final MessageSender sender = messagingFactory.createSender(topic);
-    sender.start();
-    return sender;
+    messagingFactory.configureTopic("a", new MemoryTopicConfig().setIsolation(MessageIsolation.COPY));
+    final MessageSender sender = startedSender("a");
+    final StoringListener listener1 = startedReceiver("a");
+    final StoringListener listener2 = startedReceiver("a");
+
+    sender.sendMessage(encode("Hello"));
+    sender.sendMessage(ByteBuffer.wrap(encode("World")));
+    waitForMessages();
+
+    for(int i=0; i<2; ++i)
+      listener1.messages.get(i).getMsg()[0] = 'J';
+    checkMessages(listener1, "Jello", "Jorld");
+    checkMessages(listener2, "Hello", "World");
   }
 
-  private StoringListener startedReceiver(final String topic) throws MessagingException
+  @Test
+  public void copyOnAccessIsolationCopiesThePayloadForWhoeverAsksForIt() throws Exception
   {
-    final StoringListener listener = new StoringListener();
-    startedReceiver(topic, listener);
-    return listener;
+    messagingFactory.configureTopic("a", new MemoryTopicConfig().setIsolation(MessageIsolation.COPY_ON_ACCESS));
+    final MessageSender sender = startedSender("a");
+    final StoringListener listener1 = startedReceiver("a");
+    final StoringListener listener2 = startedReceiver("a");
+
+    sender.sendMessage(encode("Hello"));
+    waitForMessages();
+
+    final Message message1 = listener1.messages.get(0);
+    final Message message2 = listener2.messages.get(0);
+    assertSame(message1.getMsg(), message1.getMsg());
+    message1.getMsg()[0] = 'J';
+    assertEquals(ByteBuffer.wrap(encode("Jello")), message1.getBuffer());
+    assertEquals(ByteBuffer.wrap(encode("Hello")), message2.getBuffer());
+    checkMessages(listener2, "Hello");
   }
 
-  private MessageReceiver startedReceiver(final String topic, final MessageReceiveListener listener) throws MessagingException
+  @Test
+  public void ringBufferChannelSendReceive() throws Exception
   {
-    final MessageReceiver receiver = messagingFactory.createReceiver(topic);
-    receiver.setListener(listener);
+    messagingFactory.configureTopic("a", new MemoryTopicConfig().setChannelType(ChannelType.RING_BUFFER));
+    final MessageSender sender = startedSender("a");
+    final StoringListener listener1 = startedReceiver("a");
+    final StoringListener listener2 = startedReceiver("a");
+
+    sender.sendMessage(encode("The"));
+    sender.sendMessage(encode("cat"));
+    sender.sendMessage(encode("sat"));
+
+    waitForMessages();
+    checkTopics(listener1, "a", 3);
+    checkTopics(listener2, "a", 3);
+    checkMessages(listener1, "The", "cat", "sat");
+    checkMessages(listener2, "The", "cat", "sat");
+  }
+
+  @Test
+  public void ringBufferChannelKeepsPerSenderOrderUnderContention() throws Exception
+  {
+    // a small ring makes the producers wrap and wait for the consumer many times over
+    messagingFactory.setDefaultTopicConfig(new MemoryTopicConfig().setChannelType(ChannelType.RING_BUFFER).setRingBufferSize(8));
+    final StoringListener listener = startedReceiver("a");
+    final int senders = 4;
+    final int messagesPerSender = 2000;
+
+    final List<Thread> threads = new ArrayList<>();
+    for(int s=0; s<senders; ++s)
+    {
+      final MessageSender sender = startedSender("a");
+      final int senderId = s;
+      threads.add(new Thread(() -> {
+        try
+        {
+          for(int i=0; i<messagesPerSender; ++i)
+            sender.sendMessage(encode(senderId + "-" + i));
+        }
+        catch(final MessagingException e)
+        {
+          // oops, have to wait for the test to fail...
+        }
+      }));
+    }
+    threads.forEach(Thread::start);
+    for(final Thread thread : threads)
+      thread.join();
+
+    waitForMessages();
+
+    checkTopics(listener, "a", senders * messagesPerSender);
+    final int[] next = new int[senders];
+    for(final Message message : listener.messages)
+    {
+      final String[] parts = decode(message).split("-");
+      final int senderId = Integer.parseInt(parts[0]);
+      assertEquals("Sender " + senderId + " out of order", next[senderId]++, Integer.parseInt(parts[1]));
+    }
+  }
+
+  @Test
+  public void sharedDispatcherKeepsPerReceiverOrderAcrossManyTopics() throws Exception
+  {
+    final AtomicInteger threadsCreated = new AtomicInteger();
+    final MemoryMessagingFactory factory = new MemoryMessagingFactory();
+    factory.setDispatcher(Dispatchers.fromExecutor(Executors.newFixedThreadPool(2, runnable -> {
+      threadsCreated.incrementAndGet();
+      final Thread thread = new Thread(runnable);
+      thread.setDaemon(true);
+      return thread;
+    })));
+    factory.start();
+    try
+    {
+      final int topics = 200;
+      final List<MessageSender> senders = new ArrayList<>();
+      final List<StoringListener> listeners = new ArrayList<>();
+      for(int t=0; t<topics; ++t)
+      {
+        final MessageSender sender = factory.createSender("topic" + t);
+        sender.start();
+        senders.add(sender);
+        final StoringListener listener = new StoringListener();
+        final MessageReceiver receiver = factory.createReceiver("topic" + t);
+        receiver.setListener(listener);
+        receiver.start();
+        listeners.add(listener);
+      }
+
+      for(int i=0; i<20; ++i)
+        for(final MessageSender sender : senders)
+          sender.sendMessage(encode(Integer.toString(i)));
+
+      factory.waitForMessages();
+
+      final String[] expected = new String[20];
+      for(int i=0; i<expected.length; ++i)
+        expected[i] = Integer.toString(i);
+      for(int t=0; t<topics; ++t)
+      {
+        checkTopics(listeners.get(t), "topic" + t, expected.length);
+        checkMessages(listeners.get(t), expected);
+      }
+      assertTrue("Thread count grew with topics: " + threadsCreated.get(), threadsCreated.get() <= 2);
+    }
+    finally
+    {
+      factory.shutdown();
+    }
+  }
+
+  @Test
+  public void directDeliverySendReceive() throws Exception
+  {
+    messagingFactory.configureTopic("a", new MemoryTopicConfig().setDeliveryMode(DeliveryMode.DIRECT));
+    final MessageSender sender1 = startedSender("a");
+    final MessageSender sender2 = startedSender("a");
+    final StoringListener listener1 = startedReceiver("a");
+    final StoringListener listener2 = startedReceiver("a");
+
+    sender1.sendMessage(encode("The"));
+    sender1.sendMessage(encode("cat"));
+    sender2.sendMessage(encode("sat"));
+
+    waitForMessages();
+    checkTopics(listener1, "a", 3);
+    checkTopics(listener2, "a", 3);
+    checkMessages(listener1, "The", "cat", "sat");
+    checkMessages(listener2, "The", "cat", "sat");
+    assertNotSame(listener1.messages.get(0), listener2.messages.get(0));
+  }
+
+  @Test
+  public void synchronousDeliveryCallsListenersOnSendingThread() throws Exception
+  {
+    messagingFactory.configureTopic("a", new MemoryTopicConfig().setDeliveryMode(DeliveryMode.SYNCHRONOUS));
+    final MessageSender sender = startedSender("a");
+    final List<Thread> listenerThreads = Collections.synchronizedList(new ArrayList<>());
+    final StoringListener listener = new StoringListener()
+    {
+      @Override
+      public void onMessage(final Message message, final String topic)
+      {
+        listenerThreads.add(Thread.currentThread());
+        super.onMessage(message, topic);
+      }
+    };
+    startedReceiver("a", listener);
+
+    sender.sendMessage(encode("The"));
+    sender.sendMessage(encode("cat"));
+
+    // no waiting, delivery is complete once sendMessage returns
+    checkTopics(listener, "a", 2);
+    checkMessages(listener, "The", "cat");
+    assertEquals(Arrays.asList(Thread.currentThread(), Thread.currentThread()), listenerThreads);
+  }
+
+  @Test
+  public void batchSendReceive() throws Exception
+  {
+    final MessageSender sender = startedSender("a");
+    final StoringListener listener1 = startedReceiver("a");
+    final StoringListener listener2 = startedReceiver("a");
+
+    sender.sendMessages(encode("The"), encode("cat"), encode("sat"));
+    sender.sendMessage(encode("on"));
+    sender.sendMessages(Arrays.asList(encode("the"), encode("mat")));
+
+    waitForMessages();
+    checkTopics(listener1, "a", 6);
+    checkMessages(listener1, "The", "cat", "sat", "on", "the", "mat");
+    checkMessages(listener2, "The", "cat", "sat", "on", "the", "mat");
+  }
+
+  @Test
+  public void noBatchSendUnlessStarted() throws Exception
+  {
+    final MessageSender sender = messagingFactory.createSender("a");
+    final StoringListener listener = startedReceiver("a");
+    try
+    {
+      sender.sendMessages(encode("The"), encode("cat"));
+      fail();
+    }
+    catch(final MessagingException expected)
+    {
+    }
+    waitForMessages();
+    assertTrue(listener.messages.isEmpty());
+  }
+
+  @Test
+  public void ringBufferChannelEnqueuesBatchAsOneUnit() throws Exception
+  {
+    messagingFactory.configureTopic("a", new MemoryTopicConfig().setChannelType(ChannelType.RING_BUFFER).setRingBufferSize(64));
+    checkBatchesEnqueuedAsOneUnit();
+  }
+
+  @Test
+  public void linkedChannelEnqueuesBatchAsOneUnit() throws Exception
+  {
+    // smaller than a batch, so that batches have to wait for room part way through
+    messagingFactory.configureTopic("a", new MemoryTopicConfig().setChannelCapacity(4));
+    checkBatchesEnqueuedAsOneUnit();
+  }
+
+  @Test
+  public void directBatchesAreQueuedForReceiversAsOneUnit() throws Exception
+  {
+    messagingFactory.configureTopic("a", new MemoryTopicConfig().setDeliveryMode(DeliveryMode.DIRECT)
+        .setReceiverCapacity(4));
+    checkBatchesEnqueuedAsOneUnit();
+  }
+
+  private void checkBatchesEnqueuedAsOneUnit() throws Exception
+  {
+    final StoringListener listener = startedReceiver("a");
+    final int senders = 3;
+    final int batches = 200;
+    final int batchSize = 10;
+
+    final List<Thread> threads = new ArrayList<>();
+    for(int s=0; s<senders; ++s)
+    {
+      final MessageSender sender = startedSender("a");
+      final int senderId = s;
+      threads.add(new Thread(() -> {
+        try
+        {
+          for(int b=0; b<batches; ++b)
+          {
+            final List<byte[]> batch = new ArrayList<>();
+            for(int i=0; i<batchSize; ++i)
+              batch.add(encode(senderId + "-" + b + "-" + i));
+            sender.sendMessages(batch);
+          }
+        }
+        catch(final MessagingException e)
+        {
+          // oops, have to wait for the test to fail...
+        }
+      }));
+    }
+    threads.forEach(Thread::start);
+    for(final Thread thread : threads)
+      thread.join();
+
+    waitForMessages();
+
+    checkTopics(listener, "a", senders * batches * batchSize);
+    // no other sender's messages inside a batch
+    for(int start=0; start<listener.messages.size(); start+=batchSize)
+    {
+      final String batch = decode(listener.messages.get(start)).replaceAll("-0$", "");
+      for(int i=0; i<batchSize; ++i)
+        assertEquals(batch + "-" + i, decode(listener.messages.get(start + i)));
+    }
+  }
+
+  @Test
+  public void batchListenerGetsAvailableMessagesInBatches() throws Exception
+  {
+    // direct delivery, so messages are in the receiver's queue as soon as they are sent
+    messagingFactory.configureTopic("a", new MemoryTopicConfig().setDeliveryMode(DeliveryMode.DIRECT));
+    final MessageSender sender = startedSender("a");
+    final CountDownLatch firstBatchStarted = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final StoringBatchListener listener = new StoringBatchListener()
+    {
+      @Override
+      public void onMessages(final List<Message> messages, final String topic)
+      {
+        firstBatchStarted.countDown();
+        try
+        {
+          release.await();
+        }
+        catch(final InterruptedException e)
+        {
+          Thread.currentThread().interrupt();
+        }
+        super.onMessages(messages, topic);
+      }
+    };
+    final MessageReceiver receiver = messagingFactory.createReceiver("a");
+    receiver.setBatchListener(listener, 4, 0, TimeUnit.MILLISECONDS);
     receiver.start();
-    return receiver;
+
+    sender.sendMessage(encode("The"));
+    firstBatchStarted.await();
+    // these queue up behind the blocked listener
+    sender.sendMessages(encode("cat"), encode("sat"), encode("on"), encode("the"), encode("mat"));
+    release.countDown();
+
+    waitForMessages();
+    checkTopics(listener, "a", 6);
+    checkMessages(listener, "The", "cat", "sat", "on", "the", "mat");
+    assertEquals(Arrays.asList(1, 4, 1), listener.batchSizes);
   }
-  
-  private MessageReceiver createReceiverNoListener(final String topic) throws MessagingException
+
+  @Test
+  public void batchListenerLingersForBatchToFill() throws Exception
   {
-	  final MessageReceiver receiver = messagingFactory.createReceiver(topic);
-	  
-	  return receiver;
+    final MessageSender sender = startedSender("a");
+    final StoringBatchListener listener = new StoringBatchListener();
+    final MessageReceiver receiver = messagingFactory.createReceiver("a");
+    receiver.setBatchListener(listener, 100, 200, TimeUnit.MILLISECONDS);
+    receiver.start();
+
+    sender.sendMessage(encode("The"));
+    sender.sendMessage(encode("cat"));
+    sender.sendMessage(encode("sat"));
+
+    waitForMessages();
+    checkTopics(listener, "a", 3);
+    checkMessages(listener, "The", "cat", "sat");
+    assertEquals(Collections.singletonList(3), listener.batchSizes);
   }
 
-  private void waitForMessages() throws Exception
+  @Test
+  public void fullChannelFailsFast() throws Exception
   {
-    //messagingFactory.waitForMessages(5000);
-	  messagingFactory.waitForMessages();
+    messagingFactory.configureTopic("a", new MemoryTopicConfig()
+        .setChannelCapacity(2).setChannelOverflowPolicy(OverflowPolicy.FAIL)
+        .setReceiverCapacity(1).setReceiverOverflowPolicy(OverflowPolicy.BLOCK));
+    final MessageSender sender = startedSender("a");
+    final BlockingListener listener = new BlockingListener();
+    startedReceiver("a", listener);
+
+    sender.sendMessage(encode("0"));
+    listener.firstMessage.await();
+
+    // the listener is stuck, so the receiver and then the channel fill up
+    int sent = 1;
+    try
+    {
+      for(; sent<100; ++sent)
+        sender.sendMessage(encode(Integer.toString(sent)));
+      fail();
+    }
+    catch(final MessagingException expected)
+    {
+    }
+    listener.release.countDown();
+
+    waitForMessages();
+    checkTopics(listener, "a", sent);
+    for(int i=0; i<sent; ++i)
+      assertEquals(Integer.toString(i), decode(listener.messages.get(i)));
   }
-  
 
-  private static void checkMessages(final StoringListener listener, final String... messages)
+  @Test
+  public void fullReceiverDropsNewest() throws Exception
   {
-    assertEquals(messages.length, listener.messages.size());
-    for(int i=0; i<messages.length; ++i)
-      assertEquals("Message " + i + " different", messages[i], decode(listener.messages.get(i)));
+    messagingFactory.configureTopic("a", new MemoryTopicConfig().setDeliveryMode(DeliveryMode.DIRECT)
+        .setReceiverCapacity(2).setReceiverOverflowPolicy(OverflowPolicy.DROP_NEWEST));
+    final MessageSender sender = startedSender("a");
+    final BlockingListener listener = new BlockingListener();
+    final MemoryMessageReceiver receiver = (MemoryMessageReceiver) startedReceiver("a", listener);
+
+    sender.sendMessage(encode("The"));
+    listener.firstMessage.await();
+    sender.sendMessages(encode("cat"), encode("sat"), encode("on"), encode("the"));
+    listener.release.countDown();
+
+    waitForMessages();
+    checkMessages(listener, "The", "cat", "sat");
+    assertEquals(2, receiver.getDroppedCount());
+    assertEquals(2, receiver.getOverflowCount());
   }
 
-  private static void checkTopics(final StoringListener listener, final String... topics)
+  @Test
+  public void fullReceiverDropsOldest() throws Exception
   {
-    assertEquals(topics.length, listener.topics.size());
-    for(int i=0; i<topics.length; ++i)
-      assertEquals("Topic " + i + " different", topics[i], listener.topics.get(i));
+    messagingFactory.configureTopic("a", new MemoryTopicConfig().setDeliveryMode(DeliveryMode.DIRECT)
+        .setReceiverCapacity(2).setReceiverOverflowPolicy(OverflowPolicy.DROP_OLDEST));
+    final MessageSender sender = startedSender("a");
+    final BlockingListener listener = new BlockingListener();
+    final MemoryMessageReceiver receiver = (MemoryMessageReceiver) startedReceiver("a", listener);
+
+    sender.sendMessage(encode("The"));
+    listener.firstMessage.await();
+    sender.sendMessages(encode("cat"), encode("sat"), encode("on"), encode("the"));
+    listener.release.countDown();
+
+    waitForMessages();
+    checkMessages(listener, "The", "on", "the");
+    assertEquals(2, receiver.getDroppedCount());
   }
 
-  private static void checkTopics(final StoringListener listener, final String topic, final int num)
+  @Test(expected = IllegalArgumentException.class)
+  public void ringBufferCannotDropOldest()
   {
-    assertEquals(num, listener.topics.size());
-    for(int i=0; i<num; ++i)
-      assertEquals("Topic " + i + " different", topic, listener.topics.get(i));
+    messagingFactory.configureTopic("a", new MemoryTopicConfig().setChannelType(ChannelType.RING_BUFFER)
+        .setReceiverOverflowPolicy(OverflowPolicy.DROP_OLDEST));
   }
 
-  private static byte[] encode(final String string)
+  @Test
+  public void singleSegmentWildcard() throws Exception
   {
-    return string.getBytes();
+    final MessageSender fr = startedSender("prices.eu.fr");
+    final MessageSender de = startedSender("prices.eu.de");
+    final MessageSender frBonds = startedSender("prices.eu.fr.bonds");
+    final MessageSender us = startedSender("prices.us.ny");
+    final StoringListener listener = startedReceiver("prices.eu.*");
+
+    fr.sendMessage(encode("The"));
+    waitForMessages();
+    de.sendMessage(encode("cat"));
+    frBonds.sendMessage(encode("sat"));
+    us.sendMessage(encode("on"));
+    waitForMessages();
+
+    // "*" matches exactly one segment
+    checkMessages(listener, "The", "cat");
+    checkTopics(listener, "prices.eu.fr", "prices.eu.de");
   }
 
-  private static String decode(final Message message)
+  @Test
+  public void multiSegmentWildcard() throws Exception
   {
-    return new String(message.getMsg());
+    final MessageSender prices = startedSender("prices");
+    final MessageSender fr = startedSender("prices.eu.fr");
+    final MessageSender other = startedSender("rates.eu.fr");
+    final StoringListener listener = startedReceiver("prices.#");
+    final StoringListener frListener = startedReceiver("#.fr");
+
+    prices.sendMessage(encode("The"));
+    waitForMessages();
+    fr.sendMessage(encode("cat"));
+    waitForMessages();
+    other.sendMessage(encode("sat"));
+    waitForMessages();
+
+    // "#" matches zero or more segments
+    checkMessages(listener, "The", "cat");
+    checkTopics(listener, "prices", "prices.eu.fr");
+    checkMessages(frListener, "cat", "sat");
+    checkTopics(frListener, "prices.eu.fr", "rates.eu.fr");
+  }
+
+  @Test
+  public void exactAndWildcardReceiversOnSameTopic() throws Exception
+  {
+    final MessageSender sender = startedSender("prices.eu.fr");
+    final StoringListener exact = startedReceiver("prices.eu.fr");
+    final StoringListener wildcard = startedReceiver("prices.*.fr");
+    final StoringListener anywhere = startedReceiver("#.eu.#");
+
+    sender.sendMessage(encode("The"));
+    sender.sendMessage(encode("cat"));
+    waitForMessages();
+
+    checkMessages(exact, "The", "cat");
+    checkMessages(wildcard, "The", "cat");
+    checkTopics(wildcard, "prices.eu.fr", 2);
+    // only given each message once, however many ways the pattern matches
+    checkMessages(anywhere, "The", "cat");
+  }
+
+  @Test
+  public void wildcardReceiverOnlyGetsLaterMessages() throws Exception
+  {
+    final MessageSender sender = startedSender("prices.eu.fr");
+    final StoringListener first = startedReceiver("prices.#");
+
+    sender.sendMessage(encode("The"));
+    waitForMessages();
+    final StoringListener second = startedReceiver("#");
+    sender.sendMessage(encode("cat"));
+    waitForMessages();
+
+    checkMessages(first, "The", "cat");
+    checkMessages(second, "cat");
+  }
+
+  @Test
+  public void stoppedWildcardReceiverGetsNothing() throws Exception
+  {
+    final MessageSender sender = startedSender("prices.eu.fr");
+    final StoringListener listener = new StoringListener();
+    final MessageReceiver receiver = startedReceiver("prices.*.*", listener);
+
+    sender.sendMessage(encode("The"));
+    waitForMessages();
+    receiver.stop();
+    sender.sendMessage(encode("cat"));
+    waitForMessages();
+
+    checkMessages(listener, "The");
+  }
+
+  @Test
+  public void wildcardIndexForgetsPatternsWithoutReceivers() throws Exception
+  {
+    final MemoryMessageReceiver first = (MemoryMessageReceiver) messagingFactory.createReceiver("prices.*.fr");
+    final MemoryMessageReceiver second = (MemoryMessageReceiver) messagingFactory.createReceiver("prices.#");
+    final TopicIndex index = new TopicIndex();
+    index.add("prices.*.fr", first);
+    index.add("prices.#", second);
+
+    index.remove("prices.*.fr", first);
+    assertEquals(1, index.match("prices.eu.fr").length);
+    index.remove("prices.#", second);
+
+    assertTrue(index.isEmpty());
+    assertEquals(0, index.match("prices.eu.fr").length);
+  }
+
+  @Test
+  public void topicCanBeSubscribedToAgainOnceEveryReceiverLeft() throws Exception
+  {
+    final MessageSender sender = startedSender("a");
+    final StoringListener first = new StoringListener();
+    final MessageReceiver receiver = startedReceiver("a", first);
+
+    sender.sendMessage(encode("The"));
+    waitForMessages();
+    receiver.stop();
+    sender.sendMessage(encode("cat"));
+    waitForMessages();
+    final StoringListener second = startedReceiver("a");
+    sender.sendMessage(encode("sat"));
+    waitForMessages();
+
+    checkMessages(first, "The");
+    checkMessages(second, "sat");
+  }
+
+  @Test
+  public void receiversComingAndGoingDoNotDisturbTheOthers() throws Exception
+  {
+    final MessageSender sender = startedSender("a");
+    final StoringListener stable = startedReceiver("a");
+    final Thread churn = new Thread(() -> {
+      try
+      {
+        for(int i=0; i<2000; ++i)
+          startedReceiver("a", new StoringListener()).stop();
+      }
+      catch(final MessagingException e)
+      {
+        throw new IllegalStateException(e);
+      }
+    });
+
+    churn.start();
+    for(int i=0; i<1000; ++i)
+      sender.sendMessage(encode(Integer.toString(i)));
+    churn.join();
+    waitForMessages();
+
+    assertEquals(1000, stable.messages.size());
+    for(int i=0; i<1000; ++i)
+      assertEquals(Integer.toString(i), decode(stable.messages.get(i)));
+    // stopped receivers are not kept around by the factory
+    assertEquals(1, messagingFactory.getMetrics().getReceivers().size());
+    assertEquals(1, messagingFactory.getMetrics().getTopic("a").getReceiverCount());
+  }
+
+  @Test(expected = MessagingException.class)
+  public void cannotSendToWildcardTopic() throws Exception
+  {
+    messagingFactory.createSender("prices.*");
+  }
+
+  @Test
+  public void topicHandlesAreNumberedOncePerTopic() throws Exception
+  {
+    final TopicHandle a = messagingFactory.resolveTopic("a");
+    final TopicHandle b = messagingFactory.resolveTopic("b");
+
+    assertEquals(0, a.getId());
+    assertEquals(1, b.getId());
+    assertEquals("b", b.getName());
+    assertSame(a, messagingFactory.resolveTopic("a"));
+    // using a topic by name numbers it too
+    startedSender("c");
+    assertEquals(2, messagingFactory.resolveTopic("c").getId());
+  }
+
+  @Test
+  public void listenersAreGivenTheHandleOfTheTopic() throws Exception
+  {
+    final TopicHandle fr = messagingFactory.resolveTopic("prices.eu.fr");
+    final TopicHandle de = messagingFactory.resolveTopic("prices.eu.de");
+    final List<TopicHandle> handles = Collections.synchronizedList(new ArrayList<>());
+    final MessageReceiveListener listener = new MessageReceiveListener()
+    {
+      @Override
+      public void onMessage(final Message message, final String topic)
+      {
+        fail("Expected a topic handle");
+      }
+
+      @Override
+      public void onMessage(final Message message, final TopicHandle topic)
+      {
+        handles.add(topic);
+      }
+    };
+    final MessageReceiver exact = messagingFactory.createReceiver(fr);
+    exact.setListener(listener);
+    exact.start();
+    startedReceiver("prices.eu.*", listener);
+
+    final MessageSender sender = messagingFactory.createSender(fr);
+    sender.start();
+    sender.sendMessage(encode("The"));
+    startedSender("prices.eu.de").sendMessage(encode("cat"));
+    waitForMessages();
+
+    assertEquals(3, handles.size());
+    assertEquals(2, handles.stream().filter(handle -> handle == fr).count());
+    assertEquals(1, handles.stream().filter(handle -> handle == de).count());
+  }
+
+  @Test(expected = MessagingException.class)
+  public void cannotResolveWildcardTopic() throws Exception
+  {
+    messagingFactory.resolveTopic("prices.*");
+  }
+
+  @Test(expected = MessagingException.class)
+  public void topicHandlesBelongToTheirFactory() throws Exception
+  {
+    final MemoryMessagingFactory other = new MemoryMessagingFactory();
+    messagingFactory.createSender(other.resolveTopic("a"));
+  }
+
+  @Test
+  public void lateReceiverReplaysRetainedMessages() throws Exception
+  {
+    messagingFactory.configureTopic("a", new MemoryTopicConfig().setRetainedMessages(100));
+    final MessageSender sender = startedSender("a");
+
+    sender.sendMessage(encode("The"));
+    sender.sendMessages(encode("cat"), encode("sat"));
+    waitForMessages();
+    final StoringListener earliest = startedReceiver("a", StartPosition.earliest());
+    final StoringListener fromOffset = startedReceiver("a", StartPosition.offset(1));
+    final StoringListener latest = startedReceiver("a", StartPosition.latest());
+    sender.sendMessage(encode("on"));
+    waitForMessages();
+
+    checkMessages(earliest, "The", "cat", "sat", "on");
+    checkMessages(fromOffset, "cat", "sat", "on");
+    checkMessages(latest, "on");
+  }
+
+  @Test
+  public void consumerResumesFromTheOffsetItStoppedAt() throws Exception
+  {
+    messagingFactory.configureTopic("a", new MemoryTopicConfig().setRetainedMessages(100));
+    final MessageSender sender = startedSender("a");
+    sender.sendMessage(encode("The"));
+    waitForMessages();
+
+    final StoringListener listener = new StoringListener();
+    final MemoryMessageReceiver receiver = (MemoryMessageReceiver) messagingFactory.createReceiver("a");
+    receiver.setListener(listener);
+    receiver.start();
+    assertEquals(1, receiver.getDeliveredOffset());
+    sender.sendMessages(encode("cat"), encode("sat"));
+    waitForMessages();
+    receiver.stop();
+    final long stoppedAt = receiver.getDeliveredOffset();
+    sender.sendMessage(encode("on"));
+    waitForMessages();
+
+    receiver.setStartPosition(StartPosition.offset(stoppedAt));
+    receiver.start();
+    sender.sendMessage(encode("the"));
+    waitForMessages();
+
+    assertEquals(3, stoppedAt);
+    checkMessages(listener, "cat", "sat", "on", "the");
+    assertEquals(5, receiver.getDeliveredOffset());
+  }
+
+  @Test
+  public void receiverOfTopicWithoutRetentionHasNoOffset() throws Exception
+  {
+    final MemoryMessageReceiver receiver = (MemoryMessageReceiver) messagingFactory.createReceiver("a");
+    receiver.setListener(new StoringListener());
+    receiver.start();
+    startedSender("a").sendMessage(encode("The"));
+    waitForMessages();
+
+    assertEquals(-1, receiver.getDeliveredOffset());
+  }
+
+  @Test
+  public void replayCanBeLongerThanTheReceiverQueue() throws Exception
+  {
+    messagingFactory.configureTopic("a", new MemoryTopicConfig().setRetainedMessages(100).setReceiverCapacity(4));
+    checkReplayedInOrder(20);
+  }
+
+  @Test
+  public void replayCanBeLongerThanTheRingBuffer() throws Exception
+  {
+    messagingFactory.configureTopic("a", new MemoryTopicConfig().setRetainedMessages(100)
+        .setChannelType(ChannelType.RING_BUFFER).setRingBufferSize(8));
+    checkReplayedInOrder(50);
+  }
+
+  @Test
+  public void synchronousTopicReplaysOnTheStartingThread() throws Exception
+  {
+    messagingFactory.configureTopic("a", new MemoryTopicConfig().setDeliveryMode(DeliveryMode.SYNCHRONOUS)
+        .setRetainedMessages(100));
+    final MessageSender sender = startedSender("a");
+    sender.sendMessage(encode("The"));
+    sender.sendMessage(encode("cat"));
+    final List<Thread> listenerThreads = Collections.synchronizedList(new ArrayList<>());
+    final StoringListener listener = new StoringListener()
+    {
+      @Override
+      public void onMessage(final Message message, final String topic)
+      {
+        listenerThreads.add(Thread.currentThread());
+        super.onMessage(message, topic);
+      }
+    };
+    final MemoryMessageReceiver receiver = (MemoryMessageReceiver) messagingFactory.createReceiver("a");
+    receiver.setListener(listener);
+    receiver.setStartPosition(StartPosition.earliest());
+    receiver.start();
+
+    // no waiting, the replay is delivered before start returns and live messages follow it
+    checkMessages(listener, "The", "cat");
+    sender.sendMessage(encode("sat"));
+    checkMessages(listener, "The", "cat", "sat");
+    assertEquals(Collections.nCopies(3, Thread.currentThread()), listenerThreads);
+  }
+
+  private void checkReplayedInOrder(final int retained) throws Exception
+  {
+    final MessageSender sender = startedSender("a");
+    for(int i=0; i<retained; ++i)
+      sender.sendMessage(encode(Integer.toString(i)));
+    waitForMessages();
+    final StoringListener listener = startedReceiver("a", StartPosition.earliest());
+    sender.sendMessage(encode("live"));
+    waitForMessages();
+
+    assertEquals(retained + 1, listener.messages.size());
+    for(int i=0; i<retained; ++i)
+      assertEquals(Integer.toString(i), decode(listener.messages.get(i)));
+    assertEquals("live", decode(listener.messages.get(retained)));
+  }
+
+  @Test
+  public void retentionEvictsOldestByCount() throws Exception
+  {
+    messagingFactory.configureTopic("a", new MemoryTopicConfig().setRetainedMessages(2));
+    final MessageSender sender = startedSender("a");
+
+    sender.sendMessages(encode("The"), encode("cat"), encode("sat"), encode("on"));
+    waitForMessages();
+    final StoringListener earliest = startedReceiver("a", StartPosition.earliest());
+    final StoringListener evictedOffset = startedReceiver("a", StartPosition.offset(0));
+    waitForMessages();
+
+    checkMessages(earliest, "sat", "on");
+    checkMessages(evictedOffset, "sat", "on");
+  }
+
+  @Test
+  public void retentionEvictsOldestBySize() throws Exception
+  {
+    messagingFactory.configureTopic("a", new MemoryTopicConfig().setRetainedBytes(6));
+    final MessageSender sender = startedSender("a");
+
+    sender.sendMessages(encode("The"), encode("cat"), encode("sat"));
+    waitForMessages();
+    final StoringListener listener = startedReceiver("a", StartPosition.earliest());
+    waitForMessages();
+
+    checkMessages(listener, "cat", "sat");
+  }
+
+  @Test
+  public void retentionEvictsOldestByAge() throws Exception
+  {
+    messagingFactory.configureTopic("a", new MemoryTopicConfig().setRetentionTime(50, TimeUnit.MILLISECONDS));
+    final MessageSender sender = startedSender("a");
+
+    sender.sendMessage(encode("The"));
+    Thread.sleep(100);
+    sender.sendMessage(encode("cat"));
+    waitForMessages();
+    final StoringListener listener = startedReceiver("a", StartPosition.earliest());
+    waitForMessages();
+
+    checkMessages(listener, "cat");
+  }
+
+  @Test
+  public void receiverStartsFromTimestamp() throws Exception
+  {
+    messagingFactory.configureTopic("a", new MemoryTopicConfig().setRetainedMessages(100));
+    final MessageSender sender = startedSender("a");
+
+    sender.sendMessages(encode("The"), encode("cat"));
+    waitForMessages();
+    Thread.sleep(20);
+    final long time = System.currentTimeMillis();
+    sender.sendMessages(encode("sat"), encode("on"));
+    waitForMessages();
+    final StoringListener listener = startedReceiver("a", StartPosition.timestamp(time));
+    final StoringListener future = startedReceiver("a", StartPosition.timestamp(time + 60000));
+    waitForMessages();
+
+    checkMessages(listener, "sat", "on");
+    checkMessages(future);
+  }
+
+  @Test
+  public void topicWithoutRetentionStartsFromLatest() throws Exception
+  {
+    final MessageSender sender = startedSender("a");
+
+    sender.sendMessage(encode("The"));
+    waitForMessages();
+    final StoringListener listener = startedReceiver("a", StartPosition.earliest());
+    sender.sendMessage(encode("cat"));
+    waitForMessages();
+
+    checkMessages(listener, "cat");
+  }
+
+  @Test
+  public void replayJoinsLiveMessagesWithoutGapsOrDuplicates() throws Exception
+  {
+    messagingFactory.configureTopic("a", new MemoryTopicConfig().setRetainedMessages(10000));
+    final MessageSender sender = startedSender("a");
+    final Thread sending = new Thread(() -> {
+      try
+      {
+        for(int i=0; i<2000; ++i)
+          sender.sendMessage(encode(Integer.toString(i)));
+      }
+      catch(final MessagingException e)
+      {
+        throw new RuntimeException(e);
+      }
+    });
+
+    sending.start();
+    Thread.sleep(1);
+    final StoringListener listener = startedReceiver("a", StartPosition.earliest());
+    sending.join();
+    waitForMessages();
+
+    assertEquals(2000, listener.messages.size());
+    for(int i=0; i<2000; ++i)
+      assertEquals(Integer.toString(i), decode(listener.messages.get(i)));
+  }
+
+  @Test(expected = MessagingException.class)
+  public void wildcardReceiverCannotReplay() throws Exception
+  {
+    startedReceiver("a.*", StartPosition.earliest());
+  }
+
+  @Test
+  public void waitForMessagesWaitsForSlowListeners() throws Exception
+  {
+    final MessageSender sender = startedSender("a");
+    final StoringListener listener1 = new SlowListener();
+    final StoringListener listener2 = new SlowListener();
+    startedReceiver("a", listener1);
+    startedReceiver("a", listener2);
+
+    for(int i=0; i<5; ++i)
+      sender.sendMessage(encode(Integer.toString(i)));
+
+    assertTrue(messagingFactory.waitForMessages(10, TimeUnit.SECONDS));
+    checkMessages(listener1, "0", "1", "2", "3", "4");
+    checkMessages(listener2, "0", "1", "2", "3", "4");
+  }
+
+  @Test
+  public void waitForMessagesTimesOutWhilstListenerIsBusy() throws Exception
+  {
+    final MessageSender sender = startedSender("a");
+    final BlockingListener listener = new BlockingListener();
+    startedReceiver("a", listener);
+
+    sender.sendMessage(encode("The"));
+    sender.sendMessage(encode("cat"));
+    listener.firstMessage.await();
+    assertFalse(messagingFactory.waitForMessages(50, TimeUnit.MILLISECONDS));
+
+    listener.release.countDown();
+    assertTrue(messagingFactory.waitForMessages(10, TimeUnit.SECONDS));
+    checkMessages(listener, "The", "cat");
+  }
+
+  @Test
+  public void waitForMessagesWaitsForMessagesHeldUpByAFullReceiver() throws Exception
+  {
+    messagingFactory.configureTopic("a", new MemoryTopicConfig()
+        .setReceiverCapacity(2).setReceiverOverflowPolicy(OverflowPolicy.BLOCK));
+    final MessageSender sender = startedSender("a");
+    final StoringListener listener = new SlowListener();
+    startedReceiver("a", listener);
+
+    final List<String> sent = new ArrayList<>();
+    for(int i=0; i<20; ++i)
+    {
+      sent.add(Integer.toString(i));
+      sender.sendMessage(encode(Integer.toString(i)));
+    }
+
+    assertTrue(messagingFactory.waitForMessages(10, TimeUnit.SECONDS));
+    checkMessages(listener, sent.toArray(new String[0]));
+  }
+
+  @Test
+  public void waitForMessagesCountsDroppedMessages() throws Exception
+  {
+    messagingFactory.configureTopic("a", new MemoryTopicConfig()
+        .setReceiverCapacity(2).setReceiverOverflowPolicy(OverflowPolicy.DROP_OLDEST));
+    final MessageSender sender = startedSender("a");
+    final StoringListener listener = new SlowListener();
+    final MemoryMessageReceiver receiver = (MemoryMessageReceiver) startedReceiver("a", listener);
+
+    for(int i=0; i<50; ++i)
+      sender.sendMessage(encode(Integer.toString(i)));
+
+    assertTrue(messagingFactory.waitForMessages(10, TimeUnit.SECONDS));
+    assertEquals(50, listener.messages.size() + receiver.getDroppedCount());
+  }
+
+  @Test
+  public void metricsCountSentAndDeliveredMessages() throws Exception
+  {
+    final MessageSender sender = startedSender("a");
+    startedReceiver("a");
+    final StoringBatchListener batchListener = new StoringBatchListener();
+    final MessageReceiver batchReceiver = messagingFactory.createReceiver("a");
+    batchReceiver.setBatchListener(batchListener, 10, 0, TimeUnit.MILLISECONDS);
+    batchReceiver.start();
+
+    sender.sendMessage(encode("The"));
+    sender.sendMessages(encode("cat"), encode("sat"));
+    waitForMessages();
+
+    final MessagingMetrics metrics = messagingFactory.getMetrics();
+    final TopicMetrics topic = metrics.getTopic("a");
+    assertEquals(3, topic.getSentCount());
+    assertEquals(0, topic.getQueueDepth());
+    assertEquals(2, topic.getReceiverCount());
+    assertEquals(2, metrics.getReceivers().size());
+    for(final ReceiverMetrics receiver : metrics.getReceivers())
+    {
+      assertEquals("a", receiver.getTopic());
+      assertEquals(3, receiver.getDeliveredCount());
+      assertEquals(3, receiver.getLatency().getCount());
+      assertTrue(receiver.getLatency().getMax() > 0);
+      assertTrue(receiver.getLatency().getP50() <= receiver.getLatency().getMax());
+    }
+  }
+
+  @Test
+  public void metricsReportQueueDepthAndDrops() throws Exception
+  {
+    messagingFactory.configureTopic("a", new MemoryTopicConfig().setDeliveryMode(DeliveryMode.DIRECT)
+        .setReceiverCapacity(2).setReceiverOverflowPolicy(OverflowPolicy.DROP_NEWEST));
+    final MessageSender sender = startedSender("a");
+    final BlockingListener listener = new BlockingListener();
+    startedReceiver("a", listener);
+
+    sender.sendMessage(encode("The"));
+    listener.firstMessage.await();
+    sender.sendMessages(encode("cat"), encode("sat"), encode("on"), encode("the"));
+
+    final ReceiverMetrics blocked = messagingFactory.getMetrics().getReceivers().get(0);
+    assertEquals(2, blocked.getQueueDepth());
+    assertEquals(2, blocked.getOverflowCount());
+    assertEquals(2, blocked.getDroppedCount());
+    listener.release.countDown();
+    waitForMessages();
+
+    final ReceiverMetrics drained = messagingFactory.getMetrics().getReceivers().get(0);
+    assertEquals(0, drained.getQueueDepth());
+    assertEquals(3, drained.getDeliveredCount());
+  }
+
+  @Test
+  public void metricsAreRegisteredWithJmx() throws Exception
+  {
+    messagingFactory.shutdown();
+    messagingFactory = new MemoryMessagingFactory();
+    messagingFactory.setName("metricsTest");
+    messagingFactory.start();
+    final MessageSender sender = startedSender("a");
+    startedReceiver("a");
+    sender.sendMessage(encode("The"));
+    waitForMessages();
+
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    final ObjectName name = new ObjectName("com.ph.coding.messaging:type=MemoryMessagingFactory,name=\"metricsTest\"");
+    final CompositeData[] topics = (CompositeData[]) server.getAttribute(name, "Topics");
+    assertEquals(1, topics.length);
+    assertEquals("a", topics[0].get("topic"));
+    assertEquals(1L, topics[0].get("sentCount"));
+    final CompositeData[] receivers = (CompositeData[]) server.getAttribute(name, "Receivers");
+    assertEquals(1L, ((CompositeData) receivers[0].get("latency")).get("count"));
+
+    messagingFactory.shutdown();
+    assertFalse(server.isRegistered(name));
+    messagingFactory = new MemoryMessagingFactory();
+    messagingFactory.start();
+  }
+
+  @Test
+  public void latencyHistogramPercentilesAreWithinABucket()
+  {
+    final LatencyHistogram histogram = new LatencyHistogram();
+    for(int i=1; i<=100000; ++i)
+      histogram.record(i * 1000L);
+
+    final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+    assertEquals(100000, snapshot.getCount());
+    assertEquals(100000000L, snapshot.getMax());
+    assertEquals(50000500.0, snapshot.getMean(), 1.0);
+    checkWithinABucket(50000000L, snapshot.getP50());
+    checkWithinABucket(99000000L, snapshot.getP99());
+    checkWithinABucket(99900000L, snapshot.getP999());
+    assertEquals(100000000L, snapshot.getValueAtPercentile(100));
+    assertEquals(0, new LatencyHistogram().snapshot().getP99());
+  }
+
+  @Test
+  public void consumerGroupMembersTakeTurns() throws Exception
+  {
+    final MessageSender sender = startedSender("a");
+    final StoringListener member1 = startedGroupMember("a", "g");
+    final StoringListener member2 = startedGroupMember("a", "g");
+    final StoringListener outsider = startedReceiver("a");
+
+    sender.sendMessages(encode("The"), encode("cat"), encode("sat"), encode("on"), encode("the"), encode("mat"));
+    waitForMessages();
+
+    checkMessages(member1, "The", "sat", "the");
+    checkMessages(member2, "cat", "on", "mat");
+    checkMessages(outsider, "The", "cat", "sat", "on", "the", "mat");
+  }
+
+  @Test
+  public void everyGroupGetsEachMessageOnce() throws Exception
+  {
+    messagingFactory.configureTopic("a", new MemoryTopicConfig().setDeliveryMode(DeliveryMode.DIRECT));
+    final MessageSender sender = startedSender("a");
+    final List<StoringListener> groupG = Arrays.asList(startedGroupMember("a", "g"), startedGroupMember("a", "g"),
+        startedGroupMember("a", "g"));
+    final StoringListener groupH = startedGroupMember("a", "h");
+
+    for(int i=0; i<300; ++i)
+      sender.sendMessage(encode(Integer.toString(i)));
+    waitForMessages();
+
+    final List<String> received = new ArrayList<>();
+    for(final StoringListener member : groupG)
+    {
+      assertEquals(100, member.messages.size());
+      member.messages.forEach(message -> received.add(decode(message)));
+    }
+    Collections.sort(received, (x, y) -> Integer.parseInt(x) - Integer.parseInt(y));
+    assertEquals(300, received.size());
+    for(int i=0; i<300; ++i)
+      assertEquals(Integer.toString(i), received.get(i));
+    assertEquals(300, groupH.messages.size());
+  }
+
+  @Test
+  public void stoppedGroupMemberLeavesItsShareToTheOthers() throws Exception
+  {
+    final MessageSender sender = startedSender("a");
+    final MessageReceiver leaving = messagingFactory.createReceiver("a", "g");
+    leaving.setListener(new StoringListener());
+    leaving.start();
+    final StoringListener staying = startedGroupMember("a", "g");
+
+    leaving.stop();
+    sender.sendMessages(encode("The"), encode("cat"), encode("sat"));
+    waitForMessages();
+
+    checkMessages(staying, "The", "cat", "sat");
+  }
+
+  @Test
+  public void leastLoadedGroupPassesOverABusyMember() throws Exception
+  {
+    // the busy member holds on to a worker thread
+    restartWithWorkers(4);
+    messagingFactory.configureTopic("a", new MemoryTopicConfig().setDeliveryMode(DeliveryMode.DIRECT)
+        .setGroupAssignment(GroupAssignment.LEAST_LOADED));
+    final MessageSender sender = startedSender("a");
+    final BlockingListener busy = new BlockingListener();
+    final MessageReceiver busyMember = messagingFactory.createReceiver("a", "g");
+    busyMember.setListener(busy);
+    busyMember.start();
+    final StoringListener idle = startedGroupMember("a", "g");
+
+    sender.sendMessage(encode("0"));
+    busy.firstMessage.await();
+    for(int i=1; i<=10; ++i)
+    {
+      sender.sendMessage(encode(Integer.toString(i)));
+      // wait for the idle member to be idle again, so that every pick sees the same queues
+      final long deadline = System.currentTimeMillis() + 10000;
+      while(idle.messages.size() + ((MemoryMessageReceiver) busyMember).queueSize() < i && System.currentTimeMillis() < deadline)
+        Thread.sleep(1);
+    }
+    busy.release.countDown();
+    waitForMessages();
+
+    // the busy member's turn comes up every other message, but only while its queue is empty
+    checkMessages(busy, "0", "2");
+    checkMessages(idle, "1", "3", "4", "5", "6", "7", "8", "9", "10");
+  }
+
+  @Test
+  public void workStealingGroupMemberTakesOverABacklog() throws Exception
+  {
+    // the busy member holds on to a worker thread
+    restartWithWorkers(4);
+    messagingFactory.configureTopic("a", new MemoryTopicConfig().setGroupAssignment(GroupAssignment.WORK_STEALING));
+    final MessageSender sender = startedSender("a");
+    final BlockingListener busy = new BlockingListener();
+    final MessageReceiver busyMember = messagingFactory.createReceiver("a", "g");
+    busyMember.setListener(busy);
+    busyMember.start();
+    final StoringListener idle = startedGroupMember("a", "g");
+
+    sender.sendMessage(encode("0"));
+    busy.firstMessage.await();
+    final List<byte[]> backlog = new ArrayList<>();
+    for(int i=1; i<=9; ++i)
+      backlog.add(encode(Integer.toString(i)));
+    sender.sendMessages(backlog);
+    final long deadline = System.currentTimeMillis() + 10000;
+    while(idle.messages.size() < 9 && System.currentTimeMillis() < deadline)
+      Thread.sleep(1);
+    busy.release.countDown();
+    waitForMessages();
+
+    checkMessages(busy, "0");
+    assertEquals(9, idle.messages.size());
+    assertEquals(0, ((MemoryMessageReceiver) busyMember).queueSize());
+  }
+
+  @Test(expected = MessagingException.class)
+  public void groupMemberCannotReplay() throws Exception
+  {
+    messagingFactory.configureTopic("a", new MemoryTopicConfig().setRetainedMessages(10));
+    final MemoryMessageReceiver receiver = (MemoryMessageReceiver) messagingFactory.createReceiver("a", "g");
+    receiver.setListener(new StoringListener());
+    receiver.setStartPosition(StartPosition.earliest());
+    receiver.start();
+  }
+
+  @Test(expected = MessagingException.class)
+  public void groupCannotReceiveFromWildcardTopic() throws Exception
+  {
+    messagingFactory.createReceiver("a.*", "g");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void ringBufferCannotBeStolenFrom()
+  {
+    messagingFactory.configureTopic("a", new MemoryTopicConfig().setChannelType(ChannelType.RING_BUFFER)
+        .setGroupAssignment(GroupAssignment.WORK_STEALING));
+  }
+
+  @Test
+  public void partitionedTopicKeepsEachKeyInOrder() throws Exception
+  {
+    restartWithWorkers(4);
+    messagingFactory.configureTopic("a", new MemoryTopicConfig().setPartitions(8));
+    final MessageSender sender = startedSender("a");
+    final StoringListener listener = startedReceiver("a");
+
+    final int keys = 16;
+    for(int i=0; i<200; ++i)
+      for(int k=0; k<keys; ++k)
+        sender.sendMessage("key" + k, encode(k + "-" + i));
+    waitForMessages();
+
+    assertEquals(200 * keys, listener.messages.size());
+    final int[] next = new int[keys];
+    for(final Message message : listener.messages)
+    {
+      final String[] parts = decode(message).split("-");
+      final int key = Integer.parseInt(parts[0]);
+      assertEquals("Key " + key + " out of order", next[key]++, Integer.parseInt(parts[1]));
+    }
+    checkTopics(listener, "a", 200 * keys);
+  }
+
+  @Test
+  public void partitionsAreAssignedToGroupMembers() throws Exception
+  {
+    restartWithWorkers(4);
+    messagingFactory.configureTopic("a", new MemoryTopicConfig().setPartitions(4));
+    final MessageSender sender = startedSender("a");
+    final StoringListener member1 = startedGroupMember("a", "g");
+    final StoringListener member2 = startedGroupMember("a", "g");
+
+    for(int i=0; i<10; ++i)
+      for(int k=0; k<20; ++k)
+        sender.sendMessage("key" + k, encode(k + "-" + i));
+    waitForMessages();
+
+    assertEquals(200, member1.messages.size() + member2.messages.size());
+    for(final StoringListener member : Arrays.asList(member1, member2))
+    {
+      final int[] next = new int[20];
+      for(final Message message : member.messages)
+      {
+        final String[] parts = decode(message).split("-");
+        final int key = Integer.parseInt(parts[0]);
+        // partitions 0 and 2 go to the first member, 1 and 3 to the second
+        assertEquals(member == member1, MemoryChannel.partitionOf(("key" + key).hashCode(), 4) % 2 == 0);
+        assertEquals("Key " + key + " out of order", next[key]++, Integer.parseInt(parts[1]));
+      }
+    }
+  }
+
+  @Test
+  public void blockedPartitionDoesNotHoldUpTheOthers() throws Exception
+  {
+    restartWithWorkers(4);
+    messagingFactory.configureTopic("a", new MemoryTopicConfig().setPartitions(2)
+        .setReceiverCapacity(1).setReceiverOverflowPolicy(OverflowPolicy.BLOCK));
+    final MessageSender sender = startedSender("a");
+    final BlockingListener busy = new BlockingListener();
+    final MessageReceiver busyMember = messagingFactory.createReceiver("a", "g");
+    busyMember.setListener(busy);
+    busyMember.start();
+    final StoringListener free = startedGroupMember("a", "g");
+    final String busyKey = keyForPartition(0, 2);
+    final String freeKey = keyForPartition(1, 2);
+
+    // enough to fill the busy member's queue and hold up its partition's sender
+    for(int i=0; i<5; ++i)
+      sender.sendMessage(busyKey, encode(busyKey));
+    busy.firstMessage.await();
+    for(int i=0; i<5; ++i)
+      sender.sendMessage(freeKey, encode(freeKey));
+    final long deadline = System.currentTimeMillis() + 10000;
+    while(free.messages.size() < 5 && System.currentTimeMillis() < deadline)
+      Thread.sleep(1);
+    assertEquals(5, free.messages.size());
+    assertEquals(0, busy.messages.size());
+
+    busy.release.countDown();
+    waitForMessages();
+    assertEquals(5, busy.messages.size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void topicNeedsAPartition()
+  {
+    new MemoryTopicConfig().setPartitions(0);
+  }
+
+  @Test
+  public void highPriorityMessagesOvertakeTheBacklog() throws Exception
+  {
+    messagingFactory.configureTopic("a", new MemoryTopicConfig().setPriorityLanes(true).setStarvationLimit(0)
+        .setDeliveryMode(DeliveryMode.DIRECT));
+    final MessageSender sender = startedSender("a");
+    final BlockingListener listener = new BlockingListener();
+    startedReceiver("a", listener);
+
+    sender.sendMessage(encode("The"));
+    listener.firstMessage.await();
+    sender.sendMessage(encode("cat"), MessagePriority.LOW);
+    sender.sendMessage(encode("sat"));
+    sender.sendMessage(encode("on"), MessagePriority.LOW);
+    sender.sendMessage(encode("the"), MessagePriority.HIGH);
+    sender.sendMessages(encode("mat"), encode("today"));
+    listener.release.countDown();
+    waitForMessages();
+
+    checkMessages(listener, "The", "the", "sat", "mat", "today", "cat", "on");
+  }
+
+  @Test
+  public void lowerPriorityMessagesAreNotStarved() throws Exception
+  {
+    messagingFactory.configureTopic("a", new MemoryTopicConfig().setPriorityLanes(true).setStarvationLimit(2)
+        .setDeliveryMode(DeliveryMode.DIRECT));
+    final MessageSender sender = startedSender("a");
+    final BlockingListener listener = new BlockingListener();
+    startedReceiver("a", listener);
+
+    sender.sendMessage(encode("0"));
+    listener.firstMessage.await();
+    sender.sendMessage(encode("low1"), MessagePriority.LOW);
+    sender.sendMessage(encode("low2"), MessagePriority.LOW);
+    sender.sendMessage(encode("normal"));
+    for(int i=1; i<=5; ++i)
+      sender.sendMessage(encode("high" + i), MessagePriority.HIGH);
+    listener.release.countDown();
+    waitForMessages();
+
+    // after every two messages taken whilst lower ones wait, the lower lanes take turns at getting one through
+    checkMessages(listener, "0", "high1", "high2", "normal", "high3", "high4", "low1", "high5", "low2");
+  }
+
+  @Test
+  public void prioritiesAreIgnoredWithoutLanes() throws Exception
+  {
+    messagingFactory.configureTopic("a", new MemoryTopicConfig().setDeliveryMode(DeliveryMode.DIRECT));
+    final MessageSender sender = startedSender("a");
+    final BlockingListener listener = new BlockingListener();
+    startedReceiver("a", listener);
+
+    sender.sendMessage(encode("The"));
+    listener.firstMessage.await();
+    sender.sendMessage(encode("cat"), MessagePriority.LOW);
+    sender.sendMessage(encode("sat"), MessagePriority.HIGH);
+    listener.release.countDown();
+    waitForMessages();
+
+    checkMessages(listener, "The", "cat", "sat");
+  }
+
+  @Test
+  public void slowConflatingReceiverOnlySeesTheNewestValueOfEachKey() throws Exception
+  {
+    messagingFactory.configureTopic("a", new MemoryTopicConfig().setDeliveryMode(DeliveryMode.DIRECT)
+        .setConflating(true));
+    final MessageSender sender = startedSender("a");
+    final BlockingListener listener = new BlockingListener();
+    final MemoryMessageReceiver receiver = (MemoryMessageReceiver) startedReceiver("a", listener);
+
+    sender.sendMessage(encode("The"));
+    listener.firstMessage.await();
+    sender.sendMessage("eur", encode("1.10"));
+    sender.sendMessage("usd", encode("1.20"));
+    sender.sendMessage("eur", encode("1.11"));
+    sender.sendMessage(encode("news"));
+    sender.sendMessage(encode("more news"));
+    sender.sendMessage("eur", encode("1.12"));
+    sender.sendMessage("usd", encode("1.21"));
+    listener.release.countDown();
+    waitForMessages();
+
+    checkMessages(listener, "The", "1.12", "1.21", "news", "more news");
+    assertEquals(3, receiver.getConflatedCount());
+    assertEquals(0, receiver.getDroppedCount());
+  }
+
+  @Test
+  public void conflatingReceiverHoldsOneMessagePerKey() throws Exception
+  {
+    messagingFactory.configureTopic("a", new MemoryTopicConfig().setDeliveryMode(DeliveryMode.DIRECT)
+        .setConflating(true).setReceiverCapacity(2).setReceiverOverflowPolicy(OverflowPolicy.FAIL));
+    final MessageSender sender = startedSender("a");
+    final BlockingListener listener = new BlockingListener();
+    final MemoryMessageReceiver receiver = (MemoryMessageReceiver) startedReceiver("a", listener);
+
+    sender.sendMessage(encode("The"));
+    listener.firstMessage.await();
+    for(int i=0; i<100; ++i)
+    {
+      sender.sendMessage("eur", encode("eur" + i));
+      sender.sendMessage("usd", encode("usd" + i));
+    }
+    assertEquals(2, receiver.queueSize());
+    listener.release.countDown();
+    waitForMessages();
+
+    checkMessages(listener, "The", "eur99", "usd99");
+    assertEquals(0, receiver.getOverflowCount());
+    assertEquals(198, receiver.getConflatedCount());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void conflatingReceiversHaveNoPriorityLanes()
+  {
+    messagingFactory.configureTopic("a", new MemoryTopicConfig().setConflating(true).setPriorityLanes(true));
+  }
+
+  @Test
+  public void asyncSendCompletesOnceEveryReceiverHasTheMessage() throws Exception
+  {
+    restartWithWorkers(4);
+    final MessageSender sender = startedSender("a");
+    final BlockingListener busy = new BlockingListener();
+    startedReceiver("a", busy);
+    final StoringListener idle = startedReceiver("a");
+
+    sender.sendMessageAsync(encode("The")).get(10, TimeUnit.SECONDS);
+    busy.firstMessage.await();
+    final CompletableFuture<Void> cat = sender.sendMessageAsync(encode("cat"), SendCompletion.DELIVERED);
+    final long deadline = System.currentTimeMillis() + 10000;
+    while(idle.messages.size() < 2 && System.currentTimeMillis() < deadline)
+      Thread.sleep(1);
+    assertFalse(cat.isDone());
+
+    busy.release.countDown();
+    cat.get(10, TimeUnit.SECONDS);
+    waitForMessages();
+    checkMessages(busy, "The", "cat");
+  }
+
+  @Test
+  public void manyAsyncSendsCanBeInFlight() throws Exception
+  {
+    final MessageSender sender = startedSender("a");
+    final StoringListener listener1 = startedReceiver("a");
+    final StoringListener listener2 = startedReceiver("a");
+
+    final List<CompletableFuture<Void>> sends = new ArrayList<>();
+    for(int i=0; i<2000; ++i)
+      sends.add(sender.sendMessageAsync(encode(Integer.toString(i)), SendCompletion.DELIVERED));
+    CompletableFuture.allOf(sends.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+
+    assertEquals(2000, listener1.messages.size());
+    assertEquals(2000, listener2.messages.size());
+  }
+
+  @Test
+  public void asyncSendWithoutReceiversFails() throws Exception
+  {
+    final MessageSender sender = startedSender("a");
+
+    assertTrue(failureOf(sender.sendMessageAsync(encode("The"))) instanceof MessagingException);
+    assertTrue(failureOf(sender.sendMessageAsync(encode("The"), SendCompletion.DELIVERED)) instanceof MessagingException);
+  }
+
+  @Test
+  public void asyncSendToRetainingTopicWithoutReceiversCompletes() throws Exception
+  {
+    messagingFactory.configureTopic("a", new MemoryTopicConfig().setRetainedMessages(10));
+    final MessageSender sender = startedSender("a");
+
+    sender.sendMessageAsync(encode("The"), SendCompletion.DELIVERED).get(10, TimeUnit.SECONDS);
+
+    final StoringListener listener = startedReceiver("a", StartPosition.earliest());
+    waitForMessages();
+
+    checkMessages(listener, "The");
+  }
+
+  @Test
+  public void asyncSendFailsWhenAReceiverDropsTheMessage() throws Exception
+  {
+    messagingFactory.configureTopic("a", new MemoryTopicConfig().setDeliveryMode(DeliveryMode.DIRECT)
+        .setReceiverCapacity(1).setReceiverOverflowPolicy(OverflowPolicy.DROP_NEWEST));
+    final MessageSender sender = startedSender("a");
+    final BlockingListener listener = new BlockingListener();
+    startedReceiver("a", listener);
+
+    sender.sendMessage(encode("The"));
+    listener.firstMessage.await();
+    final CompletableFuture<Void> cat = sender.sendMessageAsync(encode("cat"), SendCompletion.DELIVERED);
+    final CompletableFuture<Void> sat = sender.sendMessageAsync(encode("sat"), SendCompletion.DELIVERED);
+    assertTrue(failureOf(sat) instanceof MessagingException);
+    listener.release.countDown();
+
+    cat.get(10, TimeUnit.SECONDS);
+    waitForMessages();
+    checkMessages(listener, "The", "cat");
+  }
+
+  @Test
+  public void asyncSendCannotWaitForPersistence() throws Exception
+  {
+    startedReceiver("a");
+    assertTrue(failureOf(startedSender("a").sendMessageAsync(encode("The"), SendCompletion.PERSISTED)) instanceof MessagingException);
+  }
+
+  @Test
+  public void bufferSendsReachEveryReceiverWithoutACopy() throws Exception
+  {
+    final MessageSender sender = startedSender("a");
+    final StoringListener listener1 = startedReceiver("a");
+    final StoringListener listener2 = startedReceiver("a");
+
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(16);
+    buffer.put(encode("--The cat")).flip().position(2);
+    sender.sendMessage(buffer);
+    waitForMessages();
+
+    assertEquals(2, buffer.position());
+    for(final StoringListener listener : Arrays.asList(listener1, listener2))
+    {
+      final ByteBuffer received = listener.messages.get(0).getBuffer();
+      assertTrue(received.isDirect());
+      assertTrue(received.isReadOnly());
+      assertEquals(buffer, received);
+      received.get();
+      checkMessages(listener, "The cat");
+    }
+    assertEquals(0, listener1.messages.get(0).getBuffer().position());
+  }
+
+  @Test
+  public void arraySendsCanBeReadAsBuffers() throws Exception
+  {
+    final MessageSender sender = startedSender("a");
+    final StoringListener listener = startedReceiver("a");
+
+    sender.sendMessage(encode("The"));
+    waitForMessages();
+
+    final ByteBuffer received = listener.messages.get(0).getBuffer();
+    assertTrue(received.isReadOnly());
+    assertEquals(ByteBuffer.wrap(encode("The")), received);
+  }
+
+  @Test
+  public void retainedBufferSendsAreReplayed() throws Exception
+  {
+    messagingFactory.configureTopic("a", new MemoryTopicConfig().setRetainedBytes(6));
+    final MessageSender sender = startedSender("a");
+
+    sender.sendMessage(ByteBuffer.wrap(encode("The")));
+    sender.sendMessage(ByteBuffer.allocateDirect(3).put(encode("cat")).flip());
+    sender.sendMessage(ByteBuffer.allocateDirect(3).put(encode("sat")).flip());
+    waitForMessages();
+    final StoringListener listener = startedReceiver("a", StartPosition.earliest());
+    waitForMessages();
+
+    checkMessages(listener, "cat", "sat");
+  }
+
+  // -------------------------------------------------------------------------------- //
+
+  private void restartWithWorkers(final int threads) throws Exception
+  {
+    messagingFactory.shutdown();
+    dispatcher = Dispatchers.pooled(threads);
+    messagingFactory = new MemoryMessagingFactory();
+    messagingFactory.setDispatcher(dispatcher);
+    messagingFactory.start();
+  }
+
+  private static Throwable failureOf(final CompletableFuture<?> future) throws Exception
+  {
+    try
+    {
+      future.get(10, TimeUnit.SECONDS);
+      fail("Expected the future to fail");
+      return null;
+    }
+    catch(final ExecutionException e)
+    {
+      return e.getCause();
+    }
+  }
+
+  private static String keyForPartition(final int partition, final int partitions)
+  {
+    for(int k=0; ; ++k)
+    {
+      if(MemoryChannel.partitionOf(("key" + k).hashCode(), partitions) == partition)
+        return "key" + k;
+    }
+  }
+
+  private MessageSender startedSender(final String topic) throws MessagingException
+  {
+    final MessageSender sender = messagingFactory.createSender(topic);
+    sender.start();
+    return sender;
+  }
+
+  private StoringListener startedReceiver(final String topic) throws MessagingException
+  {
+    final StoringListener listener = new StoringListener();
+    startedReceiver(topic, listener);
+    return listener;
+  }
+
+  private MessageReceiver startedReceiver(final String topic, final MessageReceiveListener listener) throws MessagingException
+  {
+    final MessageReceiver receiver = messagingFactory.createReceiver(topic);
+    receiver.setListener(listener);
+    receiver.start();
+    return receiver;
+  }
+  
+  private StoringListener startedReceiver(final String topic, final StartPosition position) throws MessagingException
+  {
+    final StoringListener listener = new StoringListener();
+    final MemoryMessageReceiver receiver = (MemoryMessageReceiver) messagingFactory.createReceiver(topic);
+    receiver.setListener(listener);
+    receiver.setStartPosition(position);
+    receiver.start();
+    return listener;
+  }
+
+  private StoringListener startedGroupMember(final String topic, final String group) throws MessagingException
+  {
+    final StoringListener listener = new StoringListener();
+    final MessageReceiver receiver = messagingFactory.createReceiver(topic, group);
+    receiver.setListener(listener);
+    receiver.start();
+    return listener;
+  }
+
+  private MessageReceiver createReceiverNoListener(final String topic) throws MessagingException
+  {
+	  final MessageReceiver receiver = messagingFactory.createReceiver(topic);
+	  
+	  return receiver;
+  }
+
+  private void waitForMessages() throws Exception
+  {
+    //messagingFactory.waitForMessages(5000);
+	  messagingFactory.waitForMessages();
+  }
+  
+
+  private static void checkMessages(final StoringListener listener, final String... messages)
+  {
+    assertEquals(messages.length, listener.messages.size());
+    for(int i=0; i<messages.length; ++i)
+      assertEquals("Message " + i + " different", messages[i], decode(listener.messages.get(i)));
+  }
+
+  private static void checkTopics(final StoringListener listener, final String... topics)
+  {
+    assertEquals(topics.length, listener.topics.size());
+    for(int i=0; i<topics.length; ++i)
+      assertEquals("Topic " + i + " different", topics[i], listener.topics.get(i));
+  }
+
+  private static void checkTopics(final StoringListener listener, final String topic, final int num)
+  {
+    assertEquals(num, listener.topics.size());
+    for(int i=0; i<num; ++i)
+      assertEquals("Topic " + i + " different", topic, listener.topics.get(i));
+  }
+
+  /**
+   * Percentiles err on the high side by at most the width of a bucket, a sixteenth of the power of two below them.
+   */
+  private static void checkWithinABucket(final long expected, final long actual)
+  {
+    assertTrue(actual + " below " + expected, actual >= expected);
+    assertTrue(actual + " too far above " + expected, actual <= expected + Long.highestOneBit(expected) / LatencyHistogram.SUB_BUCKETS);
+  }
+
+  private static byte[] encode(final String string)
+  {
+    return string.getBytes();
+  }
+
+  private static String decode(final Message message)
+  {
+    return new String(message.getMsg());
+  }
+
+  /**
+   * Holds up the first message until released, so that later ones queue up.
+   */
+  private static class BlockingListener extends StoringListener
+  {
+    public final CountDownLatch firstMessage = new CountDownLatch(1);
+    public final CountDownLatch release = new CountDownLatch(1);
+
+    @Override
+    public void onMessage(final Message message, final String topic)
+    {
+      firstMessage.countDown();
+      try
+      {
+        release.await();
+      }
+      catch(final InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+      super.onMessage(message, topic);
+    }
+  }
+
+  private static class SlowListener extends StoringListener
+  {
+    @Override
+    public void onMessage(final Message message, final String topic)
+    {
+      try
+      {
+        Thread.sleep(5);
+      }
+      catch(final InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+      super.onMessage(message, topic);
+    }
+  }
+
+  private static class StoringBatchListener extends StoringListener implements MessageBatchReceiveListener
+  {
+    public final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+
+    @Override
+    public void onMessages(final List<Message> messages, final String topic)
+    {
+      batchSizes.add(messages.size());
+      for(final Message message : messages)
+        onMessage(message, topic);
+    }
   }
 
   private static class StoringListener implements MessageReceiveListener
@@ -0,0 +1,351 @@
+package com.ph.coding.messaging.memory;
+
+import java.util.concurrent.TimeUnit;
+
+import com.ph.coding.messaging.MessagePriority;
+
+/**
+ * Settings for the {@link MemoryChannel} of a topic. The configuration in force when a topic's channel is first
+ * created (by the first sender or receiver on it) is used for the lifetime of that channel.
+ */
+public class MemoryTopicConfig {
+
+	public static final int DEFAULT_RING_BUFFER_SIZE = 1024;
+	public static final int DEFAULT_STARVATION_LIMIT = 16;
+
+	private ChannelType channelType = ChannelType.LINKED_QUEUE;
+	private int ringBufferSize = DEFAULT_RING_BUFFER_SIZE;
+	private DeliveryMode deliveryMode = DeliveryMode.QUEUED;
+	private int channelCapacity;
+	private OverflowPolicy channelOverflowPolicy = OverflowPolicy.BLOCK;
+	private int receiverCapacity;
+	private OverflowPolicy receiverOverflowPolicy = OverflowPolicy.BLOCK;
+	private int retainedMessages;
+	private long retainedBytes;
+	private long retentionMillis;
+	private GroupAssignment groupAssignment = GroupAssignment.ROUND_ROBIN;
+	private int partitions = 1;
+	private MessageIsolation isolation = MessageIsolation.SHARED;
+	private boolean priorityLanes;
+	private int starvationLimit = DEFAULT_STARVATION_LIMIT;
+	private boolean conflating;
+
+	public MemoryTopicConfig() {
+	}
+
+	public MemoryTopicConfig(MemoryTopicConfig other) {
+		this.channelType = other.channelType;
+		this.ringBufferSize = other.ringBufferSize;
+		this.deliveryMode = other.deliveryMode;
+		this.channelCapacity = other.channelCapacity;
+		this.channelOverflowPolicy = other.channelOverflowPolicy;
+		this.receiverCapacity = other.receiverCapacity;
+		this.receiverOverflowPolicy = other.receiverOverflowPolicy;
+		this.retainedMessages = other.retainedMessages;
+		this.retainedBytes = other.retainedBytes;
+		this.retentionMillis = other.retentionMillis;
+		this.groupAssignment = other.groupAssignment;
+		this.isolation = other.isolation;
+		this.priorityLanes = other.priorityLanes;
+		this.starvationLimit = other.starvationLimit;
+		this.conflating = other.conflating;
+		this.partitions = other.partitions;
+	}
+
+	public ChannelType getChannelType() {
+		return channelType;
+	}
+
+	public MemoryTopicConfig setChannelType(ChannelType channelType) {
+		if (channelType == null) {
+			throw new IllegalArgumentException("Channel type must not be null");
+		}
+		this.channelType = channelType;
+		return this;
+	}
+
+	public int getRingBufferSize() {
+		return ringBufferSize;
+	}
+
+	/**
+	 * @param ringBufferSize Number of preallocated slots for a {@link ChannelType#RING_BUFFER} channel, must be a
+	 *        power of 2.
+	 */
+	public MemoryTopicConfig setRingBufferSize(int ringBufferSize) {
+		if (ringBufferSize < 1 || Integer.bitCount(ringBufferSize) != 1) {
+			throw new IllegalArgumentException("Ring buffer size must be a positive power of 2: " + ringBufferSize);
+		}
+		this.ringBufferSize = ringBufferSize;
+		return this;
+	}
+
+	public DeliveryMode getDeliveryMode() {
+		return deliveryMode;
+	}
+
+	public MemoryTopicConfig setDeliveryMode(DeliveryMode deliveryMode) {
+		if (deliveryMode == null) {
+			throw new IllegalArgumentException("Delivery mode must not be null");
+		}
+		this.deliveryMode = deliveryMode;
+		return this;
+	}
+
+	public int getChannelCapacity() {
+		return channelCapacity;
+	}
+
+	/**
+	 * @param channelCapacity Most messages held in a {@link ChannelType#LINKED_QUEUE} channel queue, 0 for unbounded.
+	 *        Ring buffer queues are always bounded by the ring buffer size.
+	 */
+	public MemoryTopicConfig setChannelCapacity(int channelCapacity) {
+		if (channelCapacity < 0) {
+			throw new IllegalArgumentException("Capacity must not be negative: " + channelCapacity);
+		}
+		this.channelCapacity = channelCapacity;
+		return this;
+	}
+
+	public OverflowPolicy getChannelOverflowPolicy() {
+		return channelOverflowPolicy;
+	}
+
+	public MemoryTopicConfig setChannelOverflowPolicy(OverflowPolicy channelOverflowPolicy) {
+		if (channelOverflowPolicy == null) {
+			throw new IllegalArgumentException("Overflow policy must not be null");
+		}
+		this.channelOverflowPolicy = channelOverflowPolicy;
+		return this;
+	}
+
+	public int getReceiverCapacity() {
+		return receiverCapacity;
+	}
+
+	/**
+	 * @param receiverCapacity Most messages held in a {@link ChannelType#LINKED_QUEUE} receiver queue, 0 for
+	 *        unbounded. Ring buffer queues are always bounded by the ring buffer size.
+	 */
+	public MemoryTopicConfig setReceiverCapacity(int receiverCapacity) {
+		if (receiverCapacity < 0) {
+			throw new IllegalArgumentException("Capacity must not be negative: " + receiverCapacity);
+		}
+		this.receiverCapacity = receiverCapacity;
+		return this;
+	}
+
+	public OverflowPolicy getReceiverOverflowPolicy() {
+		return receiverOverflowPolicy;
+	}
+
+	public MemoryTopicConfig setReceiverOverflowPolicy(OverflowPolicy receiverOverflowPolicy) {
+		if (receiverOverflowPolicy == null) {
+			throw new IllegalArgumentException("Overflow policy must not be null");
+		}
+		this.receiverOverflowPolicy = receiverOverflowPolicy;
+		return this;
+	}
+
+	public int getRetainedMessages() {
+		return retainedMessages;
+	}
+
+	/**
+	 * @param retainedMessages Most messages kept by the channel for receivers that start from an earlier position, 0
+	 *        for no limit on the count.
+	 */
+	public MemoryTopicConfig setRetainedMessages(int retainedMessages) {
+		if (retainedMessages < 0) {
+			throw new IllegalArgumentException("Retained messages must not be negative: " + retainedMessages);
+		}
+		this.retainedMessages = retainedMessages;
+		return this;
+	}
+
+	public long getRetainedBytes() {
+		return retainedBytes;
+	}
+
+	/**
+	 * @param retainedBytes Most payload bytes kept by the channel for receivers that start from an earlier position, 0
+	 *        for no limit on the size.
+	 */
+	public MemoryTopicConfig setRetainedBytes(long retainedBytes) {
+		if (retainedBytes < 0) {
+			throw new IllegalArgumentException("Retained bytes must not be negative: " + retainedBytes);
+		}
+		this.retainedBytes = retainedBytes;
+		return this;
+	}
+
+	public long getRetentionMillis() {
+		return retentionMillis;
+	}
+
+	/**
+	 * @param retentionTime Longest time the channel keeps a message for receivers that start from an earlier
+	 *        position, 0 for no limit on the age.
+	 * @param unit Unit of {@code retentionTime}.
+	 */
+	public MemoryTopicConfig setRetentionTime(long retentionTime, TimeUnit unit) {
+		if (retentionTime < 0) {
+			throw new IllegalArgumentException("Retention time must not be negative: " + retentionTime);
+		}
+		this.retentionMillis = unit.toMillis(retentionTime);
+		return this;
+	}
+
+	public GroupAssignment getGroupAssignment() {
+		return groupAssignment;
+	}
+
+	/**
+	 * @param groupAssignment How the consumer groups on the topic share its messages between their members.
+	 */
+	public MemoryTopicConfig setGroupAssignment(GroupAssignment groupAssignment) {
+		if (groupAssignment == null) {
+			throw new IllegalArgumentException("Group assignment must not be null");
+		}
+		this.groupAssignment = groupAssignment;
+		return this;
+	}
+
+	public int getPartitions() {
+		return partitions;
+	}
+
+	/**
+	 * @param partitions Number of queues the channel spreads messages over, each fanned out by a task of its own so
+	 *        that partitions are delivered in parallel. Messages sent with the same key, or without a key from the
+	 *        same thread, go to the same partition and stay in order; there is no order across partitions. Consumer
+	 *        groups on a partitioned topic assign each partition to one member. 1 by default.
+	 */
+	public MemoryTopicConfig setPartitions(int partitions) {
+		if (partitions < 1) {
+			throw new IllegalArgumentException("Partitions must be at least 1: " + partitions);
+		}
+		this.partitions = partitions;
+		return this;
+	}
+
+	public MessageIsolation getIsolation() {
+		return isolation;
+	}
+
+	/**
+	 * @param isolation How far each receiver's message is kept apart from the other receivers' copies of it.
+	 *        {@link MessageIsolation#SHARED} by default.
+	 */
+	public MemoryTopicConfig setIsolation(MessageIsolation isolation) {
+		if (isolation == null) {
+			throw new IllegalArgumentException("Isolation must not be null");
+		}
+		this.isolation = isolation;
+		return this;
+	}
+
+	public boolean isPriorityLanes() {
+		return priorityLanes;
+	}
+
+	/**
+	 * @param priorityLanes Whether the channel and receiver queues keep a lane per {@link MessagePriority}, each with
+	 *        the full capacity, and take from the highest priority lane with messages waiting first. Messages of
+	 *        different priorities may then be delivered in a different order than they were sent. Without lanes the
+	 *        priority of a message is ignored. Off by default.
+	 */
+	public MemoryTopicConfig setPriorityLanes(boolean priorityLanes) {
+		this.priorityLanes = priorityLanes;
+		return this;
+	}
+
+	public int getStarvationLimit() {
+		return starvationLimit;
+	}
+
+	/**
+	 * @param starvationLimit Most messages a queue with priority lanes takes from higher priority lanes in a row whilst
+	 *        lower priority messages are waiting, before it takes one of those, 0 to always take the highest priority
+	 *        first. {@value #DEFAULT_STARVATION_LIMIT} by default.
+	 */
+	public MemoryTopicConfig setStarvationLimit(int starvationLimit) {
+		if (starvationLimit < 0) {
+			throw new IllegalArgumentException("Starvation limit must not be negative: " + starvationLimit);
+		}
+		this.starvationLimit = starvationLimit;
+		return this;
+	}
+
+	public boolean isConflating() {
+		return conflating;
+	}
+
+	/**
+	 * @param conflating Whether receiver queues keep only the newest waiting message of each key, so that a slow
+	 *        receiver skips the intermediate values and holds at most one message per key plus those sent without a
+	 *        key, up to the receiver capacity. A newer message takes the place of the one it replaces in the queue,
+	 *        which counts as dropped for {@link com.ph.coding.messaging.SendCompletion#DELIVERED} completions.
+	 *        Receiver queues then ignore the channel type. Off by default.
+	 */
+	public MemoryTopicConfig setConflating(boolean conflating) {
+		this.conflating = conflating;
+		return this;
+	}
+
+	/**
+	 * @return Whether the channel keeps sent messages at all, which it does as soon as any retention limit is set.
+	 */
+	public boolean isRetaining() {
+		return retainedMessages > 0 || retainedBytes > 0 || retentionMillis > 0;
+	}
+
+	/**
+	 * @throws IllegalArgumentException If the settings do not work together.
+	 */
+	void validate() {
+		if (channelType == ChannelType.RING_BUFFER
+				&& (channelOverflowPolicy == OverflowPolicy.DROP_OLDEST || receiverOverflowPolicy == OverflowPolicy.DROP_OLDEST)) {
+			throw new IllegalArgumentException("Ring buffer queues cannot drop their oldest message, only the consumer may take from them");
+		}
+		if (channelType == ChannelType.RING_BUFFER && groupAssignment == GroupAssignment.WORK_STEALING) {
+			throw new IllegalArgumentException("Ring buffer queues cannot be stolen from, only the consumer may take from them");
+		}
+		if (conflating && priorityLanes) {
+			throw new IllegalArgumentException("Conflating receiver queues have no priority lanes");
+		}
+	}
+
+	MessageQueue newChannelQueue() {
+		return newQueue(channelCapacity);
+	}
+
+	MessageQueue newReceiverQueue() {
+		if (conflating) {
+			return new ConflatingMessageQueue(receiverCapacity);
+		}
+		return newQueue(receiverCapacity);
+	}
+
+	private MessageQueue newQueue(int capacity) {
+		if (priorityLanes) {
+			MessageQueue[] lanes = new MessageQueue[MessagePriority.values().length];
+			for (int i = 0; i < lanes.length; i++) {
+				lanes[i] = newLane(capacity);
+			}
+			return new PriorityMessageQueue(lanes, starvationLimit);
+		}
+		return newLane(capacity);
+	}
+
+	private MessageQueue newLane(int capacity) {
+		switch (channelType) {
+		case RING_BUFFER:
+			return new RingBufferQueue(ringBufferSize);
+		case LINKED_QUEUE:
+		default:
+			return new LinkedMessageQueue(capacity);
+		}
+	}
+}
@@ -0,0 +1,25 @@
+package com.ph.coding.messaging.memory;
+
+/**
+ * How the messages that the receivers of a topic get for the same send are kept apart, trading the cost of fanning a
+ * message out against what a listener that writes to {@link com.ph.coding.messaging.Message#getMsg()} can do to the
+ * other receivers. Every receiver always gets a message object of its own, and
+ * {@link com.ph.coding.messaging.Message#getBuffer()} is always read-only.
+ */
+public enum MessageIsolation {
+	/**
+	 * Receivers share the payload, which is never copied. Listeners must treat the array as read-only, as a change
+	 * shows up in every other receiver's message, and in every later message if the array goes back to the pool.
+	 */
+	SHARED,
+	/**
+	 * Each receiver gets a copy of the payload of its own, taken from the pool if the factory has one, whether or not
+	 * its listener ever looks at it.
+	 */
+	COPY,
+	/**
+	 * Receivers share the payload until a listener asks for it as an array, which then gets a copy of its own. Reading
+	 * through the buffer never copies, but each receiver's message is a wrapper that is not pooled.
+	 */
+	COPY_ON_ACCESS
+}
@@ -0,0 +1,164 @@
+package com.ph.coding.messaging.memory;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.ph.coding.messaging.memory.PooledMessage.PooledBuffer;
+
+/**
+ * Pool of message payload buffers, so that once warmed up, publishing and delivering messages allocates nothing but
+ * the small message handles. Channels only pool when the factory is given a pool, as copying into the pool costs more
+ * than wrapping the sent array unless senders reuse their arrays.
+ * <p/>
+ * Buffers are kept by exact payload length, as {@link com.ph.coding.messaging.Message#getMsg()} hands out the whole
+ * array, which is what lets readers of the array go without a copy. The free buffers of all lengths together are kept
+ * within {@code maxPooledBytes}, which should cover the messages that can be in flight (queued in channels and
+ * receivers) at once, or buffers will keep being dropped and reallocated; once the budget is taken up, buffers of
+ * lengths that have no free buffers left are not kept, so the pool suits payloads of a few lengths rather than of
+ * widely varying ones. Payloads longer than {@code maxPooledLength} are not pooled at all. Messages that are never
+ * disposed are simply not returned to the pool, optionally reported by a sampling leak detector.
+ * <p/>
+ * Handles are not pooled: a handle that has been disposed stays disposed, so code that wrongly holds on to one gets an
+ * {@link IllegalStateException} rather than another message's payload.
+ */
+public class MessagePool {
+
+	public static final int DEFAULT_MAX_POOLED_LENGTH = 16 * 1024;
+	public static final long DEFAULT_MAX_POOLED_BYTES = 16 * 1024 * 1024;
+
+	private final int maxPooledLength;
+	private final long maxPooledBytes;
+	private final AtomicLong pooledBytes = new AtomicLong();
+	// indexed by payload length, created as lengths are first pooled
+	private final AtomicReferenceArray<SizeClass> sizeClasses;
+	private final LeakDetector leakDetector;
+
+	public MessagePool() {
+		this(DEFAULT_MAX_POOLED_LENGTH, DEFAULT_MAX_POOLED_BYTES, 0);
+	}
+
+	/**
+	 * @param maxPooledLength Longest payload that is pooled.
+	 * @param maxPooledBytes Most bytes kept in free buffers, of all sizes together.
+	 * @param leakSamplingInterval Track one in this many messages for leaks, 0 to disable leak detection.
+	 */
+	public MessagePool(int maxPooledLength, long maxPooledBytes, int leakSamplingInterval) {
+		if (maxPooledLength < 0 || maxPooledBytes < 0) {
+			throw new IllegalArgumentException("Pool limits must not be negative");
+		}
+		this.maxPooledLength = maxPooledLength;
+		this.maxPooledBytes = maxPooledBytes;
+		this.sizeClasses = new AtomicReferenceArray<>(maxPooledLength + 1);
+		this.leakDetector = new LeakDetector(leakSamplingInterval);
+	}
+
+	/**
+	 * @return A new message holding a copy of the given payload.
+	 */
+	public PooledMessage acquire(byte[] payload) {
+		PooledBuffer buffer = acquireBuffer(payload.length);
+		System.arraycopy(payload, 0, buffer.data, 0, payload.length);
+		return newHandle(buffer);
+	}
+
+	/**
+	 * @return Another handle on the same payload as the given message, which stays in use until both are disposed.
+	 */
+	public PooledMessage duplicate(PooledMessage message) {
+		PooledBuffer buffer = message.buffer;
+		if (buffer == null) {
+			throw new IllegalStateException("Message has already been disposed");
+		}
+		buffer.retain();
+		return newHandle(buffer);
+	}
+
+	/**
+	 * Reports any leaks found since the last check.
+	 *
+	 * @return The total number of leaked messages found so far.
+	 */
+	public long checkForLeaks() {
+		return leakDetector.reportLeaks();
+	}
+
+	void release(PooledMessage message) {
+		PooledBuffer buffer = message.buffer;
+		message.buffer = null;
+		if (message.tracker != null) {
+			leakDetector.close(message.tracker);
+			message.tracker = null;
+		}
+		if (buffer.release()) {
+			releaseBuffer(buffer);
+		}
+	}
+
+	private PooledMessage newHandle(PooledBuffer buffer) {
+		PooledMessage message = new PooledMessage(this, buffer);
+		if (leakDetector.isEnabled()) {
+			message.tracker = leakDetector.track(message);
+		}
+		return message;
+	}
+
+	private PooledBuffer acquireBuffer(int length) {
+		PooledBuffer buffer = null;
+		if (length <= maxPooledLength) {
+			SizeClass sizeClass = sizeClasses.get(length);
+			buffer = sizeClass == null ? null : sizeClass.poll();
+			if (buffer != null) {
+				pooledBytes.addAndGet(-length);
+			}
+		}
+		if (buffer == null) {
+			buffer = new PooledBuffer(length);
+		}
+		buffer.init();
+		return buffer;
+	}
+
+	private void releaseBuffer(PooledBuffer buffer) {
+		int length = buffer.data.length;
+		if (length > maxPooledLength) {
+			return;
+		}
+		if (pooledBytes.addAndGet(length) > maxPooledBytes) {
+			pooledBytes.addAndGet(-length);
+			return;
+		}
+		sizeClass(length).offer(buffer);
+	}
+
+	private SizeClass sizeClass(int length) {
+		SizeClass sizeClass = sizeClasses.get(length);
+		if (sizeClass == null) {
+			sizeClasses.compareAndSet(length, null, new SizeClass());
+			sizeClass = sizeClasses.get(length);
+		}
+		return sizeClass;
+	}
+
+	private static final class SizeClass {
+		private PooledBuffer[] free = new PooledBuffer[16];
+		private int count;
+
+		synchronized PooledBuffer poll() {
+			if (count == 0) {
+				return null;
+			}
+			PooledBuffer buffer = free[--count];
+			free[count] = null;
+			return buffer;
+		}
+
+		// the byte budget of the pool bounds how many are kept
+		synchronized void offer(PooledBuffer buffer) {
+			if (count == free.length) {
+				free = Arrays.copyOf(free, count * 2);
+			}
+			free[count++] = buffer;
+		}
+	}
+}
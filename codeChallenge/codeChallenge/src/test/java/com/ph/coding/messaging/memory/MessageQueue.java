@@ -0,0 +1,76 @@
+package com.ph.coding.messaging.memory;
+
+import com.ph.coding.messaging.Message;
+
+/**
+ * Queue of messages waiting to be fanned out by a {@link MemoryChannel}. Implementations must be safe for many
+ * producers and a single consumer and keep messages from any one producer thread in the order they were put.
+ * <p/>
+ * The consumer never blocks; it polls from a {@link SerialTask} that the producers signal after each put. Only
+ * {@link LinkedMessageQueue} and {@link ConflatingMessageQueue} also allow producers to poll, which
+ * {@link OverflowPolicy#DROP_OLDEST} relies on.
+ * <p/>
+ * A queue may keep its messages in several lanes, as {@link PriorityMessageQueue} does, in which case only the
+ * messages in the same lane are taken in the order they were put.
+ */
+interface MessageQueue {
+
+	void put(Message msg) throws InterruptedException;
+
+	/**
+	 * Puts the first {@code count} messages of the array, in order and with no other producer's messages in between,
+	 * waiting for room as necessary.
+	 *
+	 * @param wakeConsumer Run before waiting for room part way through the batch, as the producer only signals the
+	 *        consumer once the whole batch is in.
+	 */
+	void putAll(Message[] msgs, int count, Runnable wakeConsumer) throws InterruptedException;
+
+	/**
+	 * @return Whether the message was added, {@code false} if the queue is full.
+	 */
+	boolean offer(Message msg);
+
+	Message poll();
+
+	/**
+	 * @return Whether the queue keeps only the newest waiting message of each key, see {@link #replace(Message)}.
+	 */
+	default boolean conflates() {
+		return false;
+	}
+
+	/**
+	 * Puts the message in place of a waiting message it supersedes, for queues that {@link #conflates() conflate}.
+	 *
+	 * @return The message replaced, or {@code null} if the message has to be put as usual.
+	 */
+	default Message replace(Message msg) {
+		return null;
+	}
+
+	/**
+	 * Takes the message that has to go to make room for the given one, for {@link OverflowPolicy#DROP_OLDEST}.
+	 */
+	default Message pollToMakeRoomFor(Message msg) {
+		return poll();
+	}
+
+	boolean isEmpty();
+
+	int size();
+
+	/**
+	 * @return How many lanes the queue keeps, each of which is first-in first-out on its own.
+	 */
+	default int lanes() {
+		return 1;
+	}
+
+	/**
+	 * @return The lane the message goes in, between 0 and {@link #lanes()}.
+	 */
+	default int laneOf(Message msg) {
+		return 0;
+	}
+}
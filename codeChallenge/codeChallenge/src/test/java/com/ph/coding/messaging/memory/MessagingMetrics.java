@@ -0,0 +1,37 @@
+package com.ph.coding.messaging.memory;
+
+import java.util.List;
+
+/**
+ * The metrics of every topic and receiver of a {@link MemoryMessagingFactory} at one point in time.
+ */
+public final class MessagingMetrics {
+
+	private final List<TopicMetrics> topics;
+	private final List<ReceiverMetrics> receivers;
+
+	MessagingMetrics(List<TopicMetrics> topics, List<ReceiverMetrics> receivers) {
+		this.topics = topics;
+		this.receivers = receivers;
+	}
+
+	public List<TopicMetrics> getTopics() {
+		return topics;
+	}
+
+	public List<ReceiverMetrics> getReceivers() {
+		return receivers;
+	}
+
+	/**
+	 * @return The metrics of the given topic, or {@code null} if the factory has no channel for it.
+	 */
+	public TopicMetrics getTopic(String topic) {
+		for (TopicMetrics metrics : topics) {
+			if (metrics.getTopic().equals(topic)) {
+				return metrics;
+			}
+		}
+		return null;
+	}
+}
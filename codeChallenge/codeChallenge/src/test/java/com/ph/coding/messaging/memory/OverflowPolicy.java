@@ -0,0 +1,31 @@
+package com.ph.coding.messaging.memory;
+
+/**
+ * What happens to a message that arrives at a full channel or receiver queue.
+ */
+public enum OverflowPolicy {
+
+	/**
+	 * Wait for room. For a receiver queue filled by its channel this holds up the channel (and so, once the channel's
+	 * own queue is full, its senders) rather than a dispatcher thread.
+	 */
+	BLOCK,
+
+	/**
+	 * Reject the message with a {@link com.ph.coding.messaging.MessagingException} to the sender. Where there is no
+	 * sender to report to, i.e. when a queued channel fans out to a full receiver, the message is dropped for that
+	 * receiver instead.
+	 */
+	FAIL,
+
+	/**
+	 * Drop the message that just arrived.
+	 */
+	DROP_NEWEST,
+
+	/**
+	 * Drop the oldest queued message to make room for the one that just arrived. Only supported by
+	 * {@link ChannelType#LINKED_QUEUE} queues.
+	 */
+	DROP_OLDEST
+}
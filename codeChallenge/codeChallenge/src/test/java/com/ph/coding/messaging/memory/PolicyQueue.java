@@ -0,0 +1,274 @@
+package com.ph.coding.messaging.memory;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import com.ph.coding.messaging.Message;
+import com.ph.coding.messaging.MessagingException;
+
+/**
+ * A {@link MessageQueue} together with the {@link OverflowPolicy} applied when it is full, counting how often it
+ * overflowed and how many messages were dropped because of that.
+ * <p/>
+ * Every message offered is counted as published to the {@link DeliveryCounter} of its lane of the queue; messages that
+ * do not make it into the queue are settled straight away, whilst those that do are settled by the consumer once it is
+ * done with them. Lanes are only first-in first-out on their own, so each has a counter of its own.
+ * <p/>
+ * A message that replaces a waiting one in a queue that {@link MessageQueue#conflates() conflates} takes over that
+ * message's count, so it is not published itself; the message replaced is disposed of, and never dropped by the policy.
+ */
+final class PolicyQueue {
+
+	private final MessageQueue queue;
+	private final OverflowPolicy policy;
+	private final String description;
+	private final LongAdder overflows = new LongAdder();
+	private final LongAdder drops = new LongAdder();
+	private final LongAdder conflations = new LongAdder();
+	private final DeliveryCounter[] counters;
+	private final boolean conflates;
+
+	/**
+	 * @param description What the queue belongs to, for error messages.
+	 */
+	PolicyQueue(MessageQueue queue, OverflowPolicy policy, String description) {
+		this.queue = queue;
+		this.policy = policy;
+		this.description = description;
+		this.conflates = queue.conflates();
+		this.counters = new DeliveryCounter[queue.lanes()];
+		for (int i = 0; i < counters.length; i++) {
+			counters[i] = new DeliveryCounter();
+		}
+	}
+
+	/**
+	 * Adds a message on behalf of a sender that can wait or be told about a rejection.
+	 *
+	 * @throws MessagingException If the queue is full and the policy is {@link OverflowPolicy#FAIL}, the message has
+	 *         then been disposed.
+	 */
+	void put(Message msg) throws InterruptedException, MessagingException {
+		put(msg, null);
+	}
+
+	/**
+	 * @param wakeConsumer Run before waiting for room, when the consumer has not been told about earlier messages yet.
+	 */
+	private void put(Message msg, Runnable wakeConsumer) throws InterruptedException, MessagingException {
+		if (conflates && conflate(msg)) {
+			return;
+		}
+		if (policy == OverflowPolicy.BLOCK) {
+			DeliveryCounter counter = counters[queue.laneOf(msg)];
+			counter.published(1);
+			if (!queue.offer(msg)) {
+				overflows.increment();
+				if (wakeConsumer != null) {
+					wakeConsumer.run();
+				}
+				try {
+					queue.put(msg);
+				} catch (InterruptedException e) {
+					counter.settled(1);
+					throw e;
+				}
+			}
+			return;
+		}
+		if (!offer(msg)) {
+			msg.dispose();
+			throw new MessagingException("Queue of " + description + " is full");
+		}
+	}
+
+	/**
+	 * Adds a batch of messages, which the consumer is only told about once they are all in.
+	 *
+	 * @param wakeConsumer Tells the consumer about the messages already in, should the queue fill up part way through.
+	 */
+	void putAll(Message[] msgs, Runnable wakeConsumer) throws InterruptedException, MessagingException {
+		if (policy == OverflowPolicy.BLOCK && !conflates) {
+			for (Message msg : msgs) {
+				counters[queue.laneOf(msg)].published(1);
+			}
+			try {
+				queue.putAll(msgs, msgs.length, wakeConsumer);
+			} catch (InterruptedException e) {
+				// the queue does not say how many it took, so waitForMessages may return before those are delivered
+				for (Message msg : msgs) {
+					counters[queue.laneOf(msg)].settled(1);
+				}
+				throw e;
+			}
+			return;
+		}
+		for (int i = 0; i < msgs.length; i++) {
+			try {
+				put(msgs[i], wakeConsumer);
+			} catch (MessagingException e) {
+				for (int j = i + 1; j < msgs.length; j++) {
+					msgs[j].dispose();
+				}
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Adds a message without waiting. A full queue is dealt with according to the policy, except that neither
+	 * {@link OverflowPolicy#BLOCK} nor {@link OverflowPolicy#FAIL} dispose of the message: both leave it to the caller,
+	 * to wait or to fail.
+	 *
+	 * @return Whether the message was dealt with, {@code false} if the queue is full and the policy is to block or
+	 *         fail.
+	 */
+	boolean offer(Message msg) {
+		if (conflates && conflate(msg)) {
+			return true;
+		}
+		DeliveryCounter counter = counters[queue.laneOf(msg)];
+		counter.published(1);
+		if (queue.offer(msg)) {
+			return true;
+		}
+		overflows.increment();
+		switch (policy) {
+		case DROP_NEWEST:
+			drops.increment();
+			msg.dispose();
+			counter.settled(1);
+			return true;
+		case DROP_OLDEST:
+			do {
+				Message oldest = queue.pollToMakeRoomFor(msg);
+				if (oldest != null) {
+					drops.increment();
+					oldest.dispose();
+					counter.settled(1);
+				}
+			} while (!queue.offer(msg));
+			return true;
+		case BLOCK:
+		case FAIL:
+		default:
+			counter.settled(1);
+			return false;
+		}
+	}
+
+	/**
+	 * Adds a message without waiting and without anyone to report a failure to, so {@link OverflowPolicy#FAIL}
+	 * drops the message.
+	 *
+	 * @return Whether the message was dealt with, {@code false} only if the queue is full and the policy is to block.
+	 */
+	boolean offerOrDrop(Message msg) {
+		if (offer(msg)) {
+			return true;
+		}
+		if (policy == OverflowPolicy.FAIL) {
+			drops.increment();
+			msg.dispose();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Tries again to add a message after {@link #offerOrDrop(Message)} found the queue full, without counting
+	 * another overflow.
+	 */
+	boolean retry(Message msg) {
+		if (conflates && conflate(msg)) {
+			return true;
+		}
+		DeliveryCounter counter = counters[queue.laneOf(msg)];
+		counter.published(1);
+		if (queue.offer(msg)) {
+			return true;
+		}
+		counter.settled(1);
+		return false;
+	}
+
+	/**
+	 * @return Whether the message took the place of a waiting one, which has been disposed of.
+	 */
+	private boolean conflate(Message msg) {
+		Message replaced = queue.replace(msg);
+		if (replaced == null) {
+			return false;
+		}
+		conflations.increment();
+		replaced.dispose();
+		return true;
+	}
+
+	/**
+	 * Called by the consumer once it is done with messages it polled from the given lane.
+	 */
+	void settled(int lane, int count) {
+		counters[lane].settled(count);
+	}
+
+	/**
+	 * Blocks until the consumer is done with every message published before the call.
+	 *
+	 * @param deadlineNanos {@link System#nanoTime()} to give up at.
+	 * @return Whether it was before the deadline.
+	 */
+	boolean awaitSettled(long deadlineNanos) throws InterruptedException {
+		if (counters.length == 1) {
+			return counters[0].awaitSettled(counters[0].mark(), deadlineNanos);
+		}
+		long[] marks = new long[counters.length];
+		for (int i = 0; i < counters.length; i++) {
+			marks[i] = counters[i].mark();
+		}
+		for (int i = 0; i < counters.length; i++) {
+			if (!counters[i].awaitSettled(marks[i], deadlineNanos)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	int lanes() {
+		return counters.length;
+	}
+
+	/**
+	 * @return The lane of the queue the message was put in, to settle it on once done with it.
+	 */
+	int laneOf(Message msg) {
+		return queue.laneOf(msg);
+	}
+
+	OverflowPolicy getPolicy() {
+		return policy;
+	}
+
+	Message poll() {
+		return queue.poll();
+	}
+
+	boolean isEmpty() {
+		return queue.isEmpty();
+	}
+
+	int size() {
+		return queue.size();
+	}
+
+	long getOverflowCount() {
+		return overflows.sum();
+	}
+
+	long getDroppedCount() {
+		return drops.sum();
+	}
+
+	long getConflatedCount() {
+		return conflations.sum();
+	}
+}
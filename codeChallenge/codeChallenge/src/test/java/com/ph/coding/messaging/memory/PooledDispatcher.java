@@ -0,0 +1,73 @@
+package com.ph.coding.messaging.memory;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Fixed pool of daemon worker threads sharing one array backed run queue. Unlike a {@code ThreadPoolExecutor} with a
+ * linked work queue, submitting a task allocates nothing, which keeps the publish and deliver path garbage free.
+ */
+final class PooledDispatcher implements Dispatcher {
+
+	private final ArrayDeque<Runnable> runQueue = new ArrayDeque<>();
+	private final Thread[] workers;
+	private int idleWorkers;
+	private boolean isRunning = true;
+
+	PooledDispatcher(int threads, String namePrefix) {
+		workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread(this::work, namePrefix + (i + 1));
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		synchronized (runQueue) {
+			if (!isRunning) {
+				throw new RejectedExecutionException("Dispatcher has been shut down");
+			}
+			runQueue.add(task);
+			if (idleWorkers > 0) {
+				runQueue.notify();
+			}
+		}
+	}
+
+	@Override
+	public void shutdown() {
+		synchronized (runQueue) {
+			isRunning = false;
+			runQueue.clear();
+			runQueue.notifyAll();
+		}
+	}
+
+	private void work() {
+		for (;;) {
+			Runnable task;
+			synchronized (runQueue) {
+				while ((task = runQueue.poll()) == null) {
+					if (!isRunning) {
+						return;
+					}
+					idleWorkers++;
+					try {
+						runQueue.wait();
+					} catch (InterruptedException e) {
+						return;
+					} finally {
+						idleWorkers--;
+					}
+				}
+			}
+			try {
+				task.run();
+			} catch (Throwable t) {
+				t.printStackTrace();
+			}
+		}
+	}
+}
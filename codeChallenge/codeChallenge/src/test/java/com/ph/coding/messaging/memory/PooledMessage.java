@@ -0,0 +1,89 @@
+package com.ph.coding.messaging.memory;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * A message whose payload lives in a reference counted buffer taken from a {@link MessagePool}.
+ * <p/>
+ * Fanning a message out to several receivers hands each of them their own handle on the same buffer; the buffer goes
+ * back to the pool when the last handle is disposed. A message cannot be used after {@link #dispose()}, its payload
+ * accessors throw {@link IllegalStateException}.
+ */
+public final class PooledMessage extends AbstractMemoryMessage {
+
+	private static final AtomicIntegerFieldUpdater<PooledMessage> DISPOSED =
+			AtomicIntegerFieldUpdater.newUpdater(PooledMessage.class, "disposed");
+
+	private final MessagePool pool;
+	private volatile int disposed;
+	PooledBuffer buffer;
+	LeakDetector.Tracker tracker;
+
+	PooledMessage(MessagePool pool, PooledBuffer buffer) {
+		this.pool = pool;
+		this.buffer = buffer;
+	}
+
+	@Override
+	public byte[] getMsg() {
+		return buffer().data;
+	}
+
+	@Override
+	public ByteBuffer getBuffer() {
+		return ByteBuffer.wrap(getMsg()).asReadOnlyBuffer();
+	}
+
+	@Override
+	int getLength() {
+		return getMsg().length;
+	}
+
+	private PooledBuffer buffer() {
+		PooledBuffer b = buffer;
+		if (b == null) {
+			throw new IllegalStateException("Message has already been disposed");
+		}
+		return b;
+	}
+
+	@Override
+	public void dispose() {
+		if (DISPOSED.compareAndSet(this, 0, 1)) {
+			dropTracker();
+			pool.release(this);
+		}
+	}
+
+	MessagePool getPool() {
+		return pool;
+	}
+
+	static final class PooledBuffer {
+		private static final AtomicIntegerFieldUpdater<PooledBuffer> REF_COUNT =
+				AtomicIntegerFieldUpdater.newUpdater(PooledBuffer.class, "refCount");
+
+		final byte[] data;
+		private volatile int refCount;
+
+		PooledBuffer(int length) {
+			this.data = new byte[length];
+		}
+
+		void init() {
+			refCount = 1;
+		}
+
+		void retain() {
+			REF_COUNT.incrementAndGet(this);
+		}
+
+		/**
+		 * @return Whether this released the last reference.
+		 */
+		boolean release() {
+			return REF_COUNT.decrementAndGet(this) == 0;
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package com.ph.coding.messaging.memory;
+
+import com.ph.coding.messaging.Message;
+import com.ph.coding.messaging.MessagePriority;
+
+/**
+ * A queue with a lane of its own for each {@link MessagePriority}, taking from the highest priority lane that has
+ * messages waiting. Each lane is a queue of its own with the full capacity, so a backlog of low priority messages
+ * leaves room for high priority ones.
+ * <p/>
+ * To keep lower lanes from starving behind a steady stream of higher priority messages, once the consumer has taken
+ * {@code starvationLimit} messages in a row whilst a lower lane had messages waiting, it takes the next message from
+ * one of the lower lanes instead, the lower lanes taking turns. A limit of 0 gives strict priority.
+ */
+final class PriorityMessageQueue implements MessageQueue {
+
+	private static final MessagePriority[] PRIORITIES = MessagePriority.values();
+
+	private final MessageQueue[] lanes;
+	private final int starvationLimit;
+	// only touched by the consumer, a stealing group member may skew them but cannot lose a message
+	private int streak;
+	private int turn;
+
+	/**
+	 * @param lanes A queue for each priority, in the order of {@link MessagePriority}.
+	 */
+	PriorityMessageQueue(MessageQueue[] lanes, int starvationLimit) {
+		if (lanes.length != PRIORITIES.length) {
+			throw new IllegalArgumentException("Need a lane for each of " + PRIORITIES.length + " priorities");
+		}
+		this.lanes = lanes;
+		this.starvationLimit = starvationLimit;
+	}
+
+	@Override
+	public void put(Message msg) throws InterruptedException {
+		lanes[laneOf(msg)].put(msg);
+	}
+
+	@Override
+	public void putAll(Message[] msgs, int count, Runnable wakeConsumer) throws InterruptedException {
+		if (count == 0) {
+			return;
+		}
+		int lane = laneOf(msgs[0]);
+		for (int i = 1; i < count; i++) {
+			if (laneOf(msgs[i]) != lane) {
+				// a mixed batch is kept in order within each lane only
+				for (int j = 0; j < count; j++) {
+					if (!offer(msgs[j])) {
+						wakeConsumer.run();
+						put(msgs[j]);
+					}
+				}
+				return;
+			}
+		}
+		lanes[lane].putAll(msgs, count, wakeConsumer);
+	}
+
+	@Override
+	public boolean offer(Message msg) {
+		return lanes[laneOf(msg)].offer(msg);
+	}
+
+	@Override
+	public Message poll() {
+		for (;;) {
+			int lane = nextLane();
+			if (lane < 0) {
+				return null;
+			}
+			Message msg = lanes[lane].poll();
+			if (msg != null) {
+				return msg;
+			}
+			// another consumer took it, a stealing group member or a producer making room
+		}
+	}
+
+	/**
+	 * @return The lane to take the next message from, or -1 if they are all empty.
+	 */
+	private int nextLane() {
+		int highest = -1;
+		boolean lowerWaiting = false;
+		for (int lane = 0; lane < lanes.length; lane++) {
+			if (!lanes[lane].isEmpty()) {
+				if (highest < 0) {
+					highest = lane;
+				} else {
+					lowerWaiting = true;
+					break;
+				}
+			}
+		}
+		if (!lowerWaiting) {
+			streak = 0;
+			return highest;
+		}
+		if (starvationLimit == 0 || ++streak <= starvationLimit) {
+			return highest;
+		}
+		streak = 0;
+		for (int i = 1; i <= lanes.length; i++) {
+			int lane = (turn + i) % lanes.length;
+			if (lane > highest && !lanes[lane].isEmpty()) {
+				turn = lane;
+				return lane;
+			}
+		}
+		return highest;
+	}
+
+	@Override
+	public Message pollToMakeRoomFor(Message msg) {
+		return lanes[laneOf(msg)].pollToMakeRoomFor(msg);
+	}
+
+	@Override
+	public boolean isEmpty() {
+		for (MessageQueue lane : lanes) {
+			if (!lane.isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+		for (MessageQueue lane : lanes) {
+			size += lane.size();
+		}
+		return size;
+	}
+
+	@Override
+	public int lanes() {
+		return lanes.length;
+	}
+
+	@Override
+	public int laneOf(Message msg) {
+		return msg instanceof AbstractMemoryMessage ? ((AbstractMemoryMessage) msg).getPriority().ordinal()
+				: MessagePriority.NORMAL.ordinal();
+	}
+}
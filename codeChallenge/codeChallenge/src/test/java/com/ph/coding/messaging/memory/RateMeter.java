@@ -0,0 +1,30 @@
+package com.ph.coding.messaging.memory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turns a running count into a rate per second, over the time since the count was last sampled. Sampling is left to
+ * whoever reads the rate, so counting costs nothing extra; samples less than {@link #MIN_INTERVAL_NANOS} apart reuse
+ * the rate from before, so that frequent readers do not see a jittery rate.
+ */
+final class RateMeter {
+
+	static final long MIN_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private long lastCount;
+	private long lastNanos = System.nanoTime();
+	private double rate;
+
+	/**
+	 * @return The rate at which the count grew up to now, in counts per second.
+	 */
+	synchronized double ratePerSecond(long count, long nowNanos) {
+		long elapsed = nowNanos - lastNanos;
+		if (elapsed >= MIN_INTERVAL_NANOS) {
+			rate = (count - lastCount) * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+			lastCount = count;
+			lastNanos = nowNanos;
+		}
+		return rate;
+	}
+}
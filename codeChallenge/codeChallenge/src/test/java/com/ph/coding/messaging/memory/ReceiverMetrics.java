@@ -0,0 +1,86 @@
+package com.ph.coding.messaging.memory;
+
+/**
+ * What a receiver has done so far: the messages handed to its listener, how long they took to get there from being
+ * sent, how many are queued for it, how often its queue overflowed and how many waiting messages newer ones replaced.
+ */
+public final class ReceiverMetrics {
+
+	private final int id;
+	private final String topic;
+	private final long deliveredCount;
+	private final double deliverRate;
+	private final int queueDepth;
+	private final long overflowCount;
+	private final long droppedCount;
+	private final long conflatedCount;
+	private final LatencyHistogram.Snapshot latency;
+
+	ReceiverMetrics(int id, String topic, long deliveredCount, double deliverRate, int queueDepth, long overflowCount,
+			long droppedCount, long conflatedCount, LatencyHistogram.Snapshot latency) {
+		this.id = id;
+		this.topic = topic;
+		this.deliveredCount = deliveredCount;
+		this.deliverRate = deliverRate;
+		this.queueDepth = queueDepth;
+		this.overflowCount = overflowCount;
+		this.droppedCount = droppedCount;
+		this.conflatedCount = conflatedCount;
+		this.latency = latency;
+	}
+
+	/**
+	 * @return Tells receivers apart, in the order they were created.
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * @return The receiver's topic, or its pattern for a wildcard receiver.
+	 */
+	public String getTopic() {
+		return topic;
+	}
+
+	public long getDeliveredCount() {
+		return deliveredCount;
+	}
+
+	/**
+	 * @return Messages delivered per second since the rate was last sampled, see {@link RateMeter}.
+	 */
+	public double getDeliverRate() {
+		return deliverRate;
+	}
+
+	public int getQueueDepth() {
+		return queueDepth;
+	}
+
+	public long getOverflowCount() {
+		return overflowCount;
+	}
+
+	public long getDroppedCount() {
+		return droppedCount;
+	}
+
+	public long getConflatedCount() {
+		return conflatedCount;
+	}
+
+	/**
+	 * @return Nanoseconds from a message being sent to its reaching the listener, for every message delivered.
+	 */
+	public LatencyHistogram.Snapshot getLatency() {
+		return latency;
+	}
+
+	@Override
+	public String toString() {
+		return "receiver " + id + " on " + topic + ": delivered=" + deliveredCount + " queued=" + queueDepth
+				+ " overflows=" + overflowCount +  " dropped=" + droppedCount
+				+ " conflated=" + conflatedCount + " latency " + latency;
+	}
+}
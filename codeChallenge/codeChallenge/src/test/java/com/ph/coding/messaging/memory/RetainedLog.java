@@ -0,0 +1,133 @@
+package com.ph.coding.messaging.memory;
+
+/**
+ * The most recent messages of a channel, kept for receivers that start from an earlier position than the next message
+ * sent. Every message gets an offset, counting from the first message sent on the channel, and a timestamp; the oldest
+ * messages are disposed of once the log holds more messages or payload bytes than allowed, or they are too old.
+ * <p/>
+ * Messages are held in a ring that grows as needed, so any offset is found by arithmetic and any time by a binary
+ * search over the timestamps, which never go backwards. Not thread safe, the channel serialises all access.
+ */
+final class RetainedLog {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final int maxMessages;
+	private final long maxBytes;
+	private final long maxAgeMillis;
+	private AbstractMemoryMessage[] messages = new AbstractMemoryMessage[INITIAL_CAPACITY];
+	private long[] timestamps = new long[INITIAL_CAPACITY];
+	// ring index of the oldest message
+	private int head;
+	private int size;
+	private long startOffset;
+	private long bytes;
+	private long lastTimestamp = Long.MIN_VALUE;
+
+	RetainedLog(MemoryTopicConfig config) {
+		this.maxMessages = config.getRetainedMessages();
+		this.maxBytes = config.getRetainedBytes();
+		this.maxAgeMillis = config.getRetentionMillis();
+	}
+
+	/**
+	 * @return The offset of the oldest retained message.
+	 */
+	long getStartOffset() {
+		return startOffset;
+	}
+
+	/**
+	 * @return The offset the next appended message will get.
+	 */
+	long getEndOffset() {
+		return startOffset + size;
+	}
+
+	/**
+	 * Takes ownership of a message, disposing of whatever no longer fits the limits.
+	 */
+	void append(AbstractMemoryMessage msg, long nowMillis) {
+		if (size == messages.length) {
+			grow();
+		}
+		long timestamp = Math.max(nowMillis, lastTimestamp);
+		int index = (head + size) & (messages.length - 1);
+		messages[index] = msg;
+		timestamps[index] = timestamp;
+		lastTimestamp = timestamp;
+		size++;
+		bytes += msg.getLength();
+		evict(nowMillis);
+	}
+
+	/**
+	 * Disposes of the messages that have grown too old by now, or that no longer fit the count and size limits.
+	 */
+	void evict(long nowMillis) {
+		while (size > 0 && ((maxMessages > 0 && size > maxMessages) || (maxBytes > 0 && bytes > maxBytes)
+				|| (maxAgeMillis > 0 && timestamps[head] < nowMillis - maxAgeMillis))) {
+			AbstractMemoryMessage oldest = messages[head];
+			messages[head] = null;
+			head = (head + 1) & (messages.length - 1);
+			size--;
+			startOffset++;
+			bytes -= oldest.getLength();
+			oldest.dispose();
+		}
+	}
+
+	/**
+	 * @return The offset of the first retained message sent at or after the given time, or the end offset if there is
+	 *         none.
+	 */
+	long offsetAt(long epochMillis) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (timestamps[(head + mid) & (messages.length - 1)] < epochMillis) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return startOffset + low;
+	}
+
+	/**
+	 * @return The retained message at the given offset, which must lie between the start and end offsets. The log keeps
+	 *         ownership of it, so it has to be copied to be kept.
+	 */
+	AbstractMemoryMessage get(long offset) {
+		return messages[(int) ((head + (offset - startOffset)) & (messages.length - 1))];
+	}
+
+	/**
+	 * Disposes of all retained messages.
+	 */
+	void clear() {
+		while (size > 0) {
+			messages[head].dispose();
+			messages[head] = null;
+			head = (head + 1) & (messages.length - 1);
+			size--;
+			startOffset++;
+		}
+		bytes = 0;
+	}
+
+	private void grow() {
+		int capacity = messages.length;
+		AbstractMemoryMessage[] grownMessages = new AbstractMemoryMessage[capacity * 2];
+		long[] grownTimestamps = new long[capacity * 2];
+		for (int i = 0; i < size; i++) {
+			int index = (head + i) & (capacity - 1);
+			grownMessages[i] = messages[index];
+			grownTimestamps[i] = timestamps[index];
+		}
+		messages = grownMessages;
+		timestamps = grownTimestamps;
+		head = 0;
+	}
+}
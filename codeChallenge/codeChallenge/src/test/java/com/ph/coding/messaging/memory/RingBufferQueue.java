@@ -0,0 +1,170 @@
+package com.ph.coding.messaging.memory;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.ph.coding.messaging.Message;
+
+/**
+ * Lock-free multi-producer, single-consumer ring buffer in the style of the LMAX Disruptor.
+ * <p/>
+ * Producers claim a slot by advancing the claim sequence with a CAS, fill the preallocated slot and then publish it
+ * by writing the slot's availability flag (the lap number of the sequence). The consumer reads slots in sequence
+ * order once their flag shows them as published, so messages put by any single thread are taken in the order they
+ * were put. Nothing is allocated per message. When full, producers park briefly until the consumer frees a slot.
+ * A batch put with {@link #putAll(Message[], int, Runnable)} claims its slots with a single CAS, so it is published as
+ * one contiguous unit that no other producer's messages interleave with, as long as it fits in the ring.
+ * The consumer never waits, {@link #poll()} returns {@code null} when the next slot is not yet published.
+ */
+final class RingBufferQueue implements MessageQueue {
+
+	private final Message[] entries;
+	private final int mask;
+	private final int indexShift;
+	private final AtomicIntegerArray availableBuffer;
+	private final Sequence claimSequence = new Sequence(-1);
+	private final Sequence consumerSequence = new Sequence(-1);
+	// producer-local cache of the consumer position, avoids reading the contended consumer sequence on every claim
+	private final Sequence gatingSequenceCache = new Sequence(-1);
+
+	RingBufferQueue(int bufferSize) {
+		if (bufferSize < 1 || Integer.bitCount(bufferSize) != 1) {
+			throw new IllegalArgumentException("Ring buffer size must be a positive power of 2: " + bufferSize);
+		}
+		this.entries = new Message[bufferSize];
+		this.mask = bufferSize - 1;
+		this.indexShift = Integer.numberOfTrailingZeros(bufferSize);
+		this.availableBuffer = new AtomicIntegerArray(bufferSize);
+		for (int i = 0; i < bufferSize; i++) {
+			availableBuffer.set(i, -1);
+		}
+	}
+
+	int capacity() {
+		return entries.length;
+	}
+
+	@Override
+	public void put(Message msg) throws InterruptedException {
+		long sequence = next(1);
+		entries[(int) sequence & mask] = msg;
+		publish(sequence);
+	}
+
+	@Override
+	public void putAll(Message[] msgs, int count, Runnable wakeConsumer) throws InterruptedException {
+		int offset = 0;
+		while (offset < count) {
+			if (offset > 0) {
+				// the rest has to wait for the consumer to take what is in
+				wakeConsumer.run();
+			}
+			int n = Math.min(count - offset, entries.length);
+			long last = next(n);
+			long first = last - n + 1;
+			for (int i = 0; i < n; i++) {
+				entries[(int) (first + i) & mask] = msgs[offset + i];
+			}
+			for (long sequence = first; sequence <= last; sequence++) {
+				publish(sequence);
+			}
+			offset += n;
+		}
+	}
+
+	@Override
+	public boolean offer(Message msg) {
+		long sequence = tryNext();
+		if (sequence < 0) {
+			return false;
+		}
+		entries[(int) sequence & mask] = msg;
+		publish(sequence);
+		return true;
+	}
+
+	@Override
+	public Message poll() {
+		long sequence = consumerSequence.get() + 1;
+		if (!isAvailable(sequence)) {
+			return null;
+		}
+		int index = (int) sequence & mask;
+		Message msg = entries[index];
+		entries[index] = null;
+		consumerSequence.lazySet(sequence);
+		return msg;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return consumerSequence.get() >= claimSequence.get();
+	}
+
+	@Override
+	public int size() {
+		return (int) (claimSequence.get() - consumerSequence.get());
+	}
+
+	/**
+	 * @return The last of the {@code n} sequences claimed.
+	 */
+	private long next(int n) throws InterruptedException {
+		for (;;) {
+			long current = claimSequence.get();
+			long next = current + n;
+			long wrapPoint = next - entries.length;
+			long cachedGatingSequence = gatingSequenceCache.get();
+			if (wrapPoint > cachedGatingSequence) {
+				long gatingSequence = consumerSequence.get();
+				if (wrapPoint > gatingSequence) {
+					if (Thread.interrupted()) {
+						throw new InterruptedException();
+					}
+					LockSupport.parkNanos(1L);
+					continue;
+				}
+				gatingSequenceCache.set(gatingSequence);
+			}
+			if (claimSequence.compareAndSet(current, next)) {
+				return next;
+			}
+		}
+	}
+
+	private long tryNext() {
+		for (;;) {
+			long current = claimSequence.get();
+			long next = current + 1;
+			if (next - entries.length > consumerSequence.get()) {
+				return -1;
+			}
+			if (claimSequence.compareAndSet(current, next)) {
+				return next;
+			}
+		}
+	}
+
+	private void publish(long sequence) {
+		availableBuffer.lazySet((int) sequence & mask, (int) (sequence >>> indexShift));
+	}
+
+	private boolean isAvailable(long sequence) {
+		return availableBuffer.get((int) sequence & mask) == (int) (sequence >>> indexShift);
+	}
+
+	/**
+	 * Sequence counter padded out to its own cache line so the producers' claim sequence and the consumer sequence
+	 * do not false share.
+	 */
+	@SuppressWarnings("unused")
+	private static final class Sequence extends AtomicLong {
+		private static final long serialVersionUID = 1L;
+		private long p1, p2, p3, p4, p5, p6, p7;
+
+		Sequence(long initialValue) {
+			super(initialValue);
+		}
+	}
+}
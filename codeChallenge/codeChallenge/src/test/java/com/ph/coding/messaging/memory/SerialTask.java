@@ -0,0 +1,66 @@
+package com.ph.coding.messaging.memory;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A unit of work that is run on a shared {@link Dispatcher} but never concurrently with itself, so whatever it drains
+ * is processed in order.
+ * <p/>
+ * Producers call {@link #signal()} after adding work. Only the signal that finds the task idle submits it; signals
+ * arriving while it runs are counted and make it drain again before it goes idle, so no work is ever missed. To stay
+ * fair to other tasks on the same workers, a task that still has work after one batch resubmits itself rather than
+ * holding on to its worker.
+ */
+abstract class SerialTask implements Runnable {
+
+	static final int DEFAULT_BATCH = 256;
+
+	private final Dispatcher dispatcher;
+	private final AtomicInteger wip = new AtomicInteger();
+
+	SerialTask(Dispatcher dispatcher) {
+		this.dispatcher = dispatcher;
+	}
+
+	/**
+	 * Processes up to {@code batch} items of work.
+	 *
+	 * @return Whether there may be more work left.
+	 */
+	protected abstract boolean drain(int batch);
+
+	/**
+	 * @return Whether there is work waiting, called only to recover from a failed drain.
+	 */
+	protected abstract boolean hasWork();
+
+	final void signal() {
+		if (wip.getAndIncrement() == 0) {
+			dispatcher.execute(this);
+		}
+	}
+
+	@Override
+	public final void run() {
+		int missed = wip.get();
+		for (;;) {
+			boolean more;
+			try {
+				more = drain(DEFAULT_BATCH);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+				more = hasWork();
+			}
+			if (more) {
+				// keep wip positive so no producer submits a second copy while we are requeued
+				wip.set(1);
+				dispatcher.execute(this);
+				return;
+			}
+			missed = wip.addAndGet(-missed);
+			if (missed == 0) {
+				return;
+			}
+		}
+	}
+}
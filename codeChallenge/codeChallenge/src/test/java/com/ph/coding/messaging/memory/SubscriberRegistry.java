@@ -0,0 +1,51 @@
+package com.ph.coding.messaging.memory;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * The receivers subscribed to a channel, for receivers that come and go often.
+ * <p/>
+ * Subscribing and unsubscribing only touch a hash set under a short lock, in constant time however many receivers
+ * there are, and mark the array that senders fan out to as stale. The first sender to look after that builds a new
+ * array, once for however many changes were made since, and the array stays the same object until the next change, so
+ * senders can cache what they derive from it by identity. Receivers are fanned out to in the order they subscribed.
+ */
+final class SubscriberRegistry {
+
+	private static final MemoryMessageReceiver[] NONE = new MemoryMessageReceiver[0];
+
+	// guarded by this
+	private final Set<MemoryMessageReceiver> receivers = new LinkedHashSet<>();
+	// null once a change made it stale, only set again under the lock
+	private volatile MemoryMessageReceiver[] snapshot = NONE;
+
+	synchronized void add(MemoryMessageReceiver receiver) {
+		if (receivers.add(receiver)) {
+			snapshot = null;
+		}
+	}
+
+	synchronized void remove(MemoryMessageReceiver receiver) {
+		if (receivers.remove(receiver)) {
+			snapshot = null;
+		}
+	}
+
+	/**
+	 * @return Every receiver subscribed before the call, and maybe some subscribed during it. Must not be modified.
+	 */
+	MemoryMessageReceiver[] snapshot() {
+		MemoryMessageReceiver[] current = snapshot;
+		return current != null ? current : rebuild();
+	}
+
+	private synchronized MemoryMessageReceiver[] rebuild() {
+		MemoryMessageReceiver[] current = snapshot;
+		if (current == null) {
+			current = receivers.isEmpty() ? NONE : receivers.toArray(NONE);
+			snapshot = current;
+		}
+		return current;
+	}
+}
@@ -0,0 +1,167 @@
+package com.ph.coding.messaging.memory;
+
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Index of wildcard subscriptions, as a trie keyed by topic segment.
+ * <p/>
+ * Topics are split into segments at {@code '.'}. In a subscription pattern a {@code *} segment matches exactly one
+ * segment and a {@code #} segment matches zero or more, so {@code prices.eu.*} matches {@code prices.eu.fr} and
+ * {@code prices.#} matches {@code prices}, {@code prices.eu} and {@code prices.eu.fr}. Matching a topic walks the trie
+ * one segment at a time, so its cost depends on the depth of the topic, not on the number of subscriptions.
+ * <p/>
+ * Every change bumps a version number, which lets channels cache the receivers matching their topic and only match
+ * again after the subscriptions changed. Removing the last receiver of a pattern prunes the nodes left with neither
+ * receivers nor children, so the trie does not keep growing with patterns that come and go.
+ */
+final class TopicIndex {
+
+	static final String SEPARATOR_REGEX = "\\.";
+	static final String SINGLE_WILDCARD = "*";
+	static final String MULTI_WILDCARD = "#";
+
+	private static final MemoryMessageReceiver[] NONE = new MemoryMessageReceiver[0];
+
+	private final Node root = new Node();
+	private volatile long version;
+
+	/**
+	 * @return Whether the topic contains wildcard segments and so can only be subscribed to through the index.
+	 */
+	static boolean isPattern(String topic) {
+		for (String segment : topic.split(SEPARATOR_REGEX, -1)) {
+			if (SINGLE_WILDCARD.equals(segment) || MULTI_WILDCARD.equals(segment)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	long getVersion() {
+		return version;
+	}
+
+	synchronized void add(String pattern, MemoryMessageReceiver receiver) {
+		Node node = root;
+		for (String segment : pattern.split(SEPARATOR_REGEX, -1)) {
+			node = node.child(segment);
+		}
+		node.receivers.add(receiver);
+		version++;
+	}
+
+	synchronized void remove(String pattern, MemoryMessageReceiver receiver) {
+		if (remove(root, pattern.split(SEPARATOR_REGEX, -1), 0, receiver)) {
+			version++;
+		}
+	}
+
+	/**
+	 * Removes the receiver from the node of the pattern below the given node, and every node on the way that is left
+	 * empty.
+	 *
+	 * @return Whether the receiver was found.
+	 */
+	private static boolean remove(Node node, String[] segments, int index, MemoryMessageReceiver receiver) {
+		if (index == segments.length) {
+			return node.receivers.remove(receiver);
+		}
+		Node child = node.existingChild(segments[index]);
+		if (child == null || !remove(child, segments, index + 1, receiver)) {
+			return false;
+		}
+		if (child.isEmpty()) {
+			// matching may still be walking the node, which then simply finds nothing there
+			node.removeChild(segments[index], child);
+		}
+		return true;
+	}
+
+	/**
+	 * @return Whether there are no subscriptions left.
+	 */
+	synchronized boolean isEmpty() {
+		return root.isEmpty();
+	}
+
+	/**
+	 * @return The receivers whose patterns match the topic, each only once.
+	 */
+	MemoryMessageReceiver[] match(String topic) {
+		Set<MemoryMessageReceiver> matched = new LinkedHashSet<>();
+		collect(root, topic.split(SEPARATOR_REGEX, -1), 0, matched);
+		return matched.isEmpty() ? NONE : matched.toArray(NONE);
+	}
+
+	private static void collect(Node node, String[] segments, int index, Set<MemoryMessageReceiver> matched) {
+		Node multi = node.multi;
+		if (multi != null) {
+			for (int next = index; next <= segments.length; next++) {
+				collect(multi, segments, next, matched);
+			}
+		}
+		if (index == segments.length) {
+			matched.addAll(node.receivers);
+			return;
+		}
+		Node child = node.children.get(segments[index]);
+		if (child != null) {
+			collect(child, segments, index + 1, matched);
+		}
+		Node single = node.single;
+		if (single != null) {
+			collect(single, segments, index + 1, matched);
+		}
+	}
+
+	private static final class Node {
+		final Map<String, Node> children = new ConcurrentHashMap<>();
+		final CopyOnWriteArrayList<MemoryMessageReceiver> receivers = new CopyOnWriteArrayList<>();
+		volatile Node single;
+		volatile Node multi;
+
+		Node child(String segment) {
+			if (SINGLE_WILDCARD.equals(segment)) {
+				if (single == null) {
+					single = new Node();
+				}
+				return single;
+			}
+			if (MULTI_WILDCARD.equals(segment)) {
+				if (multi == null) {
+					multi = new Node();
+				}
+				return multi;
+			}
+			return children.computeIfAbsent(segment, s -> new Node());
+		}
+
+		boolean isEmpty() {
+			return receivers.isEmpty() && children.isEmpty() && single == null && multi == null;
+		}
+
+		void removeChild(String segment, Node child) {
+			if (SINGLE_WILDCARD.equals(segment)) {
+				single = null;
+			} else if (MULTI_WILDCARD.equals(segment)) {
+				multi = null;
+			} else {
+				children.remove(segment, child);
+			}
+		}
+
+		Node existingChild(String segment) {
+			if (SINGLE_WILDCARD.equals(segment)) {
+				return single;
+			}
+			if (MULTI_WILDCARD.equals(segment)) {
+				return multi;
+			}
+			return children.get(segment);
+		}
+	}
+}
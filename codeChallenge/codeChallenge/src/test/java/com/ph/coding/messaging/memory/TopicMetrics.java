@@ -0,0 +1,73 @@
+package com.ph.coding.messaging.memory;
+
+/**
+ * What a channel has done so far: the messages sent on its topic, how many are queued for fan-out and how often its
+ * queue overflowed.
+ */
+public final class TopicMetrics {
+
+	private final String topic;
+	private final long sentCount;
+	private final double sendRate;
+	private final int queueDepth;
+	private final long overflowCount;
+	private final long droppedCount;
+	private final int receiverCount;
+
+	TopicMetrics(String topic, long sentCount, double sendRate, int queueDepth, long overflowCount, long droppedCount,
+			int receiverCount) {
+		this.topic = topic;
+		this.sentCount = sentCount;
+		this.sendRate = sendRate;
+		this.queueDepth = queueDepth;
+		this.overflowCount = overflowCount;
+		this.droppedCount = droppedCount;
+		this.receiverCount = receiverCount;
+	}
+
+	public String getTopic() {
+		return topic;
+	}
+
+	/**
+	 * @return Messages sent on the topic, including those sent whilst nobody was listening.
+	 */
+	public long getSentCount() {
+		return sentCount;
+	}
+
+	/**
+	 * @return Messages sent per second since the rate was last sampled, see {@link RateMeter}.
+	 */
+	public double getSendRate() {
+		return sendRate;
+	}
+
+	/**
+	 * @return Messages waiting to be fanned out, always 0 unless the topic's delivery is {@link DeliveryMode#QUEUED}.
+	 */
+	public int getQueueDepth() {
+		return queueDepth;
+	}
+
+	public long getOverflowCount() {
+		return overflowCount;
+	}
+
+	public long getDroppedCount() {
+		return droppedCount;
+	}
+
+	/**
+	 * @return Receivers the topic's messages currently go to, wildcard receivers included.
+	 */
+	public int getReceiverCount() {
+		return receiverCount;
+	}
+
+	@Override
+	public String toString() {
+		return topic + ": sent=" + sentCount + " queued=" + queueDepth + " overflows=" + overflowCount + " dropped="
+				+ droppedCount + " receivers=" + receiverCount;
+	}
+}
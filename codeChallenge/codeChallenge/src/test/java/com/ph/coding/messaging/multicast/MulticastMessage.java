@@ -0,0 +1,22 @@
+package com.ph.coding.messaging.multicast;
+
+import com.ph.coding.messaging.Message;
+
+public final class MulticastMessage implements Message {
+
+	private final byte[] msg;
+
+	MulticastMessage(byte[] msg) {
+		this.msg = msg;
+	}
+
+	@Override
+	public byte[] getMsg() {
+		return msg;
+	}
+
+	@Override
+	public void dispose() {
+		// nothing to release
+	}
+}
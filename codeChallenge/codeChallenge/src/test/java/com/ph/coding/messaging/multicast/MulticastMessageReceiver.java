@@ -0,0 +1,73 @@
+package com.ph.coding.messaging.multicast;
+
+import com.ph.coding.messaging.MessageReceiveListener;
+import com.ph.coding.messaging.MessageReceiver;
+import com.ph.coding.messaging.MessagingException;
+
+public final class MulticastMessageReceiver implements MessageReceiver {
+
+	private final String topic;
+	private final MulticastMessagingFactory factory;
+	private volatile boolean isStarted = false;
+	private volatile MessageReceiveListener listener;
+
+	MulticastMessageReceiver(String topic, MulticastMessagingFactory factory)
+	{
+		this.topic = topic;
+		this.factory = factory;
+	}
+
+	@Override
+	public String getTopic() {
+		return topic;
+	}
+
+	@Override
+	public boolean isStarted() {
+		return isStarted;
+	}
+
+	@Override
+	public synchronized void start() throws MessagingException {
+		if(listener == null)
+		{
+			throw new MessagingException("No listener");
+		}
+		if(isStarted)
+		{
+			return;
+		}
+		isStarted = true;
+		factory.subscribe(this);
+	}
+
+	@Override
+	public synchronized void stop() throws MessagingException {
+		if(!isStarted)
+		{
+			return;
+		}
+		isStarted = false;
+		factory.unsubscribe(this);
+	}
+
+	@Override
+	public void setListener(MessageReceiveListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Hands a received message to the listener, called on the factory's delivery thread.
+	 */
+	void deliver(byte[] msg) {
+		MessageReceiveListener current = listener;
+		if (!isStarted || current == null) {
+			return;
+		}
+		try {
+			current.onMessage(new MulticastMessage(msg), topic);
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package com.ph.coding.messaging.multicast;
+
+import java.util.List;
+
+import com.ph.coding.messaging.MessageSender;
+import com.ph.coding.messaging.MessagingException;
+
+public final class MulticastMessageSender implements MessageSender {
+
+	private volatile boolean isStarted = false;
+	private final SendStream stream;
+	private final MulticastMessagingFactory factory;
+
+	MulticastMessageSender(SendStream stream, MulticastMessagingFactory factory)
+	{
+		this.stream = stream;
+		this.factory = factory;
+	}
+
+	@Override
+	public String getTopic() {
+		return stream.getTopic();
+	}
+
+	@Override
+	public boolean isStarted() {
+		return isStarted;
+	}
+
+	@Override
+	public void start() throws MessagingException {
+		isStarted = true;
+	}
+
+	@Override
+	public void stop() throws MessagingException {
+		isStarted = false;
+	}
+
+	@Override
+	public void sendMessage(byte[] message) throws MessagingException {
+		if(!isStarted)
+		{
+			throw new MessagingException("Not started");
+		}
+		factory.send(stream, message);
+	}
+
+	@Override
+	public void sendMessages(List<byte[]> messages) throws MessagingException {
+		if(!isStarted)
+		{
+			throw new MessagingException("Not started");
+		}
+		factory.sendAll(stream, messages);
+	}
+}
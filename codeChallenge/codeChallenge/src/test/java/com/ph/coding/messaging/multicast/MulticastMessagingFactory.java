@@ -0,0 +1,557 @@
+package com.ph.coding.messaging.multicast;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongPredicate;
+
+import com.ph.coding.messaging.MessageReceiver;
+import com.ph.coding.messaging.MessageSender;
+import com.ph.coding.messaging.MessagingException;
+import com.ph.coding.messaging.MessagingFactory;
+
+/**
+ * Messaging provider that multicasts every message once, over UDP, to a group all the factories with receivers on
+ * its topic have joined, so the cost of a send does not grow with the number of receivers.
+ * <p/>
+ * Topics are hashed onto a range of multicast groups sharing one port; receivers only see the topics they subscribed
+ * to, whichever other topics share their group. The messages sent on a topic through a factory form a stream numbered
+ * from 0. Receiving factories pass each stream on in order, and when they notice a gap, from a later message or from
+ * the heartbeats a quiet stream sends, they NAK the missing messages to the source, which multicasts them again from
+ * a bounded history. Messages that have dropped out of the history by then are reported lost, counted and skipped.
+ * <p/>
+ * As with the other network provider, an I/O thread hands received messages to a delivery thread, so listeners are
+ * called one at a time without holding up the socket.
+ */
+public class MulticastMessagingFactory implements MessagingFactory
+{
+	public static final String DEFAULT_BASE_GROUP = "239.255.42.0";
+	public static final int DEFAULT_GROUP_COUNT = 16;
+	public static final int DEFAULT_HISTORY_SIZE = 8192;
+
+	private static final long DEFAULT_WAIT_MILLIS = 30000;
+	private static final long TICK_MILLIS = 10;
+	private static final int RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
+	// datagrams read before looking at NAK and heartbeat timers again
+	private static final int MAX_READS_PER_ROUND = 1024;
+
+	private final NetworkInterface networkInterface;
+	private final int baseGroup;
+	private final int groupCount;
+	private final int port;
+	private final long sourceId = ThreadLocalRandom.current().nextLong();
+	private int historySize = DEFAULT_HISTORY_SIZE;
+	private volatile LongPredicate lossFilter;
+	private final List<MulticastMessageSender> senders = Collections.synchronizedList(new ArrayList<>());
+	private final List<MulticastMessageReceiver> receivers = Collections.synchronizedList(new ArrayList<>());
+	private final Map<String, List<MulticastMessageReceiver>> subscribers = new ConcurrentHashMap<>();
+	private final Map<String, SendStream> sendStreams = new ConcurrentHashMap<>();
+	private final Map<StreamKey, ReceiveStream> receiveStreams = new ConcurrentHashMap<>();
+	// groups joined, with the number of subscribed topics that hash onto each
+	private final Map<InetAddress, MembershipKey> memberships = new HashMap<>();
+	private final Map<InetAddress, Integer> groupTopics = new HashMap<>();
+	private final BlockingQueue<Runnable> deliveries = new LinkedBlockingQueue<>();
+	private final ReceiveStream.Delivery delivery = new StreamDelivery();
+	// threads waiting for deliveries, only notified when there are any
+	private final Object deliveredMonitor = new Object();
+	private final AtomicInteger waitingThreads = new AtomicInteger();
+	private DatagramChannel sendChannel;
+	private DatagramChannel receiveChannel;
+	private Selector selector;
+	private Thread ioThread;
+	private Thread deliveryThread;
+	private volatile boolean isStarted;
+
+  public MulticastMessagingFactory(final NetworkInterface networkInterface, final int port)
+  {
+    this(networkInterface, parseGroup(DEFAULT_BASE_GROUP), DEFAULT_GROUP_COUNT, port);
+  }
+
+  /**
+   * @param networkInterface Interface to send and join groups on.
+   * @param baseGroup First of the IPv4 multicast groups topics are hashed onto.
+   * @param groupCount Number of consecutive groups, from the base group on, topics are hashed onto.
+   * @param port Port every factory sending or receiving the same topics uses.
+   */
+  public MulticastMessagingFactory(final NetworkInterface networkInterface, final InetAddress baseGroup,
+                                   final int groupCount, final int port)
+  {
+    if(!(baseGroup instanceof Inet4Address) || !baseGroup.isMulticastAddress())
+      throw new IllegalArgumentException("Not an IPv4 multicast group: " + baseGroup);
+    if(groupCount < 1)
+      throw new IllegalArgumentException("At least one group is needed");
+    this.networkInterface = networkInterface;
+    this.baseGroup = ByteBuffer.wrap(baseGroup.getAddress()).getInt();
+    this.groupCount = groupCount;
+    this.port = port;
+  }
+
+  private static InetAddress parseGroup(final String group)
+  {
+    try
+    {
+      return InetAddress.getByName(group);
+    }
+    catch(final UnknownHostException e)
+    {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  @Override
+  public String getProviderName()
+  {
+    return "Multicast";
+  }
+
+  /**
+   * Sets how many of the last messages sent on each topic are kept to answer NAKs with. Only affects topics not
+   * sent on yet.
+   */
+  public void setHistorySize(final int historySize)
+  {
+    if(historySize < 1)
+      throw new IllegalArgumentException("History must hold at least one message");
+    this.historySize = historySize;
+  }
+
+  /**
+   * Makes the first transmission of the messages whose sequence numbers match the filter go missing, for tests to
+   * simulate packet loss with. Retransmissions always go out.
+   */
+  void setLossFilter(final LongPredicate lossFilter)
+  {
+    this.lossFilter = lossFilter;
+  }
+
+  @Override
+  public void start() throws Exception
+  {
+    sendChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+    sendChannel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+    // receivers in this process, or on this host, get our messages too
+    sendChannel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+    sendChannel.bind(new InetSocketAddress(0));
+    sendChannel.configureBlocking(false);
+    receiveChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+    // other factories on this host receive on the same port
+    receiveChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+    receiveChannel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+    receiveChannel.bind(new InetSocketAddress(port));
+    receiveChannel.configureBlocking(false);
+    selector = Selector.open();
+    sendChannel.register(selector, SelectionKey.OP_READ);
+    receiveChannel.register(selector, SelectionKey.OP_READ);
+    isStarted = true;
+    ioThread = new Thread(this::runIo, "multicast-io");
+    ioThread.setDaemon(true);
+    ioThread.start();
+    deliveryThread = new Thread(this::runDeliveries, "multicast-delivery");
+    deliveryThread.setDaemon(true);
+    deliveryThread.start();
+  }
+
+  @Override
+  public void shutdown() throws Exception
+  {
+    synchronized(senders)
+    {
+      Iterator<MulticastMessageSender> itSend = senders.iterator();
+      while(itSend.hasNext())
+      {
+        itSend.next().stop();
+        itSend.remove();
+      }
+    }
+    synchronized(receivers)
+    {
+      Iterator<MulticastMessageReceiver> itRec = receivers.iterator();
+      while(itRec.hasNext())
+      {
+        itRec.next().stop();
+        itRec.remove();
+      }
+    }
+    if(!isStarted)
+    {
+      return;
+    }
+    isStarted = false;
+    selector.wakeup();
+    ioThread.join();
+    deliveryThread.interrupt();
+    deliveryThread.join();
+    selector.close();
+    sendChannel.close();
+    receiveChannel.close();
+  }
+
+  @Override
+  public MessageSender createSender(final String topic) throws MessagingException
+  {
+    if(!isStarted) throw new MessagingException("Not started factory");
+    final byte[] encodedTopic = Packets.encodeTopic(topic);
+    final SendStream stream = sendStreams.computeIfAbsent(topic,
+        t -> new SendStream(sourceId, t, encodedTopic, new InetSocketAddress(groupOf(t), port), sendChannel, historySize));
+    MulticastMessageSender sender = new MulticastMessageSender(stream, this);
+    senders.add(sender);
+    return sender;
+  }
+
+  @Override
+  public MessageReceiver createReceiver(final String topic) throws MessagingException
+  {
+    if(!isStarted) throw new MessagingException("Not started factory");
+    Packets.encodeTopic(topic);
+    MulticastMessageReceiver receiver = new MulticastMessageReceiver(topic, this);
+    receivers.add(receiver);
+    return receiver;
+  }
+
+  /**
+   * Blocks until every message sent through this factory so far, on topics it has receivers for, has been delivered
+   * to them, asking again for any that went missing on the way.
+   *
+   * @throws MessagingException If they are not delivered in time.
+   */
+  public void waitForMessages() throws MessagingException, InterruptedException
+  {
+    if(!waitForMessages(DEFAULT_WAIT_MILLIS, TimeUnit.MILLISECONDS))
+      throw new MessagingException("Messages sent through this factory were not delivered in time");
+  }
+
+  /**
+   * @return Whether every message sent through this factory so far, on topics it has receivers for, has been
+   *         delivered to them within the given time.
+   */
+  public boolean waitForMessages(final long timeout, final TimeUnit unit) throws InterruptedException
+  {
+    final long deadline = System.nanoTime() + unit.toNanos(timeout);
+    final Map<StreamKey, Long> targets = new HashMap<>();
+    for(final SendStream stream : sendStreams.values())
+    {
+      if(hasSubscribers(stream.getTopic()))
+      {
+        // a heartbeat tells our receivers where the stream stands, should its last messages have gone missing
+        stream.requestHeartbeats();
+        targets.put(new StreamKey(sourceId, stream.getTopic()), stream.getNextSequence());
+      }
+    }
+    waitingThreads.incrementAndGet();
+    try
+    {
+      synchronized(deliveredMonitor)
+      {
+        for(final Map.Entry<StreamKey, Long> target : targets.entrySet())
+        {
+          while(deliveredUpTo(target.getKey()) < target.getValue())
+          {
+            final long remaining = deadline - System.nanoTime();
+            if(remaining <= 0)
+              return false;
+            TimeUnit.NANOSECONDS.timedWait(deliveredMonitor, remaining);
+          }
+        }
+      }
+      return true;
+    }
+    finally
+    {
+      waitingThreads.decrementAndGet();
+    }
+  }
+
+  private long deliveredUpTo(final StreamKey key)
+  {
+    final ReceiveStream stream = receiveStreams.get(key);
+    return stream == null ? -1 : stream.getDeliveredUpTo();
+  }
+
+  /**
+   * @return How many messages of the topics subscribed to here were missed for good, either because their source no
+   *         longer held them when they were asked for or because it never answered.
+   */
+  public long getLostCount()
+  {
+    long lost = 0;
+    for(final ReceiveStream stream : receiveStreams.values())
+      lost += stream.getLostCount();
+    return lost;
+  }
+
+  void send(final SendStream stream, final byte[] payload) throws MessagingException
+  {
+    checkStarted();
+    stream.send(payload, lossFilter);
+  }
+
+  void sendAll(final SendStream stream, final List<byte[]> payloads) throws MessagingException
+  {
+    checkStarted();
+    stream.sendAll(payloads, lossFilter);
+  }
+
+  private void checkStarted() throws MessagingException
+  {
+    if(!isStarted)
+      throw new MessagingException("Not started factory");
+  }
+
+  private InetAddress groupOf(final String topic)
+  {
+    final int group = baseGroup + Math.floorMod(topic.hashCode(), groupCount);
+    try
+    {
+      return InetAddress.getByAddress(ByteBuffer.allocate(Integer.BYTES).putInt(group).array());
+    }
+    catch(final UnknownHostException e)
+    {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private boolean hasSubscribers(final String topic)
+  {
+    final List<MulticastMessageReceiver> current = subscribers.get(topic);
+    return current != null && !current.isEmpty();
+  }
+
+  /**
+   * Adds a receiver to those its topic's messages are delivered to, joining the topic's group if it is the first.
+   */
+  void subscribe(final MulticastMessageReceiver receiver) throws MessagingException
+  {
+    final List<MulticastMessageReceiver> current = subscribers.computeIfAbsent(receiver.getTopic(), topic -> new CopyOnWriteArrayList<>());
+    synchronized(current)
+    {
+      current.add(receiver);
+      if(current.size() == 1)
+        joinGroup(groupOf(receiver.getTopic()));
+    }
+  }
+
+  void unsubscribe(final MulticastMessageReceiver receiver)
+  {
+    final List<MulticastMessageReceiver> current = subscribers.get(receiver.getTopic());
+    if(current == null)
+      return;
+    synchronized(current)
+    {
+      if(current.remove(receiver) && current.isEmpty())
+      {
+        // picked up afresh on resubscribing, rather than recovering what was sent in between
+        receiveStreams.keySet().removeIf(key -> key.topic().equals(receiver.getTopic()));
+        leaveGroup(groupOf(receiver.getTopic()));
+      }
+    }
+  }
+
+  private void joinGroup(final InetAddress group) throws MessagingException
+  {
+    synchronized(memberships)
+    {
+      if(groupTopics.merge(group, 1, Integer::sum) > 1)
+        return;
+      try
+      {
+        memberships.put(group, receiveChannel.join(group, networkInterface));
+      }
+      catch(final IOException e)
+      {
+        groupTopics.remove(group);
+        throw new MessagingException("Cannot join group " + group + " on " + networkInterface.getName(), e);
+      }
+    }
+  }
+
+  private void leaveGroup(final InetAddress group)
+  {
+    synchronized(memberships)
+    {
+      if(groupTopics.merge(group, -1, Integer::sum) > 0)
+        return;
+      groupTopics.remove(group);
+      final MembershipKey membership = memberships.remove(group);
+      if(membership != null)
+        membership.drop();
+    }
+  }
+
+  private void runIo()
+  {
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(Packets.MAX_DATAGRAM);
+    final long tickNanos = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+    long nextTick = System.nanoTime();
+    try
+    {
+      while(isStarted)
+      {
+        selector.select(TICK_MILLIS);
+        selector.selectedKeys().clear();
+        readFrom(receiveChannel, buffer);
+        readFrom(sendChannel, buffer);
+        final long now = System.nanoTime();
+        if(now - nextTick >= 0)
+        {
+          nextTick = now + tickNanos;
+          for(final ReceiveStream stream : receiveStreams.values())
+            sendNak(stream, now);
+          for(final SendStream stream : sendStreams.values())
+            stream.heartbeat();
+        }
+      }
+    }
+    catch(final IOException | ClosedSelectorException e)
+    {
+      if(isStarted)
+        e.printStackTrace();
+    }
+  }
+
+  private void readFrom(final DatagramChannel channel, final ByteBuffer buffer) throws IOException
+  {
+    for(int i=0; i<MAX_READS_PER_ROUND; ++i)
+    {
+      buffer.clear();
+      final SocketAddress from = channel.receive(buffer);
+      if(from == null)
+        return;
+      buffer.flip();
+      try
+      {
+        onPacket(from, buffer);
+      }
+      catch(final BufferUnderflowException | IllegalArgumentException e)
+      {
+        // not one of ours, or cut short
+      }
+    }
+  }
+
+  private void onPacket(final SocketAddress from, final ByteBuffer packet) throws IOException
+  {
+    final byte type = packet.get();
+    final long source = packet.getLong();
+    final byte[] encodedTopic = new byte[packet.getShort()];
+    packet.get(encodedTopic);
+    final String topic = new String(encodedTopic, StandardCharsets.UTF_8);
+    if(type == Packets.NAK)
+    {
+      final SendStream stream = sendStreams.get(topic);
+      if(source == sourceId && stream != null)
+        stream.retransmit(packet.getLong(), packet.getLong());
+      return;
+    }
+    if(!hasSubscribers(topic))
+      return;
+    final ReceiveStream stream = receiveStreams.computeIfAbsent(new StreamKey(source, topic),
+        key -> new ReceiveStream(source, topic, encodedTopic, delivery));
+    switch(type)
+    {
+      case Packets.DATA:
+        final long sequence = packet.getLong();
+        final byte[] payload = new byte[packet.remaining()];
+        packet.get(payload);
+        stream.onData(from, sequence, payload);
+        break;
+      case Packets.HEARTBEAT:
+        stream.onHeartbeat(from, packet.getLong());
+        break;
+      case Packets.LOST:
+        stream.onLost(packet.getLong());
+        break;
+      default:
+        // unknown datagrams are ignored, so newer factories can talk to older ones
+    }
+    sendNak(stream, System.nanoTime());
+  }
+
+  private void sendNak(final ReceiveStream stream, final long now) throws IOException
+  {
+    final long[] range = stream.nakDue(now);
+    if(range != null && stream.getSourceAddress() != null)
+      receiveChannel.send(Packets.nak(stream.getSource(), stream.getEncodedTopic(), range[0], range[1]), stream.getSourceAddress());
+  }
+
+  private void runDeliveries()
+  {
+    try
+    {
+      while(isStarted || !deliveries.isEmpty())
+      {
+        deliveries.take().run();
+        if(waitingThreads.get() > 0)
+        {
+          synchronized(deliveredMonitor)
+          {
+            deliveredMonitor.notifyAll();
+          }
+        }
+      }
+    }
+    catch(final InterruptedException e)
+    {
+      // shut down
+    }
+  }
+
+  public boolean isStarted()
+  {
+    return isStarted;
+  }
+
+  private record StreamKey(long source, String topic)
+  {
+  }
+
+  /**
+   * Queues the messages of received streams for the delivery thread, which also records how far each stream got.
+   */
+  private final class StreamDelivery implements ReceiveStream.Delivery
+  {
+    @Override
+    public void deliver(final ReceiveStream stream, final long sequence, final byte[] payload)
+    {
+      final List<MulticastMessageReceiver> current = subscribers.get(stream.getTopic());
+      deliveries.add(() -> {
+        if(current != null)
+          for(final MulticastMessageReceiver receiver : current)
+            receiver.deliver(payload);
+        stream.setDeliveredUpTo(sequence + 1);
+      });
+    }
+
+    @Override
+    public void skip(final ReceiveStream stream, final long upTo)
+    {
+      deliveries.add(() -> stream.setDeliveredUpTo(Math.max(stream.getDeliveredUpTo(), upTo)));
+    }
+  }
+}
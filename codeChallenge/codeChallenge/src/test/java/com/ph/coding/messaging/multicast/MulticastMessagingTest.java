@@ -0,0 +1,283 @@
+package com.ph.coding.messaging.multicast;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import com.ph.coding.messaging.Message;
+import com.ph.coding.messaging.MessageReceiveListener;
+import com.ph.coding.messaging.MessageReceiver;
+import com.ph.coding.messaging.MessageSender;
+import com.ph.coding.messaging.MessagingException;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Multicast on the loopback interface, skipped where the loopback interface does not loop multicast back.
+ */
+public class MulticastMessagingTest
+{
+  private NetworkInterface loopback;
+  private int port;
+  private MulticastMessagingFactory messagingFactory;
+  // a second factory on the same port receives as another process on the host would
+  private MulticastMessagingFactory otherProcess;
+
+  @Before
+  public void before() throws Exception
+  {
+    loopback = NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+    port = freePort();
+    Assume.assumeTrue("No multicast on the loopback interface", loopback != null && multicastLoopsBack());
+    messagingFactory = new MulticastMessagingFactory(loopback, port);
+    messagingFactory.start();
+    otherProcess = new MulticastMessagingFactory(loopback, port);
+    otherProcess.start();
+  }
+
+  @After
+  public void after() throws Exception
+  {
+    if(messagingFactory != null)
+      messagingFactory.shutdown();
+    if(otherProcess != null)
+      otherProcess.shutdown();
+  }
+
+  // -------------------------------------------------------------------------------- //
+
+  @Test
+  public void simpleSendReceive() throws Exception
+  {
+    final MessageSender sender = startedSender(messagingFactory, "a");
+    final StoringListener listener = startedReceiver(messagingFactory, "a");
+
+    sender.sendMessage(encode("The"));
+    sender.sendMessage(encode("cat"));
+    sender.sendMessages(List.of(encode("sat"), encode("on")));
+    messagingFactory.waitForMessages();
+
+    checkMessages(listener, "The", "cat", "sat", "on");
+    assertEquals(Collections.nCopies(4, "a"), listener.topics);
+  }
+
+  @Test
+  public void oneSendReachesEveryReceiver() throws Exception
+  {
+    final StoringListener here1 = startedReceiver(messagingFactory, "a");
+    final StoringListener here2 = startedReceiver(messagingFactory, "a");
+    final StoringListener there = startedReceiver(otherProcess, "a");
+    final MessageSender sender = startedSender(messagingFactory, "a");
+
+    sender.sendMessage(encode("The"));
+    sender.sendMessage(encode("cat"));
+    messagingFactory.waitForMessages();
+    awaitMessages(there, 2);
+
+    checkMessages(here1, "The", "cat");
+    checkMessages(here2, "The", "cat");
+    checkMessages(there, "The", "cat");
+  }
+
+  @Test
+  public void topicsSharingAGroupAreKeptApart() throws Exception
+  {
+    messagingFactory.shutdown();
+    messagingFactory = new MulticastMessagingFactory(loopback, InetAddress.getByName(MulticastMessagingFactory.DEFAULT_BASE_GROUP), 1, port);
+    messagingFactory.start();
+    final MessageSender senderA = startedSender(messagingFactory, "a");
+    final MessageSender senderB = startedSender(messagingFactory, "b");
+    final StoringListener listenerA = startedReceiver(messagingFactory, "a");
+    final StoringListener listenerB = startedReceiver(messagingFactory, "b");
+
+    senderA.sendMessage(encode("The"));
+    senderB.sendMessage(encode("cat"));
+    senderA.sendMessage(encode("sat"));
+    messagingFactory.waitForMessages();
+
+    checkMessages(listenerA, "The", "sat");
+    checkMessages(listenerB, "cat");
+  }
+
+  @Test
+  public void lostMessagesAreSentAgain() throws Exception
+  {
+    messagingFactory.setLossFilter(sequence -> sequence % 3 == 1);
+    final MessageSender sender = startedSender(messagingFactory, "a");
+    final StoringListener listener = startedReceiver(messagingFactory, "a");
+
+    final List<String> sent = new ArrayList<>();
+    for(int i=0; i<300; ++i)
+    {
+      sent.add(Integer.toString(i));
+      sender.sendMessage(encode(Integer.toString(i)));
+    }
+    messagingFactory.waitForMessages();
+
+    checkMessages(listener, sent.toArray(new String[0]));
+    assertEquals(0, messagingFactory.getLostCount());
+  }
+
+  @Test
+  public void lossOfTheLastMessageIsNoticedFromHeartbeats() throws Exception
+  {
+    messagingFactory.setLossFilter(sequence -> sequence == 2);
+    final MessageSender sender = startedSender(messagingFactory, "a");
+    final StoringListener listener = startedReceiver(messagingFactory, "a");
+
+    sender.sendMessage(encode("The"));
+    sender.sendMessage(encode("cat"));
+    sender.sendMessage(encode("sat"));
+    messagingFactory.waitForMessages();
+
+    checkMessages(listener, "The", "cat", "sat");
+  }
+
+  @Test
+  public void messagesNoLongerInTheHistoryAreReportedLost() throws Exception
+  {
+    messagingFactory.setHistorySize(2);
+    messagingFactory.setLossFilter(sequence -> sequence >= 1 && sequence <= 4);
+    final MessageSender sender = startedSender(messagingFactory, "a");
+    final StoringListener listener = startedReceiver(messagingFactory, "a");
+
+    final List<byte[]> batch = new ArrayList<>();
+    for(int i=0; i<=6; ++i)
+      batch.add(encode(Integer.toString(i)));
+    // the NAK for 1 to 4 is only answered once the whole batch is out, when only 5 and 6 are still held
+    sender.sendMessages(batch);
+    messagingFactory.waitForMessages();
+
+    checkMessages(listener, "0", "5", "6");
+    assertEquals(4, messagingFactory.getLostCount());
+  }
+
+  @Test
+  public void manySmallSendsArriveInOrder() throws Exception
+  {
+    final MessageSender sender = startedSender(messagingFactory, "a");
+    final StoringListener listener = startedReceiver(messagingFactory, "a");
+
+    for(int i=0; i<5000; ++i)
+      sender.sendMessage(encode(Integer.toString(i)));
+    messagingFactory.waitForMessages();
+
+    assertEquals(5000, listener.messages.size());
+    for(int i=0; i<5000; ++i)
+      assertEquals(Integer.toString(i), decode(listener.messages.get(i)));
+  }
+
+  @Test(expected = MessagingException.class)
+  public void messageLargerThanADatagramIsRejected() throws Exception
+  {
+    startedSender(messagingFactory, "a").sendMessage(new byte[Packets.MAX_DATAGRAM]);
+  }
+
+  // -------------------------------------------------------------------------------- //
+
+  private static int freePort() throws Exception
+  {
+    try(DatagramSocket socket = new DatagramSocket(0))
+    {
+      return socket.getLocalPort();
+    }
+  }
+
+  /**
+   * Sends a datagram to a group joined on the loopback interface and checks it comes back.
+   */
+  private boolean multicastLoopsBack() throws Exception
+  {
+    final InetAddress group = InetAddress.getByName(MulticastMessagingFactory.DEFAULT_BASE_GROUP);
+    try(DatagramChannel receiver = DatagramChannel.open(StandardProtocolFamily.INET);
+        DatagramChannel sender = DatagramChannel.open(StandardProtocolFamily.INET))
+    {
+      receiver.setOption(StandardSocketOptions.SO_REUSEADDR, true).bind(new InetSocketAddress(port));
+      receiver.join(group, loopback);
+      receiver.configureBlocking(false);
+      sender.setOption(StandardSocketOptions.IP_MULTICAST_IF, loopback);
+      sender.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+      sender.send(ByteBuffer.wrap(new byte[] { 1 }), new InetSocketAddress(group, port));
+      final long deadline = System.currentTimeMillis() + 1000;
+      while(System.currentTimeMillis() < deadline)
+      {
+        if(receiver.receive(ByteBuffer.allocate(1)) != null)
+          return true;
+        Thread.sleep(10);
+      }
+      return false;
+    }
+    catch(final Exception e)
+    {
+      return false;
+    }
+  }
+
+  private static MessageSender startedSender(final MulticastMessagingFactory factory, final String topic) throws MessagingException
+  {
+    final MessageSender sender = factory.createSender(topic);
+    sender.start();
+    return sender;
+  }
+
+  private static StoringListener startedReceiver(final MulticastMessagingFactory factory, final String topic) throws MessagingException
+  {
+    final StoringListener listener = new StoringListener();
+    final MessageReceiver receiver = factory.createReceiver(topic);
+    receiver.setListener(listener);
+    receiver.start();
+    return listener;
+  }
+
+  /**
+   * Waits for messages sent through another factory, which cannot wait for them itself.
+   */
+  private static void awaitMessages(final StoringListener listener, final int count) throws InterruptedException
+  {
+    final long deadline = System.currentTimeMillis() + 10000;
+    while(listener.messages.size() < count && System.currentTimeMillis() < deadline)
+      Thread.sleep(5);
+  }
+
+  private static void checkMessages(final StoringListener listener, final String... messages)
+  {
+    assertEquals(messages.length, listener.messages.size());
+    for(int i=0; i<messages.length; ++i)
+      assertEquals("Message " + i + " different", messages[i], decode(listener.messages.get(i)));
+  }
+
+  private static byte[] encode(final String string)
+  {
+    return string.getBytes();
+  }
+
+  private static String decode(final Message message)
+  {
+    return new String(message.getMsg());
+  }
+
+  private static class StoringListener implements MessageReceiveListener
+  {
+    public final List<Message> messages = Collections.synchronizedList(new ArrayList<>());
+    public final List<String> topics = Collections.synchronizedList(new ArrayList<>());
+
+    @Override
+    public void onMessage(final Message message, final String topic)
+    {
+      messages.add(message);
+      topics.add(topic);
+    }
+  }
+}
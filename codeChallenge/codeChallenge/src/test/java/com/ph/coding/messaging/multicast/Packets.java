@@ -0,0 +1,72 @@
+package com.ph.coding.messaging.multicast;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import com.ph.coding.messaging.MessagingException;
+
+/**
+ * The datagrams exchanged by {@link MulticastMessagingFactory} instances.
+ * <p/>
+ * Every datagram starts with a type byte, the id of the source whose stream of messages it is about, a short holding
+ * the length of the UTF-8 encoded topic and the topic. Message datagrams go on with their sequence number in the
+ * stream and the payload, which takes up whatever is left; control datagrams go on with one or two sequence numbers.
+ * A stream is the messages sent on one topic through one factory, numbered from 0.
+ */
+final class Packets {
+
+	// type byte, source id and topic length
+	static final int HEADER = 1 + Long.BYTES + Short.BYTES;
+	/** Largest UDP payload over IPv4. */
+	static final int MAX_DATAGRAM = 65507;
+
+	/** A message, multicast to the group of its topic, then again in answer to a {@link #NAK}. */
+	static final byte DATA = 1;
+	/** The sequence number the next message of a stream will get, multicast whilst the stream is quiet. */
+	static final byte HEARTBEAT = 2;
+	/** Asks the source of a stream, by unicast, for the messages in a range of sequence numbers. */
+	static final byte NAK = 3;
+	/** Tells receivers the oldest message a source still holds, when they asked for older ones. */
+	static final byte LOST = 4;
+
+	private Packets() {
+	}
+
+	static byte[] encodeTopic(String topic) throws MessagingException {
+		byte[] encoded = topic.getBytes(StandardCharsets.UTF_8);
+		if (encoded.length > Short.MAX_VALUE) {
+			throw new MessagingException("Topic is too long: " + topic);
+		}
+		return encoded;
+	}
+
+	/**
+	 * @return The largest payload a message of the topic can carry in one datagram.
+	 */
+	static int maxPayload(byte[] topic) {
+		return MAX_DATAGRAM - HEADER - topic.length - Long.BYTES;
+	}
+
+	static byte[] data(long source, byte[] topic, long sequence, byte[] payload) {
+		ByteBuffer packet = header(DATA, source, topic, Long.BYTES + payload.length);
+		packet.putLong(sequence).put(payload);
+		return packet.array();
+	}
+
+	static ByteBuffer control(byte type, long source, byte[] topic, long sequence) {
+		ByteBuffer packet = header(type, source, topic, Long.BYTES);
+		packet.putLong(sequence);
+		return packet.flip();
+	}
+
+	static ByteBuffer nak(long source, byte[] topic, long from, long to) {
+		ByteBuffer packet = header(NAK, source, topic, 2 * Long.BYTES);
+		packet.putLong(from).putLong(to);
+		return packet.flip();
+	}
+
+	private static ByteBuffer header(byte type, long source, byte[] topic, int bodyLength) {
+		ByteBuffer packet = ByteBuffer.allocate(HEADER + topic.length + bodyLength);
+		return packet.put(type).putLong(source).putShort((short) topic.length).put(topic);
+	}
+}
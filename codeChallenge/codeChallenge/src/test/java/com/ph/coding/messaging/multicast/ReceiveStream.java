@@ -0,0 +1,171 @@
+package com.ph.coding.messaging.multicast;
+
+import java.net.SocketAddress;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a factory knows of a stream of messages it receives: the next sequence number due, messages that arrived
+ * ahead of it and the NAKs sent for the ones missing in between. Messages are passed on strictly in order; a message
+ * that cannot be recovered, because the source no longer holds it or never answers, is counted as lost and skipped.
+ * <p/>
+ * A stream is picked up from the first datagram received, so a late joiner neither asks for nor gets the messages
+ * sent before it. Everything but the delivered sequence number is only touched by the factory's I/O thread.
+ */
+final class ReceiveStream {
+
+	static final long NAK_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+	// NAKs sent for the same gap before giving up on it, about a second's worth
+	static final int MAX_NAKS = 50;
+	// messages held whilst waiting for a gap to be filled; later ones are dropped and asked for again
+	private static final int MAX_PENDING = 65536;
+
+	/**
+	 * Where the messages of the stream go, in order.
+	 */
+	interface Delivery {
+		void deliver(ReceiveStream stream, long sequence, byte[] payload);
+
+		/**
+		 * Everything before the given sequence number has been delivered or skipped.
+		 */
+		void skip(ReceiveStream stream, long upTo);
+	}
+
+	private final long source;
+	private final String topic;
+	private final byte[] encodedTopic;
+	private final Delivery delivery;
+	private SocketAddress sourceAddress;
+	private long expected = -1;
+	// just past the last sequence number known to have been sent
+	private long known;
+	private final TreeMap<Long, byte[]> pending = new TreeMap<>();
+	private long nakExpected = -1;
+	private long lastNakNanos;
+	private int naks;
+	private volatile long lostCount;
+	// set by the delivery thread once listeners are done with everything before it
+	private volatile long deliveredUpTo = -1;
+
+	ReceiveStream(long source, String topic, byte[] encodedTopic, Delivery delivery) {
+		this.source = source;
+		this.topic = topic;
+		this.encodedTopic = encodedTopic;
+		this.delivery = delivery;
+	}
+
+	long getSource() {
+		return source;
+	}
+
+	String getTopic() {
+		return topic;
+	}
+
+	byte[] getEncodedTopic() {
+		return encodedTopic;
+	}
+
+	/**
+	 * @return The address NAKs for the stream go to, that of the last datagram received from its source.
+	 */
+	SocketAddress getSourceAddress() {
+		return sourceAddress;
+	}
+
+	long getLostCount() {
+		return lostCount;
+	}
+
+	long getDeliveredUpTo() {
+		return deliveredUpTo;
+	}
+
+	void setDeliveredUpTo(long deliveredUpTo) {
+		this.deliveredUpTo = deliveredUpTo;
+	}
+
+	void onData(SocketAddress from, long sequence, byte[] payload) {
+		sourceAddress = from;
+		if (expected < 0) {
+			expected = sequence;
+		}
+		known = Math.max(known, sequence + 1);
+		if (sequence == expected) {
+			delivery.deliver(this, sequence, payload);
+			expected++;
+			drainPending();
+		} else if (sequence > expected && pending.size() < MAX_PENDING) {
+			pending.put(sequence, payload);
+		}
+	}
+
+	void onHeartbeat(SocketAddress from, long nextSequence) {
+		sourceAddress = from;
+		if (expected < 0) {
+			expected = nextSequence;
+			delivery.skip(this, expected);
+		}
+		known = Math.max(known, nextSequence);
+	}
+
+	/**
+	 * The source no longer holds the messages before the given one.
+	 */
+	void onLost(long oldest) {
+		if (expected >= 0 && expected < oldest) {
+			skipTo(oldest);
+		}
+	}
+
+	/**
+	 * @return The range of sequence numbers to NAK, from the first missing one up to the next one received, or
+	 *         {@code null} if there is no gap or its last NAK is too recent to repeat.
+	 */
+	long[] nakDue(long nowNanos) {
+		while (expected >= 0 && expected < known) {
+			long end = pending.isEmpty() ? known : pending.firstKey();
+			if (expected != nakExpected) {
+				nakExpected = expected;
+				naks = 0;
+			} else if (nowNanos - lastNakNanos < NAK_INTERVAL_NANOS) {
+				return null;
+			} else if (naks >= MAX_NAKS) {
+				skipTo(end);
+				continue;
+			}
+			naks++;
+			lastNakNanos = nowNanos;
+			return new long[] { expected, end };
+		}
+		return null;
+	}
+
+	/**
+	 * Gives up on the missing messages before the given sequence number, delivering those that did arrive.
+	 */
+	private void skipTo(long upTo) {
+		while (expected < upTo) {
+			Long next = pending.ceilingKey(expected);
+			long stop = next == null ? upTo : Math.min(next, upTo);
+			lostCount += stop - expected;
+			expected = stop;
+			if (expected < upTo) {
+				delivery.deliver(this, expected, pending.remove(expected));
+				expected++;
+			}
+		}
+		delivery.skip(this, expected);
+		drainPending();
+	}
+
+	private void drainPending() {
+		pending.headMap(expected).clear();
+		byte[] payload;
+		while ((payload = pending.remove(expected)) != null) {
+			delivery.deliver(this, expected, payload);
+			expected++;
+		}
+	}
+}
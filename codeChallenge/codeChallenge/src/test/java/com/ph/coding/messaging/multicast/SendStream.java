@@ -0,0 +1,121 @@
+package com.ph.coding.messaging.multicast;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.List;
+import java.util.function.LongPredicate;
+
+import com.ph.coding.messaging.MessagingException;
+
+/**
+ * The messages sent on one topic through one factory: numbers them, multicasts them to the group of the topic and
+ * keeps the most recent ones in a bounded history to answer NAKs from. Sends are serialised so messages go out in
+ * the order of their sequence numbers.
+ */
+final class SendStream {
+
+	// heartbeats sent after the last message, in case some of them are lost too
+	private static final int HEARTBEATS = 3;
+
+	private final long source;
+	private final String topic;
+	private final byte[] encodedTopic;
+	private final InetSocketAddress group;
+	private final DatagramChannel channel;
+	private final byte[][] history;
+	private final int maxPayload;
+	private long nextSequence;
+	private int heartbeatsDue;
+
+	SendStream(long source, String topic, byte[] encodedTopic, InetSocketAddress group, DatagramChannel channel,
+			int historySize) {
+		this.source = source;
+		this.topic = topic;
+		this.encodedTopic = encodedTopic;
+		this.group = group;
+		this.channel = channel;
+		this.history = new byte[historySize][];
+		this.maxPayload = Packets.maxPayload(encodedTopic);
+	}
+
+	String getTopic() {
+		return topic;
+	}
+
+	synchronized long getNextSequence() {
+		return nextSequence;
+	}
+
+	/**
+	 * @param lost Sequence numbers not to put on the wire the first time round, to simulate packet loss.
+	 */
+	synchronized void send(byte[] payload, LongPredicate lost) throws MessagingException {
+		checkSize(payload);
+		transmit(payload, lost);
+	}
+
+	synchronized void sendAll(List<byte[]> payloads, LongPredicate lost) throws MessagingException {
+		for (byte[] payload : payloads) {
+			checkSize(payload);
+		}
+		for (byte[] payload : payloads) {
+			transmit(payload, lost);
+		}
+	}
+
+	private void checkSize(byte[] payload) throws MessagingException {
+		if (payload.length > maxPayload) {
+			throw new MessagingException("Message of " + payload.length + " bytes does not fit a datagram of topic "
+					+ topic + ", which takes at most " + maxPayload);
+		}
+	}
+
+	private void transmit(byte[] payload, LongPredicate lost) throws MessagingException {
+		long sequence = nextSequence++;
+		byte[] packet = Packets.data(source, encodedTopic, sequence, payload);
+		history[(int) (sequence % history.length)] = packet;
+		heartbeatsDue = HEARTBEATS;
+		if (lost != null && lost.test(sequence)) {
+			return;
+		}
+		try {
+			// a full socket buffer drops the datagram, which receivers then NAK like any other loss
+			channel.send(ByteBuffer.wrap(packet), group);
+		} catch (IOException e) {
+			throw new MessagingException("Cannot send on topic " + topic, e);
+		}
+	}
+
+	/**
+	 * Multicasts again the messages of the given range still in the history, and tells receivers which ones are not.
+	 */
+	synchronized void retransmit(long from, long to) throws IOException {
+		long oldest = Math.max(0, nextSequence - history.length);
+		if (from < oldest) {
+			channel.send(Packets.control(Packets.LOST, source, encodedTopic, oldest), group);
+		}
+		for (long sequence = Math.max(from, oldest); sequence < Math.min(to, nextSequence); sequence++) {
+			channel.send(ByteBuffer.wrap(history[(int) (sequence % history.length)]), group);
+		}
+	}
+
+	/**
+	 * Asks for heartbeats even if nothing has been sent lately, so receivers that have not heard from the stream yet
+	 * learn where it stands.
+	 */
+	synchronized void requestHeartbeats() {
+		heartbeatsDue = HEARTBEATS;
+	}
+
+	/**
+	 * Multicasts a heartbeat if one is due, which lets receivers notice that the last messages sent were lost.
+	 */
+	synchronized void heartbeat() throws IOException {
+		if (heartbeatsDue > 0) {
+			heartbeatsDue--;
+			channel.send(Packets.control(Packets.HEARTBEAT, source, encodedTopic, nextSequence), group);
+		}
+	}
+}
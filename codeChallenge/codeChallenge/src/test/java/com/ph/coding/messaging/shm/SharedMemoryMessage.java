@@ -0,0 +1,25 @@
+package com.ph.coding.messaging.shm;
+
+import com.ph.coding.messaging.Message;
+
+/**
+ * A message copied out of a {@link SharedMemoryRing}, as the ring slot it came from is soon reused.
+ */
+public final class SharedMemoryMessage implements Message {
+
+	private final byte[] msg;
+
+	SharedMemoryMessage(byte[] msg) {
+		this.msg = msg;
+	}
+
+	@Override
+	public byte[] getMsg() {
+		return msg;
+	}
+
+	@Override
+	public void dispose() {
+		// nothing to release
+	}
+}
@@ -0,0 +1,145 @@
+package com.ph.coding.messaging.shm;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.ph.coding.messaging.MessageReceiveListener;
+import com.ph.coding.messaging.MessageReceiver;
+import com.ph.coding.messaging.MessagingException;
+
+/**
+ * Receives the messages of a topic by reading its {@link SharedMemoryRing} on a thread of its own, starting from the
+ * messages appended after it was started. Producers in other processes cannot wake the thread up, so whilst there is
+ * nothing to read it spins for a while, then yields, then parks for short periods.
+ */
+public final class SharedMemoryMessageReceiver implements MessageReceiver {
+
+	private static final int SPINS = 1000;
+	private static final int YIELDS = 100;
+	private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+	private final SharedMemoryRing ring;
+	private volatile boolean isStarted = false;
+	private volatile MessageReceiveListener listener;
+	private volatile SharedMemoryRing.Reader reader;
+	// position up to which messages have been handed to the listener
+	private volatile long deliveredPosition;
+	private Thread poller;
+	private final Object idleLock = new Object();
+
+	SharedMemoryMessageReceiver(SharedMemoryRing ring)
+	{
+		this.ring = ring;
+	}
+
+	@Override
+	public String getTopic() {
+		return ring.getTopic();
+	}
+
+	@Override
+	public boolean isStarted() {
+		return isStarted;
+	}
+
+	@Override
+	public synchronized void start() throws MessagingException {
+		if(listener == null)
+		{
+			throw new MessagingException("No listener");
+		}
+		if(isStarted)
+		{
+			return;
+		}
+		SharedMemoryRing.Reader started = ring.newReader();
+		reader = started;
+		deliveredPosition = started.getPosition();
+		isStarted = true;
+		poller = new Thread(() -> poll(started), "shm-receiver-" + ring.getTopic());
+		poller.setDaemon(true);
+		poller.start();
+	}
+
+	@Override
+	public synchronized void stop() throws MessagingException {
+		if(!isStarted)
+		{
+			return;
+		}
+		isStarted = false;
+		LockSupport.unpark(poller);
+		poller = null;
+		synchronized(idleLock)
+		{
+			idleLock.notifyAll();
+		}
+	}
+
+	@Override
+	public void setListener(MessageReceiveListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * @return How many times producers overtook this receiver, each time losing the messages it had not read yet.
+	 */
+	public long getLappedCount() {
+		SharedMemoryRing.Reader current = reader;
+		return current == null ? 0 : current.getLappedCount();
+	}
+
+	/**
+	 * Blocks until the receiver has delivered everything appended to the ring so far, or the receiver is stopped.
+	 */
+	public void awaitCaughtUp() throws InterruptedException {
+		long position = ring.getTail();
+		synchronized(idleLock)
+		{
+			while(isStarted && deliveredPosition < position)
+			{
+				idleLock.wait();
+			}
+		}
+	}
+
+	private void poll(SharedMemoryRing.Reader reader) {
+		int idle = 0;
+		while (isStarted) {
+			byte[] payload = reader.poll();
+			if (payload != null) {
+				deliver(payload);
+				deliveredPosition = reader.getPosition();
+				idle = 0;
+				continue;
+			}
+			if (idle == 0) {
+				// padding may have moved the reader on without delivering anything
+				deliveredPosition = reader.getPosition();
+				synchronized (idleLock) {
+					idleLock.notifyAll();
+				}
+			}
+			idle++;
+			if (idle <= SPINS) {
+				Thread.onSpinWait();
+			} else if (idle <= SPINS + YIELDS) {
+				Thread.yield();
+			} else {
+				LockSupport.parkNanos(PARK_NANOS);
+			}
+		}
+	}
+
+	private void deliver(byte[] payload) {
+		MessageReceiveListener current = listener;
+		if (current == null) {
+			return;
+		}
+		try {
+			current.onMessage(new SharedMemoryMessage(payload), ring.getTopic());
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package com.ph.coding.messaging.shm;
+
+import com.ph.coding.messaging.MessageSender;
+import com.ph.coding.messaging.MessagingException;
+
+public final class SharedMemoryMessageSender implements MessageSender {
+
+	private volatile boolean isStarted = false;
+	private final SharedMemoryRing ring;
+
+	SharedMemoryMessageSender(SharedMemoryRing ring)
+	{
+		this.ring = ring;
+	}
+
+	@Override
+	public String getTopic() {
+		return ring.getTopic();
+	}
+
+	@Override
+	public boolean isStarted() {
+		return isStarted;
+	}
+
+	@Override
+	public void start() throws MessagingException {
+		isStarted = true;
+	}
+
+	@Override
+	public void stop() throws MessagingException {
+		isStarted = false;
+	}
+
+	@Override
+	public void sendMessage(byte[] message) throws MessagingException {
+		if(!isStarted)
+		{
+			throw new MessagingException("Not started");
+		}
+		ring.append(message);
+	}
+}
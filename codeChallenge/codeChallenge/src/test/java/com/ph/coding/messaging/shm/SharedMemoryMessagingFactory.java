@@ -0,0 +1,194 @@
+package com.ph.coding.messaging.shm;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.ph.coding.messaging.MessageReceiver;
+import com.ph.coding.messaging.MessageSender;
+import com.ph.coding.messaging.MessagingException;
+import com.ph.coding.messaging.MessagingFactory;
+
+/**
+ * Messaging provider for processes on the same host, exchanging messages through a {@link SharedMemoryRing} per topic
+ * in a shared directory. Every process using the same directory and topic sees the same messages; each receiver reads
+ * at its own pace and, as producers never wait for receivers, misses messages if it falls more than a ring behind.
+ */
+public class SharedMemoryMessagingFactory implements MessagingFactory
+{
+	public static final int DEFAULT_RING_CAPACITY = 1024 * 1024;
+
+	private final Path directory;
+	private final Map<String, SharedMemoryRing> rings = new ConcurrentHashMap<>();
+	private final List<SharedMemoryMessageSender> senders = Collections.synchronizedList(new ArrayList<>());
+	private final List<SharedMemoryMessageReceiver> receivers = Collections.synchronizedList(new ArrayList<>());
+	private final Map<String, Integer> ringCapacities = new ConcurrentHashMap<>();
+	private volatile int defaultRingCapacity = DEFAULT_RING_CAPACITY;
+	private volatile boolean isStarted;
+
+  /**
+   * Creates a factory sharing its rings through {@code /dev/shm}, or the temporary directory where there is no such
+   * memory backed file system.
+   */
+  public SharedMemoryMessagingFactory()
+  {
+    this(defaultDirectory());
+  }
+
+  public SharedMemoryMessagingFactory(final Path directory)
+  {
+    this.directory = directory;
+  }
+
+  private static Path defaultDirectory()
+  {
+    final Path shm = Paths.get("/dev/shm");
+    return (Files.isDirectory(shm) ? shm : Paths.get(System.getProperty("java.io.tmpdir"))).resolve("messaging");
+  }
+
+  @Override
+  public String getProviderName()
+  {
+    return "SharedMemory";
+  }
+
+  @Override
+  public void start() throws Exception
+  {
+    Files.createDirectories(directory);
+    isStarted = true;
+  }
+
+  @Override
+  public void shutdown() throws Exception
+  {
+    isStarted = false;
+    synchronized(senders)
+    {
+      Iterator<SharedMemoryMessageSender> itSend = senders.iterator();
+      while(itSend.hasNext())
+      {
+        itSend.next().stop();
+        itSend.remove();
+      }
+    }
+    synchronized(receivers)
+    {
+      Iterator<SharedMemoryMessageReceiver> itRec = receivers.iterator();
+      while(itRec.hasNext())
+      {
+        itRec.next().stop();
+        itRec.remove();
+      }
+    }
+    // the ring files are left for the other processes still using them
+    rings.clear();
+  }
+
+  @Override
+  public MessageSender createSender(final String topic) throws MessagingException
+  {
+    if(!isStarted) throw new MessagingException("Not started factory");
+    SharedMemoryMessageSender sender = new SharedMemoryMessageSender(ring(topic));
+    senders.add(sender);
+    return sender;
+  }
+
+  @Override
+  public MessageReceiver createReceiver(final String topic) throws MessagingException
+  {
+    if(!isStarted) throw new MessagingException("Not started factory");
+    SharedMemoryMessageReceiver receiver = new SharedMemoryMessageReceiver(ring(topic));
+    receivers.add(receiver);
+    return receiver;
+  }
+
+  /**
+   * Sets the ring size used for topics without a size of their own. All processes sharing a topic have to use the same
+   * size for it.
+   *
+   * @param capacity Size of the ring in bytes, a power of 2 of at least 1024. Messages may take up to an eighth of it.
+   */
+  public void setDefaultRingCapacity(final int capacity)
+  {
+    defaultRingCapacity = checkCapacity(capacity);
+  }
+
+  /**
+   * Sets the ring size of a single topic. Only takes effect before the first sender or receiver on the topic is
+   * created.
+   *
+   * @param topic The topic.
+   * @param capacity Size of the ring in bytes, a power of 2 of at least 1024.
+   */
+  public void configureTopic(final String topic, final int capacity)
+  {
+    ringCapacities.put(topic, checkCapacity(capacity));
+  }
+
+  private static int checkCapacity(final int capacity)
+  {
+    if(capacity < SharedMemoryRing.MIN_CAPACITY || Integer.bitCount(capacity) != 1)
+      throw new IllegalArgumentException("Ring capacity must be a power of 2 of at least " + SharedMemoryRing.MIN_CAPACITY + ": " + capacity);
+    return capacity;
+  }
+
+  /**
+   * @return The file holding the ring of the given topic.
+   */
+  public Path getRingFile(final String topic)
+  {
+    return directory.resolve(URLEncoder.encode(topic, StandardCharsets.UTF_8) + ".ring");
+  }
+
+  private SharedMemoryRing ring(final String topic) throws MessagingException
+  {
+    SharedMemoryRing ring = rings.get(topic);
+    if(ring == null)
+    {
+      try
+      {
+        ring = SharedMemoryRing.open(getRingFile(topic), topic, ringCapacities.getOrDefault(topic, defaultRingCapacity));
+      }
+      catch(final IOException e)
+      {
+        throw new MessagingException("Cannot map ring of topic " + topic, e);
+      }
+      SharedMemoryRing existing = rings.putIfAbsent(topic, ring);
+      if(existing != null)
+      {
+        ring = existing;
+      }
+    }
+    return ring;
+  }
+
+  /**
+   * Blocks until every receiver of this factory has delivered all of the messages sent on its topic so far, by any
+   * process.
+   */
+  public void waitForMessages() throws InterruptedException
+  {
+    synchronized(receivers)
+    {
+      for(SharedMemoryMessageReceiver receiver : receivers)
+      {
+        receiver.awaitCaughtUp();
+      }
+    }
+  }
+
+  public boolean isStarted()
+  {
+    return isStarted;
+  }
+}
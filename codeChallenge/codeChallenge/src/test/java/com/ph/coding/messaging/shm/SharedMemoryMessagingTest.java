@@ -0,0 +1,284 @@
+package com.ph.coding.messaging.shm;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import com.ph.coding.messaging.Message;
+import com.ph.coding.messaging.MessageReceiveListener;
+import com.ph.coding.messaging.MessageReceiver;
+import com.ph.coding.messaging.MessageSender;
+import com.ph.coding.messaging.MessagingException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SharedMemoryMessagingTest
+{
+  private Path directory;
+  private SharedMemoryMessagingFactory messagingFactory;
+  // a second factory on the same directory maps the rings separately, as another process would
+  private SharedMemoryMessagingFactory otherProcess;
+
+  @Before
+  public void before() throws Exception
+  {
+    directory = Files.createTempDirectory("shm-messaging-test");
+    messagingFactory = new SharedMemoryMessagingFactory(directory);
+    messagingFactory.start();
+    otherProcess = new SharedMemoryMessagingFactory(directory);
+    otherProcess.start();
+  }
+
+  @After
+  public void after() throws Exception
+  {
+    messagingFactory.shutdown();
+    otherProcess.shutdown();
+    try(Stream<Path> paths = Files.walk(directory))
+    {
+      paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  // -------------------------------------------------------------------------------- //
+
+  @Test
+  public void simpleSendReceive() throws Exception
+  {
+    final MessageSender sender = startedSender(messagingFactory, "a");
+    final StoringListener listener = startedReceiver(messagingFactory, "a");
+
+    sender.sendMessage(encode("The"));
+    sender.sendMessage(encode("cat"));
+    sender.sendMessage(encode("sat"));
+    messagingFactory.waitForMessages();
+
+    checkMessages(listener, "The", "cat", "sat");
+    assertEquals(Collections.nCopies(3, "a"), listener.topics);
+  }
+
+  @Test
+  public void sendReceiveAcrossMappings() throws Exception
+  {
+    final MessageSender sender = startedSender(messagingFactory, "a");
+    final MessageSender otherSender = startedSender(otherProcess, "b");
+    final StoringListener listenerA = startedReceiver(otherProcess, "a");
+    final StoringListener listenerB1 = startedReceiver(messagingFactory, "b");
+    final StoringListener listenerB2 = startedReceiver(otherProcess, "b");
+
+    sender.sendMessage(encode("The"));
+    otherSender.sendMessages(encode("cat"), encode("sat"));
+    otherProcess.waitForMessages();
+    messagingFactory.waitForMessages();
+
+    checkMessages(listenerA, "The");
+    checkMessages(listenerB1, "cat", "sat");
+    checkMessages(listenerB2, "cat", "sat");
+  }
+
+  @Test
+  public void concurrentProducersKeepTheirOrder() throws Exception
+  {
+    final StoringListener listener = startedReceiver(otherProcess, "a");
+    final List<Thread> threads = new ArrayList<>();
+    for(int t=0; t<4; ++t)
+    {
+      final MessageSender sender = startedSender(t % 2 == 0 ? messagingFactory : otherProcess, "a");
+      final String prefix = t + ":";
+      final Thread thread = new Thread(() -> {
+        try
+        {
+          for(int i=0; i<1000; ++i)
+            sender.sendMessage(encode(prefix + i));
+        }
+        catch(final MessagingException e)
+        {
+          throw new RuntimeException(e);
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    for(final Thread thread : threads)
+      thread.join();
+    otherProcess.waitForMessages();
+
+    assertEquals(4000, listener.messages.size());
+    final int[] next = new int[4];
+    for(final Message message : listener.messages)
+    {
+      final String[] parts = decode(message).split(":");
+      final int producer = Integer.parseInt(parts[0]);
+      assertEquals(next[producer]++, Integer.parseInt(parts[1]));
+    }
+  }
+
+  @Test
+  public void messagesWrapAroundTheRing() throws Exception
+  {
+    messagingFactory.configureTopic("a", 1024);
+    final MessageSender sender = startedSender(messagingFactory, "a");
+    final StoringListener listener = new StoringListener();
+    final SharedMemoryMessageReceiver receiver = (SharedMemoryMessageReceiver) startedReceiver(messagingFactory, "a", listener);
+
+    final List<String> sent = new ArrayList<>();
+    for(int i=0; i<500; ++i)
+    {
+      // varying lengths, so that records end up straddling the end of the ring
+      final String message = "message " + i + "xxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxx".substring(i % 37);
+      sent.add(message);
+      sender.sendMessage(encode(message));
+      if(i % 10 == 0)
+        messagingFactory.waitForMessages();
+    }
+    messagingFactory.waitForMessages();
+
+    checkMessages(listener, sent.toArray(new String[0]));
+    assertEquals(0, receiver.getLappedCount());
+  }
+
+  @Test
+  public void slowReceiverIsLapped() throws Exception
+  {
+    messagingFactory.configureTopic("a", 1024);
+    final MessageSender sender = startedSender(messagingFactory, "a");
+    final CountDownLatch firstMessage = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final StoringListener listener = new StoringListener()
+    {
+      @Override
+      public void onMessage(final Message message, final String topic)
+      {
+        firstMessage.countDown();
+        try
+        {
+          release.await();
+        }
+        catch(final InterruptedException e)
+        {
+          Thread.currentThread().interrupt();
+        }
+        super.onMessage(message, topic);
+      }
+    };
+    final SharedMemoryMessageReceiver receiver = (SharedMemoryMessageReceiver) startedReceiver(messagingFactory, "a", listener);
+
+    sender.sendMessage(encode("first"));
+    firstMessage.await();
+    for(int i=0; i<200; ++i)
+      sender.sendMessage(encode("overwritten " + i));
+    release.countDown();
+    messagingFactory.waitForMessages();
+    sender.sendMessage(encode("last"));
+    messagingFactory.waitForMessages();
+
+    assertEquals(1, receiver.getLappedCount());
+    assertEquals("first", decode(listener.messages.get(0)));
+    assertEquals("last", decode(listener.messages.get(listener.messages.size() - 1)));
+    assertTrue(listener.messages.size() < 202);
+  }
+
+  @Test
+  public void oldPayloadPastTheTailIsNotTakenForARecord() throws Exception
+  {
+    final SharedMemoryRing ring = SharedMemoryRing.open(directory.resolve("ring"), "a", 1024);
+    // payloads made of what would be the header of a 16 byte record in the second lap
+    final ByteBuffer lookalike = ByteBuffer.allocate(120).order(ByteOrder.nativeOrder());
+    while(lookalike.hasRemaining())
+      lookalike.putLong((2L << 32) | 16);
+    for(int i=0; i<8; ++i)
+      ring.append(lookalike.array());
+    ring.append(new byte[8]);
+
+    final SharedMemoryRing.Reader reader = ring.newReader();
+    assertNull(reader.poll());
+
+    ring.append(encode("cat"));
+    assertEquals("cat", new String(reader.poll(), StandardCharsets.UTF_8));
+    assertNull(reader.poll());
+  }
+
+  @Test(expected = MessagingException.class)
+  public void messageLargerThanAnEighthOfTheRingIsRejected() throws Exception
+  {
+    messagingFactory.configureTopic("a", 1024);
+    startedSender(messagingFactory, "a").sendMessage(new byte[128]);
+  }
+
+  @Test(expected = MessagingException.class)
+  public void processesMustAgreeOnRingCapacity() throws Exception
+  {
+    messagingFactory.configureTopic("a", 1024);
+    otherProcess.configureTopic("a", 2048);
+    startedSender(messagingFactory, "a");
+    startedSender(otherProcess, "a");
+  }
+
+  // -------------------------------------------------------------------------------- //
+
+  private static MessageSender startedSender(final SharedMemoryMessagingFactory factory, final String topic) throws MessagingException
+  {
+    final MessageSender sender = factory.createSender(topic);
+    sender.start();
+    return sender;
+  }
+
+  private static StoringListener startedReceiver(final SharedMemoryMessagingFactory factory, final String topic) throws MessagingException
+  {
+    final StoringListener listener = new StoringListener();
+    startedReceiver(factory, topic, listener);
+    return listener;
+  }
+
+  private static MessageReceiver startedReceiver(final SharedMemoryMessagingFactory factory, final String topic,
+                                          final MessageReceiveListener listener) throws MessagingException
+  {
+    final MessageReceiver receiver = factory.createReceiver(topic);
+    receiver.setListener(listener);
+    receiver.start();
+    return receiver;
+  }
+
+  private static void checkMessages(final StoringListener listener, final String... messages)
+  {
+    assertEquals(messages.length, listener.messages.size());
+    for(int i=0; i<messages.length; ++i)
+      assertEquals("Message " + i + " different", messages[i], decode(listener.messages.get(i)));
+  }
+
+  private static byte[] encode(final String string)
+  {
+    return string.getBytes();
+  }
+
+  private static String decode(final Message message)
+  {
+    return new String(message.getMsg());
+  }
+
+  private static class StoringListener implements MessageReceiveListener
+  {
+    public final List<Message> messages = Collections.synchronizedList(new ArrayList<>());
+    public final List<String> topics = Collections.synchronizedList(new ArrayList<>());
+
+    @Override
+    public void onMessage(final Message message, final String topic)
+    {
+      messages.add(message);
+      topics.add(topic);
+    }
+  }
+}
@@ -0,0 +1,218 @@
+package com.ph.coding.messaging.shm;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+import com.ph.coding.messaging.MessagingException;
+
+/**
+ * A broadcast ring buffer in a memory mapped file, shared by every process that maps the same file.
+ * <p/>
+ * The file starts with a header holding the capacity of the ring and, on a cache line of its own, the tail: the
+ * position just after the last claimed record, counting bytes from the very first record ever written. Producers
+ * claim space by moving the tail on with a compare and swap, then write their payload and finally their record header
+ * with release semantics, so any number of producers in any number of processes append without locking. A record that
+ * would run past the end of the ring is preceded by a padding record filling up the rest of it, claimed by the same
+ * compare and swap, and starts again at the beginning.
+ * <p/>
+ * Each record header is a long made up of the lap of the ring the record was written in, plus one so that the zeros
+ * of a fresh file never look like a record, and the payload length, or -1 for padding. Readers keep a position of
+ * their own and never hold up producers: a record is ready once its position is below the tail and its header
+ * carries the lap of the reader's position and a length that fits the ring, and a reader that finds the tail more than
+ * a ring ahead of it has been lapped, as the records it was about to read may already have been overwritten. Where a
+ * header will go there are the bytes of the previous lap, possibly payload, so producers clear the header of the
+ * record they claimed before writing it, and readers never trust a header at or past the tail.
+ */
+final class SharedMemoryRing {
+
+	static final int MIN_CAPACITY = 1024;
+
+	private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+	private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+	private static final int CAPACITY_OFFSET = 0;
+	private static final int TAIL_OFFSET = 64;
+	private static final int DATA_OFFSET = 128;
+	private static final int RECORD_HEADER = 8;
+	private static final int ALIGNMENT = 8;
+	private static final int PADDING = -1;
+
+	private final String topic;
+	private final MappedByteBuffer buffer;
+	private final int capacity;
+	private final int mask;
+	private final int lapShift;
+	private final int maxMessageLength;
+
+	private SharedMemoryRing(String topic, MappedByteBuffer buffer, int capacity) {
+		this.topic = topic;
+		this.buffer = buffer;
+		this.capacity = capacity;
+		this.mask = capacity - 1;
+		this.lapShift = Integer.numberOfTrailingZeros(capacity);
+		this.maxMessageLength = capacity / 8 - RECORD_HEADER;
+	}
+
+	/**
+	 * Maps the ring in the given file, creating and initialising the file if no other process has yet.
+	 *
+	 * @param capacity Size of the ring in bytes, a power of 2 of at least {@link #MIN_CAPACITY}.
+	 * @throws MessagingException If the file holds a ring of a different capacity.
+	 */
+	static SharedMemoryRing open(Path file, String topic, int capacity) throws IOException, MessagingException {
+		MappedByteBuffer buffer;
+		try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+			if (raf.length() < DATA_OFFSET + capacity) {
+				raf.setLength(DATA_OFFSET + capacity);
+			}
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, DATA_OFFSET + capacity);
+		}
+		// whichever process gets here first decides the capacity
+		if (!INT.compareAndSet(buffer, CAPACITY_OFFSET, 0, capacity)) {
+			int existing = (int) INT.getVolatile(buffer, CAPACITY_OFFSET);
+			if (existing != capacity) {
+				throw new MessagingException("Ring of topic " + topic + " in " + file + " has a capacity of " + existing
+						+ " bytes, not " + capacity);
+			}
+		}
+		return new SharedMemoryRing(topic, buffer, capacity);
+	}
+
+	String getTopic() {
+		return topic;
+	}
+
+	/**
+	 * @return The position just after the last claimed record.
+	 */
+	long getTail() {
+		return (long) LONG.getVolatile(buffer, TAIL_OFFSET);
+	}
+
+	void append(byte[] payload) throws MessagingException {
+		if (payload.length > maxMessageLength) {
+			throw new MessagingException("Message of " + payload.length + " bytes is too large for the ring of topic "
+					+ topic + ", which takes at most " + maxMessageLength);
+		}
+		int recordLength = align(RECORD_HEADER + payload.length);
+		long position;
+		for (;;) {
+			long tail = getTail();
+			int toEnd = capacity - (int) (tail & mask);
+			if (recordLength <= toEnd) {
+				if (LONG.compareAndSet(buffer, TAIL_OFFSET, tail, tail + recordLength)) {
+					position = tail;
+					break;
+				}
+			} else if (LONG.compareAndSet(buffer, TAIL_OFFSET, tail, tail + toEnd + recordLength)) {
+				publish(tail, PADDING);
+				position = tail + toEnd;
+				break;
+			}
+		}
+		// what was there may be a payload of the previous lap that looks like a header of this one
+		LONG.setOpaque(buffer, DATA_OFFSET + (int) (position & mask), 0L);
+		buffer.put(DATA_OFFSET + (int) (position & mask) + RECORD_HEADER, payload);
+		publish(position, payload.length);
+	}
+
+	private void publish(long position, int length) {
+		long header = ((long) (lap(position) + 1) << 32) | (length & 0xFFFFFFFFL);
+		LONG.setRelease(buffer, DATA_OFFSET + (int) (position & mask), header);
+	}
+
+	private int lap(long position) {
+		return (int) (position >>> lapShift);
+	}
+
+	private static int align(int length) {
+		return (length + ALIGNMENT - 1) & -ALIGNMENT;
+	}
+
+	/**
+	 * @return A reader positioned after the last claimed record.
+	 */
+	Reader newReader() {
+		return new Reader(getTail());
+	}
+
+	/**
+	 * A position in the ring, for use by a single thread.
+	 */
+	final class Reader {
+		private volatile long position;
+		private long lappedCount;
+
+		private Reader(long position) {
+			this.position = position;
+		}
+
+		long getPosition() {
+			return position;
+		}
+
+		/**
+		 * @return How many times producers overtook the reader, which then skipped to the tail.
+		 */
+		long getLappedCount() {
+			return lappedCount;
+		}
+
+		/**
+		 * @return A copy of the next payload, or {@code null} if there is none yet.
+		 */
+		byte[] poll() {
+			for (;;) {
+				long current = position;
+				if (current >= getTail()) {
+					return null;
+				}
+				int index = DATA_OFFSET + (int) (current & mask);
+				long header = (long) LONG.getAcquire(buffer, index);
+				int length = (int) header;
+				if ((int) (header >>> 32) != lap(current) + 1 || !fits(current, length)) {
+					// claimed but not published yet
+					if (!skipIfLapped(current)) {
+						return null;
+					}
+					continue;
+				}
+				if (length == PADDING) {
+					position = current + capacity - (int) (current & mask);
+					continue;
+				}
+				byte[] payload = new byte[length];
+				buffer.get(index + RECORD_HEADER, payload);
+				// the payload may have been overwritten whilst we copied it; as in StampedLock.validate, the fence
+				// keeps the plain reads of the copy from moving after the read of the tail that validates them
+				VarHandle.acquireFence();
+				if (skipIfLapped(current)) {
+					continue;
+				}
+				position = current + align(RECORD_HEADER + length);
+				return payload;
+			}
+		}
+
+		private boolean fits(long current, int length) {
+			return length == PADDING
+					|| length >= 0 && length <= maxMessageLength && (current & mask) + RECORD_HEADER + length <= capacity;
+		}
+
+		private boolean skipIfLapped(long current) {
+			long tail = getTail();
+			if (tail - current > capacity) {
+				lappedCount++;
+				position = tail;
+				return true;
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package com.ph.coding.messaging.tcp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Incoming frames of one connection, read into a direct buffer and handed over once complete. Only touched by the
+ * connection's I/O thread.
+ * <p/>
+ * A frame larger than the buffer gets a buffer of its own size, which is given up again once the frame has been handed
+ * over, so a connection only holds on to the room of a large frame for as long as it takes to read it. A handler that
+ * cannot take any more frames pauses the reader, which then leaves the frames it has read in its buffer until called
+ * again.
+ */
+final class FrameReader {
+
+	/**
+	 * Called for each complete frame.
+	 */
+	interface Handler {
+		/**
+		 * @param frame The whole frame, from its length prefix on, only valid for the duration of the call.
+		 * @param payload The payload within the frame, only valid for the duration of the call.
+		 */
+		void onFrame(byte type, byte[] topic, ByteBuffer frame, ByteBuffer payload) throws IOException;
+
+		/**
+		 * @return Whether to stop handing over frames for now.
+		 */
+		default boolean isPaused() {
+			return false;
+		}
+	}
+
+	private static final int MAX_FRAME = 64 * 1024 * 1024;
+
+	private ByteBuffer buffer = ByteBuffer.allocateDirect(FrameWriter.CHUNK_SIZE);
+
+	/**
+	 * Reads whatever the channel has without blocking, as far as there is room for it, and hands over the frames
+	 * completed by it and any left from before, until the handler is paused.
+	 *
+	 * @throws EOFException If the other end closed the connection.
+	 */
+	void readFrom(ReadableByteChannel channel, Handler handler) throws IOException {
+		for (;;) {
+			int read = channel.read(buffer);
+			if (read < 0) {
+				throw new EOFException("Connection closed");
+			}
+			// the channel may have more only if it filled the buffer
+			boolean filled = !buffer.hasRemaining();
+			buffer.flip();
+			dispatchFrames(handler);
+			buffer.compact();
+			shrink();
+			if (!filled || handler.isPaused()) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return The size of the buffer.
+	 */
+	int capacity() {
+		return buffer.capacity();
+	}
+
+	private void dispatchFrames(Handler handler) throws IOException {
+		while (buffer.remaining() >= Frames.LENGTH_PREFIX && !handler.isPaused()) {
+			int start = buffer.position();
+			int bodyLength = buffer.getInt(start);
+			if (bodyLength < Frames.FIXED_BODY || bodyLength > MAX_FRAME) {
+				throw new IOException("Corrupt frame of length " + bodyLength);
+			}
+			int end = start + Frames.LENGTH_PREFIX + bodyLength;
+			if (end > buffer.limit()) {
+				if (end - start > buffer.capacity()) {
+					grow(end - start);
+				}
+				return;
+			}
+			byte type = buffer.get(start + Frames.LENGTH_PREFIX);
+			int topicLength = buffer.getShort(start + Frames.LENGTH_PREFIX + 1);
+			if (topicLength < 0 || topicLength > bodyLength - Frames.FIXED_BODY) {
+				throw new IOException("Corrupt frame with topic length " + topicLength + " in body of length "
+						+ bodyLength);
+			}
+			byte[] topic = new byte[topicLength];
+			int topicStart = start + Frames.LENGTH_PREFIX + Frames.FIXED_BODY;
+			buffer.get(topicStart, topic);
+			ByteBuffer frame = buffer.slice(start, end - start);
+			ByteBuffer payload = buffer.slice(topicStart + topicLength, end - topicStart - topicLength);
+			handler.onFrame(type, topic, frame, payload);
+			buffer.position(end);
+		}
+	}
+
+	/**
+	 * Makes room for a frame larger than the buffer, keeping what has been read of it so far.
+	 */
+	private void grow(int frameLength) {
+		ByteBuffer larger = ByteBuffer.allocateDirect(frameLength);
+		larger.put(buffer);
+		larger.flip();
+		buffer = larger;
+	}
+
+	/**
+	 * Goes back to a buffer of the usual size once a large frame has been handed over, unless what is left of the
+	 * buffer, or the frame it starts, still needs the room.
+	 */
+	private void shrink() {
+		int held = buffer.position();
+		if (buffer.capacity() == FrameWriter.CHUNK_SIZE || held > FrameWriter.CHUNK_SIZE) {
+			return;
+		}
+		if (held >= Frames.LENGTH_PREFIX && Frames.LENGTH_PREFIX + (long) buffer.getInt(0) > FrameWriter.CHUNK_SIZE) {
+			return;
+		}
+		ByteBuffer smaller = ByteBuffer.allocateDirect(FrameWriter.CHUNK_SIZE);
+		buffer.flip();
+		smaller.put(buffer);
+		buffer = smaller;
+	}
+}
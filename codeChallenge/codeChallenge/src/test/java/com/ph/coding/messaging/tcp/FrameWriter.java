@@ -0,0 +1,149 @@
+package com.ph.coding.messaging.tcp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Outgoing frames of one connection, added from any thread and written by the connection's I/O thread.
+ * <p/>
+ * Frames are encoded straight into direct buffer chunks, so all the frames added between two writes end up in a few
+ * chunks that go out in a single gathering write, however many separate sends they came from. Only frames too large
+ * for a chunk get a buffer of their own. Written chunks are kept for reuse. The writer keeps count of the bytes it
+ * holds, which is what the broker bounds per connection.
+ */
+final class FrameWriter {
+
+	static final int CHUNK_SIZE = 64 * 1024;
+	private static final int MAX_FREE_CHUNKS = 4;
+	private static final int MAX_GATHER = 64;
+
+	private final ArrayDeque<ByteBuffer> ready = new ArrayDeque<>();
+	private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+	private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+	// chunk being filled, in write mode
+	private ByteBuffer current;
+	// added but not yet written
+	private long pendingBytes;
+
+	/**
+	 * @return Whether there was nothing waiting to be written before.
+	 */
+	synchronized boolean add(byte type, byte[] topic, byte[] payload) {
+		boolean wasEmpty = isEmpty();
+		int length = Frames.frameLength(topic, payload.length);
+		pendingBytes += length;
+		if (length > CHUNK_SIZE) {
+			ByteBuffer large = ByteBuffer.allocate(length);
+			encode(large, type, topic, payload);
+			addLarge(large);
+		} else {
+			encode(chunkFor(length), type, topic, payload);
+		}
+		return wasEmpty;
+	}
+
+	/**
+	 * Adds an already encoded frame, copying it from its position to its limit.
+	 *
+	 * @return Whether there was nothing waiting to be written before.
+	 */
+	synchronized boolean add(ByteBuffer frame) {
+		boolean wasEmpty = isEmpty();
+		pendingBytes += frame.remaining();
+		if (frame.remaining() > CHUNK_SIZE) {
+			ByteBuffer large = ByteBuffer.allocate(frame.remaining());
+			large.put(frame);
+			addLarge(large);
+		} else {
+			chunkFor(frame.remaining()).put(frame);
+		}
+		return wasEmpty;
+	}
+
+	private static void encode(ByteBuffer target, byte type, byte[] topic, byte[] payload) {
+		target.putInt(Frames.FIXED_BODY + topic.length + payload.length);
+		target.put(type);
+		target.putShort((short) topic.length);
+		target.put(topic);
+		target.put(payload);
+	}
+
+	/**
+	 * Queues a frame too large for a chunk on its own, after whatever was added before it.
+	 */
+	private void addLarge(ByteBuffer large) {
+		closeCurrent();
+		large.flip();
+		ready.add(large);
+	}
+
+	private ByteBuffer chunkFor(int length) {
+		if (current != null && current.remaining() < length) {
+			closeCurrent();
+		}
+		if (current == null) {
+			ByteBuffer chunk = free.poll();
+			current = chunk == null ? ByteBuffer.allocateDirect(CHUNK_SIZE) : chunk;
+		}
+		return current;
+	}
+
+	private void closeCurrent() {
+		if (current != null) {
+			current.flip();
+			ready.add(current);
+			current = null;
+		}
+	}
+
+	synchronized boolean isEmpty() {
+		return ready.isEmpty() && (current == null || current.position() == 0);
+	}
+
+	/**
+	 * @return The number of bytes added but not yet written.
+	 */
+	synchronized long pendingBytes() {
+		return pendingBytes;
+	}
+
+	/**
+	 * Writes as much as the channel takes without blocking.
+	 *
+	 * @return Whether everything has been written.
+	 */
+	synchronized boolean writeTo(GatheringByteChannel channel) throws IOException {
+		if (current != null && current.position() > 0) {
+			closeCurrent();
+		}
+		while (!ready.isEmpty()) {
+			int count = 0;
+			for (ByteBuffer buffer : ready) {
+				gather[count++] = buffer;
+				if (count == MAX_GATHER) {
+					break;
+				}
+			}
+			long written = channel.write(gather, 0, count);
+			pendingBytes -= written;
+			while (!ready.isEmpty() && !ready.peek().hasRemaining()) {
+				recycle(ready.poll());
+			}
+			Arrays.fill(gather, 0, count, null);
+			if (written == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void recycle(ByteBuffer buffer) {
+		if (buffer.isDirect() && free.size() < MAX_FREE_CHUNKS) {
+			buffer.clear();
+			free.add(buffer);
+		}
+	}
+}
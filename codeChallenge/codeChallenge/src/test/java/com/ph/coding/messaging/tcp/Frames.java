@@ -0,0 +1,45 @@
+package com.ph.coding.messaging.tcp;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The wire format shared by the {@link TcpBroker} and its clients.
+ * <p/>
+ * Every frame is an int holding the length of the rest of the frame, a type byte, a short holding the length of the
+ * UTF-8 encoded topic, the topic and finally the payload, which takes up whatever is left. Brokers forward message
+ * frames exactly as they received them.
+ */
+final class Frames {
+
+	static final int LENGTH_PREFIX = 4;
+	// type byte and topic length
+	static final int FIXED_BODY = 3;
+
+	/** A message on a topic, from a sender to the broker and from the broker to the subscribers of the topic. */
+	static final byte MESSAGE = 1;
+	/** Asks the broker to forward the messages of a topic. */
+	static final byte SUBSCRIBE = 2;
+	/** Asks the broker to stop forwarding the messages of a topic. */
+	static final byte UNSUBSCRIBE = 3;
+	/** Asks the broker for a {@link #PONG} with the same payload, once it has dealt with all earlier frames. */
+	static final byte PING = 4;
+	static final byte PONG = 5;
+
+	static final byte[] NO_TOPIC = new byte[0];
+	static final byte[] NO_PAYLOAD = new byte[0];
+
+	private Frames() {
+	}
+
+	static byte[] encodeTopic(String topic) {
+		byte[] encoded = topic.getBytes(StandardCharsets.UTF_8);
+		if (encoded.length > Short.MAX_VALUE) {
+			throw new IllegalArgumentException("Topic is too long: " + topic);
+		}
+		return encoded;
+	}
+
+	static int frameLength(byte[] topic, int payloadLength) {
+		return LENGTH_PREFIX + FIXED_BODY + topic.length + payloadLength;
+	}
+}
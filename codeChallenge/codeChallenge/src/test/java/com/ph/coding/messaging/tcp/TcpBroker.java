@@ -0,0 +1,319 @@
+package com.ph.coding.messaging.tcp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A small message broker that {@link TcpMessagingFactory} clients connect to. It keeps track of which connections
+ * subscribed to which topics and forwards every message frame it receives to the subscribers of its topic, in the
+ * order it received them.
+ * <p/>
+ * All connections are served by one thread with a selector and non-blocking channels. Frames forwarded to a
+ * connection pile up in its {@link FrameWriter} whilst the thread works through everything readable, and are only
+ * written once the thread is done reading, so each connection gets one gathering write per round however many frames
+ * it is due.
+ * <p/>
+ * A subscriber that does not keep up only gets so many bytes buffered for it: once its {@link FrameWriter} holds more
+ * than {@code maxBufferedBytes}, the broker stops reading from the connections whose messages took it over, leaving
+ * their frames in the kernel so that their own sends back up, and starts reading from them again once the subscriber
+ * has taken half of its backlog. The limit is checked after each frame forwarded, so a subscriber's backlog only goes
+ * past it by a frame for each connection publishing to it.
+ */
+public final class TcpBroker {
+
+	public static final long DEFAULT_MAX_BUFFERED_BYTES = 4 * 1024 * 1024;
+
+	private final InetSocketAddress bindAddress;
+	private final long maxBufferedBytes;
+	private Selector selector;
+	private ServerSocketChannel server;
+	private Thread thread;
+	private volatile boolean running;
+	private final Map<String, Set<Connection>> subscriptions = new HashMap<>();
+	private final Set<Connection> toFlush = new LinkedHashSet<>();
+	// connections to read from again, which may have frames left in their readers from when they were paused
+	private final List<Connection> toResume = new ArrayList<>();
+	private volatile long peakBufferedBytes;
+
+	/**
+	 * @param bindAddress Address to listen on, port 0 for any free port.
+	 */
+	public TcpBroker(InetSocketAddress bindAddress) {
+		this(bindAddress, DEFAULT_MAX_BUFFERED_BYTES);
+	}
+
+	/**
+	 * @param bindAddress Address to listen on, port 0 for any free port.
+	 * @param maxBufferedBytes Most bytes buffered for a connection before the connections sending to it are paused.
+	 */
+	public TcpBroker(InetSocketAddress bindAddress, long maxBufferedBytes) {
+		if (maxBufferedBytes <= 0) {
+			throw new IllegalArgumentException("Buffer limit must be positive: " + maxBufferedBytes);
+		}
+		this.bindAddress = bindAddress;
+		this.maxBufferedBytes = maxBufferedBytes;
+	}
+
+	public synchronized void start() throws IOException {
+		if (running) {
+			return;
+		}
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		server.bind(bindAddress);
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+		running = true;
+		thread = new Thread(this::run, "tcp-broker");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public synchronized void stop() throws IOException, InterruptedException {
+		if (!running) {
+			return;
+		}
+		running = false;
+		selector.wakeup();
+		thread.join();
+		for (SelectionKey key : selector.keys()) {
+			key.channel().close();
+		}
+		selector.close();
+	}
+
+	/**
+	 * @return The address the broker listens on, with the actual port if it was started on port 0.
+	 */
+	public InetSocketAddress getAddress() throws IOException {
+		return (InetSocketAddress) server.getLocalAddress();
+	}
+
+	/**
+	 * @return The most bytes that have been buffered for any one connection.
+	 */
+	long getPeakBufferedBytes() {
+		return peakBufferedBytes;
+	}
+
+	private void run() {
+		try {
+			while (running) {
+				if (toResume.isEmpty()) {
+					selector.select();
+				} else {
+					selector.selectNow();
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+					} else {
+						Connection connection = (Connection) key.attachment();
+						try {
+							if (key.isReadable()) {
+								connection.reader.readFrom(connection.channel, connection);
+								if (connection.isPaused()) {
+									connection.updateInterest();
+								}
+							}
+							if (key.isValid() && key.isWritable()) {
+								toFlush.add(connection);
+							}
+						} catch (IOException e) {
+							close(connection);
+						}
+					}
+				}
+				resume();
+				flush();
+			}
+		} catch (IOException | ClosedSelectorException e) {
+			if (running) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = server.accept();
+		if (channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		Connection connection = new Connection(channel);
+		connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+	}
+
+	private void resume() {
+		// closing a connection can add to the list whilst going through it
+		for (int i = 0; i < toResume.size(); i++) {
+			Connection connection = toResume.get(i);
+			if (!connection.channel.isOpen() || connection.isPaused()) {
+				continue;
+			}
+			try {
+				connection.reader.readFrom(connection.channel, connection);
+				connection.updateInterest();
+			} catch (IOException e) {
+				close(connection);
+			}
+		}
+		toResume.clear();
+	}
+
+	private void flush() {
+		for (Connection connection : toFlush) {
+			if (!connection.channel.isOpen()) {
+				continue;
+			}
+			try {
+				connection.writing = !connection.writer.writeTo(connection.channel);
+				if (connection.writer.pendingBytes() <= maxBufferedBytes / 2) {
+					connection.releasePublishers();
+				}
+				connection.updateInterest();
+			} catch (IOException e) {
+				close(connection);
+			}
+		}
+		toFlush.clear();
+	}
+
+	private void close(Connection connection) {
+		for (String topic : connection.topics) {
+			Set<Connection> subscribers = subscriptions.get(topic);
+			if (subscribers != null) {
+				subscribers.remove(connection);
+				if (subscribers.isEmpty()) {
+					subscriptions.remove(topic);
+				}
+			}
+		}
+		connection.releasePublishers();
+		connection.key.cancel();
+		try {
+			connection.channel.close();
+		} catch (IOException e) {
+			// already gone
+		}
+	}
+
+	private final class Connection implements FrameReader.Handler {
+		final SocketChannel channel;
+		final FrameReader reader = new FrameReader();
+		final FrameWriter writer = new FrameWriter();
+		final Set<String> topics = new HashSet<>();
+		// connections not read from until this one's backlog goes down
+		final Set<Connection> pausedPublishers = new HashSet<>();
+		// subscribers whose backlog this connection is not read from for
+		int pausedBy;
+		boolean writing;
+		SelectionKey key;
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		@Override
+		public boolean isPaused() {
+			return pausedBy > 0;
+		}
+
+		void updateInterest() {
+			if (key.isValid()) {
+				key.interestOps((isPaused() ? 0 : SelectionKey.OP_READ) | (writing ? SelectionKey.OP_WRITE : 0));
+			}
+		}
+
+		void releasePublishers() {
+			for (Connection publisher : pausedPublishers) {
+				if (--publisher.pausedBy == 0) {
+					toResume.add(publisher);
+				}
+			}
+			pausedPublishers.clear();
+		}
+
+		@Override
+		public void onFrame(byte type, byte[] topicBytes, ByteBuffer frame, ByteBuffer payload) {
+			String topic = new String(topicBytes, StandardCharsets.UTF_8);
+			switch (type) {
+			case Frames.MESSAGE:
+				Set<Connection> subscribers = subscriptions.get(topic);
+				if (subscribers != null) {
+					for (Connection subscriber : subscribers) {
+						subscriber.writer.add(frame.duplicate());
+						toFlush.add(subscriber);
+						long buffered = subscriber.writer.pendingBytes();
+						if (buffered > peakBufferedBytes) {
+							peakBufferedBytes = buffered;
+						}
+						if (buffered > maxBufferedBytes && subscriber.pausedPublishers.add(this)) {
+							pausedBy++;
+						}
+					}
+				}
+				break;
+			case Frames.SUBSCRIBE:
+				if (topics.add(topic)) {
+					subscriptions.computeIfAbsent(topic, t -> new LinkedHashSet<>()).add(this);
+				}
+				break;
+			case Frames.UNSUBSCRIBE:
+				if (topics.remove(topic)) {
+					Set<Connection> current = subscriptions.get(topic);
+					current.remove(this);
+					if (current.isEmpty()) {
+						subscriptions.remove(topic);
+					}
+				}
+				break;
+			case Frames.PING:
+				byte[] id = new byte[payload.remaining()];
+				payload.get(id);
+				writer.add(Frames.PONG, Frames.NO_TOPIC, id);
+				toFlush.add(this);
+				break;
+			default:
+				// unknown frames are ignored, so newer clients can talk to older brokers
+			}
+		}
+	}
+
+	/**
+	 * Runs a broker in a process of its own.
+	 *
+	 * @param args The port to listen on, and optionally the address to bind to.
+	 */
+	public static void main(String[] args) throws Exception {
+		int port = Integer.parseInt(args[0]);
+		InetSocketAddress address = args.length > 1 ? new InetSocketAddress(args[1], port) : new InetSocketAddress(port);
+		TcpBroker broker = new TcpBroker(address);
+		broker.start();
+		System.out.println("Broker listening on " + broker.getAddress());
+		broker.thread.join();
+	}
+}
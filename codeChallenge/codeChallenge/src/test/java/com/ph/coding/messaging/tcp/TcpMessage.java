@@ -0,0 +1,22 @@
+package com.ph.coding.messaging.tcp;
+
+import com.ph.coding.messaging.Message;
+
+public final class TcpMessage implements Message {
+
+	private final byte[] msg;
+
+	TcpMessage(byte[] msg) {
+		this.msg = msg;
+	}
+
+	@Override
+	public byte[] getMsg() {
+		return msg;
+	}
+
+	@Override
+	public void dispose() {
+		// nothing to release
+	}
+}
@@ -0,0 +1,59 @@
+package com.ph.coding.messaging.tcp;
+
+import java.util.List;
+
+import com.ph.coding.messaging.MessageSender;
+import com.ph.coding.messaging.MessagingException;
+
+public final class TcpMessageSender implements MessageSender {
+
+	private volatile boolean isStarted = false;
+	private final String topic;
+	private final byte[] encodedTopic;
+	private final TcpMessagingFactory factory;
+
+	TcpMessageSender(String topic, TcpMessagingFactory factory)
+	{
+		this.topic = topic;
+		this.encodedTopic = Frames.encodeTopic(topic);
+		this.factory = factory;
+	}
+
+	@Override
+	public String getTopic() {
+		return topic;
+	}
+
+	@Override
+	public boolean isStarted() {
+		return isStarted;
+	}
+
+	@Override
+	public void start() throws MessagingException {
+		isStarted = true;
+	}
+
+	@Override
+	public void stop() throws MessagingException {
+		isStarted = false;
+	}
+
+	@Override
+	public void sendMessage(byte[] message) throws MessagingException {
+		if(!isStarted)
+		{
+			throw new MessagingException("Not started");
+		}
+		factory.send(Frames.MESSAGE, encodedTopic, message);
+	}
+
+	@Override
+	public void sendMessages(List<byte[]> messages) throws MessagingException {
+		if(!isStarted)
+		{
+			throw new MessagingException("Not started");
+		}
+		factory.sendAll(encodedTopic, messages);
+	}
+}
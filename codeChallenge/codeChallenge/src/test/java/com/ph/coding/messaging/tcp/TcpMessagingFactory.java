@@ -0,0 +1,352 @@
+package com.ph.coding.messaging.tcp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ph.coding.messaging.MessageReceiver;
+import com.ph.coding.messaging.MessageSender;
+import com.ph.coding.messaging.MessagingException;
+import com.ph.coding.messaging.MessagingFactory;
+
+/**
+ * Messaging provider whose senders and receivers talk to a {@link TcpBroker} over a single TCP connection per
+ * factory.
+ * <p/>
+ * Sends only encode the message into the connection's {@link FrameWriter} and wake the I/O thread if it is not already
+ * due to write, so messages sent in quick succession, from any number of senders, go out together in one gathering
+ * write. The I/O thread hands received messages to a delivery thread, so slow listeners never hold up the connection;
+ * listeners are called one at a time, in the order the messages arrived. At most {@code maxPendingDeliveries} messages
+ * wait for the delivery thread: once that many are waiting, the I/O thread stops reading from the connection, but not
+ * writing to it, until the delivery thread has caught up, which the broker in turn passes on to the publishers.
+ */
+public class TcpMessagingFactory implements MessagingFactory
+{
+	public static final int DEFAULT_MAX_PENDING_DELIVERIES = 16 * 1024;
+	private static final long DEFAULT_WAIT_MILLIS = 30000;
+
+	private final InetSocketAddress brokerAddress;
+	private final List<TcpMessageSender> senders = Collections.synchronizedList(new ArrayList<>());
+	private final List<TcpMessageReceiver> receivers = Collections.synchronizedList(new ArrayList<>());
+	private final Map<String, List<TcpMessageReceiver>> subscribers = new ConcurrentHashMap<>();
+	private final FrameWriter writer = new FrameWriter();
+	private final FrameReader reader = new FrameReader();
+	private final AtomicBoolean wakeupPending = new AtomicBoolean();
+	private final BlockingQueue<Runnable> deliveries;
+	private final AtomicLong pingIds = new AtomicLong();
+	private final Map<Long, CountDownLatch> pings = new ConcurrentHashMap<>();
+	private SocketChannel channel;
+	private Selector selector;
+	private SelectionKey key;
+	private Thread ioThread;
+	private Thread deliveryThread;
+	// set by the I/O thread when it stops reading for want of room in the delivery queue
+	private volatile boolean readPaused;
+	private volatile boolean isStarted;
+
+  public TcpMessagingFactory(final InetSocketAddress brokerAddress)
+  {
+    this(brokerAddress, DEFAULT_MAX_PENDING_DELIVERIES);
+  }
+
+  /**
+   * @param maxPendingDeliveries Most messages received and waiting to be delivered before the connection is no longer
+   *        read from.
+   */
+  public TcpMessagingFactory(final InetSocketAddress brokerAddress, final int maxPendingDeliveries)
+  {
+    if(maxPendingDeliveries <= 0)
+      throw new IllegalArgumentException("Delivery queue capacity must be positive: " + maxPendingDeliveries);
+    this.brokerAddress = brokerAddress;
+    this.deliveries = new LinkedBlockingQueue<>(maxPendingDeliveries);
+  }
+
+  @Override
+  public String getProviderName()
+  {
+    return "Tcp";
+  }
+
+  @Override
+  public void start() throws Exception
+  {
+    channel = SocketChannel.open(brokerAddress);
+    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    channel.configureBlocking(false);
+    selector = Selector.open();
+    key = channel.register(selector, SelectionKey.OP_READ);
+    isStarted = true;
+    ioThread = new Thread(this::runIo, "tcp-client-io");
+    ioThread.setDaemon(true);
+    ioThread.start();
+    deliveryThread = new Thread(this::runDeliveries, "tcp-client-delivery");
+    deliveryThread.setDaemon(true);
+    deliveryThread.start();
+  }
+
+  @Override
+  public void shutdown() throws Exception
+  {
+    synchronized(senders)
+    {
+      Iterator<TcpMessageSender> itSend = senders.iterator();
+      while(itSend.hasNext())
+      {
+        itSend.next().stop();
+        itSend.remove();
+      }
+    }
+    synchronized(receivers)
+    {
+      Iterator<TcpMessageReceiver> itRec = receivers.iterator();
+      while(itRec.hasNext())
+      {
+        itRec.next().stop();
+        itRec.remove();
+      }
+    }
+    if(!isStarted)
+    {
+      return;
+    }
+    isStarted = false;
+    selector.wakeup();
+    ioThread.join();
+    deliveryThread.interrupt();
+    deliveryThread.join();
+    selector.close();
+    channel.close();
+  }
+
+  @Override
+  public MessageSender createSender(final String topic) throws MessagingException
+  {
+    if(!isStarted) throw new MessagingException("Not started factory");
+    TcpMessageSender sender = new TcpMessageSender(topic, this);
+    senders.add(sender);
+    return sender;
+  }
+
+  @Override
+  public MessageReceiver createReceiver(final String topic) throws MessagingException
+  {
+    if(!isStarted) throw new MessagingException("Not started factory");
+    TcpMessageReceiver receiver = new TcpMessageReceiver(topic, this);
+    receivers.add(receiver);
+    return receiver;
+  }
+
+  /**
+   * Blocks until every message sent through this factory so far has been delivered to the receivers of this factory,
+   * by asking the broker for a pong on the same connection.
+   *
+   * @throws MessagingException If the broker does not answer in time.
+   */
+  public void waitForMessages() throws MessagingException, InterruptedException
+  {
+    if(!waitForMessages(DEFAULT_WAIT_MILLIS, TimeUnit.MILLISECONDS))
+      throw new MessagingException("No answer from broker at " + brokerAddress);
+  }
+
+  /**
+   * @return Whether every message sent through this factory so far has been delivered to the receivers of this
+   *         factory within the given time.
+   */
+  public boolean waitForMessages(final long timeout, final TimeUnit unit) throws MessagingException, InterruptedException
+  {
+    final long id = pingIds.incrementAndGet();
+    final CountDownLatch pong = new CountDownLatch(1);
+    pings.put(id, pong);
+    try
+    {
+      send(Frames.PING, Frames.NO_TOPIC, ByteBuffer.allocate(Long.BYTES).putLong(id).array());
+      return pong.await(timeout, unit);
+    }
+    finally
+    {
+      pings.remove(id);
+    }
+  }
+
+  void send(final byte type, final byte[] topic, final byte[] payload) throws MessagingException
+  {
+    checkConnected();
+    if(writer.add(type, topic, payload))
+      wakeIo();
+  }
+
+  void sendAll(final byte[] topic, final List<byte[]> payloads) throws MessagingException
+  {
+    checkConnected();
+    boolean wake = false;
+    for(final byte[] payload : payloads)
+      wake |= writer.add(Frames.MESSAGE, topic, payload);
+    if(wake)
+      wakeIo();
+  }
+
+  private void checkConnected() throws MessagingException
+  {
+    if(!isStarted || !channel.isOpen())
+      throw new MessagingException("Not connected to broker at " + brokerAddress);
+  }
+
+  private void wakeIo()
+  {
+    if(wakeupPending.compareAndSet(false, true))
+      selector.wakeup();
+  }
+
+  /**
+   * Adds a receiver to those its topic's messages are delivered to, subscribing to the topic with the broker if it is
+   * the first.
+   */
+  void subscribe(final TcpMessageReceiver receiver) throws MessagingException
+  {
+    final List<TcpMessageReceiver> current = subscribers.computeIfAbsent(receiver.getTopic(), topic -> new CopyOnWriteArrayList<>());
+    synchronized(current)
+    {
+      current.add(receiver);
+      if(current.size() == 1)
+        send(Frames.SUBSCRIBE, Frames.encodeTopic(receiver.getTopic()), Frames.NO_PAYLOAD);
+    }
+  }
+
+  void unsubscribe(final TcpMessageReceiver receiver) throws MessagingException
+  {
+    final List<TcpMessageReceiver> current = subscribers.get(receiver.getTopic());
+    if(current == null)
+      return;
+    synchronized(current)
+    {
+      if(current.remove(receiver) && current.isEmpty() && isStarted)
+        send(Frames.UNSUBSCRIBE, Frames.encodeTopic(receiver.getTopic()), Frames.NO_PAYLOAD);
+    }
+  }
+
+  private void runIo()
+  {
+    final FrameReader.Handler handler = new FrameReader.Handler()
+    {
+      @Override
+      public void onFrame(final byte type, final byte[] topic, final ByteBuffer frame, final ByteBuffer payload)
+      {
+        TcpMessagingFactory.this.onFrame(type, topic, frame, payload);
+      }
+
+      // only this thread adds to the delivery queue, so there is room for the frame handed over next unless paused
+      @Override
+      public boolean isPaused()
+      {
+        if(deliveries.remainingCapacity() > 0)
+          return false;
+        readPaused = true;
+        return true;
+      }
+    };
+    try
+    {
+      while(isStarted)
+      {
+        selector.select();
+        wakeupPending.set(false);
+        // a paused reader may have frames left over that wait for room rather than for more to arrive
+        if(readPaused || (key.isValid() && key.isReadable()))
+        {
+          readPaused = false;
+          reader.readFrom(channel, handler);
+        }
+        // the flag is set before the queue is checked again, so either this sees the room made by the delivery thread
+        // or the delivery thread sees the flag and wakes this thread
+        if(readPaused && deliveries.remainingCapacity() > 0)
+          wakeIo();
+        // interest in writability only whilst a write is left unfinished
+        final boolean done = writer.writeTo(channel);
+        key.interestOps((readPaused ? 0 : SelectionKey.OP_READ) | (done ? 0 : SelectionKey.OP_WRITE));
+        selector.selectedKeys().clear();
+      }
+    }
+    catch(final IOException | ClosedSelectorException e)
+    {
+      if(isStarted)
+      {
+        e.printStackTrace();
+        try
+        {
+          channel.close();
+        }
+        catch(final IOException ignored)
+        {
+        }
+      }
+    }
+  }
+
+  private void onFrame(final byte type, final byte[] topic, final ByteBuffer frame, final ByteBuffer payload)
+  {
+    switch(type)
+    {
+      case Frames.MESSAGE:
+        final List<TcpMessageReceiver> current = subscribers.get(new String(topic, StandardCharsets.UTF_8));
+        if(current != null && !current.isEmpty())
+        {
+          final byte[] msg = new byte[payload.remaining()];
+          payload.get(msg);
+          deliveries.add(() -> {
+            for(final TcpMessageReceiver receiver : current)
+              receiver.deliver(msg);
+          });
+        }
+        break;
+      case Frames.PONG:
+        final CountDownLatch pong = pings.get(payload.getLong(payload.position()));
+        if(pong != null)
+          deliveries.add(pong::countDown);
+        break;
+      default:
+        // nothing else is sent to clients
+    }
+  }
+
+  private void runDeliveries()
+  {
+    try
+    {
+      while(isStarted || !deliveries.isEmpty())
+      {
+        final Runnable delivery = deliveries.take();
+        if(readPaused)
+          wakeIo();
+        delivery.run();
+      }
+    }
+    catch(final InterruptedException e)
+    {
+      // shut down
+    }
+  }
+
+  public boolean isStarted()
+  {
+    return isStarted;
+  }
+}